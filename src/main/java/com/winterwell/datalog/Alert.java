@@ -105,11 +105,14 @@ public class Alert implements IListenDataLog {
 	 */
 	private transient boolean bucket2;
 	
+	/**
+	 * Synchronized -- for lots of alerts, or busy tags, use {@link AlertEngine} instead.
+	 */
 	@Override
 	public synchronized void handleCount(double _x, double dx, String tag) {
-		Time now = new Time();
+		long now = System.currentTimeMillis();
 		// Swap buckets?
-		if (now.isAfter(bucketEnd)) {
+		if (now > bucketEnd.getTime()) {
 			// below alerts only fire at the end of a bucket
 			if (below && bucket2 && x < threshold.x) {
 				fire(now);
@@ -126,14 +129,14 @@ public class Alert implements IListenDataLog {
 		}
 	}
 
-	private void fire(Time now) {
-		if (lastAlert != null && lastAlert.dt(now).isShorterThan(minInterval)) {
+	private void fire(long now) {
+		if (lastAlert != null && now - lastAlert.getTime() < minInterval.getMillisecs()) {
 			// no fire
 			return;
 		}
 		// Count Alert firing
 		DataLog.count(1, getFiringStatTag());
-		setLastAlert(new Time());
+		setLastAlert(new Time(now));
 		// handle it
 		handler.handleCount(x, 0, threshold.tag);
 	}
@@ -0,0 +1,348 @@
+package com.winterwell.datalog;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import com.winterwell.utils.log.Log;
+import com.winterwell.utils.threads.SafeExecutor;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.TUnit;
+import com.winterwell.utils.time.Time;
+
+/**
+ * Runs many {@link Alert}s. Use this instead of setting each Alert as a
+ * DataLog listener when there are lots of them (or several on one tag).
+ * <p>
+ * Usage:
+ * <pre>
+ * AlertEngine engine = new AlertEngine(DataLog.getImplementation());
+ * engine.add(alert);
+ * </pre>
+ * <p>
+ * How it works:
+ * <ul>
+ * <li>The engine is the DataLog listener for each watched tag. A count adds to
+ * a striped adder per alert (no locks), and for above-alerts compares it to
+ * the threshold.
+ * <li>Bucket rollover, and the below-threshold checks, are done by a single
+ * timer-wheel thread -- not on the counting thread.
+ * <li>Firing is handed to a background thread. {@link Alert#getMinInterval()}
+ * suppression is checked (with a CAS) before that, so a hot tag does not
+ * flood the queue.
+ * </ul>
+ *
+ * @author daniel
+ * @testedby AlertEngineTest
+ */
+public class AlertEngine implements IListenDataLog, Closeable {
+
+	private static final String LOGTAG = "AlertEngine";
+
+	/**
+	 * Number of wheel slots. Buckets longer than slots*tick go round more than once.
+	 */
+	private static final int SLOTS = 512;
+
+	private final IDataLog dataLog;
+
+	/**
+	 * tag to alerts. Copy-on-write arrays, so the count path just reads.
+	 */
+	private final ConcurrentHashMap<String, AlertCell[]> cellsForTag = new ConcurrentHashMap<>();
+
+	private final long tick;
+
+	/**
+	 * Only touched by the wheel thread
+	 */
+	private final List<AlertCell>[] wheel = new List[SLOTS];
+
+	/**
+	 * new cells, for the wheel thread to slot in
+	 */
+	private final ConcurrentLinkedQueue<AlertCell> toSchedule = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * The next tick the wheel thread will process. Only touched by the wheel thread.
+	 */
+	private long nextTick;
+
+	private final SafeExecutor firing;
+
+	private final Thread wheelThread;
+
+	private volatile boolean closed;
+
+	/**
+	 * Timer tick of 1 second
+	 * @param dataLog The DataLog to listen to
+	 */
+	public AlertEngine(IDataLog dataLog) {
+		this(dataLog, new Dt(1, TUnit.SECOND));
+	}
+
+	/**
+	 * @param dataLog The DataLog to listen to
+	 * @param tick The timer resolution: buckets end (and below-alerts fire) upto this late.
+	 */
+	public AlertEngine(IDataLog dataLog, Dt tick) {
+		this.dataLog = dataLog;
+		this.tick = Math.max(1, tick.getMillisecs());
+		for (int i = 0; i < SLOTS; i++) {
+			wheel[i] = new ArrayList<>();
+		}
+		firing = new SafeExecutor(Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, LOGTAG+".fire");
+			t.setDaemon(true);
+			return t;
+		}));
+		wheelThread = new Thread(this::run, LOGTAG);
+		wheelThread.setDaemon(true);
+		wheelThread.start();
+	}
+
+	/**
+	 * Start running alert. Its bucket starts now.
+	 * @param alert
+	 */
+	public void add(Alert alert) {
+		String tag = alert.getTag();
+		AlertCell cell = new AlertCell(alert, System.currentTimeMillis());
+		AlertCell[] cells = cellsForTag.compute(tag, (t, old) -> {
+			if (old == null) return new AlertCell[] {cell};
+			AlertCell[] cs = Arrays.copyOf(old, old.length + 1);
+			cs[old.length] = cell;
+			return cs;
+		});
+		if (cells.length == 1) {
+			dataLog.setListener(this, tag);
+		}
+		toSchedule.add(cell);
+	}
+
+	/**
+	 * Stop running alert
+	 * @param alert
+	 * @return true if it was running
+	 */
+	public boolean remove(Alert alert) {
+		String tag = alert.getTag();
+		boolean[] found = new boolean[1];
+		AlertCell[] cells = cellsForTag.computeIfPresent(tag, (t, old) -> {
+			List<AlertCell> keep = new ArrayList<>(old.length);
+			for (AlertCell c : old) {
+				if (c.alert == alert) {
+					c.removed = true;
+					found[0] = true;
+				} else {
+					keep.add(c);
+				}
+			}
+			return keep.isEmpty()? null : keep.toArray(new AlertCell[0]);
+		});
+		if (cells == null && found[0]) {
+			dataLog.removeListener(tag);
+		}
+		return found[0];
+	}
+
+	/**
+	 * @return all the running alerts
+	 */
+	public List<Alert> getAlerts() {
+		List<Alert> alerts = new ArrayList<>();
+		for (AlertCell[] cs : cellsForTag.values()) {
+			for (AlertCell c : cs) alerts.add(c.alert);
+		}
+		return alerts;
+	}
+
+	/**
+	 * The hot path: called by DataLog on every count of a watched tag.
+	 */
+	@Override
+	public void handleCount(double x, double dx, String tag) {
+		AlertCell[] cells = cellsForTag.get(tag);
+		if (cells == null) return;
+		for (AlertCell c : cells) {
+			Bucket b = c.bucket;
+			b.x.add(dx);
+			if (c.below || dx <= 0) continue;
+			double bx = b.x.sum();
+			if (bx > c.threshold) {
+				fire(c, bx, System.currentTimeMillis());
+			}
+		}
+	}
+
+	/**
+	 * Check minInterval, then hand over to the firing thread
+	 */
+	private void fire(AlertCell c, double x, long now) {
+		long last = c.lastFire.get();
+		if (now - last < c.minInterval) return;
+		if ( ! c.lastFire.compareAndSet(last, now)) {
+			return; // someone else fired it
+		}
+		if (closed) return;
+		Alert alert = c.alert;
+		firing.execute(() -> {
+			alert.x = x;
+			alert.setLastAlert(new Time(now));
+			DataLog.count(1, alert.getFiringStatTag());
+			IListenDataLog handler = alert.getHandler();
+			if (handler != null) {
+				handler.handleCount(x, 0, alert.getTag());
+			}
+		});
+	}
+
+	/**
+	 * The wheel thread
+	 */
+	private void run() {
+		nextTick = System.currentTimeMillis() / tick;
+		while ( ! closed) {
+			try {
+				// slot in new cells
+				AlertCell nc;
+				while ((nc = toSchedule.poll()) != null) {
+					schedule(nc);
+				}
+				long now = System.currentTimeMillis();
+				// catch up on any ticks we've passed
+				while (nextTick <= now / tick) {
+					long t = nextTick;
+					nextTick++;
+					runSlot(t, now);
+				}
+				long sleep = nextTick * tick - System.currentTimeMillis();
+				if (sleep > 0) {
+					LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(sleep));
+				}
+			} catch (Throwable ex) {
+				// keep going
+				Log.e(LOGTAG, ex);
+			}
+		}
+	}
+
+	private void schedule(AlertCell c) {
+		// the first tick at or after the bucket end (but not one we've done)
+		long t = Math.max(nextTick, (c.bucket.end + tick - 1) / tick);
+		wheel[(int) Math.floorMod(t, (long) SLOTS)].add(c);
+	}
+
+	private void runSlot(long tickNo, long now) {
+		List<AlertCell> slot = wheel[(int) Math.floorMod(tickNo, (long) SLOTS)];
+		if (slot.isEmpty()) return;
+		List<AlertCell> rescheduled = null;
+		for (int i = slot.size() - 1; i >= 0; i--) {
+			AlertCell c = slot.get(i);
+			if (c.removed) {
+				removeAt(slot, i);
+				continue;
+			}
+			Bucket b = c.bucket;
+			if (b.end > now) {
+				continue; // not this time round the wheel
+			}
+			// roll over
+			c.bucket = new Bucket(b.end + c.dt * ((now - b.end) / c.dt + 1), false);
+			// below alerts only fire at the end of a bucket -- and not for the first one
+			if (c.below && ! b.first) {
+				double bx = b.x.sum();
+				if (bx < c.threshold) fire(c, bx, now);
+			}
+			removeAt(slot, i);
+			if (rescheduled == null) rescheduled = new ArrayList<>();
+			rescheduled.add(c);
+		}
+		if (rescheduled != null) {
+			for (AlertCell c : rescheduled) schedule(c);
+		}
+	}
+
+	/**
+	 * swap-remove: order within a slot doesn't matter
+	 */
+	private static void removeAt(List<AlertCell> slot, int i) {
+		int last = slot.size() - 1;
+		if (i != last) slot.set(i, slot.get(last));
+		slot.remove(last);
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		LockSupport.unpark(wheelThread);
+		for (String tag : cellsForTag.keySet()) {
+			dataLog.removeListener(tag);
+		}
+		cellsForTag.clear();
+		firing.shutdown();
+	}
+
+	@Override
+	public String toString() {
+		return "AlertEngine[tags=" + cellsForTag.size() + "]";
+	}
+
+	/**
+	 * One time-bucket for one alert
+	 */
+	private static final class Bucket {
+		/**
+		 * epoch millisecs
+		 */
+		final long end;
+		final DoubleAdder x = new DoubleAdder();
+		/**
+		 * true for the first (possibly short) bucket, which below-alerts ignore.
+		 */
+		final boolean first;
+
+		Bucket(long end, boolean first) {
+			this.end = end;
+			this.first = first;
+		}
+	}
+
+	/**
+	 * The engine's state for one alert. Alert settings are copied in, so the hot path
+	 * does not need to touch the Alert.
+	 */
+	private static final class AlertCell {
+		final Alert alert;
+		final boolean below;
+		final double threshold;
+		final long dt;
+		final long minInterval;
+		volatile Bucket bucket;
+		/**
+		 * epoch millisecs
+		 */
+		final AtomicLong lastFire;
+		volatile boolean removed;
+
+		AlertCell(Alert alert, long now) {
+			this.alert = alert;
+			this.below = alert.isBelow();
+			this.threshold = alert.getThreshold().x;
+			this.dt = Math.max(1, alert.getThreshold().dt.getMillisecs());
+			this.minInterval = alert.getMinInterval().getMillisecs();
+			Time la = alert.getLastAlert();
+			this.lastFire = new AtomicLong(la==null? Long.MIN_VALUE / 2 : la.getTime());
+			this.bucket = new Bucket(now + dt, true);
+		}
+	}
+}
@@ -29,10 +29,11 @@ import com.winterwell.utils.web.XStreamUtils;
  * <p>
  * The code behind this is in com.winterwell.datalog.DataLogImpl, but loaded
  * dynamically & used via the IStat interface to avoid a hard dependency.
+ * If DataLogImpl is not on the classpath, {@link InMemoryDataLog} is used.
  * <p>
  * Requirements: 1. Writes must be very cheap. 2. The keys aren't known in
  * advance. 3. Granularity: doesn't need to go finer than, say, 20 minutes. 4.
- * Cross-cluster is feasible, although latency can be high.
+ * Cross-cluster is feasible, although latency can be high (see {@link DataLogSnapshot}).
  *
  * TODO auto-calculate correlations & other stats for top 100 tags??
  *
@@ -331,20 +332,42 @@ public class DataLog {
 	 */
 	public static IDataLog init(DataLogConfig myConfig) {
 		try {
+			// write out any queued events to the old DataLog
+			DataLogEventQueue q = eventQueue;
+			eventQueue = null;
+			FileUtils.close(q);
+			FileUtils.close(jvmStats);
+			jvmStats = null;
 			FileUtils.close(dflt);			
 			// never null 
 			dflt = new DummyDataLog(new IllegalStateException("DataLog is being initialised to "+myConfig));
 			Dep.set(DataLogConfig.class, myConfig);
+			if (myConfig.idHash != null) {
+				DataLogEvent.idHash = myConfig.idHash;
+			}
+			tagGuard = myConfig.maxTagsPerNamespace > 0?
+					new TagCardinalityGuard(myConfig.maxTagsPerNamespace, myConfig.tagGuardTopK) : null;
 			// default dataspace
 			if ( ! Utils.isBlank(myConfig.namespace)) {
 				DEFAULT_DATASPACE = myConfig.namespace;
 			}
 			// make it
-			Class<?> klass = Class.forName(CLASS_DATALOGIMPL);
+			Class<?> klass;
+			try {
+				klass = Class.forName(CLASS_DATALOGIMPL);
+			} catch(ClassNotFoundException ex) {
+				// no storage-backed DataLog on the classpath -- keep stats in memory
+				Log.i(LOGTAG, "No "+CLASS_DATALOGIMPL+" - using "+InMemoryDataLog.class.getSimpleName());
+				klass = InMemoryDataLog.class;
+			}
 			Constructor<?> cons = klass.getConstructor(DataLogConfig.class);
 			dflt = (IDataLog) cons.newInstance(myConfig);
 			// init
 			dflt.init();
+			init2_eventQueue(myConfig);
+			if ( ! myConfig.noSystemStats) {
+				jvmStats = new JvmStatsSampler(dflt, myConfig.systemStatsInterval).start();
+			}
 			return dflt;
 		} catch (Throwable ex) {
 			dflt = new DummyDataLog(new IllegalStateException("DataLog init fail! "+ex+" from "+myConfig));
@@ -361,8 +384,7 @@ public class DataLog {
 	public static void count(double dx, Object... tagBits) {
 		assert tagBits != null;
 		assert tagBits.length != 0;
-		tagBits = check(tagBits);
-		dflt.count(dx, tagBits);
+		count2(null, dx, check(tagBits));
 	}
 
 	/**
@@ -372,14 +394,64 @@ public class DataLog {
 	 * @param tags
 	 */
 	public static void count(double dx, String... tagBits) {
-		tagBits = check(tagBits);
-		dflt.count(dx, (Object[]) tagBits);
+		count2(null, dx, check(tagBits));
 	}
 	
+	/**
+	 * A handle for fast repeated counting against a fixed tag. Keep it in a field, e.g.
+	 * <code>hits = DataLog.counter("Cache_hit", stats);</code> then <code>hits.count(1);</code>
+	 *
+	 * @param tagBits As for {@link #count(double, String...)}
+	 * @return a handle which follows re-init of DataLog
+	 */
+	public static DataLogCounter counter(Object... tagBits) {
+		// NB: not guarded -- handles are made once per tag, and also do set() and mean()
+		return new DataLogCounter(check(tagBits));
+	}
+
+	/**
+	 * Log an event. If {@link DataLogConfig#eventQueueSize} is set, this just queues the event
+	 * (see {@link DataLogEventQueue}).
+	 */
 	public static void count(DataLogEvent event) {
+		DataLogEventQueue q = eventQueue;
+		if (q != null) {
+			q.offer(event);
+			return;
+		}
 		dflt.count(event);
 	}
 
+	/**
+	 * null unless {@link DataLogConfig#eventQueueSize} is set
+	 */
+	private static volatile DataLogEventQueue eventQueue;
+
+	/**
+	 * null if {@link DataLogConfig#noSystemStats}
+	 */
+	private static volatile JvmStatsSampler jvmStats;
+
+	/**
+	 * @return the async event queue, or null if events are logged synchronously
+	 */
+	public static DataLogEventQueue getEventQueue() {
+		return eventQueue;
+	}
+
+	private static void init2_eventQueue(DataLogConfig myConfig) {
+		if (myConfig.eventQueueSize <= 0) return;
+		IDataLogEventSink sink = myConfig.eventSpool?
+				new NDJsonSegmentSink(myConfig.logFile, myConfig.filePeriod)
+				: new IDataLogEventSink.ToDataLog(dflt);
+		if (myConfig.eventAggregateWindow != null) {
+			sink = new DataLogEventAggregator(sink, myConfig.eventAggregateWindow, myConfig.eventAggregateMaxPending);
+		}
+		eventQueue = new DataLogEventQueue(sink, myConfig.eventQueueSize, myConfig.eventBatchSize,
+				myConfig.eventFlushInterval, myConfig.eventOverflow)
+				.setBlockTimeout(myConfig.eventBlockTimeout);
+	}
+
 	/**
 	 * Count historical -- edit an old Stat entry.
 	 * Optional method! Not all implementations support this.
@@ -388,8 +460,7 @@ public class DataLog {
 	 * @param tags
 	 */
 	public static void count(Time at, double dx, String... tagBits) throws UnsupportedOperationException {
-		tagBits = check(tagBits);
-		dflt.count(at, dx, (Object[]) tagBits);
+		count2(at, dx, check(tagBits));
 	}
 
 	/**
@@ -434,6 +505,48 @@ public class DataLog {
 		return tagBits;
 	}
 
+	/**
+	 * null if {@link DataLogConfig#maxTagsPerNamespace} is off
+	 */
+	private static volatile TagCardinalityGuard tagGuard;
+
+	/**
+	 * @return the guard against tag explosions (which can report on the folded tags), or null if off.
+	 */
+	public static TagCardinalityGuard getTagGuard() {
+		return tagGuard;
+	}
+
+	/**
+	 * count(), via the tag guard if it's on. Only counts get folded into namespace/other:
+	 * they add up, whereas folding set() or mean() would mix unrelated values.
+	 * @param at null for now
+	 * @param tagBits Already checked
+	 */
+	private static void count2(Time at, double dx, String[] tagBits) {
+		IDataLog dl = dflt;
+		TagCardinalityGuard g = tagGuard;
+		if (g == null) {
+			if (at == null) dl.count(dx, (Object[]) tagBits);
+			else dl.count(at, dx, (Object[]) tagBits);
+			return;
+		}
+		String tag = tag((Object[]) tagBits);
+		String[] folded = g.guard(tagBits, tag);
+		if (folded != tagBits) {
+			tagBits = folded;
+			tag = tag((Object[]) folded);
+		}
+		if (dl instanceof InMemoryDataLog) {
+			// re-use the joined tag
+			((InMemoryDataLog) dl).count(tag, at, dx);
+		} else if (at == null) {
+			dl.count(dx, (Object[]) tagBits);
+		} else {
+			dl.count(at, dx, (Object[]) tagBits);
+		}
+	}
+
 	public static void removeListener(String... tagBits) {
 		tagBits = check(tagBits);
 		dflt.removeListener(tagBits);
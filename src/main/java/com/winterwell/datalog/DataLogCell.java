@@ -0,0 +1,495 @@
+package com.winterwell.datalog;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.winterwell.maths.stats.distributions.d1.IDistribution1D;
+import com.winterwell.maths.stats.distributions.d1.LogHistogram1D;
+import com.winterwell.maths.stats.distributions.d1.MeanVar1D;
+
+/**
+ * The storage for one tag in {@link InMemoryDataLog}: a live bucket, the
+ * just-closed bucket, a {@link DataLogColumn} of older buckets, and coarser
+ * {@link DataLogTier}s (e.g. hourly, daily) which keep data for longer.
+ * <p>
+ * Thread-safety: writes are lock-free. The live bucket is swapped by CAS when
+ * the clock passes its end. A write which races the swap lands in the
+ * just-closed bucket, which is only copied into the column at the <i>next</i>
+ * rollover -- so nothing is lost.
+ *
+ * @author daniel
+ */
+final class DataLogCell {
+
+	final String tag;
+
+	/**
+	 * bucket size in millisecs
+	 */
+	private final long interval;
+
+	/**
+	 * true if this cell tracks mean & variance (as well as the sum)
+	 */
+	final boolean moments;
+
+	/**
+	 * If >0 (and moments), mean buckets also keep a {@link LogHistogram1D} with this accuracy, for quantiles.
+	 */
+	private final double sketchAccuracy;
+
+	/**
+	 * The cells which a count goes to: for a/b/c, that's [a, a/b, a/b/c]
+	 */
+	final DataLogCell[] rollup;
+
+	private final AtomicReference<Bucket> current;
+
+	/**
+	 * The previous live bucket. Can be null.
+	 */
+	private volatile Bucket closed;
+
+	/**
+	 * Older buckets
+	 */
+	final DataLogColumn column;
+
+	/**
+	 * Coarser roll-ups, finest first. Can be empty.
+	 */
+	final DataLogTier[] tiers;
+
+	/**
+	 * column data before this has been dropped (it's in the tiers)
+	 */
+	volatile long fineFrom = Long.MIN_VALUE;
+
+	/**
+	 * The tag-id in the {@link DataLogWal}, or -1 if not yet assigned
+	 */
+	volatile int walId = -1;
+
+	/**
+	 * @param parent The cell for the parent tag, or null
+	 * @param sketchAccuracy See {@link DataLogConfig#meanSketchAccuracy}. Ignored unless moments.
+	 * @param tiers Finest first. Can be empty.
+	 */
+	DataLogCell(String tag, DataLogCell parent, long interval, boolean moments, double sketchAccuracy, int maxHistory, DataLogTier[] tiers) {
+		assert interval > 0 : tag;
+		this.tag = tag;
+		if (parent == null) {
+			rollup = new DataLogCell[] {this};
+		} else {
+			rollup = Arrays.copyOf(parent.rollup, parent.rollup.length + 1);
+			rollup[rollup.length - 1] = this;
+		}
+		this.interval = interval;
+		this.moments = moments;
+		this.sketchAccuracy = moments? sketchAccuracy : 0;
+		this.column = new DataLogColumn(moments, maxHistory);
+		this.tiers = tiers;
+		this.current = new AtomicReference<>(new Bucket(bucketStart(System.currentTimeMillis()), moments, this.sketchAccuracy));
+	}
+
+	long bucketStart(long time) {
+		return time - Math.floorMod(time, interval);
+	}
+
+	/**
+	 * @param now epoch millisecs
+	 * @return the live bucket for now, never null
+	 */
+	Bucket bucket(long now) {
+		Bucket b = current.get();
+		if (now < b.start + interval) {
+			return b;
+		}
+		// roll over
+		Bucket nb = new Bucket(bucketStart(now), moments, sketchAccuracy);
+		if (current.compareAndSet(b, nb)) {
+			Bucket old = closed;
+			closed = b;
+			if (old != null) {
+				flush(old);
+			}
+			return nb;
+		}
+		// someone else rolled it
+		return current.get();
+	}
+
+	/**
+	 * Copy a closed bucket into the column and tiers
+	 */
+	private void flush(Bucket b) {
+		double sum = b.get();
+		long n = moments? b.n.sum() : 0;
+		double sumSq = moments? b.sumSq.sum() : 0;
+		LogHistogram1D hist = b.getHistogram();
+		column.add(b.start, sum, n, sumSq, hist);
+		for (DataLogTier t : tiers) {
+			// for min & max: the bucket's total, or for mean() its mean
+			if (moments) {
+				t.add(b.start, sum, n, n==0? 0 : sum / n, sumSq, hist);
+			} else {
+				t.add(b.start, sum, 1, sum, 0, null);
+			}
+		}
+	}
+
+	/**
+	 * Count into the bucket for time (which can be in the past).
+	 * @param time epoch millisecs
+	 */
+	void addAt(long time, double dx) {
+		Bucket b = bucketAt(time);
+		if (b != null) {
+			b.add(dx);
+			return;
+		}
+		long start = bucketStart(time);
+		boolean isNew = column.add(start, dx, 0, 0);
+		// min & max only see the first edit to an old bucket
+		for (DataLogTier t : tiers) {
+			t.add(start, dx, isNew? 1 : 0, dx, 0, null);
+		}
+	}
+
+	/**
+	 * Set the bucket for time (which can be in the past).
+	 * @param time epoch millisecs
+	 */
+	void setAt(long time, double x) {
+		Bucket b = bucketAt(time);
+		if (b != null) {
+			b.set(x);
+			return;
+		}
+		long start = bucketStart(time);
+		double old = column.set(start, x);
+		// the tiers can't un-merge, so they get the change (min & max are not updated)
+		for (DataLogTier t : tiers) {
+			t.add(start, x - old, 0, 0, 0, null);
+		}
+	}
+
+	/**
+	 * mean() into the bucket for time (which can be in the past).
+	 * @param time epoch millisecs
+	 */
+	void addSampleAt(long time, double x) {
+		Bucket b = bucketAt(time);
+		if (b != null) {
+			b.addSample(x);
+			return;
+		}
+		LogHistogram1D h = null;
+		if (sketchAccuracy > 0) {
+			h = new LogHistogram1D(sketchAccuracy, LogHistogram1D.DEFAULT_MAX_BUCKETS);
+			h.count(x);
+		}
+		long start = bucketStart(time);
+		column.add(start, x, 1, x*x, h);
+		for (DataLogTier t : tiers) {
+			t.add(start, x, 1, x, x*x, h);
+		}
+	}
+
+	/**
+	 * Several mean() samples at once, as summed up by {@link DataLogWal}'s checkpoint.
+	 * @param time epoch millisecs
+	 * @param hist Can be null. Not copied, so don't modify it after.
+	 */
+	void addSamplesAt(long time, long n, double sum, double sumSq, LogHistogram1D hist) {
+		if (n <= 0) return;
+		Bucket b = bucketAt(time);
+		if (b != null) {
+			b.addSamples(n, sum, sumSq, hist);
+			return;
+		}
+		LogHistogram1D h = sketchAccuracy > 0? hist : null;
+		long start = bucketStart(time);
+		column.add(start, sum, n, sumSq, h);
+		for (DataLogTier t : tiers) {
+			t.add(start, sum, n, sum / n, sumSq, h);
+		}
+	}
+
+	/**
+	 * @return the live or just-closed bucket for time, or null if it's an older one.
+	 * A time in the future (e.g. from a machine whose clock is ahead) gets the live bucket.
+	 */
+	private Bucket bucketAt(long time) {
+		long now = System.currentTimeMillis();
+		Bucket live = bucket(now);
+		long start = bucketStart(time);
+		if (start >= live.start) return live;
+		Bucket c = closed;
+		if (c != null && c.start == start) return c;
+		return null;
+	}
+
+	/**
+	 * @param time epoch millisecs. Future times mean the live bucket (as for {@link #addAt(long, double)}).
+	 * @return the total for the bucket holding time
+	 */
+	double getTotalAt(long time) {
+		long start = Math.min(bucketStart(time), bucketStart(System.currentTimeMillis()));
+		DataLogColumn.Slice slice = getSlice(start, start + interval);
+		double total = 0;
+		for (int i = 0; i < slice.size; i++) {
+			total += slice.sums[i];
+		}
+		return total;
+	}
+
+	/**
+	 * @return The live bucket, or null if the live bucket has expired
+	 * (i.e. nothing has been logged in the current period).
+	 */
+	Bucket getLive(long now) {
+		Bucket b = current.get();
+		return now < b.start + interval? b : null;
+	}
+
+	/**
+	 * @param start inclusive
+	 * @param end exclusive
+	 * @return older buckets + the just-closed and live ones, in time order.
+	 * Periods which have been compacted come from the tiers.
+	 */
+	DataLogColumn.Slice getSlice(long start, long end) {
+		return getSlice(start, end, 0);
+	}
+
+	/**
+	 * @param level 0 for the column, 1 for the first tier, etc.
+	 * @return as {@link #getSlice(long, long)}, but using nothing finer than level
+	 */
+	DataLogColumn.Slice getSlice(long start, long end, int level) {
+		DataLogColumn.Slice slice = new DataLogColumn.Slice(moments, 16);
+		long[] his = new long[tiers.length + 1];
+		int last = getStores(start, end, level, his);
+		// coarsest (oldest) first
+		for (int k = last; k >= level; k--) {
+			long lo = Math.max(start, getFrom(k));
+			if (lo >= his[k]) continue;
+			if (k == 0) {
+				column.copyTo(lo, his[k], slice);
+			} else {
+				tiers[k - 1].copyTo(lo, his[k], slice);
+			}
+		}
+		Bucket c = closed;
+		if (c != null) addTo(slice, c, start, end);
+		addTo(slice, current.get(), start, end);
+		return slice;
+	}
+
+	private void addTo(DataLogColumn.Slice slice, Bucket b, long start, long end) {
+		if (b.start < start || b.start >= end) return;
+		slice.insert(b.start, b.get(), moments? b.n.sum() : 0, moments? b.sumSq.sum() : 0, b.getHistogram());
+	}
+
+	/**
+	 * Which stores cover [start, end)? Each store k covers [getFrom(k), his[k]).
+	 * @param his Output: the end for each store
+	 * @return the coarsest store needed
+	 */
+	private int getStores(long start, long end, int level, long[] his) {
+		level = Math.min(level, tiers.length);
+		long hi = end;
+		int k = level;
+		for (; k < tiers.length; k++) {
+			his[k] = hi;
+			long from = getFrom(k);
+			if (from <= start) return k;
+			hi = Math.min(hi, from);
+		}
+		his[k] = hi;
+		return k;
+	}
+
+	/**
+	 * @param k 0 for the column, 1 for the first tier, etc.
+	 */
+	private long getFrom(int k) {
+		return k == 0? fineFrom : tiers[k - 1].from;
+	}
+
+	/**
+	 * @return [min, max] over the buckets in [start, end) (for mean() cells, of the bucket means),
+	 * or null if there are none.
+	 */
+	double[] getRange(long start, long end) {
+		double[] minMax = {Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+		long[] his = new long[tiers.length + 1];
+		int last = getStores(start, end, 0, his);
+		for (int k = last; k >= 0; k--) {
+			long lo = Math.max(start, getFrom(k));
+			if (lo >= his[k]) continue;
+			if (k > 0) {
+				tiers[k - 1].range(lo, his[k], minMax);
+				continue;
+			}
+			DataLogColumn.Slice slice = new DataLogColumn.Slice(moments, 16);
+			column.copyTo(lo, his[k], slice);
+			Bucket c = closed;
+			if (c != null) addTo(slice, c, lo, his[k]);
+			addTo(slice, current.get(), lo, his[k]);
+			for (int i = 0; i < slice.size; i++) {
+				double x = slice.sums[i];
+				if (moments) {
+					if (slice.ns[i] == 0) continue;
+					x /= slice.ns[i];
+				}
+				if (x < minMax[0]) minMax[0] = x;
+				if (x > minMax[1]) minMax[1] = x;
+			}
+		}
+		return minMax[0] > minMax[1]? null : minMax;
+	}
+
+	/**
+	 * Drop data which is older than its store keeps. It's in the next coarser tier.
+	 * @param retention For each store (column, then tiers -- except the last tier, which keeps everything).
+	 * 0 for keep.
+	 */
+	void compact(long now, long[] retention) {
+		for (int k = 0; k < tiers.length && k < retention.length; k++) {
+			if (retention[k] <= 0) continue;
+			long cutoff = now - retention[k];
+			// align to the next tier, so no period is in both
+			cutoff -= Math.floorMod(cutoff, tiers[k].size);
+			if (cutoff <= getFrom(k)) continue;
+			// move the boundary first, so readers switch before the data goes
+			if (k == 0) {
+				fineFrom = cutoff;
+				column.removeBefore(cutoff);
+			} else {
+				tiers[k - 1].from = cutoff;
+				tiers[k - 1].removeBefore(cutoff);
+			}
+		}
+	}
+
+	long getInterval() {
+		return interval;
+	}
+
+	@Override
+	public String toString() {
+		return "DataLogCell["+tag+"]";
+	}
+
+	/**
+	 * One time-bucket. Striped adders, so concurrent writes don't contend.
+	 */
+	static final class Bucket {
+		/**
+		 * Power of 2
+		 */
+		private static final int STRIPES = 8;
+
+		final long start;
+		final DoubleAdder sum = new DoubleAdder();
+		/**
+		 * null unless moments
+		 */
+		final LongAdder n;
+		/**
+		 * null unless moments
+		 */
+		final DoubleAdder sumSq;
+		/**
+		 * null unless sketching. Striped (by thread) like the adders, each stripe guarded by itself.
+		 */
+		private final LogHistogram1D[] hists;
+
+		Bucket(long start, boolean moments, double sketchAccuracy) {
+			this.start = start;
+			this.n = moments? new LongAdder() : null;
+			this.sumSq = moments? new DoubleAdder() : null;
+			if (moments && sketchAccuracy > 0) {
+				hists = new LogHistogram1D[STRIPES];
+				for (int i = 0; i < STRIPES; i++) {
+					hists[i] = new LogHistogram1D(sketchAccuracy, LogHistogram1D.DEFAULT_MAX_BUCKETS);
+				}
+			} else {
+				hists = null;
+			}
+		}
+
+		void add(double dx) {
+			sum.add(dx);
+		}
+
+		/**
+		 * Replace the value. Not atomic wrt concurrent adds -- but set() and count()
+		 * should not be mixed on a tag anyway.
+		 */
+		void set(double x) {
+			sum.reset();
+			sum.add(x);
+		}
+
+		void addSample(double x) {
+			sum.add(x);
+			n.increment();
+			sumSq.add(x*x);
+			if (hists != null) {
+				LogHistogram1D h = hists[(int) Thread.currentThread().getId() & (STRIPES - 1)];
+				synchronized (h) {
+					h.count(x);
+				}
+			}
+		}
+
+		void addSamples(long dn, double dsum, double dsumSq, LogHistogram1D hist) {
+			sum.add(dsum);
+			n.add(dn);
+			sumSq.add(dsumSq);
+			if (hists != null && hist != null) {
+				LogHistogram1D h = hists[(int) Thread.currentThread().getId() & (STRIPES - 1)];
+				synchronized (h) {
+					h.merge(hist);
+				}
+			}
+		}
+
+		/**
+		 * @return a new merged histogram, or null if not sketching
+		 */
+		LogHistogram1D getHistogram() {
+			if (hists == null) return null;
+			LogHistogram1D all = null;
+			for (LogHistogram1D h : hists) {
+				synchronized (h) {
+					if (all == null) all = new LogHistogram1D(h.getAccuracy(), LogHistogram1D.DEFAULT_MAX_BUCKETS);
+					all.merge(h);
+				}
+			}
+			return all;
+		}
+
+		double get() {
+			return sum.sum();
+		}
+
+		MeanVar1D getMeanVar() {
+			if (n==null) return null;
+			return MeanVar1D.fromSums(n.sum(), sum.sum(), sumSq.sum());
+		}
+
+		/**
+		 * @return the histogram if sketching, otherwise mean & variance. null if not moments.
+		 */
+		IDistribution1D getDistribution() {
+			LogHistogram1D h = getHistogram();
+			return h != null? h : getMeanVar();
+		}
+	}
+}
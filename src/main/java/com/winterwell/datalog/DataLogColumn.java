@@ -0,0 +1,373 @@
+package com.winterwell.datalog;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import com.winterwell.maths.stats.distributions.d1.LogHistogram1D;
+
+/**
+ * Columnar storage for the closed buckets of one {@link DataLogCell}: primitive
+ * time & value arrays, in fixed-size chunks, kept in time order.
+ * <p>
+ * Appends (the normal case, at bucket rollover) go on the end. Historical edits
+ * are inserted in place -- a full chunk is split in two, so an insert only
+ * shifts within one chunk. Once there are more than maxSize points, whole
+ * chunks are dropped from the front.
+ * <p>
+ * Thread-safety: synchronized. Writes happen once per tag per bucket (plus
+ * any historical edits), and reads copy out in bulk, so the lock is cheap.
+ *
+ * @author daniel
+ */
+final class DataLogColumn {
+
+	static final int CHUNK = 1024;
+
+	private final boolean moments;
+
+	private final int maxSize;
+
+	/**
+	 * In time order, non-empty.
+	 */
+	private final ArrayList<Chunk> chunks = new ArrayList<>();
+
+	private int size;
+
+	DataLogColumn(boolean moments, int maxSize) {
+		this.moments = moments;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Add into the point at time, creating it if need be.
+	 * @param n Ignored unless moments
+	 * @param sumSq Ignored unless moments
+	 * @return true if this made a new point
+	 */
+	boolean add(long time, double sum, long n, double sumSq) {
+		return add(time, sum, n, sumSq, null);
+	}
+
+	/**
+	 * Add into the point at time, creating it if need be.
+	 * @param n Ignored unless moments
+	 * @param sumSq Ignored unless moments
+	 * @param hist Can be null. Ignored unless moments. Not copied, so don't modify it after.
+	 * @return true if this made a new point
+	 */
+	synchronized boolean add(long time, double sum, long n, double sumSq, LogHistogram1D hist) {
+		Chunk c = chunkFor(time);
+		int i = c.indexOf(time);
+		if (i < 0) {
+			insert(c, -i - 1, time, sum, n, sumSq, hist);
+			return true;
+		}
+		c.sums[i] += sum;
+		if (moments) {
+			c.ns[i] += n;
+			c.sumSqs[i] += sumSq;
+			c.hists[i] = merge(c.hists[i], hist);
+		}
+		return false;
+	}
+
+	/**
+	 * Copy-on-write, as readers may hold the old one
+	 */
+	private static LogHistogram1D merge(LogHistogram1D a, LogHistogram1D b) {
+		if (a == null) return b;
+		if (b == null) return a;
+		LogHistogram1D m = new LogHistogram1D(a.getAccuracy(), LogHistogram1D.DEFAULT_MAX_BUCKETS);
+		m.merge(a);
+		m.merge(b);
+		return m;
+	}
+
+	/**
+	 * Replace the sum at time.
+	 * @return the old sum (0 if there was no point)
+	 */
+	synchronized double set(long time, double sum) {
+		Chunk c = chunkFor(time);
+		int i = c.indexOf(time);
+		if (i < 0) {
+			insert(c, -i - 1, time, sum, 0, 0, null);
+			return 0;
+		}
+		double old = c.sums[i];
+		c.sums[i] = sum;
+		return old;
+	}
+
+	/**
+	 * Drop the points before time
+	 */
+	synchronized void removeBefore(long time) {
+		while ( ! chunks.isEmpty()) {
+			Chunk c = chunks.get(0);
+			if (c.times[c.size - 1] < time) {
+				size -= c.size;
+				chunks.remove(0);
+				continue;
+			}
+			int i = lowerBound(c.times, c.size, time);
+			if (i > 0) {
+				c.removeFront(i);
+				size -= i;
+			}
+			return;
+		}
+	}
+
+	/**
+	 * @return the chunk time should go in. Creates the first chunk if need be.
+	 */
+	private Chunk chunkFor(long time) {
+		if (chunks.isEmpty()) {
+			Chunk c = new Chunk(moments);
+			chunks.add(c);
+			return c;
+		}
+		// normally the last -- so search backwards
+		for (int ci = chunks.size() - 1; ci > 0; ci--) {
+			Chunk c = chunks.get(ci);
+			if (time >= c.times[0]) return c;
+		}
+		return chunks.get(0);
+	}
+
+	private void insert(Chunk c, int i, long time, double sum, long n, double sumSq, LogHistogram1D hist) {
+		if (c.size == CHUNK) {
+			if (i == CHUNK && c == chunks.get(chunks.size() - 1)) {
+				// append: start a new chunk
+				Chunk nc = new Chunk(moments);
+				chunks.add(nc);
+				c = nc;
+				i = 0;
+			} else {
+				// split
+				Chunk right = c.split();
+				chunks.add(chunks.indexOf(c) + 1, right);
+				if (i > c.size) {
+					i -= c.size;
+					c = right;
+				}
+			}
+		}
+		c.insert(i, time, sum, n, sumSq, hist);
+		size++;
+		// trim
+		while (chunks.size() > 1 && size - chunks.get(0).size >= maxSize) {
+			size -= chunks.remove(0).size;
+		}
+	}
+
+	synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Copy out [start, end) into the end of out.
+	 * @param start inclusive
+	 * @param end exclusive
+	 */
+	synchronized void copyTo(long start, long end, Slice out) {
+		int total = 0;
+		int[] from = new int[chunks.size()];
+		int[] to = new int[chunks.size()];
+		for (int ci = 0; ci < chunks.size(); ci++) {
+			Chunk c = chunks.get(ci);
+			if (c.times[c.size - 1] < start || c.times[0] >= end) continue;
+			from[ci] = lowerBound(c.times, c.size, start);
+			to[ci] = lowerBound(c.times, c.size, end);
+			total += to[ci] - from[ci];
+		}
+		out.ensureCapacity(out.size + total);
+		for (int ci = 0; ci < chunks.size(); ci++) {
+			int len = to[ci] - from[ci];
+			if (len <= 0) continue;
+			Chunk c = chunks.get(ci);
+			System.arraycopy(c.times, from[ci], out.times, out.size, len);
+			System.arraycopy(c.sums, from[ci], out.sums, out.size, len);
+			if (moments) {
+				System.arraycopy(c.ns, from[ci], out.ns, out.size, len);
+				System.arraycopy(c.sumSqs, from[ci], out.sumSqs, out.size, len);
+				System.arraycopy(c.hists, from[ci], out.hists, out.size, len);
+			}
+			out.size += len;
+		}
+	}
+
+	/**
+	 * @return the first index with times[i] >= t
+	 */
+	static int lowerBound(long[] times, int size, long t) {
+		int lo = 0, hi = size;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (times[mid] < t) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo;
+	}
+
+	@Override
+	public String toString() {
+		return "DataLogColumn[size=" + size + ", chunks=" + chunks.size() + "]";
+	}
+
+	private static final class Chunk {
+		final long[] times = new long[CHUNK];
+		final double[] sums = new double[CHUNK];
+		/**
+		 * null unless moments
+		 */
+		final long[] ns;
+		/**
+		 * null unless moments
+		 */
+		final double[] sumSqs;
+		/**
+		 * null unless moments. Entries can be null.
+		 */
+		final LogHistogram1D[] hists;
+		int size;
+
+		Chunk(boolean moments) {
+			ns = moments? new long[CHUNK] : null;
+			sumSqs = moments? new double[CHUNK] : null;
+			hists = moments? new LogHistogram1D[CHUNK] : null;
+		}
+
+		/**
+		 * @return as per {@link Arrays#binarySearch(long[], int, int, long)}
+		 */
+		int indexOf(long time) {
+			return Arrays.binarySearch(times, 0, size, time);
+		}
+
+		void insert(int i, long time, double sum, long n, double sumSq, LogHistogram1D hist) {
+			int tail = size - i;
+			if (tail > 0) {
+				System.arraycopy(times, i, times, i + 1, tail);
+				System.arraycopy(sums, i, sums, i + 1, tail);
+				if (ns != null) {
+					System.arraycopy(ns, i, ns, i + 1, tail);
+					System.arraycopy(sumSqs, i, sumSqs, i + 1, tail);
+					System.arraycopy(hists, i, hists, i + 1, tail);
+				}
+			}
+			times[i] = time;
+			sums[i] = sum;
+			if (ns != null) {
+				ns[i] = n;
+				sumSqs[i] = sumSq;
+				hists[i] = hist;
+			}
+			size++;
+		}
+
+		void removeFront(int n) {
+			int len = size - n;
+			System.arraycopy(times, n, times, 0, len);
+			System.arraycopy(sums, n, sums, 0, len);
+			if (ns != null) {
+				System.arraycopy(ns, n, ns, 0, len);
+				System.arraycopy(sumSqs, n, sumSqs, 0, len);
+				System.arraycopy(hists, n, hists, 0, len);
+				Arrays.fill(hists, len, size, null);
+			}
+			size = len;
+		}
+
+		/**
+		 * Move the top half into a new chunk
+		 */
+		Chunk split() {
+			Chunk right = new Chunk(ns != null);
+			int half = size / 2;
+			int len = size - half;
+			System.arraycopy(times, half, right.times, 0, len);
+			System.arraycopy(sums, half, right.sums, 0, len);
+			if (ns != null) {
+				System.arraycopy(ns, half, right.ns, 0, len);
+				System.arraycopy(sumSqs, half, right.sumSqs, 0, len);
+				System.arraycopy(hists, half, right.hists, 0, len);
+				Arrays.fill(hists, half, size, null);
+			}
+			right.size = len;
+			size = half;
+			return right;
+		}
+	}
+
+	/**
+	 * A copied-out run of buckets, in time order. Plain arrays (use upto size).
+	 */
+	static final class Slice {
+		long[] times;
+		double[] sums;
+		/**
+		 * null unless moments
+		 */
+		long[] ns;
+		/**
+		 * null unless moments
+		 */
+		double[] sumSqs;
+		/**
+		 * null unless moments. Entries can be null. Treat as read-only.
+		 */
+		LogHistogram1D[] hists;
+		int size;
+
+		Slice(boolean moments, int capacity) {
+			times = new long[capacity];
+			sums = new double[capacity];
+			if (moments) {
+				ns = new long[capacity];
+				sumSqs = new double[capacity];
+				hists = new LogHistogram1D[capacity];
+			}
+		}
+
+		void ensureCapacity(int capacity) {
+			if (capacity <= times.length) return;
+			capacity = Math.max(capacity, times.length * 2);
+			times = Arrays.copyOf(times, capacity);
+			sums = Arrays.copyOf(sums, capacity);
+			if (ns != null) {
+				ns = Arrays.copyOf(ns, capacity);
+				sumSqs = Arrays.copyOf(sumSqs, capacity);
+				hists = Arrays.copyOf(hists, capacity);
+			}
+		}
+
+		/**
+		 * Add a point, keeping time order.
+		 */
+		void insert(long time, double sum, long n, double sumSq, LogHistogram1D hist) {
+			ensureCapacity(size + 1);
+			int i = lowerBound(times, size, time);
+			int tail = size - i;
+			if (tail > 0) {
+				System.arraycopy(times, i, times, i + 1, tail);
+				System.arraycopy(sums, i, sums, i + 1, tail);
+				if (ns != null) {
+					System.arraycopy(ns, i, ns, i + 1, tail);
+					System.arraycopy(sumSqs, i, sumSqs, i + 1, tail);
+					System.arraycopy(hists, i, hists, i + 1, tail);
+				}
+			}
+			times[i] = time;
+			sums[i] = sum;
+			if (ns != null) {
+				ns[i] = n;
+				sumSqs[i] = sumSq;
+				hists[i] = hist;
+			}
+			size++;
+		}
+	}
+}
@@ -126,6 +126,64 @@ public class DataLogConfig extends DBOptions implements IInit, ISiteConfig {
 	
 	@Option(description="Switch off logging of system stats such as mem_free, cpu_java, etc")
 	public boolean noSystemStats;
+
+	@Option(description="How often to sample system stats (see JvmStatsSampler)")
+	public Dt systemStatsInterval = new Dt(1, TUnit.MINUTE);
+
+	@Option(description="If >0, DataLog.count(DataLogEvent) becomes asynchronous: events are queued (upto this many) and written in batches by a background thread. 0 for the old synchronous behaviour.")
+	public int eventQueueSize;
+
+	@Option(description="Max events per batch for the async event queue")
+	public int eventBatchSize = 1000;
+
+	@Option(description="Max time an event waits in the async event queue before its batch is written")
+	public Dt eventFlushInterval = new Dt(1, TUnit.SECOND);
+
+	@Option(description="What to do when the async event queue is full: DROP or BLOCK (wait for eventBlockTimeout, then drop)")
+	public DataLogEventQueue.KOverflow eventOverflow = DataLogEventQueue.KOverflow.DROP;
+
+	@Option
+	public Dt eventBlockTimeout = new Dt(1, TUnit.SECOND);
+
+	@Option(description="If set, async events with the same id are coalesced (counts summed, props merged) over this window before being written. Needs eventQueueSize.")
+	public Dt eventAggregateWindow;
+
+	@Option(description="Max distinct event ids held by eventAggregateWindow -- beyond this, the window is written early")
+	public int eventAggregateMaxPending = 100000;
+
+	@Option(description="If true, async events are spooled to ndjson segment files beside logFile (see filePeriod) instead of being passed to the DataLog implementation.")
+	public boolean eventSpool;
+
+	@Option(description="For DataLog.mean(): if >0, keep a histogram with this relative accuracy (e.g. 0.01 = 1%) so quantiles such as p99 can be read off. This costs memory (upto a few 10s of KB per bucket per mean() tag) and a lock per sample. 0 (the default) for just mean & variance.")
+	public double meanSketchAccuracy;
+
+	/**
+	 * NB: switching to MURMUR3 changes the id of every event, so new events will not overwrite
+	 * or dedupe against ones already stored (e.g. in ES) -- counts across the switch-over can double.
+	 */
+	@Option(description="How event ids are made from props: MD5 (the default, matching existing ids) or MURMUR3 (faster -- but changes every event id, so only switch on a fresh index)")
+	public DataLogEvent.KIdHash idHash = DataLogEvent.KIdHash.MD5;
+
+	@Option(description="InMemoryDataLog: how long to keep interval-sized buckets. Older data is kept as hourly and daily roll-ups (sum, count, min, max). null for no roll-ups.")
+	public Dt fineRetention = new Dt(7, TUnit.DAY);
+
+	@Option(description="InMemoryDataLog: how long to keep the hourly roll-ups. Older data is kept daily. null for keep.")
+	public Dt hourlyRetention = new Dt(90, TUnit.DAY);
+
+	@Option(description="If set, InMemoryDataLog keeps a write-ahead log of counts here, and replays it on init() -- so counts survive a crash.")
+	public File walDir;
+
+	@Option(description="Size in bytes of each memory-mapped WAL segment file")
+	public int walSegmentSize = 16*1024*1024;
+
+	@Option(description="How often the WAL segments are compacted into a checkpoint")
+	public Dt walCheckpointInterval = new Dt(1, TUnit.MINUTE);
+
+	@Option(description="Guard against tag explosions: max distinct tags per namespace (the first tag-bit), and max namespaces. Counts for new tags beyond this go to namespace/other (set and mean are not affected). 0 (the default) for off.")
+	public int maxTagsPerNamespace;
+
+	@Option(description="How many of the folded (namespace/other) tags to track per namespace, see DataLog.getTagGuard()")
+	public int tagGuardTopK = 100;
 	
 	public void setTagHandler(String tag, Supplier supplier) {
 		tagHandlers.put(tag, supplier);
@@ -0,0 +1,125 @@
+package com.winterwell.datalog;
+
+/**
+ * A pre-resolved handle for one DataLog tag. Get one via
+ * {@link DataLog#counter(Object...)} and keep it in a field.
+ * <p>
+ * The tag is checked & escaped once, up front. With an {@link InMemoryDataLog}
+ * behind DataLog, the handle also holds the storage cells for the tag (and its
+ * parent tags), so {@link #count(double)} is just an adder update per level.
+ * With any other IDataLog, calls go through as normal (minus the tag-checking).
+ * <p>
+ * Handles follow {@link DataLog#init(DataLogConfig)}: if the DataLog is
+ * replaced, the handle re-resolves itself on its next use.
+ *
+ * @author daniel
+ */
+public final class DataLogCounter {
+
+	/**
+	 * The canonical (escaped) tag
+	 */
+	public final String tag;
+
+	/**
+	 * The checked tag-bits, for non-in-memory DataLogs
+	 */
+	private final String[] tagBits;
+
+	/**
+	 * What the tag resolved to, for one IDataLog. Replaced as a whole, so the
+	 * cells always belong to the owner they're read with.
+	 */
+	private volatile Resolved resolved;
+
+	DataLogCounter(String... tagBits) {
+		this.tagBits = tagBits;
+		this.tag = DataLog.tag((Object[]) tagBits);
+	}
+
+	private Resolved resolve() {
+		IDataLog dl = DataLog.dflt;
+		Resolved r = resolved;
+		if (r != null && r.owner == dl) return r;
+		r = new Resolved(dl, dl instanceof InMemoryDataLog? ((InMemoryDataLog) dl).cells(tag) : null, null);
+		resolved = r;
+		return r;
+	}
+
+	/**
+	 * Equivalent to {@link DataLog#count(double, String...)}
+	 */
+	public void count(double dx) {
+		Resolved r = resolve();
+		if (r.mem == null) {
+			r.owner.count(dx, (Object[]) tagBits);
+			return;
+		}
+		r.mem.count(r.cells, dx, System.currentTimeMillis());
+	}
+
+	/**
+	 * Equivalent to {@link DataLog#set(double, String...)}
+	 */
+	public void set(double x) {
+		Resolved r = resolve();
+		if (r.mem == null) {
+			r.owner.set(x, (Object[]) tagBits);
+			return;
+		}
+		r.mem.set(r.cells[r.cells.length - 1], x, System.currentTimeMillis());
+	}
+
+	/**
+	 * Equivalent to {@link DataLog#mean(double, Object...)}
+	 */
+	public void mean(double x) {
+		Resolved r = resolve();
+		if (r.mem == null) {
+			r.owner.mean(x, (Object[]) tagBits);
+			return;
+		}
+		DataLogCell mc = r.meanCell;
+		if (mc == null) {
+			// made on first use (a race just makes the same lookup twice)
+			mc = r.mem.meanCell(tag);
+			resolved = new Resolved(r.owner, r.cells, mc);
+		}
+		r.mem.mean(mc, x, System.currentTimeMillis());
+	}
+
+	/**
+	 * Equivalent to {@link DataLog#get(String...)}
+	 */
+	public Rate get() {
+		return resolve().owner.get(tagBits);
+	}
+
+	@Override
+	public String toString() {
+		return "DataLogCounter[" + tag + "]";
+	}
+
+	private static final class Resolved {
+		final IDataLog owner;
+		/**
+		 * owner, if it's an InMemoryDataLog -- else null
+		 */
+		final InMemoryDataLog mem;
+		/**
+		 * [a, a/b, a/b/c] for tag a/b/c. null unless mem
+		 */
+		final DataLogCell[] cells;
+		/**
+		 * null until mean() is used
+		 */
+		final DataLogCell meanCell;
+
+		Resolved(IDataLog owner, DataLogCell[] cells, DataLogCell meanCell) {
+			this.owner = owner;
+			this.mem = owner instanceof InMemoryDataLog? (InMemoryDataLog) owner : null;
+			this.cells = cells;
+			this.meanCell = meanCell;
+		}
+	}
+}
@@ -11,6 +11,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 
 import com.winterwell.utils.MathUtils;
+import com.winterwell.utils.MurmurHash3;
 import com.winterwell.utils.Null;
 import com.winterwell.utils.Printer;
 import com.winterwell.utils.StrUtils;
@@ -43,6 +44,8 @@ import com.winterwell.utils.web.SimpleJson;
  * 
  * See: https://github.com/good-loop/doc/blob/master/pages/dev/flow-vast-vpaid-advert.md
  * 
+ * For a compact binary form (rather than java serialisation), see {@link DataLogEventCodec}.
+ * 
  * @author daniel
  */
 public final class DataLogEvent implements Serializable, IHasJson
@@ -288,10 +291,32 @@ public final class DataLogEvent implements Serializable, IHasJson
 	 */
 	transient String groupById;
 
+	/**
+	 * How {@link #getId()} hashes the props.
+	 */
+	public static enum KIdHash {
+		/** The original and the default: md5 (hex) */
+		MD5,
+		/** MurmurHash3 x64 128 bit (hex) -- faster, but opt-in as the ids differ from MD5 ones */
+		MURMUR3
+	}
+
+	/**
+	 * Set from {@link DataLogConfig#idHash}. Changing this changes the ids of new events.
+	 */
+	public static volatile KIdHash idHash = KIdHash.MD5;
+
+	private static final ThreadLocal<MurmurHash3> murmurs = ThreadLocal.withInitial(MurmurHash3::new);
+
+	/**
+	 * For sorting prop keys in makeId() without making a list each time
+	 */
+	private static final ThreadLocal<String[]> sortScratch = ThreadLocal.withInitial(() -> new String[16]);
+
 	/**
 	 * If true, this event can be saved ignoring any existing event.
 	 * 
-	 * NB: the ID will come from group-by-id OR md5(props)+time(seconds)
+	 * NB: the ID will come from group-by-id OR hash(props)+time(seconds) -- see {@link #idHash}
 	 */
 	public boolean overwrite;
 	
@@ -358,6 +383,25 @@ public final class DataLogEvent implements Serializable, IHasJson
 		initAdjustUserProp();
 	}
 
+	/**
+	 * For a copy of an existing event (e.g. merged or decoded). Keeps its id --
+	 * which can't be remade from the props, as the id is made before
+	 * {@link #initAdjustUserProp()} changes them (and that is not re-done here).
+	 * Does not set the time.
+	 * @param dataspace Already normalised
+	 * @param id From the original event
+	 */
+	DataLogEvent(String dataspace, String id, String groupById, double count, String[] eventType, Map<String,?> properties, Map<String,?> unindexed)
+	{
+		this.dataspace = dataspace;
+		this.id = id;
+		this.groupById = Utils.isBlank(groupById)? null : groupById;
+		this.count = count;
+		this.evt = eventType;
+		this.props = properties == null? Collections.EMPTY_MAP : (Map) properties;
+		this.unindexed = (Map) unindexed;
+	}
+
 
 	/**
 	 * HACK store temp ids separately from proper user logins.
@@ -404,10 +448,34 @@ public final class DataLogEvent implements Serializable, IHasJson
 		if (props==null || props.isEmpty()) {
 			return dataspace+"_"+etype;
 		}
-		List<String> keys = new ArrayList(props.keySet());
-		Collections.sort(keys);
+		// sort the keys in a re-used array
+		int n = props.size();
+		String[] keys = sortScratch.get();
+		if (keys.length < n) {
+			keys = new String[Math.max(n, 2*keys.length)];
+			sortScratch.set(keys);
+		}
+		String[] _keys = props.keySet().toArray(keys);
+		if (_keys != keys) { // paranoia: props grew under us
+			keys = _keys;
+			n = keys.length;
+		}
+		Arrays.sort(keys, 0, n);
+		try {
+			String hash = idHash==KIdHash.MD5? makeIdMD5(keys, n) : makeIdMurmur(keys, n);
+			return dataspace+"_"+etype+"_"+hash;
+		} finally {
+			Arrays.fill(keys, 0, n, null);
+		}
+	}
+
+	/**
+	 * The old (pre Murmur) way: md5 of "key=value&..."
+	 */
+	private String makeIdMD5(String[] keys, int n) {
 		StringBuilder sb = new StringBuilder();
-		for (String key : keys) {
+		for (int i=0; i<n; i++) {
+			String key = keys[i];
 			Object v = props.get(key);
 			if (v==null) continue;
 			sb.append(key);
@@ -415,8 +483,25 @@ public final class DataLogEvent implements Serializable, IHasJson
 			sb.append(v);
 			sb.append('&');
 		}
-		String txt = sb.toString();						
-		return dataspace+"_"+etype+"_"+StrUtils.md5(txt);
+		String txt = sb.toString();
+		return StrUtils.md5(txt);
+	}
+
+	/**
+	 * Murmur3 of "key=value&...", fed straight into the hash
+	 */
+	private String makeIdMurmur(String[] keys, int n) {
+		MurmurHash3 mh = murmurs.get().reset();
+		for (int i=0; i<n; i++) {
+			String key = keys[i];
+			Object v = props.get(key);
+			if (v==null) continue;
+			mh.update(key);
+			mh.update('=');
+			mh.update(v instanceof CharSequence? (CharSequence) v : String.valueOf(v));
+			mh.update('&');
+		}
+		return mh.toHex();
 	}
 
 	/**
@@ -425,7 +510,16 @@ public final class DataLogEvent implements Serializable, IHasJson
 	 */
 	@Override
 	public String toJSONString() {
-		return new SimpleJson().toJson(toJson2());
+		return DataLogEventJsonWriter.toJSONString(this);
+	}
+
+	/**
+	 * Same output as {@link #toJSONString()}, streamed straight into sb.
+	 * @see DataLogEventJsonWriter
+	 */
+	@Override
+	public void appendJson(StringBuilder sb) {
+		DataLogEventJsonWriter.appendDoc(sb, this, false);
 	}
 
 	/**
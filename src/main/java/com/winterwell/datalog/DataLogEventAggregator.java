@@ -0,0 +1,256 @@
+package com.winterwell.datalog;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.winterwell.utils.containers.ArrayMap;
+import com.winterwell.utils.log.Log;
+import com.winterwell.utils.time.Dt;
+
+/**
+ * A sink stage which coalesces events with the same id (see
+ * {@link DataLogEvent#getId()}) within a time window, then passes one event
+ * per id per window on to the next sink. For impression-style traffic this
+ * cuts the downstream writes a lot.
+ * <p>
+ * Coalescing: counts are summed and props are merged (later values win, as
+ * with {@link DataLogEvent#putPropAll(Map)}). An {@link DataLogEvent#overwrite}
+ * event replaces what came before it in the window -- and the output is then
+ * an overwrite event too. The output keeps the first event's time.
+ * <p>
+ * The window is tumbling: everything pending is sent every window, by a
+ * background thread (or sooner, if there are more than maxPending ids).
+ * Set up via {@link DataLogConfig#eventAggregateWindow}.
+ *
+ * @author daniel
+ * @testedby DataLogEventAggregatorTest
+ */
+public class DataLogEventAggregator implements IDataLogEventSink {
+
+	private static final String LOGTAG = "DataLogEventAggregator";
+
+	private final IDataLogEventSink next;
+
+	private final long windowMillis;
+
+	private final int maxPending;
+
+	/**
+	 * dataspace|evt|id to the accumulated event. Guarded by this.
+	 */
+	private LinkedHashMap<String, Acc> pending = new LinkedHashMap<>();
+
+	/**
+	 * Re-used for writing to next. Guarded by this.
+	 */
+	private final List<DataLogEvent> out = new ArrayList<>();
+
+	private long received;
+	private long emitted;
+	private long windows;
+	/**
+	 * Coalesced events lost because the next sink failed
+	 */
+	private long dropped;
+
+	private final Thread flusher;
+
+	private volatile boolean closed;
+
+	/**
+	 * Create and start.
+	 * @param next Where the coalesced events go
+	 * @param window e.g. 10 seconds
+	 * @param maxPending Max distinct ids to hold -- beyond this, the window is sent early.
+	 */
+	public DataLogEventAggregator(IDataLogEventSink next, Dt window, int maxPending) {
+		assert maxPending > 0 : maxPending;
+		this.next = next;
+		this.windowMillis = Math.max(1, window.getMillisecs());
+		this.maxPending = maxPending;
+		flusher = new Thread(this::run, LOGTAG);
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	@Override
+	public synchronized void write(List<DataLogEvent> batch) throws IOException {
+		for (DataLogEvent e : batch) {
+			received++;
+			String key = key(e);
+			Acc acc = pending.get(key);
+			if (acc == null) {
+				pending.put(key, new Acc(e));
+			} else {
+				acc.add(e);
+			}
+		}
+		if (pending.size() > maxPending) {
+			flush();
+		}
+	}
+
+	private static String key(DataLogEvent e) {
+		StringBuilder sb = new StringBuilder(e.dataspace.length() + e.id.length() + 16);
+		sb.append(e.dataspace).append('|');
+		for (String evt : e.getEventType()) {
+			sb.append(evt).append('|');
+		}
+		return sb.append(e.id).toString();
+	}
+
+	/**
+	 * Send everything pending to the next sink. If that fails, the events are
+	 * kept for the next try -- unless there are more than maxPending (i.e. the
+	 * window was being sent early), in which case they are dropped and counted.
+	 */
+	public synchronized void flush() throws IOException {
+		if (pending.isEmpty()) return;
+		LinkedHashMap<String, Acc> done = pending;
+		pending = new LinkedHashMap<>();
+		windows++;
+		out.clear();
+		for (Acc acc : done.values()) {
+			out.add(acc.toEvent());
+		}
+		boolean ok = false;
+		try {
+			next.write(out);
+			ok = true;
+			emitted += out.size();
+		} finally {
+			if ( ! ok) {
+				flush2_failed(done);
+			}
+			out.clear();
+		}
+	}
+
+	/**
+	 * Put done back as pending (nothing can have arrived meanwhile, as we hold
+	 * the lock) -- or drop it if there's too much.
+	 */
+	private void flush2_failed(LinkedHashMap<String, Acc> done) {
+		if (done.size() > maxPending) {
+			dropped += done.size();
+			Log.w(LOGTAG, "Next sink failed: dropped "+done.size()+" coalesced events");
+			return;
+		}
+		pending = done;
+	}
+
+	private void run() {
+		while ( ! closed) {
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(windowMillis));
+			if (closed) break;
+			try {
+				flush();
+			} catch (Throwable ex) {
+				Log.e(LOGTAG, ex);
+			}
+		}
+	}
+
+	/**
+	 * Send what's pending, then close the next sink.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) return;
+		closed = true;
+		LockSupport.unpark(flusher);
+		try {
+			flush();
+		} finally {
+			next.close();
+		}
+	}
+
+	/**
+	 * @return received, emitted, dropped, windows, pending
+	 */
+	public synchronized ArrayMap<String, Object> getStats() {
+		return new ArrayMap(
+				"received", received,
+				"emitted", emitted,
+				"dropped", dropped,
+				"windows", windows,
+				"pending", pending.size()
+				);
+	}
+
+	@Override
+	public String toString() {
+		return LOGTAG + "[" + next + "]";
+	}
+
+	/**
+	 * The running total for one id. Copies the props, so the input events are not modified.
+	 */
+	private static final class Acc {
+		final DataLogEvent first;
+		/**
+		 * The event the totals start from: first, or the latest overwrite event
+		 */
+		DataLogEvent base;
+		double count;
+		Map<String, Object> props;
+		Map<String, Object> unindexed;
+		boolean overwrite;
+		/**
+		 * Number of events merged
+		 */
+		int n;
+
+		Acc(DataLogEvent e) {
+			first = e;
+			reset(e);
+		}
+
+		private void reset(DataLogEvent e) {
+			base = e;
+			count = e.count;
+			props = e.props;
+			unindexed = e.unindexed;
+			overwrite = e.overwrite;
+			n = 1;
+		}
+
+		void add(DataLogEvent e) {
+			if (e.overwrite) {
+				reset(e);
+				return;
+			}
+			count += e.count;
+			// copy on first merge
+			if (n == 1) {
+				props = new HashMap<>(props);
+				if (unindexed != null) unindexed = new HashMap<>(unindexed);
+			}
+			props.putAll(e.props);
+			if (e.unindexed != null) {
+				if (unindexed == null) unindexed = new HashMap<>();
+				unindexed.putAll(e.unindexed);
+			}
+			n++;
+		}
+
+		DataLogEvent toEvent() {
+			if (n == 1 && base == first) {
+				return first; // nothing merged
+			}
+			// keep the id (remaking it from the props would not match, if the user prop was adjusted)
+			DataLogEvent e = new DataLogEvent(first.dataspace, first.id, first.groupById, count, first.getEventType(),
+					new HashMap<>(props), unindexed);
+			e.overwrite = overwrite;
+			e.time = first.time;
+			return e;
+		}
+	}
+}
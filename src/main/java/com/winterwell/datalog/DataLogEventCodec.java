@@ -0,0 +1,580 @@
+package com.winterwell.datalog;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.winterwell.utils.Utils;
+import com.winterwell.utils.containers.ArrayMap;
+import com.winterwell.utils.containers.Containers;
+import com.winterwell.utils.time.Time;
+
+/**
+ * A compact binary form for streams of {@link DataLogEvent}s -- much smaller
+ * and faster than java serialisation. For spooling, WALs, and sending events
+ * between nodes.
+ * <p>
+ * Format: a version byte, then the events. Strings (dataspace, evt, prop keys,
+ * and short string values) go into a per-stream dictionary the first time
+ * they're seen, and are then written as a varint reference. Numbers are
+ * zigzag varints where they're whole, 8-byte doubles otherwise. The time is a
+ * varint delta from the previous event's.
+ * <p>
+ * Values can be null, Boolean, Integer, Long, Float / Double, String, List /
+ * array, or Map -- i.e. json-friendly. Note: Floats come back as Doubles,
+ * Shorts and Bytes as Integers, and arrays as Lists. Anything else is written
+ * as its toString().
+ * <p>
+ * The id is written (unless it's the group-by id). It can't be remade from the
+ * props on decode: the event constructor makes the id <i>before</i> adjusting
+ * the props (e.g. moving a temporary user to trk).
+ * <p>
+ * An encoder or decoder is stateful (the dictionary), so one per stream, and
+ * not thread-safe.
+ *
+ * @author daniel
+ * @testedby DataLogEventCodecTest
+ */
+public final class DataLogEventCodec {
+
+	static final byte VERSION = 2;
+
+	/**
+	 * Strings longer than this are written in full each time (e.g. urls), to
+	 * keep the dictionary small
+	 */
+	static final int MAX_DICT_STRING = 128;
+
+	static final int MAX_DICT_SIZE = 1 << 16;
+
+	private static final int FLAG_OVERWRITE = 1;
+	private static final int FLAG_GROUPBY = 2;
+	private static final int FLAG_UNINDEXED = 4;
+
+	// value types
+	private static final byte T_NULL = 0;
+	private static final byte T_FALSE = 1;
+	private static final byte T_TRUE = 2;
+	private static final byte T_INT = 3;
+	private static final byte T_LONG = 4;
+	/**
+	 * A Double with a whole value, as a varint
+	 */
+	private static final byte T_DOUBLE_WHOLE = 5;
+	private static final byte T_DOUBLE = 6;
+	private static final byte T_STRING = 7;
+	private static final byte T_LIST = 8;
+	private static final byte T_MAP = 9;
+
+	// string refs: 0 = literal, 1 = literal + add to the dictionary, n = dictionary[n-2]
+	private static final int REF_LITERAL = 0;
+	private static final int REF_NEW = 1;
+
+	private DataLogEventCodec() {
+		// static
+	}
+
+	public static Encoder encoder(OutputStream out) {
+		return new StreamEncoder(out);
+	}
+
+	/**
+	 * @param buf Events are written from its position. If an event does not
+	 * fit, {@link BufferOverflowException} is thrown and the buffer is left as
+	 * before that event -- so you can drain the buffer and try again.
+	 */
+	public static Encoder encoder(ByteBuffer buf) {
+		return new BufferEncoder(buf);
+	}
+
+	public static Decoder decoder(InputStream in) {
+		return new StreamDecoder(in);
+	}
+
+	public static Decoder decoder(ByteBuffer buf) {
+		return new BufferDecoder(buf);
+	}
+
+	public static byte[] toBytes(List<DataLogEvent> events) {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(32 * events.size() + 16);
+		try {
+			Encoder enc = encoder(bos);
+			for (DataLogEvent e : events) {
+				enc.write(e);
+			}
+			enc.flush();
+		} catch (IOException e) {
+			throw Utils.runtime(e); // can't happen
+		}
+		return bos.toByteArray();
+	}
+
+	public static List<DataLogEvent> fromBytes(byte[] bytes) {
+		List<DataLogEvent> events = new ArrayList<>();
+		try {
+			Decoder dec = decoder(new ByteArrayInputStream(bytes));
+			DataLogEvent e;
+			while ((e = dec.read()) != null) {
+				events.add(e);
+			}
+		} catch (IOException e) {
+			throw new IllegalArgumentException(e);
+		}
+		return events;
+	}
+
+	/**
+	 * Writes events. Call {@link #flush()} when done.
+	 */
+	public static abstract class Encoder {
+
+		private final HashMap<String, Integer> dict = new HashMap<>();
+		/**
+		 * So a failed write can be undone
+		 */
+		private final ArrayList<String> dictList = new ArrayList<>();
+
+		private boolean started;
+
+		long prevTime;
+
+		abstract void writeByte(int b) throws IOException;
+
+		abstract void writeBytes(byte[] bs) throws IOException;
+
+		public abstract void flush() throws IOException;
+
+		public void write(DataLogEvent e) throws IOException {
+			if ( ! started) {
+				writeByte(VERSION);
+				started = true;
+			}
+			int flags = 0;
+			if (e.overwrite) flags |= FLAG_OVERWRITE;
+			if (e.groupById != null) flags |= FLAG_GROUPBY;
+			if (e.unindexed != null && ! e.unindexed.isEmpty()) flags |= FLAG_UNINDEXED;
+			writeByte(flags);
+			writeString(e.dataspace);
+			if (e.groupById != null) {
+				writeString(e.groupById);
+			} else {
+				writeString(e.id);
+			}
+			String[] evt = e.getEventType();
+			writeVarLong(evt.length);
+			for (String s : evt) {
+				writeString(s);
+			}
+			long t = e.time.getTime();
+			writeVarLong(DataLogSnapshot.zigzag(t - prevTime));
+			prevTime = t;
+			writeNumber(e.count);
+			writeMap(e.props);
+			if ((flags & FLAG_UNINDEXED) != 0) {
+				writeMap(e.unindexed);
+			}
+		}
+
+		private void writeMap(Map<String, ?> map) throws IOException {
+			writeVarLong(map.size());
+			for (Entry<String, ?> kv : map.entrySet()) {
+				writeString(kv.getKey());
+				writeValue(kv.getValue());
+			}
+		}
+
+		private void writeValue(Object v) throws IOException {
+			if (v == null) {
+				writeByte(T_NULL);
+			} else if (v instanceof Boolean) {
+				writeByte((Boolean) v ? T_TRUE : T_FALSE);
+			} else if (v instanceof String) {
+				writeByte(T_STRING);
+				writeString((String) v);
+			} else if (v instanceof Integer || v instanceof Short || v instanceof Byte) {
+				writeByte(T_INT);
+				writeVarLong(DataLogSnapshot.zigzag(((Number) v).intValue()));
+			} else if (v instanceof Long) {
+				writeByte(T_LONG);
+				writeVarLong(DataLogSnapshot.zigzag((Long) v));
+			} else if (v instanceof Double || v instanceof Float) {
+				double x = ((Number) v).doubleValue();
+				long lx = (long) x;
+				if (lx == x && Math.abs(lx) < (1L << 52)) {
+					writeByte(T_DOUBLE_WHOLE);
+					writeVarLong(DataLogSnapshot.zigzag(lx));
+				} else {
+					writeByte(T_DOUBLE);
+					writeLong8(Double.doubleToRawLongBits(x));
+				}
+			} else if (v instanceof Map) {
+				writeByte(T_MAP);
+				Map<?, ?> m = (Map) v;
+				writeVarLong(m.size());
+				for (Entry<?, ?> kv : m.entrySet()) {
+					writeString(String.valueOf(kv.getKey()));
+					writeValue(kv.getValue());
+				}
+			} else if (v instanceof Collection || v.getClass().isArray()) {
+				writeByte(T_LIST);
+				Collection<?> list = v instanceof Collection ? (Collection) v : Containers.asList(v);
+				writeVarLong(list.size());
+				for (Object x : list) {
+					writeValue(x);
+				}
+			} else {
+				writeByte(T_STRING);
+				writeString(v.toString());
+			}
+		}
+
+		/**
+		 * whole numbers (the usual case): varint, with a 0 low bit
+		 */
+		private void writeNumber(double x) throws IOException {
+			long lx = (long) x;
+			if (lx == x && Math.abs(lx) < (1L << 52)) {
+				writeVarLong(DataLogSnapshot.zigzag(lx) << 1);
+			} else {
+				writeVarLong(1);
+				writeLong8(Double.doubleToRawLongBits(x));
+			}
+		}
+
+		private void writeString(String s) throws IOException {
+			Integer ref = dict.get(s);
+			if (ref != null) {
+				writeVarLong(ref + 2L);
+				return;
+			}
+			if (s.length() <= MAX_DICT_STRING && dictList.size() < MAX_DICT_SIZE) {
+				dict.put(s, dictList.size());
+				dictList.add(s);
+				writeVarLong(REF_NEW);
+			} else {
+				writeVarLong(REF_LITERAL);
+			}
+			byte[] bs = s.getBytes(StandardCharsets.UTF_8);
+			writeVarLong(bs.length);
+			writeBytes(bs);
+		}
+
+		private void writeVarLong(long v) throws IOException {
+			while ((v & ~0x7FL) != 0) {
+				writeByte((int) ((v & 0x7F) | 0x80));
+				v >>>= 7;
+			}
+			writeByte((int) v);
+		}
+
+		private void writeLong8(long v) throws IOException {
+			for (int shift = 56; shift >= 0; shift -= 8) {
+				writeByte((int) (v >>> shift));
+			}
+		}
+
+		/**
+		 * @return the state to roll back to if a write fails
+		 */
+		int mark() {
+			return dictList.size();
+		}
+
+		void reset(int dictSize, long _prevTime) {
+			while (dictList.size() > dictSize) {
+				dict.remove(dictList.remove(dictList.size() - 1));
+			}
+			prevTime = _prevTime;
+		}
+
+		boolean isStarted() {
+			return started;
+		}
+
+		void setStarted(boolean started) {
+			this.started = started;
+		}
+	}
+
+	/**
+	 * Reads events. {@link #read()} returns null at the end.
+	 */
+	public static abstract class Decoder {
+
+		private final ArrayList<String> dict = new ArrayList<>();
+
+		private boolean started;
+
+		private long prevTime;
+
+		/**
+		 * @return 0-255, or -1 at the end of the input
+		 */
+		abstract int readByteOrEnd() throws IOException;
+
+		abstract void readBytes(byte[] bs) throws IOException;
+
+		private int readByte() throws IOException {
+			int b = readByteOrEnd();
+			if (b < 0) throw new EOFException();
+			return b;
+		}
+
+		/**
+		 * @return the next event, or null at the end
+		 */
+		public DataLogEvent read() throws IOException {
+			if ( ! started) {
+				int v = readByteOrEnd();
+				if (v < 0) return null;
+				if (v != VERSION) throw new IOException("Unknown DataLogEvent codec version: "+v);
+				started = true;
+			}
+			int flags = readByteOrEnd();
+			if (flags < 0) return null;
+			String dataspace = readString();
+			String groupById = (flags & FLAG_GROUPBY) != 0 ? readString() : null;
+			String id = groupById != null ? groupById : readString();
+			String[] evt = new String[(int) readVarLong()];
+			for (int i = 0; i < evt.length; i++) {
+				evt[i] = readString();
+			}
+			long t = prevTime + DataLogSnapshot.unzigzag(readVarLong());
+			prevTime = t;
+			double count = readNumber();
+			Map<String, Object> props = readMap();
+			Map<String, Object> unindexed = (flags & FLAG_UNINDEXED) != 0 ? readMap() : null;
+			DataLogEvent e = new DataLogEvent(dataspace, id, groupById, count, evt, props, unindexed);
+			e.time = new Time(t);
+			e.overwrite = (flags & FLAG_OVERWRITE) != 0;
+			return e;
+		}
+
+		private Map<String, Object> readMap() throws IOException {
+			int n = (int) readVarLong();
+			ArrayMap<String, Object> map = new ArrayMap();
+			for (int i = 0; i < n; i++) {
+				String k = readString();
+				map.put(k, readValue());
+			}
+			return map;
+		}
+
+		private Object readValue() throws IOException {
+			int type = readByte();
+			switch (type) {
+			case T_NULL: return null;
+			case T_FALSE: return Boolean.FALSE;
+			case T_TRUE: return Boolean.TRUE;
+			case T_INT: return (int) DataLogSnapshot.unzigzag(readVarLong());
+			case T_LONG: return DataLogSnapshot.unzigzag(readVarLong());
+			case T_DOUBLE_WHOLE: return (double) DataLogSnapshot.unzigzag(readVarLong());
+			case T_DOUBLE: return Double.longBitsToDouble(readLong8());
+			case T_STRING: return readString();
+			case T_MAP: return readMap();
+			case T_LIST:
+				int n = (int) readVarLong();
+				List<Object> list = new ArrayList<>(n);
+				for (int i = 0; i < n; i++) {
+					list.add(readValue());
+				}
+				return list;
+			default:
+				throw new IOException("Bad value type: "+type);
+			}
+		}
+
+		private double readNumber() throws IOException {
+			long v = readVarLong();
+			if ((v & 1) == 0) {
+				return DataLogSnapshot.unzigzag(v >>> 1);
+			}
+			return Double.longBitsToDouble(readLong8());
+		}
+
+		private String readString() throws IOException {
+			long ref = readVarLong();
+			if (ref >= 2) {
+				if (ref - 2 >= dict.size()) throw new IOException("Bad string ref: "+ref);
+				return dict.get((int) (ref - 2));
+			}
+			byte[] bs = new byte[(int) readVarLong()];
+			readBytes(bs);
+			String s = new String(bs, StandardCharsets.UTF_8);
+			if (ref == REF_NEW) dict.add(s);
+			return s;
+		}
+
+		private long readVarLong() throws IOException {
+			long v = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = readByte();
+				v |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) return v;
+			}
+			throw new IOException("Bad varint");
+		}
+
+		private long readLong8() throws IOException {
+			long v = 0;
+			for (int i = 0; i < 8; i++) {
+				v = (v << 8) | readByte();
+			}
+			return v;
+		}
+	}
+
+	private static final class StreamEncoder extends Encoder {
+		private final OutputStream out;
+		private final byte[] buf = new byte[8192];
+		private int n;
+
+		StreamEncoder(OutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		void writeByte(int b) throws IOException {
+			if (n == buf.length) drain();
+			buf[n++] = (byte) b;
+		}
+
+		@Override
+		void writeBytes(byte[] bs) throws IOException {
+			if (bs.length > buf.length - n) {
+				drain();
+				if (bs.length > buf.length) {
+					out.write(bs);
+					return;
+				}
+			}
+			System.arraycopy(bs, 0, buf, n, bs.length);
+			n += bs.length;
+		}
+
+		private void drain() throws IOException {
+			out.write(buf, 0, n);
+			n = 0;
+		}
+
+		/**
+		 * Does not close the stream
+		 */
+		@Override
+		public void flush() throws IOException {
+			drain();
+			out.flush();
+		}
+	}
+
+	private static final class BufferEncoder extends Encoder {
+		private final ByteBuffer buf;
+
+		BufferEncoder(ByteBuffer buf) {
+			this.buf = buf;
+		}
+
+		@Override
+		public void write(DataLogEvent e) throws IOException {
+			int pos = buf.position();
+			int dictSize = mark();
+			long prev = prevTime;
+			boolean wasStarted = isStarted();
+			try {
+				super.write(e);
+			} catch (BufferOverflowException ex) {
+				// undo the partial write
+				buf.position(pos);
+				reset(dictSize, prev);
+				setStarted(wasStarted);
+				throw ex;
+			}
+		}
+
+		@Override
+		void writeByte(int b) {
+			buf.put((byte) b);
+		}
+
+		@Override
+		void writeBytes(byte[] bs) {
+			buf.put(bs);
+		}
+
+		@Override
+		public void flush() {
+			// no-op
+		}
+	}
+
+	private static final class StreamDecoder extends Decoder {
+		private final InputStream in;
+		private final byte[] buf = new byte[8192];
+		private int pos, len;
+
+		StreamDecoder(InputStream in) {
+			this.in = in;
+		}
+
+		@Override
+		int readByteOrEnd() throws IOException {
+			if (pos == len) {
+				len = in.read(buf);
+				pos = 0;
+				if (len <= 0) {
+					len = 0;
+					return -1;
+				}
+			}
+			return buf[pos++] & 0xFF;
+		}
+
+		@Override
+		void readBytes(byte[] bs) throws IOException {
+			int done = Math.min(bs.length, len - pos);
+			System.arraycopy(buf, pos, bs, 0, done);
+			pos += done;
+			while (done < bs.length) {
+				int r = in.read(bs, done, bs.length - done);
+				if (r < 0) throw new EOFException();
+				done += r;
+			}
+		}
+	}
+
+	private static final class BufferDecoder extends Decoder {
+		private final ByteBuffer buf;
+
+		BufferDecoder(ByteBuffer buf) {
+			this.buf = buf;
+		}
+
+		@Override
+		int readByteOrEnd() {
+			if ( ! buf.hasRemaining()) return -1;
+			return buf.get() & 0xFF;
+		}
+
+		@Override
+		void readBytes(byte[] bs) throws IOException {
+			try {
+				buf.get(bs);
+			} catch (BufferUnderflowException ex) {
+				throw new EOFException();
+			}
+		}
+	}
+}
@@ -0,0 +1,213 @@
+package com.winterwell.datalog;
+
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.winterwell.utils.MathUtils;
+import com.winterwell.utils.Utils;
+import com.winterwell.utils.log.Log;
+import com.winterwell.utils.time.TimeUtils;
+import com.winterwell.utils.web.SimpleJson;
+
+/**
+ * Writes the ElasticSearch document for a {@link DataLogEvent} straight into a
+ * StringBuilder -- the same json as
+ * <code>new SimpleJson().toJson(event.toJson2())</code>, but without building
+ * the intermediate maps & lists.
+ * <p>
+ * Also does ES _bulk framing, so a batch of events is a single buffer fill.
+ *
+ * @author daniel
+ * @testedby DataLogEventJsonWriterTest
+ */
+public final class DataLogEventJsonWriter {
+
+	/**
+	 * For anything that isn't a String, Number or Boolean. SimpleJson is stateless.
+	 */
+	private static final SimpleJson sj = new SimpleJson();
+
+	private static final ThreadLocal<StringBuilder> buffers = ThreadLocal.withInitial(() -> new StringBuilder(512));
+
+	/**
+	 * Don't keep giant buffers around
+	 */
+	private static final int MAX_KEPT_BUFFER = 1 << 16;
+
+	private DataLogEventJsonWriter() {
+		// static
+	}
+
+	/**
+	 * @return The ES document as a String, built in a re-used per-thread buffer
+	 */
+	public static String toJSONString(DataLogEvent event) {
+		StringBuilder sb = buffers.get();
+		sb.setLength(0);
+		appendDoc(sb, event, false);
+		String json = sb.toString();
+		if (sb.capacity() > MAX_KEPT_BUFFER) {
+			buffers.remove();
+		}
+		return json;
+	}
+
+	/**
+	 * Append the ES document (as per {@link DataLogEvent#toJson2()}).
+	 * @param sb
+	 * @param event
+	 * @param dataspaceAndId If true, prefix with dataspace and id fields (which ES gets from
+	 * the index and _id, but a file-dump needs).
+	 */
+	public static void appendDoc(StringBuilder sb, DataLogEvent event, boolean dataspaceAndId) {
+		sb.append('{');
+		if (dataspaceAndId) {
+			sb.append("\"dataspace\":");
+			appendString(sb, event.dataspace);
+			sb.append(", \"id\":");
+			appendString(sb, event.id);
+			sb.append(", ");
+		}
+		sb.append('"').append(DataLogEvent.EVT).append("\":[");
+		String[] evt = event.getEventType();
+		for (int i = 0; i < evt.length; i++) {
+			if (i != 0) sb.append(", ");
+			appendValue(sb, evt[i]);
+		}
+		sb.append("], \"time\":\"");
+		TimeUtils.appendISOString(sb, event.time.getTime());
+		sb.append("\", \"count\":").append(event.count);
+		Map<String, Object> unindexed = event.unindexed;
+		if (unindexed != null && ! unindexed.isEmpty()) {
+			sb.append(", \"unindexed\":");
+			sj.appendJson(sb, unindexed);
+		}
+		Map<String, Object> props = event.props;
+		if (props.isEmpty()) {
+			sb.append('}');
+			return;
+		}
+		// common props first, as direct fields
+		boolean hasOthers = false;
+		for (Entry<String, Object> pv : props.entrySet()) {
+			Object v = pv.getValue();
+			if ( ! Utils.truthy(v) && ! Boolean.FALSE.equals(v)) continue;
+			Class proptype = DataLogEvent.COMMON_PROPS.get(pv.getKey());
+			if (proptype == null) {
+				hasOthers = true;
+				continue;
+			}
+			try {
+				v = commonValue(pv.getKey(), v, proptype, event);
+				if (v == null) continue;
+			} catch(NumberFormatException ex) {
+				Log.w("DataLogEvent", pv.getKey()+" = "+v+" caused "+ex);
+				continue;
+			} catch(Throwable es) {
+				// paranoia
+				Log.e("DataLogEvent", es+" from "+v);
+				continue;
+			}
+			sb.append(", ");
+			appendString(sb, pv.getKey());
+			sb.append(':');
+			appendValue(sb, v);
+		}
+		// others as a k/n/v list (to avoid hitting the field limit in ES)
+		sb.append(", \"props\":[");
+		if (hasOthers) {
+			boolean first = true;
+			for (Entry<String, Object> pv : props.entrySet()) {
+				Object v = pv.getValue();
+				if ( ! Utils.truthy(v) && ! Boolean.FALSE.equals(v)) continue;
+				if (DataLogEvent.COMMON_PROPS.containsKey(pv.getKey())) continue;
+				if ( ! first) sb.append(", ");
+				first = false;
+				sb.append("{\"k\":");
+				appendString(sb, pv.getKey());
+				if (v instanceof Number) {
+					sb.append(", \"n\":").append(v.toString());
+				} else {
+					sb.append(", \"v\":");
+					appendString(sb, v.toString());
+				}
+				sb.append('}');
+			}
+		}
+		sb.append("]}");
+	}
+
+	/**
+	 * The same coercion as {@link DataLogEvent#toJson2()}
+	 * @return null to drop
+	 */
+	private static Object commonValue(String key, Object v, Class proptype, DataLogEvent event) {
+		if (v instanceof Map && proptype != Object.class) {
+			// no objects here (otherwise ES will throw an error)
+			v = sj.toJson(v);
+		}
+		if (proptype == Long.class || proptype == Integer.class) {
+			if (v instanceof Long || v instanceof Integer) {
+				return v;
+			}
+			double nv = MathUtils.toNum(v);
+			if (nv != Math.round(nv)) {
+				Log.w("DataLogEvent", "Dropping non-int number (bad format, possibly wrong units): "+key+" = "+v+" in "+event);
+				return null;
+			}
+			return nv;
+		}
+		return v;
+	}
+
+	private static void appendString(StringBuilder sb, CharSequence s) {
+		sb.append('"');
+		SimpleJson.escape(sb, s);
+		sb.append('"');
+	}
+
+	private static void appendValue(StringBuilder sb, Object v) {
+		if (v instanceof String) {
+			appendString(sb, (String) v);
+		} else if (v instanceof Double || v instanceof Long || v instanceof Integer || v instanceof Boolean) {
+			sb.append(v.toString());
+		} else {
+			sj.appendJson(sb, v);
+		}
+	}
+
+	/**
+	 * Append an ES _bulk index action + document, each followed by a newline.
+	 * @param sb
+	 * @param index e.g. "datalog.default"
+	 * @param id Can be null, in which case ES will make one
+	 * @param event
+	 */
+	public static void appendBulk(StringBuilder sb, String index, String id, DataLogEvent event) {
+		sb.append("{\"index\":{\"_index\":");
+		appendString(sb, index);
+		if (id != null) {
+			sb.append(",\"_id\":");
+			appendString(sb, id);
+		}
+		sb.append("}}\n");
+		appendDoc(sb, event, false);
+		sb.append('\n');
+	}
+
+	/**
+	 * Append a _bulk body for the events, indexed into "datalog.{dataspace}".
+	 * The _id is only set for events made with a group-by id: otherwise the
+	 * event id does not include time (see {@link DataLogEvent#getId()}), so ES is
+	 * left to make one.
+	 *
+	 * @param sb
+	 * @param events
+	 */
+	public static void appendBulk(StringBuilder sb, Iterable<DataLogEvent> events) {
+		for (DataLogEvent e : events) {
+			String id = e.groupById==null? null : e.id;
+			appendBulk(sb, "datalog." + e.dataspace, id, e);
+		}
+	}
+}
@@ -0,0 +1,209 @@
+package com.winterwell.datalog;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import com.winterwell.utils.containers.ArrayMap;
+import com.winterwell.utils.io.FileUtils;
+import com.winterwell.utils.log.Log;
+import com.winterwell.utils.threads.RingBuffer;
+import com.winterwell.utils.time.Dt;
+
+/**
+ * Write-behind for {@link DataLogEvent}s: request threads {@link #offer(DataLogEvent)}
+ * into a bounded lock-free {@link RingBuffer}, and a single background thread
+ * drains it in batches to an {@link IDataLogEventSink}.
+ * <p>
+ * A batch is sent when it reaches batchSize, or when its oldest event has
+ * waited maxDelay -- whichever comes first.
+ * <p>
+ * Backpressure: when the buffer is full, {@link KOverflow} decides whether the
+ * caller drops the event or waits (upto a timeout) for space. Either way, see
+ * {@link #getStats()} for what happened. The stats are also logged to DataLog
+ * under DataLogEventQueue_*
+ *
+ * @author daniel
+ * @testedby DataLogEventQueueTest
+ */
+public class DataLogEventQueue implements Closeable {
+
+	/**
+	 * What to do when the buffer is full.
+	 */
+	public static enum KOverflow {
+		/** Drop the new event (and count it) */
+		DROP,
+		/** Wait for space, upto the block timeout, then drop */
+		BLOCK
+	}
+
+	private static final String LOGTAG = "DataLogEventQueue";
+
+	private final RingBuffer<DataLogEvent> buffer;
+	private final IDataLogEventSink sink;
+	private final int batchSize;
+	private final long maxDelayNanos;
+	private final KOverflow overflow;
+	private long blockTimeoutNanos = TimeUnit.SECONDS.toNanos(1);
+
+	private final LongAdder offered = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder blockedNanos = new LongAdder();
+	private final LongAdder written = new LongAdder();
+	private final LongAdder batches = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+
+	private final DataLogCounter droppedStat = DataLog.counter("DataLogEventQueue_dropped");
+	private final DataLogCounter depthStat = DataLog.counter("DataLogEventQueue_depth");
+
+	private final Thread drainer;
+	private volatile boolean closed;
+
+	/**
+	 * Create and start.
+	 * @param sink
+	 * @param capacity Max events in the buffer
+	 * @param batchSize Max events per sink write
+	 * @param maxDelay Max time an event waits before its batch is written
+	 * @param overflow
+	 */
+	public DataLogEventQueue(IDataLogEventSink sink, int capacity, int batchSize, Dt maxDelay, KOverflow overflow) {
+		assert batchSize > 0 : batchSize;
+		this.sink = sink;
+		this.buffer = new RingBuffer<>(capacity);
+		this.batchSize = batchSize;
+		this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelay.getMillisecs());
+		this.overflow = overflow==null? KOverflow.DROP : overflow;
+		drainer = new Thread(this::run, LOGTAG);
+		drainer.setDaemon(true);
+		drainer.start();
+	}
+
+	/**
+	 * For {@link KOverflow#BLOCK}: how long to wait for space. Default: 1 second.
+	 */
+	public DataLogEventQueue setBlockTimeout(Dt blockTimeout) {
+		this.blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(blockTimeout.getMillisecs());
+		return this;
+	}
+
+	/**
+	 * Never blocks for {@link KOverflow#DROP}
+	 * @param event
+	 * @return true if queued, false if dropped
+	 */
+	public boolean offer(DataLogEvent event) {
+		offered.increment();
+		if (buffer.offer(event)) {
+			return true;
+		}
+		if (overflow == KOverflow.BLOCK && ! closed) {
+			long start = System.nanoTime();
+			long waited = 0;
+			while (waited < blockTimeoutNanos) {
+				LockSupport.unpark(drainer);
+				LockSupport.parkNanos(50_000);
+				if (buffer.offer(event)) {
+					blockedNanos.add(System.nanoTime() - start);
+					return true;
+				}
+				waited = System.nanoTime() - start;
+			}
+			blockedNanos.add(waited);
+		}
+		dropped.increment();
+		droppedStat.count(1);
+		return false;
+	}
+
+	private void run() {
+		List<DataLogEvent> batch = new ArrayList<>(batchSize);
+		long firstAt = 0;
+		while (true) {
+			boolean wasEmpty = batch.isEmpty();
+			buffer.drainTo(batch, batchSize - batch.size());
+			if (wasEmpty && ! batch.isEmpty()) {
+				firstAt = System.nanoTime();
+			}
+			boolean stopping = closed;
+			if ( ! batch.isEmpty()
+					&& (batch.size() >= batchSize || stopping || System.nanoTime() - firstAt >= maxDelayNanos))
+			{
+				write(batch);
+				continue; // there may be more
+			}
+			if (stopping && buffer.isEmpty()) {
+				break;
+			}
+			// wait a bit
+			long wait = batch.isEmpty()? maxDelayNanos : maxDelayNanos - (System.nanoTime() - firstAt);
+			LockSupport.parkNanos(Math.max(10_000, Math.min(wait, TimeUnit.MILLISECONDS.toNanos(10))));
+		}
+	}
+
+	private void write(List<DataLogEvent> batch) {
+		try {
+			sink.write(batch);
+			written.add(batch.size());
+			batches.increment();
+		} catch (Throwable ex) {
+			failed.add(batch.size());
+			Log.e(LOGTAG, "Lost "+batch.size()+" events from "+sink+": "+ex);
+		} finally {
+			batch.clear();
+		}
+		depthStat.set(buffer.size());
+	}
+
+	/**
+	 * Write out what's in the buffer, then stop the background thread and close the sink.
+	 */
+	@Override
+	public void close() {
+		if (closed) return;
+		closed = true;
+		LockSupport.unpark(drainer);
+		try {
+			drainer.join(TimeUnit.SECONDS.toMillis(10));
+		} catch (InterruptedException e) {
+			// oh well
+		}
+		FileUtils.close(sink);
+	}
+
+	/**
+	 * @return Number of events waiting
+	 */
+	public int getDepth() {
+		return buffer.size();
+	}
+
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	/**
+	 * @return offered, dropped, written, failed, batches, depth, capacity, blocked_ms
+	 */
+	public ArrayMap<String, Object> getStats() {
+		return new ArrayMap(
+				"offered", offered.sum(),
+				"dropped", dropped.sum(),
+				"written", written.sum(),
+				"failed", failed.sum(),
+				"batches", batches.sum(),
+				"depth", buffer.size(),
+				"capacity", buffer.capacity(),
+				"blocked_ms", TimeUnit.NANOSECONDS.toMillis(blockedNanos.sum())
+				);
+	}
+
+	@Override
+	public String toString() {
+		return "DataLogEventQueue" + getStats();
+	}
+}
@@ -0,0 +1,506 @@
+package com.winterwell.datalog;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.winterwell.utils.containers.ArrayMap;
+import com.winterwell.utils.io.FileUtils;
+import com.winterwell.utils.log.Log;
+import com.winterwell.utils.threads.IProgress;
+import com.winterwell.utils.time.Time;
+
+/**
+ * Bulk (re)build of stats from archived log files -- the ndjson segments
+ * written by {@link NDJsonSegmentSink} beside {@link DataLogConfig#logFile}.
+ * <p>
+ * Each file is memory-mapped and split on line boundaries into chunks, which
+ * are parsed in parallel on a {@link ForkJoinPool}. Each chunk sums its events
+ * per (bucket, dataspace, evt) -- the same tags as
+ * {@link IDataLog#count(DataLogEvent)}, but at the event's time. The sums are
+ * then fed into the IDataLog file by file, in bucket order, so the target
+ * mostly appends rather than editing old buckets.
+ * <p>
+ * Lines are parsed with a small json reader working directly on the mapped
+ * bytes (no per-line String). Lines which fail to parse are counted and
+ * skipped.
+ * <p>
+ * Not thread-safe: one ingest at a time. {@link #getProgress()} can be called
+ * from any thread.
+ *
+ * @author daniel
+ * @testedby DataLogIngestTest
+ */
+public final class DataLogIngest implements IProgress {
+
+	private static final String LOGTAG = "DataLogIngest";
+
+	/**
+	 * Only log the first few bad lines
+	 */
+	private static final int MAX_LOGGED_ERRORS = 10;
+
+	private final IDataLog dataLog;
+
+	private final long period;
+
+	private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+	private int chunkSize = 8 * 1024 * 1024;
+
+	private final AtomicLong bytesDone = new AtomicLong();
+	private volatile long bytesTotal = -1;
+
+	private final AtomicLong lines = new AtomicLong();
+	private final AtomicLong events = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private long cells;
+	private int files;
+	private long millis;
+
+	/**
+	 * @param dataLog Where the counts go
+	 */
+	public DataLogIngest(IDataLog dataLog) {
+		this.dataLog = dataLog;
+		this.period = dataLog.getPeriod().getMillisecs();
+	}
+
+	/**
+	 * @param pool Default: the common pool
+	 */
+	public DataLogIngest setPool(ForkJoinPool pool) {
+		this.pool = pool;
+		return this;
+	}
+
+	/**
+	 * @param chunkSize Target bytes per parallel task (chunks end on a line break). Default 8mb.
+	 */
+	public DataLogIngest setChunkSize(int chunkSize) {
+		assert chunkSize > 0 : chunkSize;
+		this.chunkSize = chunkSize;
+		return this;
+	}
+
+	/**
+	 * @param logFile e.g. lg.txt
+	 * @return the ndjson segments for logFile, oldest first
+	 */
+	public static List<File> getLogFiles(File logFile) {
+		File abs = logFile.getAbsoluteFile();
+		String prefix = FileUtils.getBasename(abs)+".";
+		String suffix = "."+NDJsonSegmentSink.FILE_TYPE;
+		File[] fs = abs.getParentFile().listFiles(f -> f.getName().startsWith(prefix) && f.getName().endsWith(suffix));
+		if (fs == null) return Collections.emptyList();
+		// the names are timestamped, so name order = time order
+		Arrays.sort(fs, Comparator.comparing(File::getName));
+		return Arrays.asList(fs);
+	}
+
+	/**
+	 * Ingest the files, in order.
+	 * @return stats, as per {@link #getStats()}
+	 */
+	public ArrayMap<String, Object> ingest(List<File> logFiles) throws IOException {
+		long start = System.currentTimeMillis();
+		long total = 0;
+		for (File f : logFiles) {
+			total += f.length();
+		}
+		bytesTotal = total;
+		for (File f : logFiles) {
+			ingest2(f);
+		}
+		millis += System.currentTimeMillis() - start;
+		ArrayMap<String, Object> stats = getStats();
+		Log.i(LOGTAG, "Ingested "+stats);
+		return stats;
+	}
+
+	private void ingest2(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			List<ForkJoinTask<Map<Key, double[]>>> tasks = new ArrayList<>();
+			long s = 0;
+			while (s < size) {
+				long e = nextLineStart(channel, Math.min(size, s + chunkSize), size);
+				final long from = s, to = e;
+				tasks.add(pool.submit(() -> parseChunk(channel, from, to)));
+				s = e;
+			}
+			// merge, in order
+			Map<Key, double[]> sums = new HashMap<>();
+			for (ForkJoinTask<Map<Key, double[]>> task : tasks) {
+				Map<Key, double[]> chunkSums = task.join();
+				if (sums.isEmpty()) {
+					sums = chunkSums;
+					continue;
+				}
+				for (Map.Entry<Key, double[]> kv : chunkSums.entrySet()) {
+					double[] v = sums.putIfAbsent(kv.getKey(), kv.getValue());
+					if (v != null) v[0] += kv.getValue()[0];
+				}
+			}
+			feed(sums);
+			files++;
+		}
+	}
+
+	/**
+	 * Write the sums into the IDataLog, oldest bucket first.
+	 */
+	private void feed(Map<Key, double[]> sums) {
+		List<Key> keys = new ArrayList<>(sums.keySet());
+		Collections.sort(keys);
+		for (Key k : keys) {
+			dataLog.count(new Time(k.bucket), sums.get(k)[0], k.dataspace, k.evt);
+		}
+		cells += keys.size();
+	}
+
+	/**
+	 * @return the offset just after the first newline at or after pos, or size
+	 */
+	private static long nextLineStart(FileChannel channel, long pos, long size) throws IOException {
+		ByteBuffer bb = ByteBuffer.allocate(4096);
+		while (pos < size) {
+			bb.clear();
+			int n = channel.read(bb, pos);
+			if (n <= 0) break;
+			for (int i = 0; i < n; i++) {
+				if (bb.get(i) == '\n') return pos + i + 1;
+			}
+			pos += n;
+		}
+		return size;
+	}
+
+	private Map<Key, double[]> parseChunk(FileChannel channel, long from, long to) throws IOException {
+		MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+		Map<Key, double[]> sums = new HashMap<>();
+		JsonLineParser parser = new JsonLineParser(buf);
+		int end = buf.limit();
+		int lineStart = 0;
+		long nLines = 0, nEvents = 0;
+		while (lineStart < end) {
+			int lineEnd = lineStart;
+			while (lineEnd < end && buf.get(lineEnd) != '\n') lineEnd++;
+			nLines++;
+			try {
+				DataLogEvent e = parser.parseEvent(lineStart, lineEnd);
+				if (e != null) {
+					add(sums, e);
+					nEvents++;
+				}
+			} catch (Exception ex) {
+				if (errors.incrementAndGet() <= MAX_LOGGED_ERRORS) {
+					Log.w(LOGTAG, "Skipping bad line at "+(from + lineStart)+": "+ex);
+				}
+			}
+			lineStart = lineEnd + 1;
+		}
+		lines.addAndGet(nLines);
+		events.addAndGet(nEvents);
+		bytesDone.addAndGet(to - from);
+		return sums;
+	}
+
+	private void add(Map<Key, double[]> sums, DataLogEvent e) {
+		long t = e.time.getTime();
+		long bucket = t - Math.floorMod(t, period);
+		for (String evt : e.getEventType()) {
+			Key k = new Key(bucket, e.dataspace, evt);
+			double[] v = sums.get(k);
+			if (v == null) {
+				sums.put(k, new double[] {e.count});
+			} else {
+				v[0] += e.count;
+			}
+		}
+	}
+
+	/**
+	 * @return [bytes done, bytes total] -- total is -1 before an ingest starts
+	 */
+	@Override
+	public double[] getProgress() {
+		return new double[] {bytesDone.get(), bytesTotal};
+	}
+
+	/**
+	 * @return files, bytes, lines, events, errors, cells (the count() calls made), millis, MBps
+	 */
+	public ArrayMap<String, Object> getStats() {
+		long b = bytesDone.get();
+		return new ArrayMap(
+				"files", files,
+				"bytes", b,
+				"lines", lines.get(),
+				"events", events.get(),
+				"errors", errors.get(),
+				"cells", cells,
+				"millis", millis,
+				"MBps", millis == 0 ? 0 : (b / 1048576.0) / (millis / 1000.0)
+				);
+	}
+
+	@Override
+	public String toString() {
+		return LOGTAG + "[" + dataLog + "]";
+	}
+
+	/**
+	 * A bucket of one (dataspace, evt) series
+	 */
+	private static final class Key implements Comparable<Key> {
+		final long bucket;
+		final String dataspace;
+		final String evt;
+
+		Key(long bucket, String dataspace, String evt) {
+			this.bucket = bucket;
+			this.dataspace = dataspace;
+			this.evt = evt;
+		}
+
+		@Override
+		public int hashCode() {
+			return (Long.hashCode(bucket) * 31 + dataspace.hashCode()) * 31 + evt.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if ( ! (obj instanceof Key)) return false;
+			Key k = (Key) obj;
+			return bucket == k.bucket && evt.equals(k.evt) && dataspace.equals(k.dataspace);
+		}
+
+		@Override
+		public int compareTo(Key o) {
+			int c = Long.compare(bucket, o.bucket);
+			if (c != 0) return c;
+			c = dataspace.compareTo(o.dataspace);
+			if (c != 0) return c;
+			return evt.compareTo(o.evt);
+		}
+	}
+
+	/**
+	 * Just enough json for one {@link NDJsonSegmentSink} line: objects, arrays,
+	 * strings, numbers, true/false/null. Reads UTF-8 straight from the buffer.
+	 * One per chunk (not thread-safe).
+	 */
+	static final class JsonLineParser {
+
+		private final ByteBuffer buf;
+		private int pos;
+		private int start;
+		private int end;
+		private byte[] bytes = new byte[256];
+
+		JsonLineParser(ByteBuffer buf) {
+			this.buf = buf;
+		}
+
+		/**
+		 * @return the event on [start, end), or null for a blank line
+		 * @throws IllegalArgumentException for bad json
+		 */
+		DataLogEvent parseEvent(int _start, int _end) {
+			start = _start;
+			pos = _start;
+			end = _end;
+			skipWhitespace();
+			if (pos == end) return null;
+			Map<String, Object> hit = (Map<String, Object>) parseValue();
+			skipWhitespace();
+			if (pos != end) throw error("trailing junk");
+			Object ds = hit.get("dataspace");
+			if (ds == null) throw error("no dataspace");
+			return DataLogEvent.fromESHit((String) ds, (String) hit.get("id"), hit);
+		}
+
+		/**
+		 * Parse a whole value from a String -- for testing.
+		 */
+		static Object parse(String json) {
+			byte[] bs = json.getBytes(StandardCharsets.UTF_8);
+			JsonLineParser p = new JsonLineParser(ByteBuffer.wrap(bs));
+			p.end = bs.length;
+			return p.parseValue();
+		}
+
+		Object parseValue() {
+			skipWhitespace();
+			if (pos == end) throw error("unexpected end");
+			byte b = buf.get(pos);
+			switch (b) {
+			case '{': return parseObject();
+			case '[': return parseArray();
+			case '"': return parseString();
+			case 't': expect("true"); return Boolean.TRUE;
+			case 'f': expect("false"); return Boolean.FALSE;
+			case 'n': expect("null"); return null;
+			default: return parseNumber();
+			}
+		}
+
+		private Map<String, Object> parseObject() {
+			pos++; // {
+			ArrayMap<String, Object> map = new ArrayMap();
+			skipWhitespace();
+			if (peek() == '}') {
+				pos++;
+				return map;
+			}
+			while (true) {
+				skipWhitespace();
+				if (peek() != '"') throw error("expected a key");
+				String k = parseString();
+				skipWhitespace();
+				if (peek() != ':') throw error("expected :");
+				pos++;
+				map.put(k, parseValue());
+				skipWhitespace();
+				byte b = peek();
+				pos++;
+				if (b == '}') return map;
+				if (b != ',') throw error("expected , or }");
+			}
+		}
+
+		private List<Object> parseArray() {
+			pos++; // [
+			ArrayList<Object> list = new ArrayList<>();
+			skipWhitespace();
+			if (peek() == ']') {
+				pos++;
+				return list;
+			}
+			while (true) {
+				list.add(parseValue());
+				skipWhitespace();
+				byte b = peek();
+				pos++;
+				if (b == ']') return list;
+				if (b != ',') throw error("expected , or ]");
+			}
+		}
+
+		private String parseString() {
+			pos++; // "
+			int n = 0;
+			while (true) {
+				if (pos >= end) throw error("unterminated string");
+				byte b = buf.get(pos++);
+				if (b == '"') break;
+				if (b == '\\') {
+					if (pos >= end) throw error("unterminated string");
+					byte c = buf.get(pos++);
+					switch (c) {
+					case 'n': b = '\n'; break;
+					case 't': b = '\t'; break;
+					case 'r': b = '\r'; break;
+					case 'b': b = '\b'; break;
+					case 'f': b = '\f'; break;
+					case 'u':
+						if (pos + 4 > end) throw error("bad \\u escape");
+						char ch = (char) Integer.parseInt(ascii(pos, pos + 4), 16);
+						pos += 4;
+						// re-encode as UTF-8 -- a surrogate pair has to be done as one
+						String chs = String.valueOf(ch);
+						if (Character.isHighSurrogate(ch) && pos + 6 <= end
+								&& buf.get(pos) == '\\' && buf.get(pos + 1) == 'u')
+						{
+							char lo = (char) Integer.parseInt(ascii(pos + 2, pos + 6), 16);
+							if (Character.isLowSurrogate(lo)) {
+								chs = new String(new char[] {ch, lo});
+								pos += 6;
+							}
+						}
+						for (byte e : chs.getBytes(StandardCharsets.UTF_8)) {
+							n = put(n, e);
+						}
+						continue;
+					default: b = c; // " \ /
+					}
+				}
+				n = put(n, b);
+			}
+			return new String(bytes, 0, n, StandardCharsets.UTF_8);
+		}
+
+		private int put(int n, byte b) {
+			if (n == bytes.length) bytes = Arrays.copyOf(bytes, n * 2);
+			bytes[n] = b;
+			return n + 1;
+		}
+
+		private Object parseNumber() {
+			int start = pos;
+			boolean isInt = true;
+			while (pos < end) {
+				byte b = buf.get(pos);
+				if (b == '.' || b == 'e' || b == 'E') {
+					isInt = false;
+				} else if ( ! (b == '-' || b == '+' || (b >= '0' && b <= '9'))) {
+					break;
+				}
+				pos++;
+			}
+			if (start == pos) throw error("unexpected character");
+			String s = ascii(start, pos);
+			if (isInt && pos - start < 19) {
+				return Long.parseLong(s);
+			}
+			return Double.parseDouble(s);
+		}
+
+		private void expect(String word) {
+			for (int i = 0; i < word.length(); i++) {
+				if (pos >= end || buf.get(pos) != word.charAt(i)) throw error("expected "+word);
+				pos++;
+			}
+		}
+
+		private String ascii(int from, int to) {
+			char[] cs = new char[to - from];
+			for (int i = 0; i < cs.length; i++) {
+				cs[i] = (char) buf.get(from + i);
+			}
+			return new String(cs);
+		}
+
+		private byte peek() {
+			if (pos >= end) throw error("unexpected end");
+			return buf.get(pos);
+		}
+
+		private void skipWhitespace() {
+			while (pos < end) {
+				byte b = buf.get(pos);
+				if (b != ' ' && b != '\t' && b != '\r' && b != '\n') return;
+				pos++;
+			}
+		}
+
+		private IllegalArgumentException error(String msg) {
+			return new IllegalArgumentException(msg+" at column "+(pos - start));
+		}
+	}
+}
@@ -0,0 +1,493 @@
+package com.winterwell.datalog;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import com.winterwell.maths.stats.distributions.d1.IDistribution1D;
+import com.winterwell.maths.stats.distributions.d1.LogHistogram1D;
+import com.winterwell.maths.stats.distributions.d1.MeanVar1D;
+import com.winterwell.utils.Utils;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.Time;
+
+/**
+ * An immutable copy of a time window of DataLog data, for combining stats
+ * across servers. Make one with {@link InMemoryDataLog#snapshot(String, Time, Time)},
+ * ship it with {@link #toBytes()}, and combine with {@link #merge(DataLogSnapshot...)}.
+ * <p>
+ * Merging is a state-based CRDT: a snapshot holds one section per node, and
+ * a merge keeps the newest section (by version) for each node. So merging is
+ * commutative, associative and idempotent -- snapshots can be merged in any
+ * order, hierarchically, or more than once, without double counting. The
+ * catch: a node's section replaces its older ones, so each node should
+ * snapshot the whole window every time (which is what
+ * {@link InMemoryDataLog#snapshot(String, Time, Time)} does).
+ * <p>
+ * Binary format: a tag dictionary, then per node and tag, the bucket times
+ * (delta-encoded varints) and values (whole numbers as delta-encoded varints,
+ * otherwise raw doubles), plus sample counts and {@link LogHistogram1D} bytes
+ * for mean() tags.
+ *
+ * @author daniel
+ * @testedby DataLogSnapshotTest
+ */
+public final class DataLogSnapshot {
+
+	private static final byte VERSION = 1;
+
+	private static final byte KIND_COUNT = 0;
+	private static final byte KIND_MEAN = 1;
+
+	/**
+	 * epoch millisecs, inclusive
+	 */
+	private final long start;
+	/**
+	 * epoch millisecs, exclusive
+	 */
+	private final long end;
+
+	/**
+	 * bucket size in millisecs
+	 */
+	private final long interval;
+
+	/**
+	 * node to section. Sorted, so the bytes are deterministic.
+	 */
+	private final TreeMap<String, Node> nodes;
+
+	private DataLogSnapshot(long start, long end, long interval, TreeMap<String, Node> nodes) {
+		this.start = start;
+		this.end = end;
+		this.interval = interval;
+		this.nodes = nodes;
+	}
+
+	/**
+	 * For {@link InMemoryDataLog#snapshot(String, Time, Time)}
+	 */
+	static DataLogSnapshot create(String node, long version, long start, long end, long interval,
+			Map<String, Series> counts, Map<String, Series> means)
+	{
+		TreeMap<String, Node> nodes = new TreeMap<>();
+		nodes.put(node, new Node(node, version, new TreeMap<>(counts), new TreeMap<>(means)));
+		return new DataLogSnapshot(start, end, interval, nodes);
+	}
+
+	/**
+	 * @return a new snapshot with, for each node, the newest section from any of snaps.
+	 * The window is the union of the windows.
+	 * @throws IllegalArgumentException if the intervals differ
+	 */
+	public static DataLogSnapshot merge(DataLogSnapshot... snaps) {
+		if (snaps.length == 0) throw new IllegalArgumentException("Nothing to merge");
+		long start = Long.MAX_VALUE, end = Long.MIN_VALUE;
+		long interval = snaps[0].interval;
+		TreeMap<String, Node> nodes = new TreeMap<>();
+		for (DataLogSnapshot snap : snaps) {
+			if (snap.interval != interval) {
+				throw new IllegalArgumentException("Different intervals: "+interval+" vs "+snap.interval);
+			}
+			start = Math.min(start, snap.start);
+			end = Math.max(end, snap.end);
+			for (Node n : snap.nodes.values()) {
+				nodes.merge(n.node, n, DataLogSnapshot::newer);
+			}
+		}
+		return new DataLogSnapshot(start, end, interval, nodes);
+	}
+
+	/**
+	 * Equivalent to merge(this, other)
+	 */
+	public DataLogSnapshot merge(DataLogSnapshot other) {
+		return merge(this, other);
+	}
+
+	/**
+	 * Newest wins. Ties (which should not happen) go to the bigger hash, so the result does not depend on order.
+	 */
+	private static Node newer(Node a, Node b) {
+		if (a.version != b.version) return a.version > b.version? a : b;
+		return a.hash >= b.hash? a : b;
+	}
+
+	public Time getStart() {
+		return new Time(start);
+	}
+
+	public Time getEnd() {
+		return new Time(end);
+	}
+
+	public Dt getInterval() {
+		return new Dt(interval);
+	}
+
+	/**
+	 * @return the node ids
+	 */
+	public Set<String> getNodes() {
+		return Collections.unmodifiableSet(nodes.keySet());
+	}
+
+	/**
+	 * @return count/set tags and mean() tags, from all nodes
+	 */
+	public Set<String> getTags() {
+		Set<String> tags = new TreeSet<>();
+		for (Node n : nodes.values()) {
+			tags.addAll(n.counts.keySet());
+			tags.addAll(n.means.keySet());
+		}
+		return tags;
+	}
+
+	/**
+	 * @return the total across all nodes, or 0
+	 */
+	public double getTotal(String... tagBits) {
+		String tag = DataLog.tag((Object[]) tagBits);
+		double total = 0;
+		for (Node n : nodes.values()) {
+			Series s = n.counts.get(tag);
+			if (s == null) continue;
+			for (double x : s.sums) total += x;
+		}
+		return total;
+	}
+
+	/**
+	 * @return per bucket, summed across all nodes. Empty if unknown.
+	 */
+	public TimeSeries getData(String... tagBits) {
+		String tag = DataLog.tag((Object[]) tagBits);
+		List<Series> all = new ArrayList<>();
+		for (Node n : nodes.values()) {
+			Series s = n.counts.get(tag);
+			if (s != null) all.add(s);
+		}
+		// merge the sorted series
+		TreeMap<Long, double[]> byTime = new TreeMap<>();
+		for (Series s : all) {
+			for (int i = 0; i < s.times.length; i++) {
+				byTime.computeIfAbsent(s.times[i], k -> new double[1])[0] += s.sums[i];
+			}
+		}
+		long[] ts = new long[byTime.size()];
+		double[] xs = new double[ts.length];
+		int i = 0;
+		for (Map.Entry<Long, double[]> e : byTime.entrySet()) {
+			ts[i] = e.getKey();
+			xs[i] = e.getValue()[0];
+			i++;
+		}
+		return new TimeSeries(tag, ts, xs, 0, ts.length);
+	}
+
+	/**
+	 * @return the distribution of mean() samples across all nodes & the window, or null if unknown.
+	 * A {@link LogHistogram1D} if every bucket has one, otherwise a {@link MeanVar1D}.
+	 */
+	public MeanRate getMean(String... tagBits) {
+		String tag = DataLog.tag((Object[]) tagBits);
+		long n = 0;
+		double sum = 0, sumSq = 0;
+		LogHistogram1D hist = null;
+		boolean allHists = true, found = false;
+		for (Node node : nodes.values()) {
+			Series s = node.means.get(tag);
+			if (s == null) continue;
+			found = true;
+			for (int i = 0; i < s.times.length; i++) {
+				n += s.ns[i];
+				sum += s.sums[i];
+				sumSq += s.sumSqs[i];
+				LogHistogram1D h = s.hists[i];
+				if (h == null) {
+					allHists = allHists && s.ns[i] == 0;
+					continue;
+				}
+				if (hist == null) hist = new LogHistogram1D(h.getAccuracy(), LogHistogram1D.DEFAULT_MAX_BUCKETS);
+				hist.merge(h);
+			}
+		}
+		if ( ! found) return null;
+		IDistribution1D dist = hist != null && allHists? hist : MeanVar1D.fromSums(n, sum, sumSq);
+		return new MeanRate(dist, new Dt(end - start));
+	}
+
+	public byte[] toBytes() {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		try {
+			writeTo(bos);
+		} catch (IOException e) {
+			throw Utils.runtime(e); // can't happen
+		}
+		return bos.toByteArray();
+	}
+
+	public static DataLogSnapshot fromBytes(byte[] bytes) {
+		try {
+			return readFrom(new ByteArrayInputStream(bytes));
+		} catch (IOException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	/**
+	 * Does not close out
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		DataOutputStream dos = new DataOutputStream(out);
+		dos.writeByte(VERSION);
+		writeVarLong(dos, zigzag(start));
+		writeVarLong(dos, end - start);
+		writeVarLong(dos, interval);
+		// the tag dictionary
+		List<String> dict = new ArrayList<>(getTags());
+		writeVarLong(dos, dict.size());
+		for (String tag : dict) {
+			dos.writeUTF(tag);
+		}
+		writeVarLong(dos, nodes.size());
+		for (Node n : nodes.values()) {
+			dos.writeUTF(n.node);
+			writeVarLong(dos, zigzag(n.version));
+			writeVarLong(dos, n.counts.size() + n.means.size());
+			for (Series s : n.counts.values()) {
+				writeSeries(dos, s, Collections.binarySearch(dict, s.tag), KIND_COUNT);
+			}
+			for (Series s : n.means.values()) {
+				writeSeries(dos, s, Collections.binarySearch(dict, s.tag), KIND_MEAN);
+			}
+		}
+		dos.flush();
+	}
+
+	private void writeSeries(DataOutput out, Series s, int tagId, byte kind) throws IOException {
+		writeVarLong(out, tagId);
+		out.writeByte(kind);
+		writeVarLong(out, s.times.length);
+		long prevT = start;
+		long prevX = 0;
+		for (int i = 0; i < s.times.length; i++) {
+			writeVarLong(out, zigzag(s.times[i] - prevT));
+			prevT = s.times[i];
+			// whole numbers (the usual case for counts): delta varint, with a 0 low bit
+			double x = s.sums[i];
+			long lx = (long) x;
+			if (lx == x && Math.abs(lx) < (1L << 52)) {
+				writeVarLong(out, zigzag(lx - prevX) << 1);
+				prevX = lx;
+			} else {
+				writeVarLong(out, 1);
+				out.writeDouble(x);
+			}
+			if (kind == KIND_MEAN) {
+				writeVarLong(out, s.ns[i]);
+				out.writeDouble(s.sumSqs[i]);
+				byte[] h = s.hists[i]==null? new byte[0] : s.hists[i].toBytes();
+				writeVarLong(out, h.length);
+				out.write(h);
+			}
+		}
+	}
+
+	/**
+	 * Does not close in
+	 */
+	public static DataLogSnapshot readFrom(InputStream in) throws IOException {
+		DataInputStream dis = new DataInputStream(in);
+		byte v = dis.readByte();
+		if (v != VERSION) throw new IOException("Unknown snapshot version: "+v);
+		long start = unzigzag(readVarLong(dis));
+		long end = start + readVarLong(dis);
+		long interval = readVarLong(dis);
+		int nTags = (int) readVarLong(dis);
+		String[] dict = new String[nTags];
+		for (int i = 0; i < nTags; i++) {
+			dict[i] = dis.readUTF();
+		}
+		int nNodes = (int) readVarLong(dis);
+		TreeMap<String, Node> nodes = new TreeMap<>();
+		for (int ni = 0; ni < nNodes; ni++) {
+			String node = dis.readUTF();
+			long version = unzigzag(readVarLong(dis));
+			TreeMap<String, Series> counts = new TreeMap<>();
+			TreeMap<String, Series> means = new TreeMap<>();
+			int nSeries = (int) readVarLong(dis);
+			for (int si = 0; si < nSeries; si++) {
+				String tag = dict[(int) readVarLong(dis)];
+				byte kind = dis.readByte();
+				Series s = readSeries(dis, tag, kind == KIND_MEAN, start);
+				(kind == KIND_MEAN? means : counts).put(tag, s);
+			}
+			nodes.put(node, new Node(node, version, counts, means));
+		}
+		return new DataLogSnapshot(start, end, interval, nodes);
+	}
+
+	private static Series readSeries(DataInput in, String tag, boolean mean, long start) throws IOException {
+		int size = (int) readVarLong(in);
+		long[] times = new long[size];
+		double[] sums = new double[size];
+		long[] ns = mean? new long[size] : null;
+		double[] sumSqs = mean? new double[size] : null;
+		LogHistogram1D[] hists = mean? new LogHistogram1D[size] : null;
+		long prevT = start;
+		long prevX = 0;
+		for (int i = 0; i < size; i++) {
+			prevT += unzigzag(readVarLong(in));
+			times[i] = prevT;
+			long vx = readVarLong(in);
+			if ((vx & 1) == 0) {
+				prevX += unzigzag(vx >>> 1);
+				sums[i] = prevX;
+			} else {
+				sums[i] = in.readDouble();
+			}
+			if (mean) {
+				ns[i] = readVarLong(in);
+				sumSqs[i] = in.readDouble();
+				int len = (int) readVarLong(in);
+				if (len > 0) {
+					byte[] h = new byte[len];
+					in.readFully(h);
+					hists[i] = LogHistogram1D.fromBytes(h);
+				}
+			}
+		}
+		return new Series(tag, times, sums, ns, sumSqs, hists);
+	}
+
+	static void writeVarLong(DataOutput out, long v) throws IOException {
+		while ((v & ~0x7FL) != 0) {
+			out.writeByte((int) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		out.writeByte((int) v);
+	}
+
+	static long readVarLong(DataInput in) throws IOException {
+		long v = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = in.readByte();
+			v |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) return v;
+		}
+		throw new IOException("Bad varint");
+	}
+
+	static long zigzag(long v) {
+		return (v << 1) ^ (v >> 63);
+	}
+
+	static long unzigzag(long v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if ( ! (obj instanceof DataLogSnapshot)) return false;
+		return Arrays.equals(toBytes(), ((DataLogSnapshot) obj).toBytes());
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(toBytes());
+	}
+
+	@Override
+	public String toString() {
+		return "DataLogSnapshot[" + getStart() + " to " + getEnd() + ", nodes=" + nodes.keySet() + "]";
+	}
+
+	/**
+	 * One node's data. Immutable.
+	 */
+	private static final class Node {
+		final String node;
+		final long version;
+		final TreeMap<String, Series> counts;
+		final TreeMap<String, Series> means;
+		/**
+		 * For tie-breaking
+		 */
+		final int hash;
+
+		Node(String node, long version, TreeMap<String, Series> counts, TreeMap<String, Series> means) {
+			this.node = node;
+			this.version = version;
+			this.counts = counts;
+			this.means = means;
+			int h = node.hashCode();
+			for (Collection<Series> ss : Arrays.asList(counts.values(), means.values())) {
+				for (Series s : ss) {
+					h = 31 * h + s.tag.hashCode();
+					h = 31 * h + Arrays.hashCode(s.times);
+					h = 31 * h + Arrays.hashCode(s.sums);
+				}
+			}
+			this.hash = h;
+		}
+	}
+
+	/**
+	 * One tag's buckets. Immutable (the arrays are not exposed).
+	 */
+	static final class Series {
+		final String tag;
+		final long[] times;
+		final double[] sums;
+		/**
+		 * null unless mean()
+		 */
+		final long[] ns;
+		/**
+		 * null unless mean()
+		 */
+		final double[] sumSqs;
+		/**
+		 * null unless mean(). Entries can be null.
+		 */
+		final LogHistogram1D[] hists;
+
+		Series(String tag, long[] times, double[] sums, long[] ns, double[] sumSqs, LogHistogram1D[] hists) {
+			this.tag = tag;
+			this.times = times;
+			this.sums = sums;
+			this.ns = ns;
+			this.sumSqs = sumSqs;
+			this.hists = hists;
+		}
+
+		/**
+		 * Copies the first slice.size entries
+		 */
+		static Series fromSlice(String tag, DataLogColumn.Slice slice) {
+			int n = slice.size;
+			return new Series(tag, Arrays.copyOf(slice.times, n), Arrays.copyOf(slice.sums, n),
+					slice.ns==null? null : Arrays.copyOf(slice.ns, n),
+					slice.sumSqs==null? null : Arrays.copyOf(slice.sumSqs, n),
+					slice.hists==null? null : Arrays.copyOf(slice.hists, n));
+		}
+	}
+}
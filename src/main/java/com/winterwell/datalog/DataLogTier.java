@@ -0,0 +1,226 @@
+package com.winterwell.datalog;
+
+import java.util.Arrays;
+
+import com.winterwell.maths.stats.distributions.d1.LogHistogram1D;
+
+/**
+ * A coarse roll-up of one {@link DataLogCell}, e.g. hourly or daily: per
+ * period, the sum, count, min and max of the fine buckets (plus sum-of-squares
+ * and the histogram for mean() cells).
+ * <p>
+ * Closed fine buckets are added as they are written to the cell's column, so
+ * each tier holds everything since its {@link #from} time. The compaction job
+ * ({@link InMemoryDataLog#compact(long)}) moves {@link #from} forward and drops
+ * what's before it -- readers use the next coarser tier for that period.
+ * <p>
+ * Thread-safety: synchronized (writes are once per fine bucket).
+ *
+ * @author daniel
+ */
+final class DataLogTier {
+
+	/**
+	 * The period, in millisecs
+	 */
+	final long size;
+
+	private final boolean moments;
+
+	private final int maxSize;
+
+	/**
+	 * Data before this has been dropped
+	 */
+	volatile long from = Long.MIN_VALUE;
+
+	private long[] times = new long[16];
+	private double[] sums = new double[16];
+	/**
+	 * The number of fine buckets, or for mean() cells, of samples
+	 */
+	private long[] ns = new long[16];
+	private double[] mins = new double[16];
+	private double[] maxs = new double[16];
+	/**
+	 * null unless moments
+	 */
+	private double[] sumSqs;
+	/**
+	 * null unless moments. Entries can be null.
+	 */
+	private LogHistogram1D[] hists;
+
+	/**
+	 * The entries are [start, end)
+	 */
+	private int start, end;
+
+	DataLogTier(long size, boolean moments, int maxSize) {
+		assert size > 0;
+		this.size = size;
+		this.moments = moments;
+		this.maxSize = maxSize;
+		if (moments) {
+			sumSqs = new double[16];
+			hists = new LogHistogram1D[16];
+		}
+	}
+
+	/**
+	 * Add a fine bucket (or part of one).
+	 * @param time The fine bucket's time
+	 * @param n 0 for an edit to an already-added bucket
+	 * @param x The bucket's value (its sum, or for moments its mean), for min & max. Ignored if n is 0.
+	 * @param sumSq Ignored unless moments
+	 * @param hist Can be null. Ignored unless moments. Not copied, so don't modify it after.
+	 */
+	synchronized void add(long time, double sum, long n, double x, double sumSq, LogHistogram1D hist) {
+		long t = time - Math.floorMod(time, size);
+		int i = lowerBound(t);
+		if (i == end || times[i] != t) {
+			if (end - start >= maxSize) {
+				// full: drop the oldest -- unless this is older still
+				if (i == start) return;
+				if (moments) hists[start] = null;
+				start++;
+			}
+			i = insert(i, t);
+		}
+		sums[i] += sum;
+		if (n > 0) {
+			ns[i] += n;
+			if (x < mins[i]) mins[i] = x;
+			if (x > maxs[i]) maxs[i] = x;
+		}
+		if (moments) {
+			sumSqs[i] += sumSq;
+			hists[i] = merge(hists[i], hist);
+		}
+	}
+
+	/**
+	 * Copy-on-write, as readers may hold the old one
+	 */
+	private static LogHistogram1D merge(LogHistogram1D a, LogHistogram1D b) {
+		if (a == null) return b;
+		if (b == null) return a;
+		LogHistogram1D m = new LogHistogram1D(a.getAccuracy(), LogHistogram1D.DEFAULT_MAX_BUCKETS);
+		m.merge(a);
+		m.merge(b);
+		return m;
+	}
+
+	private int insert(int i, long t) {
+		if (end == times.length) {
+			if (start > 0) {
+				// slide down
+				shift(start, 0, end - start);
+				i -= start;
+				end -= start;
+				start = 0;
+			} else {
+				int cap = times.length * 2;
+				times = Arrays.copyOf(times, cap);
+				sums = Arrays.copyOf(sums, cap);
+				ns = Arrays.copyOf(ns, cap);
+				mins = Arrays.copyOf(mins, cap);
+				maxs = Arrays.copyOf(maxs, cap);
+				if (moments) {
+					sumSqs = Arrays.copyOf(sumSqs, cap);
+					hists = Arrays.copyOf(hists, cap);
+				}
+			}
+		}
+		shift(i, i + 1, end - i);
+		end++;
+		times[i] = t;
+		sums[i] = 0;
+		ns[i] = 0;
+		mins[i] = Double.POSITIVE_INFINITY;
+		maxs[i] = Double.NEGATIVE_INFINITY;
+		if (moments) {
+			sumSqs[i] = 0;
+			hists[i] = null;
+		}
+		return i;
+	}
+
+	private void shift(int src, int dest, int len) {
+		if (len <= 0) return;
+		System.arraycopy(times, src, times, dest, len);
+		System.arraycopy(sums, src, sums, dest, len);
+		System.arraycopy(ns, src, ns, dest, len);
+		System.arraycopy(mins, src, mins, dest, len);
+		System.arraycopy(maxs, src, maxs, dest, len);
+		if (moments) {
+			System.arraycopy(sumSqs, src, sumSqs, dest, len);
+			System.arraycopy(hists, src, hists, dest, len);
+		}
+	}
+
+	/**
+	 * Drop the periods before time
+	 */
+	synchronized void removeBefore(long time) {
+		int i = lowerBound(time);
+		if (moments) Arrays.fill(hists, start, i, null);
+		start = i;
+		if (start == end) {
+			start = end = 0;
+		}
+	}
+
+	/**
+	 * @return the first index in [start, end) with times[i] >= t
+	 */
+	private int lowerBound(long t) {
+		int lo = start, hi = end;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (times[mid] < t) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo;
+	}
+
+	synchronized int size() {
+		return end - start;
+	}
+
+	/**
+	 * Copy out the periods in [lo, hi) onto the end of out.
+	 */
+	synchronized void copyTo(long lo, long hi, DataLogColumn.Slice out) {
+		int i0 = lowerBound(lo);
+		int len = lowerBound(hi) - i0;
+		if (len <= 0) return;
+		out.ensureCapacity(out.size + len);
+		System.arraycopy(times, i0, out.times, out.size, len);
+		System.arraycopy(sums, i0, out.sums, out.size, len);
+		if (out.ns != null && moments) {
+			System.arraycopy(ns, i0, out.ns, out.size, len);
+			System.arraycopy(sumSqs, i0, out.sumSqs, out.size, len);
+			System.arraycopy(hists, i0, out.hists, out.size, len);
+		}
+		out.size += len;
+	}
+
+	/**
+	 * Widen minMax to cover the fine buckets in the periods in [lo, hi)
+	 * @param minMax [min, max]
+	 */
+	synchronized void range(long lo, long hi, double[] minMax) {
+		int i1 = lowerBound(hi);
+		for (int i = lowerBound(lo); i < i1; i++) {
+			if (ns[i] == 0) continue;
+			if (mins[i] < minMax[0]) minMax[0] = mins[i];
+			if (maxs[i] > minMax[1]) minMax[1] = maxs[i];
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "DataLogTier[size=" + size + ", n=" + (end - start) + "]";
+	}
+}
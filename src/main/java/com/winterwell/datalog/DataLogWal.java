@@ -0,0 +1,688 @@
+package com.winterwell.datalog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import com.winterwell.maths.stats.distributions.d1.LogHistogram1D;
+import com.winterwell.utils.Utils;
+import com.winterwell.utils.containers.ArrayMap;
+import com.winterwell.utils.io.FileUtils;
+import com.winterwell.utils.log.Log;
+
+/**
+ * A write-ahead log for {@link InMemoryDataLog}, so counts survive the JVM dying.
+ * Switch on via {@link DataLogConfig#walDir}.
+ * <p>
+ * Files in the directory:
+ * <ul>
+ * <li>wal-N.seg: memory-mapped segments of fixed-size records:
+ * [op, tag-id, time, x]. Appending is a slot reservation (one atomic add) plus
+ * a few puts into the mapped buffer -- no locks, no system calls. The mapped
+ * pages belong to the OS, so they survive the process dying (though not the
+ * machine).
+ * <li>tags.dict: tag-id to tag. Written (and flushed) once per tag, before
+ * the tag's first record.
+ * <li>checkpoint.wal: earlier segments, compacted to one record per tag per
+ * bucket -- counts are summed (a set() restarts the sum, so the order of sets
+ * and counts is kept), mean() samples become (n, sum, sum of squares, and the
+ * quantile sketch if {@link DataLogConfig#meanSketchAccuracy} is on), and
+ * buckets older than {@link DataLogConfig#maxDataPoints} are dropped. So its
+ * size goes with tags x buckets, not with write volume. A background thread
+ * makes a new checkpoint every {@link DataLogConfig#walCheckpointInterval}: it
+ * switches writes to a new segment, waits for in-flight appends to the old
+ * one, then streams the checkpoint out (fsync + atomic rename) and deletes the
+ * old segments.
+ * </ul>
+ * {@link #replay(InMemoryDataLog)} loads the checkpoint, then the segments it
+ * does not cover.
+ *
+ * @author daniel
+ * @testedby DataLogWalTest
+ */
+final class DataLogWal implements Closeable {
+
+	private static final String LOGTAG = "DataLog.wal";
+
+	static final byte OP_COUNT = 1;
+	static final byte OP_SET = 2;
+	static final byte OP_MEAN = 3;
+	/**
+	 * Checkpoint only: compacted mean() samples
+	 */
+	static final byte OP_MEANS = 4;
+
+	/**
+	 * [op:1, pad:3, tag-id:4, time:8, x:8]
+	 */
+	static final int RECORD = 24;
+
+	/**
+	 * Checkpoint count & set records: [op:1, tag-id:4, bucket:8, x:8].
+	 * Mean records add [n:8, sumSq:8, sketch-length:4, sketch].
+	 */
+	static final int CHECKPOINT_RECORD = 21;
+
+	private static final int MAGIC = 0x44574132; // "DWA2"
+
+	/**
+	 * 0 for no quantile sketches
+	 */
+	private final double sketchAccuracy;
+
+	private final File dir;
+
+	private final long interval;
+
+	/**
+	 * How long compaction keeps buckets for
+	 */
+	private final long retention;
+
+	private final int segmentSlots;
+
+	private final long checkpointMillis;
+
+	private volatile Segment segment;
+
+	/**
+	 * Segments numbered below this are in the checkpoint
+	 */
+	private long checkpointed;
+
+	/**
+	 * One checkpoint at a time (separate from the WAL monitor, which appends need)
+	 */
+	private final Object checkpointLock = new Object();
+
+	/**
+	 * Held to switch segments (and seal the old one) -- so once you hold it, every
+	 * segment below the current one is sealed. Not the WAL monitor, which guards the dict.
+	 */
+	private final Object rollLock = new Object();
+
+	/**
+	 * id to tag. Guarded by this
+	 */
+	private final List<String> tagForId = new ArrayList<>();
+
+	/**
+	 * Guarded by this
+	 */
+	private DataOutputStream dict;
+
+	private final LongAdder appended = new LongAdder();
+	private final AtomicLong checkpoints = new AtomicLong();
+
+	private Thread checkpointer;
+
+	private volatile boolean closed;
+
+	/**
+	 * Opens (creating if need be) the WAL. Call {@link #replay(InMemoryDataLog)}, then {@link #start()}.
+	 */
+	DataLogWal(File dir, long interval, int maxDataPoints, int segmentSize, long checkpointMillis, double sketchAccuracy) {
+		this.dir = dir;
+		this.sketchAccuracy = sketchAccuracy;
+		this.interval = interval;
+		this.retention = interval * Math.max(1, maxDataPoints);
+		this.segmentSlots = Math.max(1, segmentSize / RECORD);
+		this.checkpointMillis = checkpointMillis;
+		dir.mkdirs();
+		if ( ! dir.isDirectory()) {
+			throw new IllegalStateException("Cannot make WAL dir "+dir);
+		}
+	}
+
+	/**
+	 * Load the checkpoint and segments into dl. The records are applied directly
+	 * (not re-logged). Also assigns the tag-ids to dl's cells.
+	 */
+	synchronized void replay(InMemoryDataLog dl) throws IOException {
+		readDict(dl);
+		long n = 0;
+		File cp = new File(dir, "checkpoint.wal");
+		if (cp.isFile()) {
+			try (DataInputStream in = openCheckpoint(cp)) {
+				checkpointed = in.readLong();
+				n += replayCheckpoint(in, dl);
+			}
+		}
+		long last = checkpointed - 1;
+		for (File f : listSegments()) {
+			long num = segmentNumber(f);
+			last = Math.max(last, num);
+			if (num < checkpointed) {
+				FileUtils.delete(f); // left over from a checkpoint
+				continue;
+			}
+			try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+				ByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+				n += replay2(buf, dl);
+			}
+		}
+		segment = new Segment(last + 1);
+		if (n > 0) Log.i(LOGTAG, "Replayed "+n+" records from "+dir);
+	}
+
+	private long replay2(ByteBuffer buf, InMemoryDataLog dl) {
+		long n = 0;
+		long now = System.currentTimeMillis();
+		for (int pos = 0; pos + RECORD <= buf.limit(); pos += RECORD) {
+			byte op = buf.get(pos);
+			// 0 = never written (or the process died mid-append)
+			if (op == 0) continue;
+			int id = buf.getInt(pos + 4);
+			long time = buf.getLong(pos + 8);
+			double x = buf.getDouble(pos + 16);
+			if (id < 0 || id >= tagForId.size() || time > now) {
+				continue; // torn, or a clock jump
+			}
+			String tag = tagForId.get(id);
+			switch(op) {
+			case OP_COUNT:
+				for (DataLogCell c : dl.cells(tag)) {
+					c.addAt(time, x);
+				}
+				break;
+			case OP_SET:
+				dl.cell(tag).setAt(time, x);
+				break;
+			case OP_MEAN:
+				dl.meanCell(tag).addSampleAt(time, x);
+				break;
+			default:
+				continue;
+			}
+			n++;
+		}
+		return n;
+	}
+
+	private DataInputStream openCheckpoint(File cp) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cp), 1 << 16));
+		if (in.readInt() != MAGIC) {
+			in.close();
+			throw new IOException("Not a checkpoint: "+cp);
+		}
+		return in;
+	}
+
+	private long replayCheckpoint(DataInputStream in, InMemoryDataLog dl) throws IOException {
+		long n = 0;
+		Agg a = new Agg();
+		while (readRecord(in, a)) {
+			if (a.id < 0 || a.id >= tagForId.size()) {
+				throw new IOException("Bad tag-id "+a.id+" in checkpoint");
+			}
+			String tag = tagForId.get(a.id);
+			if (a.op == OP_MEANS) {
+				dl.meanCell(tag).addSamplesAt(a.bucket, a.n, a.x, a.sumSq, a.hist);
+			} else if (a.op == OP_SET) {
+				dl.cell(tag).setAt(a.bucket, a.x);
+			} else {
+				for (DataLogCell c : dl.cells(tag)) {
+					c.addAt(a.bucket, a.x);
+				}
+			}
+			n++;
+		}
+		return n;
+	}
+
+	private void readDict(InMemoryDataLog dl) throws IOException {
+		File f = new File(dir, "tags.dict");
+		if (f.isFile()) {
+			byte[] bytes = Files.readAllBytes(f.toPath());
+			ByteArrayInputStream bin = new ByteArrayInputStream(bytes);
+			DataInputStream in = new DataInputStream(bin);
+			int good = 0;
+			try {
+				while (bin.available() > 0) {
+					int id = in.readInt();
+					byte kind = in.readByte();
+					String tag = in.readUTF();
+					if (id != tagForId.size()) {
+						throw new IOException("Bad tag-id "+id+" in "+f);
+					}
+					tagForId.add(tag);
+					DataLogCell c = kind==OP_MEAN? dl.meanCell(tag) : dl.cell(tag);
+					c.walId = id;
+					good = bytes.length - bin.available();
+				}
+			} catch (EOFException ex) {
+				// the process died mid-entry: drop it
+				try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+					raf.setLength(good);
+				}
+			}
+		}
+		dict = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f, true)));
+	}
+
+	/**
+	 * Start the background checkpointer
+	 */
+	void start() {
+		checkpointer = new Thread(this::run, LOGTAG);
+		checkpointer.setDaemon(true);
+		checkpointer.start();
+	}
+
+	/**
+	 * The hot path
+	 * @param op OP_COUNT, OP_SET or OP_MEAN
+	 * @param cell The leaf cell (rollups are redone on replay)
+	 * @param time epoch millisecs
+	 */
+	void append(byte op, DataLogCell cell, long time, double x) {
+		int id = cell.walId;
+		if (id < 0) id = newId(cell, op==OP_MEAN? OP_MEAN : OP_COUNT);
+		while (true) {
+			Segment seg = segment;
+			long slot = seg.next.getAndIncrement();
+			if (slot < segmentSlots) {
+				int pos = (int) (slot * RECORD);
+				MappedByteBuffer buf = seg.buf;
+				buf.putInt(pos + 4, id);
+				buf.putLong(pos + 8, time);
+				buf.putDouble(pos + 16, x);
+				// op last, so a half-written record reads as empty
+				buf.put(pos, op);
+				seg.done.increment();
+				appended.increment();
+				return;
+			}
+			if (closed) return;
+			roll(seg);
+		}
+	}
+
+	private synchronized int newId(DataLogCell cell, byte kind) {
+		if (cell.walId >= 0) return cell.walId;
+		int id = tagForId.size();
+		try {
+			dict.writeInt(id);
+			dict.writeByte(kind);
+			dict.writeUTF(cell.tag);
+			dict.flush();
+		} catch (IOException ex) {
+			throw Utils.runtime(ex);
+		}
+		tagForId.add(cell.tag);
+		cell.walId = id;
+		return id;
+	}
+
+	/**
+	 * Switch to a new segment (if seg is still the current one). The new file is
+	 * made and mapped before taking the roll lock, so appends to other segments
+	 * and new tags don't wait on the file-system. (Racing rollers may map the same
+	 * file -- the losers' mappings are just dropped.)
+	 * @return the closed segment, or null if someone else rolled it
+	 */
+	private Segment roll(Segment seg) {
+		if (segment != seg) return null;
+		Segment next;
+		try {
+			next = new Segment(seg.number + 1);
+		} catch (IOException ex) {
+			throw Utils.runtime(ex);
+		}
+		synchronized (rollLock) {
+			if (segment != seg) return null;
+			segment = next;
+			seg.seal(segmentSlots);
+			return seg;
+		}
+	}
+
+	private void run() {
+		while ( ! closed) {
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(checkpointMillis));
+			if (closed) break;
+			try {
+				checkpoint();
+			} catch (Throwable ex) {
+				Log.e(LOGTAG, ex);
+			}
+		}
+	}
+
+	/**
+	 * Compact all the segments before the current one (and the old checkpoint) into a new checkpoint.
+	 * <p>
+	 * The WAL monitor is only held to roll the current segment. Closed segments
+	 * don't change, so the compacting and writing run without blocking appends.
+	 */
+	void checkpoint() throws IOException {
+		synchronized (checkpointLock) {
+			checkpoint2();
+		}
+	}
+
+	private void checkpoint2() throws IOException {
+		Segment cur = segment;
+		if (cur.next.get() == 0 && listSegments().size() <= 1) {
+			return; // nothing new
+		}
+		roll(cur);
+		long upto;
+		synchronized (rollLock) {
+			// every segment below this has been sealed (roll seals under the lock)
+			upto = segment.number;
+		}
+		// read the old checkpoint + the closed segments, in order
+		LinkedHashMap<Key, Agg> agg = new LinkedHashMap<>();
+		long cutoff = System.currentTimeMillis() - retention;
+		File cp = new File(dir, "checkpoint.wal");
+		if (cp.isFile()) {
+			try (DataInputStream in = openCheckpoint(cp)) {
+				in.readLong();
+				Agg a = new Agg();
+				while (readRecord(in, a)) {
+					if (a.bucket < cutoff) continue;
+					Key k = new Key(a.op == OP_MEANS, a.id, a.bucket);
+					Agg b = agg.get(k);
+					if (b == null) {
+						agg.put(k, a);
+						a = new Agg();
+					} else {
+						b.merge(a);
+					}
+				}
+			}
+		}
+		List<File> done = new ArrayList<>();
+		for (File f : listSegments()) {
+			if (segmentNumber(f) >= upto) continue;
+			try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+				ByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+				compact(buf, cutoff, agg);
+			}
+			done.add(f);
+		}
+		// write
+		File tmp = new File(dir, "checkpoint.tmp");
+		FileOutputStream fout = new FileOutputStream(tmp);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fout, 1 << 16));
+			out.writeInt(MAGIC);
+			out.writeLong(upto);
+			for (Agg a : agg.values()) {
+				writeRecord(out, a);
+			}
+			out.flush();
+			fout.getChannel().force(true);
+		} finally {
+			FileUtils.close(fout);
+		}
+		Files.move(tmp.toPath(), cp.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		synchronized (this) {
+			checkpointed = upto;
+		}
+		for (File f : done) {
+			FileUtils.delete(f);
+		}
+		checkpoints.incrementAndGet();
+	}
+
+	private void compact(ByteBuffer buf, long cutoff, LinkedHashMap<Key, Agg> agg) {
+		for (int pos = 0; pos + RECORD <= buf.limit(); pos += RECORD) {
+			byte op = buf.get(pos);
+			if (op == 0) continue;
+			int id = buf.getInt(pos + 4);
+			long time = buf.getLong(pos + 8);
+			double x = buf.getDouble(pos + 16);
+			if (time < cutoff) continue;
+			long bucket = time - Math.floorMod(time, interval);
+			Key k = new Key(op == OP_MEAN, id, bucket);
+			Agg a = agg.get(k);
+			if (a == null) {
+				a = new Agg();
+				a.op = op == OP_MEAN? OP_MEANS : OP_COUNT;
+				a.id = id;
+				a.bucket = bucket;
+				agg.put(k, a);
+			}
+			switch(op) {
+			case OP_COUNT:
+				a.x += x;
+				break;
+			case OP_SET:
+				// restart the sum: later counts add to it
+				a.op = OP_SET;
+				a.x = x;
+				break;
+			case OP_MEAN:
+				a.n++;
+				a.x += x;
+				a.sumSq += x*x;
+				if (sketchAccuracy > 0) {
+					if (a.hist == null) a.hist = new LogHistogram1D(sketchAccuracy, LogHistogram1D.DEFAULT_MAX_BUCKETS);
+					a.hist.count(x);
+				}
+				break;
+			}
+		}
+	}
+
+	/**
+	 * @return false at the end
+	 */
+	private static boolean readRecord(DataInputStream in, Agg a) throws IOException {
+		int op = in.read();
+		if (op < 0) return false;
+		a.op = (byte) op;
+		a.id = in.readInt();
+		a.bucket = in.readLong();
+		a.x = in.readDouble();
+		a.n = 0;
+		a.sumSq = 0;
+		a.hist = null;
+		if (op == OP_MEANS) {
+			a.n = in.readLong();
+			a.sumSq = in.readDouble();
+			int len = in.readInt();
+			if (len > 0) {
+				byte[] bytes = new byte[len];
+				in.readFully(bytes);
+				a.hist = LogHistogram1D.fromBytes(bytes);
+			}
+		}
+		return true;
+	}
+
+	private static void writeRecord(DataOutputStream out, Agg a) throws IOException {
+		out.writeByte(a.op);
+		out.writeInt(a.id);
+		out.writeLong(a.bucket);
+		out.writeDouble(a.x);
+		if (a.op != OP_MEANS) return;
+		out.writeLong(a.n);
+		out.writeDouble(a.sumSq);
+		if (a.hist == null) {
+			out.writeInt(0);
+		} else {
+			byte[] bytes = a.hist.toBytes();
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	private List<File> listSegments() {
+		File[] fs = dir.listFiles((d, name) -> name.startsWith("wal-") && name.endsWith(".seg"));
+		if (fs == null) return new ArrayList<>();
+		Arrays.sort(fs, (a, b) -> Long.compare(segmentNumber(a), segmentNumber(b)));
+		return Arrays.asList(fs);
+	}
+
+	private static long segmentNumber(File f) {
+		String name = f.getName();
+		return Long.parseLong(name.substring(4, name.length() - 4));
+	}
+
+	/**
+	 * @return appended, checkpoints, segment, tags
+	 */
+	ArrayMap<String, Object> getStats() {
+		return new ArrayMap(
+				"appended", appended.sum(),
+				"checkpoints", checkpoints.get(),
+				"segment", segment==null? -1 : segment.number,
+				"tags", tagForId.size()
+				);
+	}
+
+	/**
+	 * Stop the checkpointer. The mapped segment is left for the OS to write back.
+	 */
+	@Override
+	public void close() {
+		if (closed) return;
+		closed = true;
+		if (checkpointer != null) {
+			LockSupport.unpark(checkpointer);
+			try {
+				checkpointer.join(TimeUnit.SECONDS.toMillis(10));
+			} catch (InterruptedException e) {
+				// oh well
+			}
+		}
+		synchronized (rollLock) {
+			Segment seg = segment;
+			if (seg != null) {
+				seg.seal(segmentSlots);
+				seg.buf.force();
+			}
+		}
+		synchronized (this) {
+			FileUtils.close(dict);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "DataLogWal[" + dir + "]";
+	}
+
+	private final class Segment {
+		final long number;
+		final MappedByteBuffer buf;
+		/**
+		 * The next slot to hand out. Set very high when sealed.
+		 */
+		final AtomicLong next = new AtomicLong();
+		/**
+		 * Completed appends. Only goes up, so a sum() equal to the target means they're all done.
+		 */
+		final LongAdder done = new LongAdder();
+
+		Segment(long number) throws IOException {
+			this.number = number;
+			File f = new File(dir, String.format("wal-%012d.seg", number));
+			try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.READ, StandardOpenOption.WRITE))
+			{
+				buf = ch.map(FileChannel.MapMode.READ_WRITE, 0, (long) segmentSlots * RECORD);
+			}
+		}
+
+		/**
+		 * Stop new appends, and wait for the in-flight ones
+		 */
+		void seal(int slots) {
+			long reserved = Math.min(next.getAndSet(Long.MAX_VALUE / 2), slots);
+			while (done.sum() < reserved) {
+				Thread.onSpinWait();
+			}
+		}
+	}
+
+	private static final class Key {
+		final boolean mean;
+		final int id;
+		final long bucket;
+
+		Key(boolean mean, int id, long bucket) {
+			this.mean = mean;
+			this.id = id;
+			this.bucket = bucket;
+		}
+
+		@Override
+		public int hashCode() {
+			return (Long.hashCode(bucket) * 31 + id) * 31 + (mean? 1 : 0);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if ( ! (obj instanceof Key)) return false;
+			Key k = (Key) obj;
+			return k.mean == mean && k.id == id && k.bucket == bucket;
+		}
+	}
+
+	/**
+	 * One checkpoint record: a tag's bucket, compacted
+	 */
+	private static final class Agg {
+		/**
+		 * OP_COUNT, OP_SET (a set, then maybe counts on top) or OP_MEANS
+		 */
+		byte op;
+		int id;
+		long bucket;
+		/**
+		 * The count, set value, or sum of samples
+		 */
+		double x;
+		long n;
+		double sumSq;
+		LogHistogram1D hist;
+
+		/**
+		 * Add a later record for the same bucket
+		 */
+		void merge(Agg later) {
+			if (later.op == OP_SET) {
+				op = OP_SET;
+				x = later.x;
+				return;
+			}
+			x += later.x;
+			n += later.n;
+			sumSq += later.sumSq;
+			if (later.hist != null) {
+				if (hist == null) {
+					hist = later.hist;
+				} else {
+					hist.merge(later.hist);
+				}
+			}
+		}
+	}
+}
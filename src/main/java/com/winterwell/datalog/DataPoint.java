@@ -0,0 +1,47 @@
+package com.winterwell.datalog;
+
+import com.winterwell.utils.containers.ArrayMap;
+import com.winterwell.utils.time.Time;
+import com.winterwell.utils.web.IHasJson;
+
+/**
+ * One bucket of data, as returned by {@link InMemoryDataLog#getData(Time, Time, DataLog.KInterpolate, com.winterwell.utils.time.Dt, String...)}
+ *
+ * @author daniel
+ */
+public final class DataPoint implements IHasJson {
+
+	/**
+	 * Epoch millisecs. The start of the bucket.
+	 */
+	public final long time;
+	public final double x;
+	/**
+	 * Can be null (e.g. for a single-tag query, where the caller knows the tag)
+	 */
+	public final String tag;
+
+	public DataPoint(long time, double x, String tag) {
+		this.time = time;
+		this.x = x;
+		this.tag = tag;
+	}
+
+	public Time getTime() {
+		return new Time(time);
+	}
+
+	public double getX() {
+		return x;
+	}
+
+	@Override
+	public Object toJson2() {
+		return new ArrayMap("time", time, "x", x, "tag", tag);
+	}
+
+	@Override
+	public String toString() {
+		return (tag==null? "" : tag+" ")+getTime()+": "+x;
+	}
+}
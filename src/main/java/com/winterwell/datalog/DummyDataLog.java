@@ -5,9 +5,6 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
 import java.util.regex.Pattern;
 
 import com.winterwell.datalog.DataLog.KInterpolate;
@@ -181,54 +178,3 @@ class DummyDataLog implements IDataLog {
 		
 	}
 }
-
-class DummyDataLogAdmin implements IDataLogAdmin {
-//	@Override
-	public void registerEventType(CharSequence dataspace, String eventType) {		
-	}
-
-	@Override
-	public void registerDataspace(CharSequence dataspace) {		
-	}	
-}
-
-class DummyFuture<V> implements IDataLogReq<V> {
-
-	final V v;
-
-	public DummyFuture(V v) {
-		this.v = v;
-	}
-
-	@Override
-	public boolean cancel(boolean mayInterruptIfRunning) {
-		return false;
-	}
-
-	@Override
-	public boolean isCancelled() {
-		return false;
-	}
-
-	@Override
-	public boolean isDone() {
-		return true;
-	}
-
-	@Override
-	public V get(long timeout, TimeUnit unit) throws InterruptedException,
-			ExecutionException, TimeoutException {
-		return get();
-	}
-
-	@Override
-	public V get() throws RuntimeException {
-		return v;
-	}
-
-	@Override
-	public IDataLogReq<V> setServer(String server) {
-		return this;
-	}
-
-}
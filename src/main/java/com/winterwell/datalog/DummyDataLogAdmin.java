@@ -0,0 +1,11 @@
+package com.winterwell.datalog;
+
+class DummyDataLogAdmin implements IDataLogAdmin {
+//	@Override
+	public void registerEventType(CharSequence dataspace, String eventType) {		
+	}
+
+	@Override
+	public void registerDataspace(CharSequence dataspace) {		
+	}	
+}
@@ -0,0 +1,46 @@
+package com.winterwell.datalog;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+class DummyFuture<V> implements IDataLogReq<V> {
+
+	final V v;
+
+	public DummyFuture(V v) {
+		this.v = v;
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return false;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return false;
+	}
+
+	@Override
+	public boolean isDone() {
+		return true;
+	}
+
+	@Override
+	public V get(long timeout, TimeUnit unit) throws InterruptedException,
+			ExecutionException, TimeoutException {
+		return get();
+	}
+
+	@Override
+	public V get() throws RuntimeException {
+		return v;
+	}
+
+	@Override
+	public IDataLogReq<V> setServer(String server) {
+		return this;
+	}
+
+}
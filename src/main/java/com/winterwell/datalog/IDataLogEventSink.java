@@ -0,0 +1,50 @@
+package com.winterwell.datalog;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Where {@link DataLogEventQueue} sends batches of events.
+ * 
+ * @author daniel
+ */
+public interface IDataLogEventSink extends Closeable {
+
+	/**
+	 * Called from a single background thread.
+	 * @param batch never empty. Do not keep a reference -- the list is re-used.
+	 * @throws IOException
+	 */
+	void write(List<DataLogEvent> batch) throws IOException;
+
+	/**
+	 * Default: does nothing
+	 */
+	@Override
+	default void close() throws IOException {
+	}
+	
+	/**
+	 * The default sink: pass events on to an IDataLog (e.g. for saving to ES).
+	 */
+	public static final class ToDataLog implements IDataLogEventSink {
+		private final IDataLog dataLog;
+
+		public ToDataLog(IDataLog dataLog) {
+			this.dataLog = dataLog;
+		}
+
+		@Override
+		public void write(List<DataLogEvent> batch) {
+			for (DataLogEvent e : batch) {
+				dataLog.count(e);
+			}
+		}
+		
+		@Override
+		public String toString() {
+			return "ToDataLog["+dataLog+"]";
+		}
+	}
+}
@@ -0,0 +1,609 @@
+package com.winterwell.datalog;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Pattern;
+
+import com.winterwell.datalog.DataLog.KInterpolate;
+import com.winterwell.datalog.DataLogCell.Bucket;
+import com.winterwell.maths.stats.distributions.d1.IDistribution1D;
+import com.winterwell.maths.stats.distributions.d1.LogHistogram1D;
+import com.winterwell.maths.stats.distributions.d1.MeanVar1D;
+import com.winterwell.utils.Utils;
+import com.winterwell.utils.containers.ArrayMap;
+import com.winterwell.utils.io.FileUtils;
+import com.winterwell.utils.log.Log;
+import com.winterwell.utils.threads.IFuture;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.TUnit;
+import com.winterwell.utils.time.Time;
+
+/**
+ * An in-JVM DataLog. Used by {@link DataLog#init(DataLogConfig)} if the
+ * storage-backed DataLogImpl is not on the classpath.
+ * <p>
+ * Each tag gets a {@link DataLogCell}, with one striped adder per
+ * {@link DataLogConfig#interval} bucket. Writes take no locks: the cost is the
+ * tag lookup plus an adder update. Closed buckets are kept in memory (at least
+ * {@link DataLogConfig#maxDataPoints} per tag) in a columnar
+ * {@link DataLogColumn}. Nothing is saved to disk -- unless
+ * {@link DataLogConfig#walDir} is set, in which case writes also go to a
+ * {@link DataLogWal}, which is replayed by {@link #init()}.
+ * <p>
+ * Long-term data: each tag also keeps hourly and daily {@link DataLogTier}s.
+ * A background job ({@link #compact(long)}) drops fine buckets older than
+ * {@link DataLogConfig#fineRetention}, and hourly ones older than
+ * {@link DataLogConfig#hourlyRetention} -- queries then read those periods from
+ * the next tier up. getData() uses the coarsest tier that fits the bucket size.
+ * <p>
+ * getData() returns a {@link TimeSeries}, which is backed by primitive arrays.
+ *
+ * @author daniel
+ * @testedby InMemoryDataLogTest
+ */
+public class InMemoryDataLog implements IDataLog {
+
+	private final DataLogConfig config;
+
+	private final long interval;
+
+	/**
+	 * tag to count/set cell. Each cell knows its parent cells, for rollups.
+	 */
+	final TagIndex<DataLogCell> tags;
+
+	/**
+	 * tag to mean cell. Separate from cells as it is a mistake to mix count() and mean()
+	 */
+	final ConcurrentHashMap<String, DataLogCell> means = new ConcurrentHashMap<>();
+
+	private final Map<String, IListenDataLog> listeners = new ConcurrentHashMap<>();
+
+	/**
+	 * null unless {@link DataLogConfig#walDir} is set
+	 */
+	volatile DataLogWal wal;
+
+	/**
+	 * How long the column, then each tier (bar the last) keeps data for. Empty if there are no tiers.
+	 */
+	private final long[] retention;
+
+	private Thread compactor;
+
+	/**
+	 * The last snapshot version, so versions always go up
+	 */
+	private final AtomicLong snapshotVersion = new AtomicLong();
+
+	private volatile boolean closed;
+
+	public InMemoryDataLog(DataLogConfig config) {
+		this.config = config;
+		this.interval = config.interval.getMillisecs();
+		assert interval > 0 : config.interval;
+		this.tags = new TagIndex<>((tag, parent) -> new DataLogCell(tag, parent, interval, false, 0, config.maxDataPoints, newTiers(false)));
+		int nTiers = config.fineRetention==null? 0
+				: (interval < TUnit.HOUR.millisecs? 1 : 0) + (interval < TUnit.DAY.millisecs? 1 : 0);
+		retention = new long[nTiers];
+		if (nTiers > 0) retention[0] = config.fineRetention.getMillisecs();
+		if (nTiers > 1) retention[1] = config.hourlyRetention==null? 0 : config.hourlyRetention.getMillisecs();
+	}
+
+	/**
+	 * @return hourly and daily tiers, if they're coarser than the interval. Empty if {@link DataLogConfig#fineRetention} is off.
+	 */
+	private DataLogTier[] newTiers(boolean moments) {
+		if (config.fineRetention == null) return new DataLogTier[0];
+		List<DataLogTier> ts = new ArrayList<>(2);
+		if (interval < TUnit.HOUR.millisecs) ts.add(new DataLogTier(TUnit.HOUR.millisecs, moments, config.maxDataPoints));
+		if (interval < TUnit.DAY.millisecs) ts.add(new DataLogTier(TUnit.DAY.millisecs, moments, config.maxDataPoints));
+		return ts.toArray(new DataLogTier[ts.size()]);
+	}
+
+	@Override
+	public void init() {
+		if (retention.length > 0 && compactor == null) {
+			compactor = new Thread(this::runCompactor, "DataLog.compact");
+			compactor.setDaemon(true);
+			compactor.start();
+		}
+		if (config.walDir == null || wal != null) return;
+		DataLogWal w = new DataLogWal(config.walDir, interval, config.maxDataPoints,
+				config.walSegmentSize, config.walCheckpointInterval.getMillisecs(), config.meanSketchAccuracy);
+		try {
+			w.replay(this);
+		} catch (IOException ex) {
+			throw Utils.runtime(ex);
+		}
+		w.start();
+		wal = w;
+	}
+
+	private void runCompactor() {
+		long sleep = Math.min(interval, TUnit.HOUR.millisecs);
+		while ( ! closed) {
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(sleep));
+			if (closed) break;
+			try {
+				compact(System.currentTimeMillis());
+			} catch (Throwable ex) {
+				Log.e("DataLog.compact", ex);
+			}
+		}
+	}
+
+	/**
+	 * Drop data older than its retention period (the tiers still have it).
+	 * Called by the background job.
+	 * @param now epoch millisecs
+	 */
+	void compact(long now) {
+		if (retention.length == 0) return;
+		for (TagIndex.Node<DataLogCell> n : tags.nodes()) {
+			n.value.compact(now, retention);
+		}
+		for (DataLogCell c : means.values()) {
+			c.compact(now, retention);
+		}
+	}
+
+	/**
+	 * @return WAL stats, or null if there is no WAL
+	 */
+	public ArrayMap<String, Object> getWalStats() {
+		DataLogWal w = wal;
+		return w==null? null : w.getStats();
+	}
+
+	DataLogCell cell(String tag) {
+		return tags.getOrCreate(tag).value;
+	}
+
+	DataLogCell meanCell(String tag) {
+		DataLogCell c = means.get(tag);
+		if (c != null) return c;
+		return means.computeIfAbsent(tag, t -> new DataLogCell(t, null, interval, true, config.meanSketchAccuracy, config.maxDataPoints, newTiers(true)));
+	}
+
+	@Override
+	public void count(double dx, Object... tagBits) {
+		String tag = DataLog.tag(tagBits);
+		count(cells(tag), dx, System.currentTimeMillis());
+	}
+
+	/**
+	 * @param tag
+	 * @return the cells which a count on tag goes to: for a/b/c, that's [a, a/b, a/b/c]
+	 */
+	DataLogCell[] cells(String tag) {
+		return cell(tag).rollup;
+	}
+
+	/**
+	 * The write path for count (also used by {@link DataLogCounter}).
+	 */
+	void count(DataLogCell[] cs, double dx, long now) {
+		DataLogWal w = wal;
+		if (w != null) w.append(DataLogWal.OP_COUNT, cs[cs.length - 1], now, dx);
+		boolean listening = ! listeners.isEmpty();
+		for (DataLogCell c : cs) {
+			Bucket b = c.bucket(now);
+			b.add(dx);
+			if (listening) {
+				IListenDataLog l = listeners.get(c.tag);
+				if (l != null) l.handleCount(b.get(), dx, c.tag);
+			}
+		}
+	}
+
+	@Override
+	public void count(Time at, double dx, Object... tagBits) {
+		count(DataLog.tag(tagBits), at, dx);
+	}
+
+	/**
+	 * count() for an already-joined tag
+	 * @param at null for now
+	 */
+	void count(String tag, Time at, double dx) {
+		if (at == null) {
+			count(cells(tag), dx, System.currentTimeMillis());
+			return;
+		}
+		DataLogCell[] cs = cells(tag);
+		long t = at.getTime();
+		DataLogWal w = wal;
+		if (w != null) w.append(DataLogWal.OP_COUNT, cs[cs.length - 1], t, dx);
+		boolean listening = ! listeners.isEmpty();
+		for (DataLogCell c : cs) {
+			c.addAt(t, dx);
+			if (listening) {
+				IListenDataLog l = listeners.get(c.tag);
+				if (l != null) l.handleCount(c.getTotalAt(t), dx, c.tag);
+			}
+		}
+	}
+
+	/**
+	 * Counts event.count against dataspace/event-type, for each event-type.
+	 * The event's properties are not stored.
+	 */
+	@Override
+	public void count(DataLogEvent event) {
+		for (String evt : event.getEventType()) {
+			count(event.count, event.dataspace, evt);
+		}
+	}
+
+	@Override
+	public void setEventCount(DataLogEvent event) {
+		for (String evt : event.getEventType()) {
+			set(event.count, event.dataspace, evt);
+		}
+	}
+
+	@Override
+	public void set(double x, Object... tagBits) {
+		String tag = DataLog.tag(tagBits);
+		set(cell(tag), x, System.currentTimeMillis());
+	}
+
+	/**
+	 * The write path for set (also used by {@link DataLogCounter}).
+	 */
+	void set(DataLogCell c, double x, long now) {
+		DataLogWal w = wal;
+		if (w != null) w.append(DataLogWal.OP_SET, c, now, x);
+		c.bucket(now).set(x);
+	}
+
+	@Override
+	public void set(Time at, double x, Object... tagBits) {
+		String tag = DataLog.tag(tagBits);
+		DataLogCell c = cell(tag);
+		DataLogWal w = wal;
+		if (w != null) w.append(DataLogWal.OP_SET, c, at.getTime(), x);
+		c.setAt(at.getTime(), x);
+	}
+
+	@Override
+	public void mean(double x, Object... tagBits) {
+		String tag = DataLog.tag(tagBits);
+		mean(meanCell(tag), x, System.currentTimeMillis());
+	}
+
+	/**
+	 * The write path for mean (also used by {@link DataLogCounter}).
+	 */
+	void mean(DataLogCell mc, double x, long now) {
+		DataLogWal w = wal;
+		if (w != null) w.append(DataLogWal.OP_MEAN, mc, now, x);
+		mc.bucket(now).addSample(x);
+	}
+
+	@Override
+	public MeanRate getMean(String... tagBits) {
+		DataLogCell c = means.get(DataLog.tag((Object[]) tagBits));
+		if (c == null) return null;
+		Bucket b = c.getLive(System.currentTimeMillis());
+		if (b == null) return null;
+		return new MeanRate(b.getDistribution(), config.interval);
+	}
+
+	@Override
+	public IFuture<MeanRate> getMean(Time start, Time end, String... tagBits) {
+		DataLogCell c = means.get(DataLog.tag((Object[]) tagBits));
+		if (c == null) return new DummyFuture<>(null);
+		DataLogColumn.Slice slice = c.getSlice(start.getTime(), end.getTime());
+		long n = 0;
+		double sum = 0, sumSq = 0;
+		LogHistogram1D hist = null;
+		boolean allHists = true;
+		for (int i=0; i<slice.size; i++) {
+			n += slice.ns[i];
+			sum += slice.sums[i];
+			sumSq += slice.sumSqs[i];
+			LogHistogram1D h = slice.hists[i];
+			if (h == null) {
+				allHists = allHists && slice.ns[i] == 0;
+				continue;
+			}
+			if (hist == null) hist = new LogHistogram1D(h.getAccuracy(), LogHistogram1D.DEFAULT_MAX_BUCKETS);
+			hist.merge(h);
+		}
+		// if any bucket lacks a histogram (e.g. sketching was off), fall back to mean & var
+		IDistribution1D dist = hist != null && allHists? hist : MeanVar1D.fromSums(n, sum, sumSq);
+		return new DummyFuture<>(new MeanRate(dist, start.dt(end)));
+	}
+
+	@Override
+	public Rate get(String... tagBits) {
+		String tag = DataLog.tag((Object[]) tagBits);
+		DataLogCell c = tags.getValue(tag);
+		Bucket b = c==null? null : c.getLive(System.currentTimeMillis());
+		if (b == null) return Rate.ZERO(tag);
+		return new Rate(b.get(), config.interval, tag);
+	}
+
+	@Override
+	public Dt getPeriod() {
+		return config.interval;
+	}
+
+	@Override
+	public Set<String> getLive() {
+		long now = System.currentTimeMillis();
+		Set<String> live = new HashSet<>();
+		for (TagIndex.Node<DataLogCell> n : tags.nodes()) {
+			DataLogCell c = n.value;
+			Bucket b = c.getLive(now);
+			if (b != null && b.get() != 0) live.add(c.tag);
+		}
+		for (DataLogCell c : means.values()) {
+			Bucket b = c.getLive(now);
+			if (b != null && b.n.sum() != 0) live.add(c.tag);
+		}
+		return live;
+	}
+
+	@Override
+	public IDataLogReq<Double> getTotal(Time start, Time end, String... tagBits) {
+		DataLogCell c = tags.getValue(DataLog.tag((Object[]) tagBits));
+		if (c == null) return new DummyFuture<>(0.0);
+		long s = start==null? Long.MIN_VALUE : start.getTime();
+		long e = end==null? Long.MAX_VALUE : end.getTime();
+		DataLogColumn.Slice slice = c.getSlice(s, e);
+		double total = 0;
+		for (int i=0; i<slice.size; i++) {
+			total += slice.sums[i];
+		}
+		return new DummyFuture<>(total);
+	}
+
+	@Override
+	public IFuture<List<DataPoint>> getData(Time start, Time end, KInterpolate fn, Dt bucketSize, String... tagBits) {
+		DataLogCell c = tags.getValue(DataLog.tag((Object[]) tagBits));
+		if (c == null) return new DummyFuture<>(Collections.EMPTY_LIST);
+		return new DummyFuture<>(getData2(c, start, end, fn, bucketSize, false));
+	}
+
+	@Override
+	public IFuture<List<DataPoint>> getMeanData(Time start, Time end, KInterpolate fn, Dt bucketSize, String... tagBits) {
+		DataLogCell c = means.get(DataLog.tag((Object[]) tagBits));
+		if (c == null) return new DummyFuture<>(Collections.EMPTY_LIST);
+		return new DummyFuture<>(getData2(c, start, end, fn, bucketSize, true));
+	}
+
+	/**
+	 * @param node A unique id for this server (e.g. the hostname). A merge keeps only the latest
+	 * snapshot from each node, so use the same window each time (e.g. today).
+	 * @param start inclusive
+	 * @param end exclusive
+	 * @return all the count/set and mean() data in the window, for merging with other servers' data
+	 */
+	public DataLogSnapshot snapshot(String node, Time start, Time end) {
+		long s = start.getTime(), e = end.getTime();
+		long version = snapshotVersion.updateAndGet(v -> Math.max(v + 1, System.currentTimeMillis()));
+		Map<String, DataLogSnapshot.Series> counts = new HashMap<>();
+		for (TagIndex.Node<DataLogCell> n : tags.nodes()) {
+			DataLogColumn.Slice slice = n.value.getSlice(s, e);
+			if (slice.size == 0) continue;
+			counts.put(n.tag, DataLogSnapshot.Series.fromSlice(n.tag, slice));
+		}
+		Map<String, DataLogSnapshot.Series> ms = new HashMap<>();
+		for (DataLogCell c : means.values()) {
+			DataLogColumn.Slice slice = c.getSlice(s, e);
+			if (slice.size == 0) continue;
+			ms.put(c.tag, DataLogSnapshot.Series.fromSlice(c.tag, slice));
+		}
+		return DataLogSnapshot.create(node, version, s, e, interval, counts, ms);
+	}
+
+	/**
+	 * @return [min, max] of the bucket values (for mean tags, of the bucket means) in the period,
+	 * or null if there's no data. Old periods come from the hourly / daily tiers.
+	 */
+	public double[] getRange(Time start, Time end, String... tagBits) {
+		String tag = DataLog.tag((Object[]) tagBits);
+		DataLogCell c = tags.getValue(tag);
+		if (c == null) c = means.get(tag);
+		if (c == null) return null;
+		return c.getRange(start.getTime(), end.getTime());
+	}
+
+	@Override
+	public IFuture<List<DataPoint>> getData(Pattern id, Time start, Time end) {
+		List<DataPoint> data = new ArrayList<>();
+		// the index only checks tags which could match
+		for (TagIndex.Node<DataLogCell> n : tags.find(id)) {
+			data.addAll(getData2(n.value, start, end, null, null, false));
+		}
+		return new DummyFuture<>(data);
+	}
+
+	/**
+	 * Works on primitive arrays throughout: copy out the buckets, re-bucket,
+	 * filter/interpolate, then cap to {@link DataLogConfig#maxDataPoints}.
+	 * @param mean If true, output the bucket means rather than the sums
+	 */
+	TimeSeries getData2(DataLogCell c, Time start, Time end, KInterpolate fn, Dt bucketSize, boolean mean) {
+		long s = start.getTime();
+		long e = end.getTime();
+		long bs = bucketSize==null? c.getInterval() : Math.max(c.getInterval(), bucketSize.getMillisecs());
+		// the coarsest tier which fits bs
+		int level = 0;
+		long step = c.getInterval();
+		for (int k = 0; k < c.tiers.length; k++) {
+			long size = c.tiers[k].size;
+			if (size > bs || bs % size != 0) break;
+			level = k + 1;
+			step = size;
+		}
+		// fine buckets: mid-point filtering. Tier periods: any overlap.
+		long half = c.getInterval() / 2;
+		long lo = level==0? s - half : s - Math.floorMod(s, step);
+		long hi = level==0? e - half + 1 : e + 1;
+		// look back a day for interpolation
+		long lookBack = fn==KInterpolate.LINEAR_1DAY? TUnit.DAY.millisecs : 0;
+		DataLogColumn.Slice slice = c.getSlice(lo - lookBack, hi, level);
+		int i0 = DataLogColumn.lowerBound(slice.times, slice.size, lo);
+		// re-bucket, leaving room for interpolated start & end points
+		long[] ts = new long[slice.size - i0 + 2];
+		double[] xs = new double[ts.length];
+		long[] ns = mean? new long[ts.length] : null;
+		int m = getData3_rebucket(slice, i0, bs, ts, xs, ns, 1);
+		if (mean) {
+			// sums -> means
+			for (int j = 1; j < m + 1; j++) {
+				xs[j] = ns[j] == 0? 0 : xs[j] / ns[j];
+			}
+		}
+		int from = 1, to = 1 + m;
+		if (fn==KInterpolate.SKIP_ZEROS) {
+			int k = from;
+			for (int j = from; j < to; j++) {
+				if (xs[j] == 0) continue;
+				ts[k] = ts[j];
+				xs[k] = xs[j];
+				k++;
+			}
+			to = k;
+		} else if (fn==KInterpolate.LINEAR_1DAY) {
+			// the last bucket before start (if any)
+			boolean hasBefore = i0 > 0;
+			long tBefore = hasBefore? slice.times[i0 - 1] : 0;
+			double xBefore = 0;
+			if (hasBefore) {
+				xBefore = slice.sums[i0 - 1];
+				if (mean) xBefore = slice.ns[i0 - 1]==0? 0 : xBefore / slice.ns[i0 - 1];
+			}
+			if (from == to) {
+				if ( ! hasBefore) return new TimeSeries(c.tag, ts, xs, 0, 0);
+				ts[0] = s; xs[0] = xBefore;
+				ts[1] = e; xs[1] = xBefore;
+				return new TimeSeries(c.tag, ts, xs, 0, 2);
+			}
+			if (hasBefore && ts[from] > s) {
+				double frac = (s - tBefore) / (double) (ts[from] - tBefore);
+				from--;
+				ts[from] = s;
+				xs[from] = xBefore + frac*(xs[from + 1] - xBefore);
+			}
+			if (ts[to - 1] < e) {
+				ts[to] = e;
+				xs[to] = xs[to - 1];
+				to++;
+			}
+		}
+		// cap the size (keep the latest)
+		if (to - from > config.maxDataPoints) {
+			from = to - config.maxDataPoints;
+		}
+		return new TimeSeries(c.tag, ts, xs, from, to - from);
+	}
+
+	/**
+	 * Sum buckets [i0, slice.size) into bs-sized buckets.
+	 * @param ns If not null, sum the sample counts into this
+	 * @param out the index to start writing at
+	 * @return the number of output buckets
+	 */
+	private static int getData3_rebucket(DataLogColumn.Slice slice, int i0, long bs, long[] ts, double[] xs, long[] ns, int out) {
+		long[] times = slice.times;
+		double[] sums = slice.sums;
+		int m = out - 1;
+		long prev = Long.MIN_VALUE;
+		for (int i = i0; i < slice.size; i++) {
+			long t = times[i];
+			long bstart = t - Math.floorMod(t, bs);
+			if (bstart != prev) {
+				m++;
+				prev = bstart;
+				ts[m] = bstart;
+			}
+			xs[m] += sums[i];
+			if (ns != null) ns[m] += slice.ns[i];
+		}
+		return m - out + 1;
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		if (compactor != null) LockSupport.unpark(compactor);
+		DataLogWal w = wal;
+		wal = null;
+		FileUtils.close(w);
+	}
+
+	/**
+	 * Does nothing -- there is no storage behind this.
+	 */
+	@Override
+	public void flush() {
+	}
+
+	@Override
+	public Collection<String> getActiveLabels() {
+		return new ArrayList();
+	}
+
+	/**
+	 * Labels are not supported yet.
+	 * @return null
+	 */
+	@Override
+	public String label(String label, String... tagBits) {
+		return null;
+	}
+
+	@Override
+	public void setListener(IListenDataLog listener, String... tagBits) {
+		listeners.put(DataLog.tag((Object[]) tagBits), listener);
+	}
+
+	@Override
+	public void removeListener(String... tagBits) {
+		listeners.remove(DataLog.tag((Object[]) tagBits));
+	}
+
+	@Override
+	public Map<String, IListenDataLog> getListeners() {
+		return Collections.unmodifiableMap(listeners);
+	}
+
+	@Override
+	public DataLogConfig getConfig() {
+		return config;
+	}
+
+	@Override
+	public IDataLogAdmin getAdmin() {
+		return new DummyDataLogAdmin();
+	}
+
+	/**
+	 * @return null -- there is no storage
+	 */
+	@Override
+	public Object getStorage() {
+		return null;
+	}
+
+	@Override
+	public String toString() {
+		return "InMemoryDataLog[tags=" + tags.size() + "]";
+	}
+}
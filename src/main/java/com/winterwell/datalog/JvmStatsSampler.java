@@ -0,0 +1,215 @@
+package com.winterwell.datalog;
+
+import java.io.Closeable;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.winterwell.utils.ReflectionUtils;
+import com.winterwell.utils.containers.ArrayMap;
+import com.winterwell.utils.log.Log;
+import com.winterwell.utils.time.Dt;
+
+/**
+ * Samples the JVM's own stats from the MXBeans into a DataLog, on one daemon
+ * thread: memory, GC, threads, cpu, and (where the JVM supports it) the
+ * allocation rate.
+ * <p>
+ * Gauges are written with set(), per-sample rates with mean(), and
+ * GC counts / times with count() -- so a bucket's total is what happened in
+ * that bucket.
+ * <p>
+ * A sample is a few dozen MXBean reads, i.e. tens of microseconds -- at the
+ * default once a minute, that is far below 0.1% of a core. See
+ * {@link #getStats()} to check.
+ * <p>
+ * Started by {@link DataLog#init(DataLogConfig)} unless
+ * {@link DataLogConfig#noSystemStats}.
+ *
+ * @author daniel
+ * @testedby JvmStatsSamplerTest
+ */
+public final class JvmStatsSampler implements Closeable {
+
+	private static final String LOGTAG = "JvmStatsSampler";
+
+	/** heap max - heap used, in bytes */
+	public static final String STAT_MEM_FREE = "mem_free";
+	public static final String STAT_MEM_MAX = "mem_max";
+	public static final String STAT_MEM_NONHEAP = "mem_nonheap";
+	/** Number of collections (count) */
+	public static final String STAT_GC_COUNT = "gc_count";
+	/** Millisecs spent in GC (count) */
+	public static final String STAT_GC_TIME = "gc_time";
+	/** The average millisecs per collection (mean) */
+	public static final String STAT_GC_PAUSE = "gc_pause";
+	public static final String STAT_THREADS = "threads";
+	public static final String STAT_THREADS_DAEMON = "threads_daemon";
+	/** [0,1] (mean) */
+	public static final String STAT_CPU_JAVA = "cpu_java";
+	/** [0,1] (mean) */
+	public static final String STAT_CPU_SYSTEM = "cpu_system";
+	/** Bytes per second (mean) */
+	public static final String STAT_ALLOC_RATE = "mem_alloc_rate";
+
+	private final IDataLog dataLog;
+
+	private final long intervalMillis;
+
+	private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+	private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	private final List<GarbageCollectorMXBean> gcs = ManagementFactory.getGarbageCollectorMXBeans();
+
+	/**
+	 * com.sun.management.ThreadMXBean.getTotalThreadAllocatedBytes(), or null
+	 * if this JVM doesn't have it. Via reflection, as com.sun.management is
+	 * not in every JVM.
+	 */
+	private final Method totalAllocated;
+
+	private long prevGcCount = -1;
+	private long prevGcTime;
+	private long prevAllocated = -1;
+	private long prevNanos;
+
+	private volatile long samples;
+	private volatile long sampleNanos;
+
+	private Thread thread;
+
+	private volatile boolean closed;
+
+	/**
+	 * @param dataLog Where the stats go
+	 * @param interval How often to sample
+	 */
+	public JvmStatsSampler(IDataLog dataLog, Dt interval) {
+		this.dataLog = dataLog;
+		this.intervalMillis = Math.max(1, interval.getMillisecs());
+		this.totalAllocated = initTotalAllocated();
+	}
+
+	private Method initTotalAllocated() {
+		try {
+			Class<?> k = Class.forName("com.sun.management.ThreadMXBean");
+			if ( ! k.isInstance(threads)) return null;
+			Method m = k.getMethod("getTotalThreadAllocatedBytes");
+			long v = (Long) m.invoke(threads);
+			return v < 0 ? null : m;
+		} catch (Throwable ex) {
+			// fine -- no allocation stats
+			return null;
+		}
+	}
+
+	/**
+	 * Start the background thread.
+	 * @return this
+	 */
+	public JvmStatsSampler start() {
+		assert thread == null;
+		thread = new Thread(this::run, "DataLog.jvmStats");
+		thread.setDaemon(true);
+		thread.start();
+		return this;
+	}
+
+	private void run() {
+		while ( ! closed) {
+			try {
+				sample();
+			} catch (Throwable ex) {
+				Log.e(LOGTAG, ex);
+			}
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(intervalMillis));
+		}
+	}
+
+	/**
+	 * Take one sample and write it to the DataLog. Normally called by the
+	 * background thread.
+	 */
+	synchronized void sample() {
+		long t0 = System.nanoTime();
+		// memory
+		MemoryUsage heap = memory.getHeapMemoryUsage();
+		long max = heap.getMax() > 0 ? heap.getMax() : heap.getCommitted();
+		dataLog.set(heap.getUsed(), IDataLog.STAT_MEM_USED);
+		dataLog.set(max - heap.getUsed(), STAT_MEM_FREE);
+		dataLog.set(max, STAT_MEM_MAX);
+		dataLog.set(memory.getNonHeapMemoryUsage().getUsed(), STAT_MEM_NONHEAP);
+		// gc
+		long gcCount = 0, gcTime = 0;
+		for (GarbageCollectorMXBean gc : gcs) {
+			// -1 if unknown
+			gcCount += Math.max(0, gc.getCollectionCount());
+			gcTime += Math.max(0, gc.getCollectionTime());
+		}
+		if (prevGcCount >= 0) {
+			long dCount = gcCount - prevGcCount;
+			long dTime = gcTime - prevGcTime;
+			dataLog.count(dCount, STAT_GC_COUNT);
+			dataLog.count(dTime, STAT_GC_TIME);
+			if (dCount > 0) {
+				dataLog.mean((double) dTime / dCount, STAT_GC_PAUSE);
+			}
+		}
+		prevGcCount = gcCount;
+		prevGcTime = gcTime;
+		// threads
+		dataLog.set(threads.getThreadCount(), STAT_THREADS);
+		dataLog.set(threads.getDaemonThreadCount(), STAT_THREADS_DAEMON);
+		// cpu
+		double cpu = ReflectionUtils.getJavaCPU();
+		if (cpu >= 0) dataLog.mean(cpu, STAT_CPU_JAVA);
+		double sysCpu = ReflectionUtils.getSystemCPU();
+		if (sysCpu >= 0) dataLog.mean(sysCpu, STAT_CPU_SYSTEM);
+		// allocation
+		if (totalAllocated != null) {
+			try {
+				long allocated = (Long) totalAllocated.invoke(threads);
+				if (prevAllocated >= 0 && allocated >= prevAllocated) {
+					double secs = (t0 - prevNanos) / 1e9;
+					dataLog.mean((allocated - prevAllocated) / secs, STAT_ALLOC_RATE);
+				}
+				prevAllocated = allocated;
+			} catch (Exception ex) {
+				Log.w(LOGTAG, ex);
+			}
+		}
+		prevNanos = t0;
+		samples++;
+		sampleNanos += System.nanoTime() - t0;
+	}
+
+	/**
+	 * @return samples, avgSampleMicros, overhead (the fraction of one core spent sampling)
+	 */
+	public ArrayMap<String, Object> getStats() {
+		long n = samples;
+		double avgNanos = n == 0 ? 0 : (double) sampleNanos / n;
+		return new ArrayMap(
+				"samples", n,
+				"avgSampleMicros", avgNanos / 1000,
+				"overhead", avgNanos / TimeUnit.MILLISECONDS.toNanos(intervalMillis),
+				"allocationStats", totalAllocated != null
+				);
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		if (thread != null) LockSupport.unpark(thread);
+	}
+
+	@Override
+	public String toString() {
+		return LOGTAG + "[" + dataLog + "]";
+	}
+}
@@ -0,0 +1,97 @@
+package com.winterwell.datalog;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import com.winterwell.utils.io.FileUtils;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.Time;
+
+/**
+ * Spool events to newline-delimited json files, one event per line.
+ * <p>
+ * Files are segments named after {@link DataLogConfig#logFile}, e.g. lg.txt
+ * gives lg.20240131T120000.ndjson A new segment is started every
+ * {@link DataLogConfig#filePeriod}.
+ * <p>
+ * Each line is the ES document from {@link DataLogEvent#toJson2()}, plus
+ * dataspace and id, so it can be read back with
+ * {@link DataLogEvent#fromESHit(CharSequence, String, java.util.Map)}.
+ *
+ * @author daniel
+ */
+public class NDJsonSegmentSink implements IDataLogEventSink {
+
+	public static final String FILE_TYPE = "ndjson";
+
+	private final File dir;
+	private final String basename;
+	private final long period;
+
+	private Writer out;
+	private File segment;
+	private long segmentEnd;
+	private final StringBuilder sb = new StringBuilder();
+
+	public NDJsonSegmentSink(File logFile, Dt filePeriod) {
+		File abs = logFile.getAbsoluteFile();
+		this.dir = abs.getParentFile();
+		this.basename = FileUtils.getBasename(abs);
+		this.period = filePeriod.getMillisecs();
+		dir.mkdirs();
+	}
+
+	@Override
+	public void write(List<DataLogEvent> batch) throws IOException {
+		long now = System.currentTimeMillis();
+		if (out == null || now >= segmentEnd) {
+			roll(now);
+		}
+		for (DataLogEvent e : batch) {
+			sb.setLength(0);
+			appendLine(sb, e);
+			out.append(sb);
+		}
+		out.flush();
+	}
+
+	/**
+	 * Append one event + newline
+	 */
+	static void appendLine(StringBuilder sb, DataLogEvent e) {
+		DataLogEventJsonWriter.appendDoc(sb, e, true);
+		sb.append('\n');
+	}
+
+	private void roll(long now) throws IOException {
+		FileUtils.close(out);
+		long start = now - Math.floorMod(now, period);
+		segmentEnd = start + period;
+		segment = new File(dir, basename+"."+new Time(start).format("yyyyMMdd'T'HHmmss")+"."+FILE_TYPE);
+		out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(segment, true), StandardCharsets.UTF_8), 1 << 16);
+	}
+
+	/**
+	 * @return the current segment file, or null if nothing has been written yet
+	 */
+	public File getSegment() {
+		return segment;
+	}
+
+	@Override
+	public void close() {
+		FileUtils.close(out);
+		out = null;
+	}
+
+	@Override
+	public String toString() {
+		return "NDJsonSegmentSink[" + new File(dir, basename) + "]";
+	}
+}
@@ -0,0 +1,427 @@
+package com.winterwell.datalog;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.winterwell.utils.log.Log;
+
+/**
+ * Stops a buggy caller from exploding the number of DataLog tags (and so memory).
+ * <p>
+ * Tags are grouped into namespaces by their first tag-bit, e.g. "Cache_hit" for
+ * Cache_hit/foo. Each namespace has upto maxTags exact tags, which are counted
+ * as normal. Any other tag is folded into namespace/{@link #OTHER} (so the
+ * namespace total stays right), and the folded tags are tracked in bounded
+ * memory:
+ * <ul>
+ * <li>Space-Saving: the topK heavy hitters, with counts & error bounds.
+ * <li>Count-Min sketch: an estimate for any folded tag.
+ * </ul>
+ * Which tags are exact follows the heavy hitters: the first maxTags seen fill
+ * the namespace, then every so often (every max(16, maxTags) folded writes)
+ * a folded tag which is being written to clearly more (over 2x, and at least
+ * {@link #MIN_PROMOTE} times) than the quietest exact tag swaps places with
+ * it. Recent writes count most -- the scores are halved at each check. A
+ * promoted tag's exact count starts from its promotion (its earlier writes
+ * are in {@link #OTHER}); a demoted tag's storage is kept, so churn in the
+ * heavy hitters does cost memory (which the thresholds keep down).
+ * <p>
+ * The number of namespaces is capped the same way (top-level tags beyond that
+ * are folded into {@link #OTHER}).
+ * <p>
+ * The tracked counts are the number of writes (not the sum of dx).
+ * <p>
+ * Off by default (see {@link DataLogConfig#maxTagsPerNamespace}). Only
+ * count()s are guarded -- folding set() or mean() would mix unrelated values.
+ * <p>
+ * Cost: a map lookup and an adder increment or two per count. Folded writes
+ * also take a per-namespace lock.
+ *
+ * @author daniel
+ * @testedby TagCardinalityGuardTest
+ */
+public class TagCardinalityGuard {
+
+	public static final String OTHER = "other";
+
+	private static final String LOGTAG = "DataLog.guard";
+
+	/**
+	 * A folded tag needs at least this (recent) score to be promoted -- so one-offs never are.
+	 */
+	static final int MIN_PROMOTE = 8;
+
+	private final int maxTags;
+	private final int topK;
+
+	/**
+	 * The top-level tags
+	 */
+	private final Namespace root;
+
+	private final ConcurrentHashMap<String, Namespace> namespaces = new ConcurrentHashMap<>();
+
+	/**
+	 * @param maxTags Max distinct tags per namespace (and max namespaces)
+	 * @param topK How many heavy hitters to track, per namespace, among the folded tags
+	 */
+	public TagCardinalityGuard(int maxTags, int topK) {
+		assert maxTags > 0 && topK > 0;
+		this.maxTags = maxTags;
+		this.topK = topK;
+		this.root = new Namespace("");
+	}
+
+	/**
+	 * @param tagBits Already checked by {@link DataLog#check(String...)}
+	 * @return tagBits, or the folded tag-bits [namespace, other] or [other]
+	 */
+	public String[] guard(String[] tagBits) {
+		return guard(tagBits, null);
+	}
+
+	/**
+	 * @param tagBits Already checked by {@link DataLog#check(String...)}
+	 * @param tag The joined tag-bits, if the caller has it (saves joining them again). Can be null.
+	 * @return tagBits, or the folded tag-bits [namespace, other] or [other]
+	 */
+	String[] guard(String[] tagBits, String tag) {
+		String ns = tagBits[0];
+		if ( ! root.admit(ns)) {
+			return new String[] {OTHER};
+		}
+		if (tagBits.length == 1) {
+			return tagBits;
+		}
+		Namespace space = namespaces.get(ns);
+		if (space == null) {
+			space = namespaces.computeIfAbsent(ns, Namespace::new);
+		}
+		if (tag == null) tag = DataLog.tag((Object[]) tagBits);
+		if (space.admit(tag)) {
+			return tagBits;
+		}
+		return new String[] {ns, OTHER};
+	}
+
+	/**
+	 * @param namespace e.g. "Cache_hit". Use "" for the top-level tags.
+	 * @return the most-written folded tags, biggest first. Empty if nothing has been folded.
+	 */
+	public List<Estimate> getHeavyHitters(String namespace) {
+		Namespace space = namespace.isEmpty()? root : namespaces.get(namespace);
+		if (space == null || space.tail == null) return Collections.emptyList();
+		return space.tail.getTop();
+	}
+
+	/**
+	 * @param tag A full tag, e.g. "Cache_hit/foo"
+	 * @return the estimated writes for a folded tag, or null if the tag was not folded.
+	 */
+	public Estimate getEstimate(String tag) {
+		int i = tag.indexOf(DataLog.HIERARCHY_CHAR);
+		Namespace space = i==-1? root : namespaces.get(tag.substring(0, i));
+		if (space == null || space.tail == null) return null;
+		if (space.admitted.containsKey(tag)) return null;
+		return space.tail.estimate(tag);
+	}
+
+	/**
+	 * @return the number of folded writes in namespace
+	 */
+	public long getFolded(String namespace) {
+		Namespace space = namespace.isEmpty()? root : namespaces.get(namespace);
+		if (space == null || space.tail == null) return 0;
+		return space.tail.getTotal();
+	}
+
+	/**
+	 * @return how many folded tags have been promoted to exact counting (each demoting one) in namespace
+	 */
+	public long getPromotions(String namespace) {
+		Namespace space = namespace.isEmpty()? root : namespaces.get(namespace);
+		return space == null? 0 : space.promotions.get();
+	}
+
+	@Override
+	public String toString() {
+		return "TagCardinalityGuard[maxTags=" + maxTags + ", namespaces=" + namespaces.size() + "]";
+	}
+
+	/**
+	 * A write-count for a folded tag. The true count is in [count - error, count].
+	 */
+	public static final class Estimate {
+		public final String tag;
+		/**
+		 * An upper bound
+		 */
+		public final long count;
+		public final long error;
+
+		Estimate(String tag, long count, long error) {
+			this.tag = tag;
+			this.count = count;
+			this.error = error;
+		}
+
+		@Override
+		public String toString() {
+			return tag + ": " + count + " (-" + error + ")";
+		}
+	}
+
+	private final class Namespace {
+		final String name;
+		/**
+		 * The exact tags, with their recent write scores
+		 */
+		final ConcurrentHashMap<String, LongAdder> admitted = new ConcurrentHashMap<>();
+		final AtomicInteger size = new AtomicInteger();
+		final AtomicLong promotions = new AtomicLong();
+		/**
+		 * null until the namespace overflows
+		 */
+		volatile Tail tail;
+
+		Namespace(String name) {
+			this.name = name;
+		}
+
+		boolean admit(String tag) {
+			LongAdder hits = admitted.get(tag);
+			if (hits != null) {
+				hits.increment();
+				return true;
+			}
+			if (size.get() < maxTags) {
+				if (size.incrementAndGet() <= maxTags) {
+					hits = new LongAdder();
+					hits.increment();
+					if (admitted.putIfAbsent(tag, hits) != null) {
+						// someone else added it
+						size.decrementAndGet();
+					}
+					return true;
+				}
+				size.decrementAndGet();
+			}
+			// fold
+			Tail t = tail;
+			if (t == null) {
+				synchronized (this) {
+					t = tail;
+					if (t == null) {
+						Log.w(LOGTAG, "Too many tags in "+(name.isEmpty()? "the top level" : name)
+								+" (max "+maxTags+") - folding the less used ones into "+OTHER);
+						t = new Tail(topK);
+						tail = t;
+					}
+				}
+			}
+			if (t.add(tag) % Math.max(16, maxTags) == 0) {
+				rebalance(t);
+			}
+			return false;
+		}
+
+		/**
+		 * Swap the busiest folded tags with the quietest exact ones (if the
+		 * difference is clear), then halve all the scores.
+		 */
+		private synchronized void rebalance(Tail t) {
+			List<Estimate> candidates = t.getScores();
+			if ( ! candidates.isEmpty() && candidates.get(0).count >= MIN_PROMOTE) {
+				// the exact tags, quietest first
+				List<String> tags = new ArrayList<>(admitted.keySet());
+				long[] scores = new long[tags.size()];
+				Integer[] order = new Integer[tags.size()];
+				for (int i = 0; i < order.length; i++) {
+					LongAdder a = admitted.get(tags.get(i));
+					scores[i] = a==null? 0 : a.sum();
+					order[i] = i;
+				}
+				Arrays.sort(order, (a, b) -> Long.compare(scores[a], scores[b]));
+				int j = 0;
+				for (Estimate c : candidates) {
+					if (j == order.length) break;
+					long outScore = scores[order[j]];
+					if (c.count < MIN_PROMOTE || c.count <= 2 * outScore) break;
+					String out = tags.get(order[j]);
+					admitted.remove(out);
+					LongAdder hits = new LongAdder();
+					hits.add(c.count);
+					admitted.put(c.tag, hits);
+					t.swap(c.tag, out, outScore);
+					promotions.incrementAndGet();
+					j++;
+				}
+			}
+			// age
+			for (LongAdder a : admitted.values()) {
+				long sum = a.sumThenReset();
+				a.add(sum / 2);
+			}
+			t.age();
+		}
+	}
+
+	/**
+	 * Space-Saving top-k plus a Count-Min sketch. Synchronized.
+	 * <p>
+	 * Alongside the Space-Saving counts, each monitored tag has a score: the
+	 * writes seen since it was monitored, halved by {@link #age()}. A lower
+	 * bound on its recent writes, for promotion.
+	 */
+	private static final class Tail {
+		private static final int DEPTH = 4;
+		/**
+		 * Count-Min error is upto about total * e / WIDTH, with probability 1 - e^-DEPTH
+		 */
+		private static final int WIDTH = 2048;
+
+		private final long[][] sketch = new long[DEPTH][WIDTH];
+		private final String[] keys;
+		private final long[] counts;
+		private final long[] errors;
+		private final long[] scores;
+		private final Map<String, Integer> slot;
+		private int used;
+		private long total;
+
+		Tail(int k) {
+			keys = new String[k];
+			counts = new long[k];
+			errors = new long[k];
+			scores = new long[k];
+			slot = new HashMap<>(k * 2);
+		}
+
+		/**
+		 * @return the total folded writes (including this one)
+		 */
+		synchronized long add(String tag) {
+			total++;
+			int h = tag.hashCode();
+			int h2 = mix(h);
+			for (int d = 0; d < DEPTH; d++) {
+				sketch[d][Math.floorMod(h + d * h2, WIDTH)]++;
+			}
+			// Space-Saving
+			Integer i = slot.get(tag);
+			if (i != null) {
+				counts[i]++;
+				scores[i]++;
+				return total;
+			}
+			if (used < keys.length) {
+				keys[used] = tag;
+				counts[used] = 1;
+				errors[used] = 0;
+				scores[used] = 1;
+				slot.put(tag, used);
+				used++;
+				return total;
+			}
+			// replace the minimum
+			int min = 0;
+			for (int j = 1; j < used; j++) {
+				if (counts[j] < counts[min]) min = j;
+			}
+			slot.remove(keys[min]);
+			keys[min] = tag;
+			errors[min] = counts[min];
+			counts[min]++;
+			scores[min] = 1;
+			slot.put(tag, min);
+			return total;
+		}
+
+		/**
+		 * @return the monitored tags, with their scores as the count, biggest first
+		 */
+		synchronized List<Estimate> getScores() {
+			List<Estimate> list = new ArrayList<>(used);
+			for (int j = 0; j < used; j++) {
+				list.add(new Estimate(keys[j], scores[j], 0));
+			}
+			list.sort((a, b) -> Long.compare(b.count, a.count));
+			return list;
+		}
+
+		/**
+		 * in has been promoted (so stop monitoring it), and out demoted (so start,
+		 * with its score -- and as count & error, as its folded count is 0 to that).
+		 */
+		synchronized void swap(String in, String out, long score) {
+			Integer i = slot.remove(in);
+			if (i != null) {
+				used--;
+				if (i != used) {
+					keys[i] = keys[used];
+					counts[i] = counts[used];
+					errors[i] = errors[used];
+					scores[i] = scores[used];
+					slot.put(keys[i], i);
+				}
+				keys[used] = null;
+			}
+			if (slot.containsKey(out) || used == keys.length) return;
+			keys[used] = out;
+			counts[used] = score;
+			errors[used] = score;
+			scores[used] = score;
+			slot.put(out, used);
+			used++;
+		}
+
+		synchronized void age() {
+			for (int j = 0; j < used; j++) {
+				scores[j] /= 2;
+			}
+		}
+
+		private static int mix(int h) {
+			h ^= h >>> 16;
+			h *= 0x85ebca6b;
+			h ^= h >>> 13;
+			return h | 1;
+		}
+
+		synchronized Estimate estimate(String tag) {
+			Integer i = slot.get(tag);
+			if (i != null) {
+				return new Estimate(tag, counts[i], errors[i]);
+			}
+			int h = tag.hashCode();
+			int h2 = mix(h);
+			long est = Long.MAX_VALUE;
+			for (int d = 0; d < DEPTH; d++) {
+				est = Math.min(est, sketch[d][Math.floorMod(h + d * h2, WIDTH)]);
+			}
+			long err = (long) Math.ceil(total * Math.E / WIDTH);
+			return new Estimate(tag, est, Math.min(est, err));
+		}
+
+		synchronized List<Estimate> getTop() {
+			List<Estimate> top = new ArrayList<>(used);
+			for (int j = 0; j < used; j++) {
+				top.add(new Estimate(keys[j], counts[j], errors[j]));
+			}
+			top.sort((a, b) -> Long.compare(b.count, a.count));
+			return top;
+		}
+
+		synchronized long getTotal() {
+			return total;
+		}
+	}
+}
@@ -0,0 +1,245 @@
+package com.winterwell.datalog;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+import java.util.regex.Pattern;
+
+/**
+ * A concurrent trie over hierarchical tags (split on
+ * {@link DataLog#HIERARCHY_CHAR}), e.g. a/b/c is the node c, under b, under a.
+ * <p>
+ * Each node holds a value, made when the node is first needed -- parents
+ * first, so the factory gets the parent's value. That's how
+ * {@link InMemoryDataLog} wires up rollups: a count on a/b/c also goes to a/b
+ * and a, without re-parsing the tag.
+ * <p>
+ * Queries ({@link #prefix(String)}, {@link #match(String)},
+ * {@link #find(Pattern)}) walk only the relevant sub-trees rather than
+ * scanning every tag.
+ * <p>
+ * Thread-safety: lock-free reads; nodes are created via
+ * ConcurrentHashMap.computeIfAbsent. Nodes are never removed.
+ *
+ * @author daniel
+ * @testedby TagIndexTest
+ * @param <V> e.g. the storage cell for a tag
+ */
+public final class TagIndex<V> {
+
+	/**
+	 * One tag. The root node has tag "" and a null value.
+	 */
+	public static final class Node<V> {
+		/**
+		 * The full tag, e.g. a/b/c
+		 */
+		public final String tag;
+		/**
+		 * The last part of the tag, e.g. c
+		 */
+		public final String segment;
+		/**
+		 * null for the root
+		 */
+		public final Node<V> parent;
+		/**
+		 * null for the root
+		 */
+		public final V value;
+		final ConcurrentHashMap<String, Node<V>> children = new ConcurrentHashMap<>(4);
+
+		Node(String tag, String segment, Node<V> parent, V value) {
+			this.tag = tag;
+			this.segment = segment;
+			this.parent = parent;
+			this.value = value;
+		}
+
+		public Collection<Node<V>> getChildren() {
+			return children.values();
+		}
+
+		@Override
+		public String toString() {
+			return "Node[" + tag + "]";
+		}
+	}
+
+	private final Node<V> root = new Node<>("", "", null, null);
+
+	/**
+	 * Exact lookup, so the hot path does not need to split the tag
+	 */
+	private final ConcurrentHashMap<String, Node<V>> byTag = new ConcurrentHashMap<>();
+
+	/**
+	 * (tag, parent-value) to value. parent-value is null for top-level tags.
+	 */
+	private final BiFunction<String, V, V> factory;
+
+	public TagIndex(BiFunction<String, V, V> factory) {
+		this.factory = factory;
+	}
+
+	/**
+	 * @return the node for tag, or null
+	 */
+	public Node<V> get(String tag) {
+		return byTag.get(tag);
+	}
+
+	/**
+	 * @return the value for tag, or null
+	 */
+	public V getValue(String tag) {
+		Node<V> n = byTag.get(tag);
+		return n==null? null : n.value;
+	}
+
+	/**
+	 * @return the node for tag, creating it (and its parents) if need be. Never null.
+	 */
+	public Node<V> getOrCreate(String tag) {
+		Node<V> n = byTag.get(tag);
+		if (n != null) return n;
+		// walk down from the nearest existing ancestor
+		int i = tag.lastIndexOf(DataLog.HIERARCHY_CHAR);
+		Node<V> parent = i == -1? root : getOrCreate(tag.substring(0, i));
+		String segment = tag.substring(i + 1);
+		n = parent.children.computeIfAbsent(segment, s -> new Node<>(tag, s, parent, factory.apply(tag, parent.value)));
+		byTag.putIfAbsent(tag, n);
+		return n;
+	}
+
+	/**
+	 * @return number of tags
+	 */
+	public int size() {
+		return byTag.size();
+	}
+
+	/**
+	 * @return all the nodes (excluding the root), in no particular order
+	 */
+	public Collection<Node<V>> nodes() {
+		return byTag.values();
+	}
+
+	/**
+	 * @param tag e.g. "a/b"
+	 * @return a/b and everything under it, e.g. a/b/c. Empty if a/b is unknown.
+	 */
+	public List<Node<V>> prefix(String tag) {
+		List<Node<V>> out = new ArrayList<>();
+		Node<V> n = tag.isEmpty()? root : byTag.get(tag);
+		if (n != null) addSubtree(n, out);
+		return out;
+	}
+
+	private void addSubtree(Node<V> n, List<Node<V>> out) {
+		if (n != root) out.add(n);
+		for (Node<V> kid : n.children.values()) {
+			addSubtree(kid, out);
+		}
+	}
+
+	/**
+	 * @param wildcard A tag pattern where a "*" segment matches any one segment,
+	 * and a "**" segment matches any number (including none).
+	 * E.g. "a/&#42;/c" or "a/&#42;&#42;"
+	 * @return matching nodes
+	 */
+	public List<Node<V>> match(String wildcard) {
+		String[] segments = wildcard.split(Pattern.quote(String.valueOf(DataLog.HIERARCHY_CHAR)), -1);
+		List<Node<V>> out = new ArrayList<>();
+		match2(root, segments, 0, out);
+		return out;
+	}
+
+	private void match2(Node<V> n, String[] segments, int i, List<Node<V>> out) {
+		if (i == segments.length) {
+			if (n != root) out.add(n);
+			return;
+		}
+		String seg = segments[i];
+		if ("**".equals(seg)) {
+			// zero segments
+			if (i + 1 == segments.length) {
+				// trailing ** = the whole sub-tree (incl n if it's a real node)
+				addSubtree(n, out);
+				return;
+			}
+			match2(n, segments, i + 1, out);
+			// or one+ segments
+			for (Node<V> kid : n.children.values()) {
+				match2(kid, segments, i, out);
+			}
+			return;
+		}
+		if ("*".equals(seg)) {
+			for (Node<V> kid : n.children.values()) {
+				match2(kid, segments, i + 1, out);
+			}
+			return;
+		}
+		Node<V> kid = n.children.get(seg);
+		if (kid != null) match2(kid, segments, i + 1, out);
+	}
+
+	/**
+	 * Regex search. Only the sub-trees which can match the regex's literal
+	 * prefix are checked, so e.g. "foo/bar/.*" does not look at anything outside foo/bar.
+	 * @param regex Must match the whole tag
+	 * @return matching nodes
+	 */
+	public List<Node<V>> find(Pattern regex) {
+		// flags (e.g. case-insensitive) make the literal unreliable
+		String lit = regex.flags()==0? literalPrefix(regex.pattern()) : "";
+		int i = lit.lastIndexOf(DataLog.HIERARCHY_CHAR);
+		Node<V> parent = i == -1? root : byTag.get(lit.substring(0, i));
+		if (parent == null) {
+			return new ArrayList<>();
+		}
+		String rest = lit.substring(i + 1);
+		List<Node<V>> candidates = new ArrayList<>();
+		if (rest.isEmpty()) {
+			addSubtree(parent, candidates);
+		} else {
+			for (Node<V> kid : parent.children.values()) {
+				if (kid.segment.startsWith(rest)) addSubtree(kid, candidates);
+			}
+		}
+		List<Node<V>> out = new ArrayList<>();
+		for (Node<V> n : candidates) {
+			if (regex.matcher(n.tag).matches()) out.add(n);
+		}
+		return out;
+	}
+
+	/**
+	 * @return the leading plain text of a regex, e.g. "foo/b" for "foo/ba?r.*". Can be "".
+	 */
+	static String literalPrefix(String regex) {
+		// alternatives could start with anything
+		if (regex.indexOf('|') != -1) return "";
+		int start = regex.startsWith("^")? 1 : 0;
+		int i = start;
+		for (; i < regex.length(); i++) {
+			char c = regex.charAt(i);
+			if (".[]{}()*+?^$|\\".indexOf(c) != -1) break;
+		}
+		// a quantifier applies to the char before it
+		if (i < regex.length() && i > start && "*?{".indexOf(regex.charAt(i)) != -1) {
+			i--;
+		}
+		return regex.substring(start, i);
+	}
+
+	@Override
+	public String toString() {
+		return "TagIndex[size=" + size() + "]";
+	}
+}
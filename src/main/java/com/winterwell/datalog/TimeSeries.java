@@ -0,0 +1,77 @@
+package com.winterwell.datalog;
+
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+/**
+ * A read-only list of {@link DataPoint}s, backed by primitive time & value
+ * arrays. DataPoint objects are only made if you call {@link #get(int)} --
+ * bulk users should use {@link #getTime(int)} and {@link #getX(int)} instead.
+ *
+ * @author daniel
+ */
+public final class TimeSeries extends AbstractList<DataPoint> implements RandomAccess {
+
+	private final long[] times;
+	private final double[] xs;
+	private final int offset;
+	private final int size;
+	private final String tag;
+
+	/**
+	 * @param tag Can be null
+	 * @param times epoch millisecs, in order. Used directly (not copied)!
+	 * @param xs Used directly (not copied)!
+	 * @param offset
+	 * @param size
+	 */
+	TimeSeries(String tag, long[] times, double[] xs, int offset, int size) {
+		assert offset + size <= times.length && offset + size <= xs.length;
+		this.tag = tag;
+		this.times = times;
+		this.xs = xs;
+		this.offset = offset;
+		this.size = size;
+	}
+
+	/**
+	 * @return epoch millisecs
+	 */
+	public long getTime(int i) {
+		if (i < 0 || i >= size) throw new IndexOutOfBoundsException(i+" of "+size);
+		return times[offset + i];
+	}
+
+	public double getX(int i) {
+		if (i < 0 || i >= size) throw new IndexOutOfBoundsException(i+" of "+size);
+		return xs[offset + i];
+	}
+
+	/**
+	 * @return Can be null
+	 */
+	public String getTag() {
+		return tag;
+	}
+
+	@Override
+	public DataPoint get(int i) {
+		return new DataPoint(getTime(i), getX(i), tag);
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the sum of the values
+	 */
+	public double total() {
+		double t = 0;
+		for (int i = offset, n = offset + size; i < n; i++) {
+			t += xs[i];
+		}
+		return t;
+	}
+}
@@ -0,0 +1,471 @@
+package com.winterwell.maths.stats.distributions.d1;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.winterwell.utils.Utils;
+import com.winterwell.utils.containers.Range;
+
+/**
+ * A streaming, mergeable distribution for things like latencies: a histogram
+ * with logarithmically sized buckets (as in DDSketch), so quantiles come out
+ * with a bounded <i>relative</i> error, e.g. p99 = 120ms +/- 1%.
+ * <p>
+ * Count, mean, variance, min & max are exact (from running sums). Quantiles,
+ * {@link #prob(double, double)} and {@link #density(double)} come from the
+ * buckets.
+ * <p>
+ * Memory is bounded: at most maxBuckets per sign. If the data spans more than
+ * that, the smallest-magnitude buckets are merged (so it's the near-zero end
+ * that loses accuracy).
+ * <p>
+ * Use {@link #merge(LogHistogram1D)} to combine time-buckets, and
+ * {@link #toBytes()} / {@link #fromBytes(byte[])} to ship it between JVMs.
+ * <p>
+ * Not thread-safe.
+ *
+ * @author daniel
+ * @testedby LogHistogram1DTest
+ *         <p>
+ *         <b>Copyright & license</b>: (c) Winterwell Associates Ltd, all rights
+ *         reserved. This class is NOT formally a part of the com.winterwell.utils
+ *         library. In particular, licenses for the com.winterwell.utils library do
+ *         not apply to this file.
+ *         </p>
+ */
+public final class LogHistogram1D implements IDistribution1D {
+
+	public static final double DEFAULT_ACCURACY = 0.01;
+
+	public static final int DEFAULT_MAX_BUCKETS = 2048;
+
+	/**
+	 * Values with a smaller magnitude than this are counted as zero.
+	 */
+	private static final double MIN_MAGNITUDE = 1e-9;
+
+	private static final byte VERSION = 1;
+
+	private final double accuracy;
+	private final double gamma;
+	private final double logGamma;
+	private final int maxBuckets;
+
+	private final Store pos;
+	private final Store neg;
+	private long zeros;
+
+	private long n;
+	private double sum;
+	private double sumSq;
+	private double min = Double.POSITIVE_INFINITY;
+	private double max = Double.NEGATIVE_INFINITY;
+
+	/**
+	 * null for the shared {@link Utils#getRandom()} -- there can be a lot of these
+	 */
+	private Random random;
+
+	/**
+	 * 1% relative accuracy
+	 */
+	public LogHistogram1D() {
+		this(DEFAULT_ACCURACY, DEFAULT_MAX_BUCKETS);
+	}
+
+	/**
+	 * @param accuracy Relative accuracy for quantiles, e.g. 0.01 for 1%. In (0,1).
+	 * @param maxBuckets Max buckets per sign (the memory bound).
+	 */
+	public LogHistogram1D(double accuracy, int maxBuckets) {
+		if (accuracy <= 0 || accuracy >= 1) throw new IllegalArgumentException("accuracy: "+accuracy);
+		if (maxBuckets < 2) throw new IllegalArgumentException("maxBuckets: "+maxBuckets);
+		this.accuracy = accuracy;
+		this.gamma = (1 + accuracy) / (1 - accuracy);
+		this.logGamma = Math.log(gamma);
+		this.maxBuckets = maxBuckets;
+		this.pos = new Store(maxBuckets);
+		this.neg = new Store(maxBuckets);
+	}
+
+	public double getAccuracy() {
+		return accuracy;
+	}
+
+	/**
+	 * Add an observation
+	 */
+	public void count(double x) {
+		count(x, 1);
+	}
+
+	/**
+	 * Add an observation, weight times
+	 */
+	public void count(double x, long weight) {
+		if (weight <= 0) return;
+		if (Double.isNaN(x)) throw new IllegalArgumentException("NaN");
+		n += weight;
+		sum += x * weight;
+		sumSq += x * x * weight;
+		if (x < min) min = x;
+		if (x > max) max = x;
+		if (x > MIN_MAGNITUDE) {
+			pos.add(index(x), weight);
+		} else if (x < -MIN_MAGNITUDE) {
+			neg.add(index(-x), weight);
+		} else {
+			zeros += weight;
+		}
+	}
+
+	private int index(double magnitude) {
+		return (int) Math.ceil(Math.log(magnitude) / logGamma);
+	}
+
+	/**
+	 * @return the mid-point (in relative terms) of bucket i
+	 */
+	private double value(int i) {
+		return 2 * Math.pow(gamma, i) / (gamma + 1);
+	}
+
+	/**
+	 * Add in other's data. other is not modified.
+	 * @param other Must have the same accuracy
+	 */
+	public void merge(LogHistogram1D other) {
+		if (other.accuracy != accuracy) {
+			throw new IllegalArgumentException("Different accuracy: "+accuracy+" vs "+other.accuracy);
+		}
+		if (other.n == 0) return;
+		n += other.n;
+		sum += other.sum;
+		sumSq += other.sumSq;
+		min = Math.min(min, other.min);
+		max = Math.max(max, other.max);
+		zeros += other.zeros;
+		pos.merge(other.pos);
+		neg.merge(other.neg);
+	}
+
+	/**
+	 * @return number of observations
+	 */
+	public long getCount() {
+		return n;
+	}
+
+	@Override
+	public double getMean() {
+		return n==0? 0 : sum / n;
+	}
+
+	@Override
+	public double getVariance() {
+		if (n == 0) return 0;
+		double m = sum / n;
+		return Math.max(0, sumSq / n - m * m);
+	}
+
+	@Override
+	public double getStdDev() {
+		return Math.sqrt(getVariance());
+	}
+
+	public double getMin() {
+		return min;
+	}
+
+	public double getMax() {
+		return max;
+	}
+
+	/**
+	 * @param q e.g. 0.99 for p99
+	 * @return the value at quantile q (within the relative accuracy), or NaN if empty.
+	 * Same as {@link #getConfidence(double)}.
+	 */
+	public double getQuantile(double q) {
+		return getConfidence(q);
+	}
+
+	/**
+	 * @return the value at quantile totalWeight. 0 gives the min, 1 the max. NaN if empty.
+	 */
+	@Override
+	public double getConfidence(double totalWeight) {
+		assert totalWeight >= 0 && totalWeight <= 1 : totalWeight;
+		if (n == 0) return Double.NaN;
+		if (totalWeight <= 0) return min;
+		if (totalWeight >= 1) return max;
+		long rank = (long) (totalWeight * (n - 1));
+		double v = valueAtRank(rank);
+		// the exact min & max are better than the bucket mid-points
+		return Math.max(min, Math.min(max, v));
+	}
+
+	/**
+	 * @param rank 0-indexed, in [0, n)
+	 */
+	private double valueAtRank(long rank) {
+		long seen = 0;
+		// negatives: biggest magnitude first
+		for (int i = neg.hi; neg.total != 0 && i >= neg.lo; i--) {
+			seen += neg.get(i);
+			if (seen > rank) return -value(i);
+		}
+		seen += zeros;
+		if (seen > rank) return 0;
+		for (int i = pos.lo; pos.total != 0 && i <= pos.hi; i++) {
+			seen += pos.get(i);
+			if (seen > rank) return value(i);
+		}
+		return max;
+	}
+
+	/**
+	 * Approximate: a bucket counts as inside [min,max) if its mid-point is.
+	 */
+	@Override
+	public double prob(double lo, double hi) {
+		if (n == 0 || hi <= lo) return 0;
+		long in = 0;
+		for (int i = neg.lo; neg.total != 0 && i <= neg.hi; i++) {
+			double v = -value(i);
+			if (v >= lo && v < hi) in += neg.get(i);
+		}
+		if (0 >= lo && 0 < hi) in += zeros;
+		for (int i = pos.lo; pos.total != 0 && i <= pos.hi; i++) {
+			double v = value(i);
+			if (v >= lo && v < hi) in += pos.get(i);
+		}
+		return in / (double) n;
+	}
+
+	@Override
+	public double density(double x) {
+		if (n == 0) return 0;
+		if (x > MIN_MAGNITUDE) return density2(pos, index(x));
+		if (x < -MIN_MAGNITUDE) return density2(neg, index(-x));
+		return zeros==0? 0 : Double.POSITIVE_INFINITY;
+	}
+
+	private double density2(Store store, int i) {
+		if (store.total == 0 || i < store.lo || i > store.hi) return 0;
+		// bucket i covers (gamma^(i-1), gamma^i]
+		double width = Math.pow(gamma, i) - Math.pow(gamma, i - 1);
+		return store.get(i) / (n * width);
+	}
+
+	@Override
+	public Range getSupport() {
+		if (n == 0) return new Range(0, 0);
+		return new Range(min, max);
+	}
+
+	@Override
+	public boolean isNormalised() {
+		return true;
+	}
+
+	@Override
+	public void normalise() {
+		// always normalised
+	}
+
+	@Override
+	public Double sample() {
+		return getConfidence((random==null? Utils.getRandom() : random).nextDouble());
+	}
+
+	@Override
+	public void setRandomSource(Random randomSrc) {
+		this.random = randomSrc;
+	}
+
+	/**
+	 * @return a compact binary form (varints, only non-empty buckets). See {@link #fromBytes(byte[])}
+	 */
+	public byte[] toBytes() {
+		ByteBuffer bb = ByteBuffer.allocate(128 + 20 * (pos.span() + neg.span()));
+		bb.put(VERSION);
+		bb.putDouble(accuracy);
+		putVarLong(bb, maxBuckets);
+		putVarLong(bb, n);
+		if (n != 0) {
+			bb.putDouble(sum);
+			bb.putDouble(sumSq);
+			bb.putDouble(min);
+			bb.putDouble(max);
+			putVarLong(bb, zeros);
+			pos.write(bb);
+			neg.write(bb);
+		}
+		return Arrays.copyOf(bb.array(), bb.position());
+	}
+
+	/**
+	 * @param bytes from {@link #toBytes()}
+	 */
+	public static LogHistogram1D fromBytes(byte[] bytes) {
+		ByteBuffer bb = ByteBuffer.wrap(bytes);
+		byte v = bb.get();
+		if (v != VERSION) throw new IllegalArgumentException("Unknown version: "+v);
+		double accuracy = bb.getDouble();
+		LogHistogram1D h = new LogHistogram1D(accuracy, (int) getVarLong(bb));
+		h.n = getVarLong(bb);
+		if (h.n != 0) {
+			h.sum = bb.getDouble();
+			h.sumSq = bb.getDouble();
+			h.min = bb.getDouble();
+			h.max = bb.getDouble();
+			h.zeros = getVarLong(bb);
+			h.pos.read(bb);
+			h.neg.read(bb);
+		}
+		return h;
+	}
+
+	static void putVarLong(ByteBuffer bb, long v) {
+		while ((v & ~0x7FL) != 0) {
+			bb.put((byte) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		bb.put((byte) v);
+	}
+
+	static long getVarLong(ByteBuffer bb) {
+		long v = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = bb.get();
+			v |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) return v;
+		}
+		throw new IllegalArgumentException("Bad varint");
+	}
+
+	@Override
+	public String toString() {
+		if (n == 0) return "LogHistogram1D[n=0]";
+		return "LogHistogram1D[n=" + n + ", mean=" + getMean() + ", p50=" + getQuantile(0.5)
+				+ ", p99=" + getQuantile(0.99) + ", max=" + max + "]";
+	}
+
+	/**
+	 * Counts for bucket indexes [lo, hi], held in a re-centring array.
+	 */
+	private static final class Store {
+		private final int maxBuckets;
+		private long[] counts = new long[0];
+		/**
+		 * the bucket index of counts[0]
+		 */
+		private int offset;
+		int lo, hi;
+		long total;
+
+		Store(int maxBuckets) {
+			this.maxBuckets = maxBuckets;
+		}
+
+		long get(int i) {
+			return counts[i - offset];
+		}
+
+		int span() {
+			return total==0? 0 : hi - lo + 1;
+		}
+
+		void add(int i, long c) {
+			if (total == 0) {
+				if (counts.length == 0) counts = new long[32];
+				offset = i - counts.length / 2;
+				lo = hi = i;
+			} else {
+				// too small to keep? fold into the lowest kept bucket
+				if (i < hi - maxBuckets + 1) i = hi - maxBuckets + 1;
+				if (i > hi) {
+					// a new high: the lowest buckets may need folding
+					int newLo = Math.max(lo, i - maxBuckets + 1);
+					if (newLo > lo) fold(newLo);
+					hi = i;
+				}
+				if (i < lo) lo = i;
+				ensureCapacity();
+			}
+			counts[i - offset] += c;
+			total += c;
+		}
+
+		/**
+		 * Merge buckets below newLo into newLo
+		 */
+		private void fold(int newLo) {
+			long c = 0;
+			for (int j = lo; j < newLo && j <= hi; j++) {
+				c += counts[j - offset];
+				counts[j - offset] = 0;
+			}
+			if (newLo > hi) {
+				// everything folds away -- re-centre on newLo
+				hi = newLo;
+				lo = newLo;
+				ensureCapacity();
+			}
+			lo = newLo;
+			counts[newLo - offset] += c;
+		}
+
+		private void ensureCapacity() {
+			if (lo >= offset && hi < offset + counts.length) return;
+			int span = hi - lo + 1;
+			long[] nc = new long[Math.max(span * 2, 32)];
+			int newOffset = lo - (nc.length - span) / 2;
+			// copy over what's in range
+			for (int j = Math.max(offset, newOffset); j < Math.min(offset + counts.length, newOffset + nc.length); j++) {
+				nc[j - newOffset] = counts[j - offset];
+			}
+			counts = nc;
+			offset = newOffset;
+		}
+
+		void merge(Store other) {
+			if (other.total == 0) return;
+			for (int i = other.lo; i <= other.hi; i++) {
+				long c = other.get(i);
+				if (c != 0) add(i, c);
+			}
+		}
+
+		void write(ByteBuffer bb) {
+			int nonEmpty = 0;
+			for (int i = lo; total != 0 && i <= hi; i++) {
+				if (get(i) != 0) nonEmpty++;
+			}
+			putVarLong(bb, nonEmpty);
+			int prev = 0;
+			for (int i = lo; total != 0 && i <= hi; i++) {
+				long c = get(i);
+				if (c == 0) continue;
+				// zig-zag the first (which can be negative), then deltas
+				long d = i - prev;
+				putVarLong(bb, (d << 1) ^ (d >> 63));
+				putVarLong(bb, c);
+				prev = i;
+			}
+		}
+
+		void read(ByteBuffer bb) {
+			int nonEmpty = (int) getVarLong(bb);
+			int prev = 0;
+			for (int k = 0; k < nonEmpty; k++) {
+				long zz = getVarLong(bb);
+				int i = prev + (int) ((zz >>> 1) ^ -(zz & 1));
+				add(i, getVarLong(bb));
+				prev = i;
+			}
+		}
+	}
+}
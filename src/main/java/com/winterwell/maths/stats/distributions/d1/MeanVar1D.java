@@ -0,0 +1,189 @@
+package com.winterwell.maths.stats.distributions.d1;
+
+import java.util.Random;
+
+import com.winterwell.utils.containers.Range;
+
+/**
+ * A distribution summarised by its first two moments: count, mean & variance.
+ * Everything else (density, probabilities, confidence points, samples) uses a
+ * Gaussian approximation.
+ * <p>
+ * This is an immutable snapshot. Keep the running sums elsewhere (e.g. in a
+ * DataLog cell) and build one of these when asked.
+ *
+ * @author daniel
+ *         <p>
+ *         <b>Copyright & license</b>: (c) Winterwell Associates Ltd, all rights
+ *         reserved. This class is NOT formally a part of the com.winterwell.utils
+ *         library. In particular, licenses for the com.winterwell.utils library do
+ *         not apply to this file.
+ *         </p>
+ */
+public final class MeanVar1D implements IDistribution1D {
+
+	private static final double SQRT2 = Math.sqrt(2);
+	private static final double SQRT2PI = Math.sqrt(2 * Math.PI);
+
+	private final long n;
+	private final double mean;
+	private final double var;
+	private Random random = new Random();
+
+	/**
+	 * @param n number of observations
+	 * @param mean
+	 * @param var population variance. Must be >= 0
+	 */
+	public MeanVar1D(long n, double mean, double var) {
+		assert var >= 0 : var;
+		this.n = n;
+		this.mean = mean;
+		this.var = var;
+	}
+
+	/**
+	 * Build from running sums.
+	 * @param n
+	 * @param sum sum of x
+	 * @param sumSq sum of x^2
+	 */
+	public static MeanVar1D fromSums(long n, double sum, double sumSq) {
+		if (n == 0) return new MeanVar1D(0, 0, 0);
+		double m = sum / n;
+		// guard against rounding pushing this slightly negative
+		double v = Math.max(0, sumSq / n - m * m);
+		return new MeanVar1D(n, m, v);
+	}
+
+	/**
+	 * @return the number of observations
+	 */
+	public long getCount() {
+		return n;
+	}
+
+	@Override
+	public double getMean() {
+		return mean;
+	}
+
+	@Override
+	public double getVariance() {
+		return var;
+	}
+
+	@Override
+	public double getStdDev() {
+		return Math.sqrt(var);
+	}
+
+	@Override
+	public double density(double x) {
+		if (var == 0) {
+			return x == mean ? Double.POSITIVE_INFINITY : 0;
+		}
+		double sd = getStdDev();
+		double z = (x - mean) / sd;
+		return Math.exp(-0.5 * z * z) / (sd * SQRT2PI);
+	}
+
+	@Override
+	public double prob(double min, double max) {
+		if (max <= min) return 0;
+		return cdf(max) - cdf(min);
+	}
+
+	private double cdf(double x) {
+		if (x == Double.NEGATIVE_INFINITY) return 0;
+		if (x == Double.POSITIVE_INFINITY) return 1;
+		if (var == 0) {
+			return x <= mean ? 0 : 1;
+		}
+		return 0.5 * (1 + erf((x - mean) / (getStdDev() * SQRT2)));
+	}
+
+	/**
+	 * Abramowitz & Stegun 7.1.26 (max error about 1.5e-7)
+	 */
+	static double erf(double z) {
+		double t = 1 / (1 + 0.3275911 * Math.abs(z));
+		double y = 1 - t * (0.254829592 + t * (-0.284496736
+				+ t * (1.421413741 + t * (-1.453152027 + t * 1.061405429))))
+				* Math.exp(-z * z);
+		return z >= 0 ? y : -y;
+	}
+
+	@Override
+	public double getConfidence(double totalWeight) {
+		assert totalWeight >= 0 && totalWeight <= 1 : totalWeight;
+		if (totalWeight == 0) return Double.NEGATIVE_INFINITY;
+		if (totalWeight == 1) return Double.POSITIVE_INFINITY;
+		return mean + getStdDev() * inverseNormal(totalWeight);
+	}
+
+	/**
+	 * Acklam's rational approximation to the standard normal inverse CDF
+	 * (relative error about 1e-9).
+	 */
+	static double inverseNormal(double p) {
+		final double[] a = { -3.969683028665376e+01, 2.209460984245205e+02,
+				-2.759285104469687e+02, 1.383577518672690e+02,
+				-3.066479806614716e+01, 2.506628277459239e+00 };
+		final double[] b = { -5.447609879822406e+01, 1.615858368580409e+02,
+				-1.556989798598866e+02, 6.680131188771972e+01,
+				-1.328068155288572e+01 };
+		final double[] c = { -7.784894002430293e-03, -3.223964580411365e-01,
+				-2.400758277161838e+00, -2.549732539343734e+00,
+				4.374664141464968e+00, 2.938163982698783e+00 };
+		final double[] d = { 7.784695709041462e-03, 3.224671290700398e-01,
+				2.445134137142996e+00, 3.754408661907416e+00 };
+		final double pLow = 0.02425;
+		if (p < pLow) {
+			double q = Math.sqrt(-2 * Math.log(p));
+			return (((((c[0] * q + c[1]) * q + c[2]) * q + c[3]) * q + c[4]) * q + c[5])
+					/ ((((d[0] * q + d[1]) * q + d[2]) * q + d[3]) * q + 1);
+		}
+		if (p > 1 - pLow) {
+			double q = Math.sqrt(-2 * Math.log(1 - p));
+			return -(((((c[0] * q + c[1]) * q + c[2]) * q + c[3]) * q + c[4]) * q + c[5])
+					/ ((((d[0] * q + d[1]) * q + d[2]) * q + d[3]) * q + 1);
+		}
+		double q = p - 0.5;
+		double r = q * q;
+		return (((((a[0] * r + a[1]) * r + a[2]) * r + a[3]) * r + a[4]) * r + a[5]) * q
+				/ (((((b[0] * r + b[1]) * r + b[2]) * r + b[3]) * r + b[4]) * r + 1);
+	}
+
+	@Override
+	public Range getSupport() {
+		if (var == 0) return new Range(mean, mean);
+		return Range.REALS;
+	}
+
+	@Override
+	public boolean isNormalised() {
+		return true;
+	}
+
+	@Override
+	public void normalise() {
+		// already normalised
+	}
+
+	@Override
+	public Double sample() {
+		return mean + random.nextGaussian() * getStdDev();
+	}
+
+	@Override
+	public void setRandomSource(Random randomSrc) {
+		this.random = randomSrc;
+	}
+
+	@Override
+	public String toString() {
+		return "MeanVar1D[n=" + n + ", mean=" + mean + ", sd=" + getStdDev() + "]";
+	}
+
+}
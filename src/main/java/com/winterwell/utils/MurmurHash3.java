@@ -0,0 +1,186 @@
+package com.winterwell.utils;
+
+/**
+ * Streaming MurmurHash3 (the x64 128-bit variant). A fast non-cryptographic
+ * hash: use it for ids & bucketing, NOT for anything security related.
+ * <p>
+ * Feed it bytes, chars or Strings, then call {@link #toHex()} (or
+ * {@link #getH1()}/{@link #getH2()}). Nothing is allocated except the final hex
+ * String. Not thread-safe -- use one per thread, and {@link #reset()} between
+ * uses.
+ * <p>
+ * Chars are fed as 2 bytes (UTF-16LE), so hashing a String is NOT the same as
+ * hashing its UTF-8 bytes.
+ *
+ * @author daniel
+ * @testedby MurmurHash3Test
+ */
+public final class MurmurHash3 {
+
+	private static final long C1 = 0x87c37b91114253d5L;
+	private static final long C2 = 0x4cf5ad432745937fL;
+
+	private final long seed;
+	private long h1, h2;
+	/**
+	 * the partial 16-byte block
+	 */
+	private long k1, k2;
+	/**
+	 * bytes in the partial block
+	 */
+	private int pos;
+	private long length;
+
+	public MurmurHash3() {
+		this(0);
+	}
+
+	public MurmurHash3(long seed) {
+		this.seed = seed;
+		reset();
+	}
+
+	public MurmurHash3 reset() {
+		h1 = seed;
+		h2 = seed;
+		k1 = 0;
+		k2 = 0;
+		pos = 0;
+		length = 0;
+		return this;
+	}
+
+	public MurmurHash3 update(byte b) {
+		long v = b & 0xffL;
+		if (pos < 8) {
+			k1 |= v << (pos << 3);
+		} else {
+			k2 |= v << ((pos - 8) << 3);
+		}
+		pos++;
+		length++;
+		if (pos == 16) {
+			block();
+		}
+		return this;
+	}
+
+	public MurmurHash3 update(byte[] bytes, int offset, int len) {
+		for (int i = offset, n = offset + len; i < n; i++) {
+			update(bytes[i]);
+		}
+		return this;
+	}
+
+	public MurmurHash3 update(char c) {
+		update((byte) c);
+		update((byte) (c >>> 8));
+		return this;
+	}
+
+	public MurmurHash3 update(CharSequence s) {
+		for (int i = 0, n = s.length(); i < n; i++) {
+			update(s.charAt(i));
+		}
+		return this;
+	}
+
+	private void block() {
+		h1 ^= mixK1(k1);
+		h1 = Long.rotateLeft(h1, 27);
+		h1 += h2;
+		h1 = h1 * 5 + 0x52dce729;
+		h2 ^= mixK2(k2);
+		h2 = Long.rotateLeft(h2, 31);
+		h2 += h1;
+		h2 = h2 * 5 + 0x38495ab5;
+		k1 = 0;
+		k2 = 0;
+		pos = 0;
+	}
+
+	private static long mixK1(long k) {
+		k *= C1;
+		k = Long.rotateLeft(k, 31);
+		k *= C2;
+		return k;
+	}
+
+	private static long mixK2(long k) {
+		k *= C2;
+		k = Long.rotateLeft(k, 33);
+		k *= C1;
+		return k;
+	}
+
+	private static long fmix64(long k) {
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
+
+	// finalisation -- done into fields fh1, fh2 so the stream state is untouched
+	private long fh1, fh2;
+
+	private void finish() {
+		long a = h1, b = h2;
+		if (pos > 8) b ^= mixK2(k2);
+		if (pos > 0) a ^= mixK1(k1);
+		a ^= length;
+		b ^= length;
+		a += b;
+		b += a;
+		a = fmix64(a);
+		b = fmix64(b);
+		a += b;
+		b += a;
+		fh1 = a;
+		fh2 = b;
+	}
+
+	/**
+	 * @return the first 64 bits of the hash of everything so far
+	 */
+	public long getH1() {
+		finish();
+		return fh1;
+	}
+
+	/**
+	 * @return the second 64 bits of the hash of everything so far
+	 */
+	public long getH2() {
+		finish();
+		return fh2;
+	}
+
+	/**
+	 * @return 32 hex chars, in the same (little-endian byte) order as e.g. Guava's HashCode.toString()
+	 */
+	public String toHex() {
+		finish();
+		char[] out = new char[32];
+		appendHex(out, 0, fh1);
+		appendHex(out, 16, fh2);
+		return new String(out);
+	}
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private static void appendHex(char[] out, int offset, long v) {
+		for (int i = 0; i < 8; i++) {
+			int b = (int) (v >>> (i << 3)) & 0xff;
+			out[offset + 2*i] = HEX[b >>> 4];
+			out[offset + 2*i + 1] = HEX[b & 0xf];
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "MurmurHash3[" + toHex() + "]";
+	}
+}
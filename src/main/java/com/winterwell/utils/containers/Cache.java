@@ -12,6 +12,7 @@ import java.util.Map;
 import java.util.Set;
 
 import com.winterwell.datalog.DataLog;
+import com.winterwell.datalog.DataLogCounter;
 import com.winterwell.utils.IFilter;
 import com.winterwell.utils.IFn;
 
@@ -164,6 +165,8 @@ public class Cache<Key, Value> extends AbstractMap2<Key, Value> {
 	 */
 	private String stats;
 
+	private DataLogCounter hitStat, missStat, sizeStat;
+
 	/**
 	 * Switch on (or off) Stat logging.
 	 * 
@@ -172,9 +175,15 @@ public class Cache<Key, Value> extends AbstractMap2<Key, Value> {
 	 */
 	public Cache<Key, Value> setStats(String statTag) {
 		this.stats = statTag;
+		if (stats == null) {
+			hitStat = null; missStat = null; sizeStat = null;
+			return this;
+		}
+		hitStat = DataLog.counter("Cache_hit", stats);
+		missStat = DataLog.counter("Cache_miss", stats);
+		sizeStat = DataLog.counter("Cache_size", stats);
 		// check that we have datalog on the classpath
-		if (stats != null)
-			DataLog.get("Cache_hit", stats);
+		hitStat.get();
 		return this;
 	}
 
@@ -188,13 +197,15 @@ public class Cache<Key, Value> extends AbstractMap2<Key, Value> {
 		SoftReference<Value> ref = backing.get(k);
 		Value v = ref == null ? null : ref.get();
 		if (v == null) {
-			if (stats != null) {
-				DataLog.count(1, "Cache_miss", stats);
+			DataLogCounter ms = missStat;
+			if (ms != null) {
+				ms.count(1);
 			}
 			return null;
 		} else {
-			if (stats != null) {
-				DataLog.count(1, "Cache_hit", stats);
+			DataLogCounter hs = hitStat;
+			if (hs != null) {
+				hs.count(1);
 			}
 		}
 		return v;
@@ -244,8 +255,9 @@ public class Cache<Key, Value> extends AbstractMap2<Key, Value> {
 		SoftReference<Value> old = backing.put(canonical(k), new SoftReference(
 				v));
 		// maybePersist();
-		if (stats != null) {
-			DataLog.mean(size(), "Cache_size", stats);
+		DataLogCounter ss = sizeStat;
+		if (ss != null) {
+			ss.mean(size());
 		}
 		return old == null ? null : old.get();
 	}
@@ -0,0 +1,342 @@
+package com.winterwell.utils.log;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+
+import com.winterwell.utils.Printer;
+import com.winterwell.utils.io.FileUtils;
+import com.winterwell.utils.time.Time;
+
+/**
+ * An in-memory "flight recorder": keeps the last N reports in a preallocated
+ * ring, so that after an incident you can see the DEBUG context which never
+ * went to the log file.
+ * <p>
+ * Records are compact: the time, the level, the tag as an id into a small
+ * dictionary, and references to the thread string, the message (cut to a max
+ * length) and exception. Threads are not put in a dictionary, as thread strings
+ * are unbounded (e.g. JDK 21 adds a unique #id to every thread). Recording is lock-free -- a counter bump and a few array writes.
+ * <p>
+ * To keep DEBUG context while only writing WARNINGs to file, leave Log's min
+ * level low and filter the file, e.g. <code>logFile.setFilter(r -> r.level.intValue() >= Level.WARNING.intValue())</code>.
+ * <p>
+ * Query with {@link #query(String, Level, Time, Time, String)}, write out with
+ * {@link #dump(File)}, or set {@link #setDumpOnEscalate(File)} to get a dump
+ * whenever {@link Log#escalate(Throwable)} is called.
+ *
+ * @author daniel
+ * @testedby FlightRecorderLogListenerTest
+ */
+public final class FlightRecorderLogListener implements ILogListener {
+
+	private static final String LOGTAG = "FlightRecorder";
+
+	/**
+	 * Rough size of a record, excluding the message text
+	 */
+	private static final int RECORD_BYTES = 64;
+
+	public static final int DEFAULT_MAX_MESSAGE = 1000;
+
+	/**
+	 * Max distinct tags. Beyond this, they are recorded as "other".
+	 */
+	private static final int MAX_NAMES = 1 << 14;
+
+	private static final long ESCALATE_DUMP_GAP = TimeUnit.MINUTES.toNanos(1);
+
+	private final int mask;
+
+	private final int maxMessage;
+
+	/**
+	 * The sequence number held in each slot. -1 while being written.
+	 */
+	private final AtomicLongArray seqs;
+	private final long[] times;
+	private final Level[] levels;
+	private final int[] tags;
+	/**
+	 * Report.thread, as-is (no copy)
+	 */
+	private final String[] threads;
+	private final String[] msgs;
+	private final Throwable[] exs;
+
+	private final AtomicLong next = new AtomicLong();
+
+	private final Names tagNames = new Names();
+
+	private volatile File dumpDir;
+	private final AtomicLong lastEscalateDump = new AtomicLong(System.nanoTime() - ESCALATE_DUMP_GAP);
+
+	/**
+	 * @param capacity How many reports to keep (rounded up to a power of 2)
+	 */
+	public FlightRecorderLogListener(int capacity) {
+		this(capacity, DEFAULT_MAX_MESSAGE);
+	}
+
+	/**
+	 * @param capacity How many reports to keep (rounded up to a power of 2)
+	 * @param maxMessage Longer messages are cut
+	 */
+	public FlightRecorderLogListener(int capacity, int maxMessage) {
+		assert capacity > 0 && maxMessage > 0 : capacity+" "+maxMessage;
+		int n = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		this.mask = n - 1;
+		this.maxMessage = maxMessage;
+		seqs = new AtomicLongArray(n);
+		for (int i = 0; i < n; i++) {
+			seqs.set(i, -1);
+		}
+		times = new long[n];
+		levels = new Level[n];
+		tags = new int[n];
+		threads = new String[n];
+		msgs = new String[n];
+		exs = new Throwable[n];
+	}
+
+	/**
+	 * @param maxBytes Roughly how much memory to use, at most (exceptions aside)
+	 * @return a recorder which keeps as many reports as will fit, if every message were full length
+	 */
+	public static FlightRecorderLogListener withMaxMemory(long maxBytes) {
+		long perRecord = RECORD_BYTES + 2L * DEFAULT_MAX_MESSAGE;
+		long n = Math.max(2, Math.min(1 << 30, maxBytes / perRecord));
+		// round down, to stay within budget
+		return new FlightRecorderLogListener((int) Long.highestOneBit(n), DEFAULT_MAX_MESSAGE);
+	}
+
+	@Override
+	public void listen(Report report) {
+		long seq = next.getAndIncrement();
+		int i = (int) (seq & mask);
+		String msg = report.getMessage();
+		if (msg != null && msg.length() > maxMessage) {
+			msg = msg.substring(0, maxMessage);
+		}
+		// mark as being written, then fill in.
+		// NB: if the ring wraps round during a (very slow) write, two writers can share a slot
+		// -- tolerable for a diagnostic record.
+		seqs.set(i, -1);
+		VarHandle.storeStoreFence();
+		times[i] = report.getTime().getTime();
+		levels[i] = report.level;
+		tags[i] = tagNames.id(report.tag);
+		threads[i] = report.thread;
+		msgs[i] = msg;
+		exs[i] = report.ex;
+		seqs.set(i, seq);
+	}
+
+	/**
+	 * @return the number of reports recorded, ever
+	 */
+	public long getCount() {
+		return next.get();
+	}
+
+	public int getCapacity() {
+		return mask + 1;
+	}
+
+	/**
+	 * @return all the kept reports, oldest first
+	 */
+	public List<Record> getRecords() {
+		return query(null, null, null, null, null);
+	}
+
+	/**
+	 * Any of the parameters can be null for "any".
+	 * @param tag Match this tag
+	 * @param minLevel Match this level and above
+	 * @param from Match this time and after
+	 * @param to Match before this time
+	 * @param thread Match threads whose name (as in {@link Thread#toString()}) contains this
+	 * @return the matching kept reports, oldest first. Reports being written as this runs may be missed.
+	 */
+	public List<Record> query(String tag, Level minLevel, Time from, Time to, String thread) {
+		int tagId = tag == null ? -1 : tagNames.find(tag);
+		if (tag != null && tagId < 0) return new ArrayList<>();
+		int min = minLevel == null ? Integer.MIN_VALUE : minLevel.intValue();
+		long start = from == null ? Long.MIN_VALUE : from.getTime();
+		long end = to == null ? Long.MAX_VALUE : to.getTime();
+		long hi = next.get();
+		long lo = Math.max(0, hi - getCapacity());
+		List<Record> list = new ArrayList<>();
+		for (long seq = lo; seq < hi; seq++) {
+			int i = (int) (seq & mask);
+			if (seqs.get(i) != seq) continue; // overwritten or in progress
+			long time = times[i];
+			Level level = levels[i];
+			int tid = tags[i];
+			String threadName = threads[i];
+			String msg = msgs[i];
+			Throwable ex = exs[i];
+			VarHandle.loadLoadFence();
+			if (seqs.get(i) != seq) continue; // changed under us
+			if (tagId >= 0 && tid != tagId) continue;
+			if (level == null || level.intValue() < min) continue;
+			if (time < start || time >= end) continue;
+			if (thread != null && (threadName == null || ! threadName.contains(thread))) continue;
+			list.add(new Record(time, level, tagNames.name(tid), threadName, msg, ex));
+		}
+		return list;
+	}
+
+	/**
+	 * Write out the kept reports, oldest first, one per line (plus stack traces).
+	 */
+	public void dump(File file) throws IOException {
+		List<Record> records = getRecords();
+		BufferedWriter w = FileUtils.getWriter(file);
+		try {
+			for (Record record : records) {
+				w.write(record.toString());
+				w.write('\n');
+			}
+		} finally {
+			FileUtils.close(w);
+		}
+	}
+
+	/**
+	 * @param dir If set, {@link Log#escalate(Throwable)} triggers a dump into this directory
+	 * (at most once a minute). null to switch off.
+	 */
+	public FlightRecorderLogListener setDumpOnEscalate(File dir) {
+		this.dumpDir = dir;
+		return this;
+	}
+
+	/**
+	 * Called by {@link Log#escalate(Throwable)}
+	 * @return the dump file, or null
+	 */
+	File escalated(Throwable error) {
+		File dir = dumpDir;
+		if (dir == null) return null;
+		long now = System.nanoTime();
+		long last = lastEscalateDump.get();
+		if (now - last < ESCALATE_DUMP_GAP || ! lastEscalateDump.compareAndSet(last, now)) {
+			return null;
+		}
+		File f = new File(dir, "flight-"+System.currentTimeMillis()+".log");
+		try {
+			dir.mkdirs();
+			dump(f);
+			Log.w(LOGTAG, "Dumped "+getCount()+" reports to "+f+" on escalate: "+error);
+			return f;
+		} catch (Throwable ex) {
+			// Don't let this get in the way of the escalation
+			System.err.println(LOGTAG+": dump failed: "+ex);
+			return null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return LOGTAG + "[" + getCapacity() + ", count=" + getCount() + "]";
+	}
+
+	/**
+	 * One kept report.
+	 */
+	public static final class Record {
+		public final long time;
+		public final Level level;
+		public final String tag;
+		public final String thread;
+		public final String message;
+		/** Can be null */
+		public final Throwable ex;
+
+		Record(long time, Level level, String tag, String thread, String message, Throwable ex) {
+			this.time = time;
+			this.level = level;
+			this.tag = tag;
+			this.thread = thread;
+			this.message = message;
+			this.ex = ex;
+		}
+
+		public Time getTime() {
+			return new Time(time);
+		}
+
+		/**
+		 * [time] LEVEL #tag message thread (+ stack trace)
+		 */
+		@Override
+		public String toString() {
+			String s = "[" + getTime() + "] " + level + " #" + tag + " " + message + " " + thread;
+			return ex == null ? s : s + "\n" + Printer.toString(ex, true);
+		}
+	}
+
+	/**
+	 * A grow-only dictionary of tags to small ids.
+	 * Lookups are lock-free; only adding a new name locks.
+	 */
+	private static final class Names {
+		private static final String OTHER = "other";
+
+		private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+		private volatile String[] names = new String[16];
+		private int size;
+
+		Names() {
+			names[0] = OTHER;
+			size = 1;
+		}
+
+		int id(String name) {
+			if (name == null) name = "null";
+			Integer id = ids.get(name);
+			if (id != null) return id;
+			return add(name);
+		}
+
+		private synchronized int add(String name) {
+			Integer id = ids.get(name);
+			if (id != null) return id;
+			if (size >= MAX_NAMES) return 0;
+			String[] ns = names;
+			if (size == ns.length) {
+				ns = Arrays.copyOf(ns, ns.length * 2);
+			}
+			ns[size] = name;
+			// publish the array before the id
+			names = ns;
+			ids.put(name, size);
+			return size++;
+		}
+
+		/**
+		 * @return the id, or -1
+		 */
+		int find(String name) {
+			Integer id = ids.get(name);
+			return id == null ? -1 : id;
+		}
+
+		String name(int id) {
+			String[] ns = names;
+			String n = id < ns.length ? ns[id] : null;
+			return n == null ? OTHER : n;
+		}
+	}
+}
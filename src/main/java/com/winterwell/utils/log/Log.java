@@ -7,10 +7,10 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.regex.Pattern;
 
-import com.winterwell.datalog.Rate;
 import com.winterwell.utils.Environment;
 import com.winterwell.utils.IFilter;
 import com.winterwell.utils.IFn;
@@ -20,12 +20,8 @@ import com.winterwell.utils.ReflectionUtils;
 import com.winterwell.utils.StrUtils;
 import com.winterwell.utils.Utils;
 import com.winterwell.utils.containers.ArrayMap;
-import com.winterwell.utils.containers.Cache;
 import com.winterwell.utils.containers.Containers;
 import com.winterwell.utils.io.ConfigFactory;
-import com.winterwell.utils.time.RateCounter;
-import com.winterwell.utils.time.TUnit;
-import com.winterwell.utils.time.Time;
 
 /**
  * Yet another logging system. We use Android LogCat style commands, e.g.
@@ -47,6 +43,7 @@ public class Log {
 	 * @param msg
 	 */
 	public static void d(Object msg) {
+		if (levels.lowest > DEBUG.intValue()) return; // skip the stack-walk
 		String cn = ReflectionUtils.getCallingClassSimpleName(1);
 		d(cn, msg);
 	}
@@ -55,6 +52,7 @@ public class Log {
 	 * @param msg
 	 */
 	public static void i(Object msg) {
+		if (levels.lowest > INFO.intValue()) return; // skip the stack-walk
 		String cn = ReflectionUtils.getCallingClassSimpleName(1);
 		i(cn, msg);
 	}
@@ -67,8 +65,6 @@ public class Log {
 	private static final Key<String> ENV_CONTEXT_MESSAGE = new Key<String>(
 			"Log.context");
 
-	private static Map<String,Level> sensitiveTags = new HashMap();
-
 	private static ILogListener[] listeners = new ILogListener[0];
 
 	/**
@@ -87,7 +83,35 @@ public class Log {
 	public static final Level VERBOSE = Level.FINEST;
 	public static final Level OFF = Level.OFF;	
 	
-	private static Level MIN_LEVEL = DEBUG;
+	/**
+	 * The min levels: the default, plus per-tag. Copy-on-write, so reads are lock-free.
+	 */
+	private static volatile Levels levels = new Levels(DEBUG, new HashMap());
+
+	/**
+	 * An immutable snapshot of the min levels, with the range precomputed so
+	 * most checks don't need the map.
+	 */
+	private static final class Levels {
+		final Level dflt;
+		final Map<String, Level> tags;
+		/** Anything below this is ignored whatever its tag */
+		final int lowest;
+		/** Anything at or above this is reported whatever its tag */
+		final int highest;
+
+		Levels(Level dflt, Map<String, Level> tags) {
+			this.dflt = dflt;
+			this.tags = tags;
+			int lo = dflt.intValue(), hi = lo;
+			for (Level l : tags.values()) {
+				lo = Math.min(lo, l.intValue());
+				hi = Math.max(hi, l.intValue());
+			}
+			lowest = lo;
+			highest = hi;
+		}
+	}
 
 	static {
 		stdInit();
@@ -110,7 +134,7 @@ public class Log {
 
 	private static void stdInit() {
 		// switch off logging during log init
-		Level minLevel = MIN_LEVEL;
+		Level minLevel = levels.dflt;
 		setMinLevel(OFF);
 		// Add a simple console output listener
 		addListener(new SystemOutLogListener());
@@ -142,7 +166,9 @@ public class Log {
 	
 	public static void setConfig(LogConfig config) {
 		Log.config = config;
-		sensitiveTags.clear();
+		synchronized (Log.class) {
+			levels = new Levels(levels.dflt, new HashMap());
+		}
 		if (config.ignoretags!=null) {
 			for(String tag : config.ignoretags) {
 				setMinLevel(tag, OFF);
@@ -204,6 +230,12 @@ public class Log {
 		}
 		// throttle cache??
 		
+		// off-thread listeners?
+		if (config.asyncDispatch && dispatcher == null) {
+			setDispatcher(new LogDispatcher(config.asyncCapacity, config.asyncOverflow,
+					config.asyncKeepLevel==null? null : Level.parse(config.asyncKeepLevel), config.logTimeout));
+		}
+		
 		// all set (let's log that)
 		Log.i("log", "setConfig "+ReflectionUtils.getSomeStack(10));
 	}
@@ -223,11 +255,26 @@ public class Log {
 	 * @param tag Can be null. You can set some tags to be extra sensitive
 	 */
 	public static Level getMinLevel(String tag) {
-		if (tag!=null) {
-			Level ml = sensitiveTags.get(tag);
+		Levels ls = levels;
+		if (tag!=null && ! ls.tags.isEmpty()) {
+			Level ml = ls.tags.get(tag);
 			if (ml!=null) return ml;
 		}
-		return MIN_LEVEL;
+		return ls.dflt;
+	}
+
+	/**
+	 * The fast check: would a report at this level be kept (before throttling
+	 * and filters)? Lock-free, and usually no map lookup.
+	 * @param tag Can be null
+	 */
+	public static boolean isLoggable(String tag, Level level) {
+		int lv = level.intValue();
+		Levels ls = levels;
+		if (lv < ls.lowest) return false;
+		if (lv >= ls.highest) return true;
+		Level ml = tag==null? null : ls.tags.get(tag);
+		return lv >= (ml==null? ls.dflt : ml).intValue();
 	}
 
 	/**
@@ -273,8 +320,7 @@ public class Log {
 	 */
 	static void report(String tag, Object msg, Level level, Throwable ex) {
 		// Ignore?
-		Level minLevel = getMinLevel(tag);
-		if (minLevel.intValue() > level.intValue()) {
+		if ( ! isLoggable(tag, level)) {
 			return;
 		}
 		// stochastic (off by default)
@@ -342,13 +388,15 @@ public class Log {
 				
 		// Note: using an array for listeners avoids any concurrent-mod
 		// exceptions
+		LogDispatcher d = dispatcher;
+		boolean async = d != null && ! d.isClosed() && ! d.isDispatcherThread();
 		for (ILogListener listener : listeners) {
-			try {
-				listener.listen(report);
-			} catch (Throwable ex2) {
-				// swallow if something goes wrong
-				ex2.printStackTrace();
-			}
+			// async? then only ThreadedListeners are called here
+			if (async && ! (listener instanceof ThreadedListener)) continue;
+			listen(listener, report);
+		}
+		if (async) {
+			d.offer(report);
 		}
 		// HACK escalate on error + #escalate?
 		if (level==Level.SEVERE && msgText.contains("#escalate")) {
@@ -356,6 +404,51 @@ public class Log {
 		}
 	}
 	
+	/**
+	 * Called by the {@link LogDispatcher} thread: pass the report to the
+	 * listeners (except ThreadedListeners, which were called by the logging thread).
+	 */
+	static void dispatch(Report report) {
+		for (ILogListener listener : listeners) {
+			if (listener instanceof ThreadedListener) continue;
+			listen(listener, report);
+		}
+	}
+
+	private static void listen(ILogListener listener, Report report) {
+		try {
+			listener.listen(report);
+		} catch (Throwable ex2) {
+			// swallow if something goes wrong
+			ex2.printStackTrace();
+		}
+	}
+
+	/**
+	 * null unless reports are dispatched off-thread
+	 */
+	private static volatile LogDispatcher dispatcher;
+
+	/**
+	 * Switch to (or from) off-thread delivery of reports to the listeners.
+	 * Closes any previous dispatcher, delivering what it had waiting.
+	 * @param dispatcher Can be null for the normal synchronous delivery
+	 */
+	public static void setDispatcher(LogDispatcher dispatcher) {
+		LogDispatcher old = Log.dispatcher;
+		Log.dispatcher = dispatcher;
+		if (old != null && old != dispatcher) {
+			old.close();
+		}
+	}
+
+	/**
+	 * @return the off-thread dispatcher, or null
+	 */
+	public static LogDispatcher getDispatcher() {
+		return dispatcher;
+	}
+
 	/**
 	 * 
 	 * @param tag
@@ -363,41 +456,22 @@ public class Log {
 	 * This is to protect against log file bloat
 	 */
 	private static boolean throttle(String tag) {
-		if (config==null) return false;
-		if (config.throttleWindow==null) {
-			return false;
-		}
-		Rate throttleAt = config.getThrottleAt(tag);
-		if (throttleAt==null) return false;
-		RateCounter rc = throttle.get(tag);
-		if (rc==null) {
-			rc = new RateCounter(config.throttleWindow);
-			rc.setFirstDtOverride(true);
-			throttle.put(tag, rc);
-			return false;
-		}
-		// shall we?
-		rc.plus(1);
-		if (throttleAt.isGreaterThan(rc.rate())) {
-			return false;
-		}
-		// first time? Or first time today?
-		Time tat = throttledAt.get(tag);
-		if (tat==null || tat.isBefore(new Time().minus(TUnit.DAY))) {
-			if ( ! "throttle".equals(tag)) {
-				Log.i("throttle", "Throttle (skip) log reports for tag #"+tag+" which is running at "+rc);
-			}
-			throttledAt.put(tag, new Time());
+		LogConfig c = config;
+		if (c==null) return false;
+		LogThrottle t = throttle;
+		if (t==null || t.config != c) {
+			// new config (a race here just means a fresh start)
+			t = new LogThrottle(c);
+			throttle = t;
 		}
-		return true;
+		return t.isThrottled(tag);
 	}
 	
 
 	/**
 	 * Throttle frequent messages
 	 */
-	static final Cache<String, RateCounter> throttle = new Cache<>(1000);
-	static final Cache<String, Time> throttledAt = new Cache<>(100);
+	private static volatile LogThrottle throttle;
 
 	@Deprecated
 	public static void report(String tag, Object msg, Level error) {
@@ -419,9 +493,9 @@ public class Log {
 	 * @param level
 	 *            DEBUG by default. Use Level.ALL to show everything. Events equal to or above this are reported.
 	 */
-	public static void setMinLevel(Level level) {
+	public static synchronized void setMinLevel(Level level) {
 		assert level != null;
-		MIN_LEVEL = level;
+		levels = new Levels(level, levels.tags);
 	}
 
 
@@ -439,7 +513,7 @@ public class Log {
 	 *            Optional. These will be printed out. Can be empty.
 	 */
 	public static void trace(Object... objects) {
-		if (MIN_LEVEL.intValue() > Level.FINEST.intValue())
+		if (levels.lowest > Level.FINEST.intValue())
 			return;
 		StackTraceElement caller = ReflectionUtils.getCaller();
 		Log.v(caller.getClass().getSimpleName(), caller.getMethodName() + ": "
@@ -488,6 +562,56 @@ public class Log {
 		report(tag, msg, INFO, null);
 	}
 
+	/**
+	 * Like {@link #i(String, Object)}, but msg is only made if the report will be kept
+	 * (e.g. <code>Log.i(tag, () -> "Big "+thing)</code>).
+	 */
+	public static void i(String tag, Supplier<?> msg) {
+		report(tag, msg, INFO);
+	}
+
+	/**
+	 * Like {@link #d(String, Object)}, but msg is only made if the report will be kept
+	 * -- so a switched-off debug line costs next to nothing.
+	 */
+	public static void d(String tag, Supplier<?> msg) {
+		report(tag, msg, DEBUG);
+	}
+
+	/**
+	 * Like {@link #v(String, Object)}, but msg is only made if the report will be kept.
+	 */
+	public static void v(String tag, Supplier<?> msg) {
+		report(tag, msg, VERBOSE);
+	}
+
+	/**
+	 * Like {@link #w(String, Object)}, but msg is only made if the report will be kept.
+	 */
+	public static void w(String tag, Supplier<?> msg) {
+		report(tag, msg, WARNING);
+	}
+
+	/**
+	 * Like {@link #e(String, Object)}, but msg is only made if the report will be kept.
+	 */
+	public static void e(String tag, Supplier<?> msg) {
+		report(tag, msg, ERROR);
+	}
+
+	private static void report(String tag, Supplier<?> msg, Level level) {
+		if ( ! isLoggable(tag, level)) {
+			return;
+		}
+		Object m;
+		try {
+			m = msg==null? null : msg.get();
+		} catch (Throwable ex) {
+			m = "Log message failed: "+ex;
+		}
+		report(tag, m, level, null);
+	}
+
 	/**
 	 * A debug report (uses Level.FINE)
 	 *
@@ -562,6 +686,12 @@ public class Log {
 	 */
 	public static void escalate(Throwable error) {
 		if (error==null) return;
+		// capture the context first
+		for (ILogListener listener : listeners) {
+			if (listener instanceof FlightRecorderLogListener) {
+				((FlightRecorderLogListener) listener).escalated(error);
+			}
+		}
 		try {
 			ESCALATOR.apply(error);
 		} catch (Exception e) {
@@ -579,11 +709,17 @@ public class Log {
 		ESCALATOR = escalator;
 	}
 
-	public static void setMinLevel(String tag, Level level) {
-		// thread safe put
-		HashMap map = new HashMap(sensitiveTags);
-		map.put(tag, level);
-		sensitiveTags = map;
+	/**
+	 * Set the min level for one tag, overriding the default.
+	 * @param level null to go back to the default
+	 */
+	public static synchronized void setMinLevel(String tag, Level level) {
+		// copy-on-write, so readers don't lock
+		Levels ls = levels;
+		HashMap<String, Level> map = new HashMap(ls.tags);
+		if (level==null) map.remove(tag);
+		else map.put(tag, level);
+		levels = new Levels(ls.dflt, map);
 	}
 	
 	public static LogConfig getConfig() {
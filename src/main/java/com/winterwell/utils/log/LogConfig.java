@@ -73,7 +73,7 @@ public class LogConfig {
 		throttleAtForTag.put(tag, n);
 	}
 	
-	@Option(description="How big can an individual log file get? e.g. 1gb or 100mb. Setting this does have a minor performance hit. The first overflow report will generate a 'file too big' log message.")
+	@Option(description="How big can an individual log file get? e.g. 1gb or 100mb. When a log file reaches this, it is rotated (keeping fileHistory old files, default 1).")
 	public String fileMaxSize;
 	
 	/**
@@ -87,10 +87,37 @@ public class LogConfig {
 	
 	@Option
 	public Integer fileHistory;
+
+	@Option(description="If true, rotated log files are gzipped (by a background thread).")
+	public boolean fileGzip = true;
 	
 	@Option(description="Time in milliseconds to allow for logging ops like file writes. Negative for no timeout.")
 	long logTimeout = 250;
 
+	@Option(description="If true, log reports are passed to the listeners by a background thread (see LogDispatcher), so slow listeners don't stall the logging threads.")
+	public boolean asyncDispatch;
+
+	@Option(description="asyncDispatch: max waiting reports (rounded up to a power of 2)")
+	public int asyncCapacity = 8192;
+
+	@Option(description="asyncDispatch: what to do when the queue is full")
+	public LogDispatcher.KOverflow asyncOverflow = LogDispatcher.KOverflow.DROP_BELOW_LEVEL;
+
+	@Option(description="asyncDispatch with DROP_BELOW_LEVEL: a java Level name. Reports at this level or above are kept (the oldest waiting report gets dropped instead).")
+	public String asyncKeepLevel = "WARNING";
+
+	@Option(description="If true, LogFile writes on a background thread, keeping the file open. Much faster for high log volumes.")
+	public boolean fileAsync;
+
+	@Option(description="Async LogFile: max lines waiting to be written (rounded up to a power of 2)")
+	public int fileAsyncBuffer = 8192;
+
+	@Option(description="Async LogFile: when to fsync")
+	public LogFile.KFlush fileFlush = LogFile.KFlush.INTERVAL;
+
+	@Option(description="Async LogFile: how often to fsync, for fileFlush=INTERVAL")
+	public Dt fileFlushInterval = new Dt(1, TUnit.SECOND);
+
 	/**
 	 * @see Level
 	 */
@@ -0,0 +1,197 @@
+package com.winterwell.utils.log;
+
+import java.io.Closeable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+
+import com.winterwell.utils.containers.ArrayMap;
+import com.winterwell.utils.threads.RingBuffer;
+
+/**
+ * Off-thread delivery of log reports: {@link Log#report(String, Object, Level, Throwable)}
+ * puts the {@link Report} into a bounded lock-free queue, and one dispatcher
+ * thread passes it to the listeners -- so a slow listener (e.g. a file on a
+ * busy disk) does not stall the threads that log.
+ * <p>
+ * {@link ThreadedListener}s are still called on the logging thread, as they
+ * filter by thread.
+ * <p>
+ * When the queue is full, {@link KOverflow} decides what gives. Dropped reports
+ * are counted, and the dispatcher sends a warning with the count.
+ * <p>
+ * A shutdown hook delivers what's waiting when the JVM exits. After that (or
+ * after {@link #close()}), reports are delivered on the logging thread again.
+ * <p>
+ * Set up via {@link LogConfig#asyncDispatch} or {@link Log#setDispatcher(LogDispatcher)}.
+ *
+ * @author daniel
+ * @testedby LogDispatcherTest
+ */
+public final class LogDispatcher implements Closeable {
+
+	public static enum KOverflow {
+		/** Drop the oldest waiting report to make room */
+		DROP_OLDEST,
+		/** Drop reports below the keep-level; make room for the others by dropping the oldest */
+		DROP_BELOW_LEVEL,
+		/** Wait (upto the timeout) for room, then drop */
+		BLOCK
+	}
+
+	private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+	private final RingBuffer<Report> queue;
+
+	private final KOverflow overflow;
+
+	private final int keepLevel;
+
+	private final long timeoutNanos;
+
+	private final Thread thread;
+
+	/**
+	 * Closes (i.e. drains) on JVM exit
+	 */
+	final Thread shutdownHook;
+
+	private volatile boolean closed;
+
+	private final LongAdder offered = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private volatile long delivered;
+	private long droppedNoted;
+
+	/**
+	 * Create and start.
+	 * @param capacity Max waiting reports (rounded up to a power of 2)
+	 * @param overflow What to do when full
+	 * @param keepLevel For {@link KOverflow#DROP_BELOW_LEVEL}. null for WARNING
+	 * @param timeout For {@link KOverflow#BLOCK}, in millisecs
+	 */
+	public LogDispatcher(int capacity, KOverflow overflow, Level keepLevel, long timeout) {
+		this.queue = new RingBuffer<>(capacity);
+		this.overflow = overflow==null? KOverflow.DROP_BELOW_LEVEL : overflow;
+		this.keepLevel = (keepLevel==null? Level.WARNING : keepLevel).intValue();
+		this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, timeout));
+		thread = new Thread(this::run, "Log.dispatcher");
+		thread.setDaemon(true);
+		thread.start();
+		shutdownHook = new Thread(this::close, "Log.dispatcher.shutdown");
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+	}
+
+	/**
+	 * @return false if the report was dropped
+	 */
+	boolean offer(Report report) {
+		offered.increment();
+		if (queue.offer(report)) return true;
+		switch (overflow) {
+		case BLOCK:
+			long start = System.nanoTime();
+			while (System.nanoTime() - start < timeoutNanos && ! closed) {
+				LockSupport.unpark(thread);
+				LockSupport.parkNanos(50_000);
+				if (queue.offer(report)) return true;
+			}
+			break;
+		case DROP_BELOW_LEVEL:
+			if (report.level.intValue() < keepLevel) break;
+			// fall through: important -- make room
+		case DROP_OLDEST:
+			for (int i = 0; i < 8; i++) {
+				if (queue.poll() != null) dropped.increment();
+				if (queue.offer(report)) return true;
+			}
+			break;
+		}
+		dropped.increment();
+		return false;
+	}
+
+	/**
+	 * @return true once closing -- reports should then be delivered on the calling thread
+	 */
+	boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * @return true if called from the dispatcher thread (e.g. a listener which logs)
+	 */
+	boolean isDispatcherThread() {
+		return Thread.currentThread() == thread;
+	}
+
+	private void run() {
+		while (true) {
+			boolean stopping = closed;
+			int n = 0;
+			Report report;
+			while ((report = queue.poll()) != null) {
+				Log.dispatch(report);
+				n++;
+			}
+			delivered += n;
+			noteDropped();
+			if (stopping && queue.isEmpty()) break;
+			if (n == 0) LockSupport.parkNanos(IDLE_NANOS);
+		}
+	}
+
+	private void noteDropped() {
+		long d = dropped.sum();
+		if (d == droppedNoted) return;
+		Report warning = new Report("log", "Log queue full: dropped "+(d - droppedNoted)+" reports ("+overflow+")",
+				Level.WARNING, null, null);
+		droppedNoted = d;
+		Log.dispatch(warning);
+	}
+
+	/**
+	 * Deliver what's waiting, then stop the dispatcher thread.
+	 */
+	@Override
+	public void close() {
+		if (closed) return;
+		closed = true;
+		if (Thread.currentThread() != shutdownHook) {
+			try {
+				Runtime.getRuntime().removeShutdownHook(shutdownHook);
+			} catch (IllegalStateException ex) {
+				// already shutting down
+			}
+		}
+		LockSupport.unpark(thread);
+		try {
+			thread.join(TimeUnit.SECONDS.toMillis(10));
+		} catch (InterruptedException e) {
+			// oh well
+		}
+	}
+
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	/**
+	 * @return offered, delivered, dropped, depth, capacity
+	 */
+	public ArrayMap<String, Object> getStats() {
+		return new ArrayMap(
+				"offered", offered.sum(),
+				"delivered", delivered,
+				"dropped", dropped.sum(),
+				"depth", queue.size(),
+				"capacity", queue.capacity()
+				);
+	}
+
+	@Override
+	public String toString() {
+		return "LogDispatcher[" + overflow + ", " + queue + "]";
+	}
+}
@@ -5,13 +5,11 @@ import java.io.File;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
-import java.util.logging.LogRecord;
-import java.util.logging.SimpleFormatter;
 
 import com.winterwell.utils.Dep;
 import com.winterwell.utils.IFilter;
 import com.winterwell.utils.ReflectionUtils;
-import com.winterwell.utils.StrUtils;
+import com.winterwell.utils.containers.ArrayMap;
 import com.winterwell.utils.io.ConfigBuilder;
 import com.winterwell.utils.io.FileUtils;
 import com.winterwell.utils.time.Dt;
@@ -25,6 +23,14 @@ import com.winterwell.utils.web.WebUtils;
  * thing, but it guarantees that the log will not lose the reports leading up to
  * a crash (ie. the important ones).
  * <p>
+ * For high log volumes, use {@link #setAsync(KFlush, Dt)} (or
+ * {@link LogConfig#fileAsync}): lines are handed to a writer thread which keeps
+ * the file open.
+ * <p>
+ * Rotation by time ({@link #setLogRotation(Dt, int)}) or size
+ * ({@link LogConfig#fileMaxSize}) just renames the file; old files are
+ * gzipped and pruned in the background (see {@link LogRotator}).
+ * <p>
  * LogFile's stay alive until they are closed! Use {@link #close()} to remove
  * this LogFile from the log listeners.
  * 
@@ -33,11 +39,32 @@ import com.winterwell.utils.web.WebUtils;
  */
 public class LogFile implements ILogListener, Closeable {
 
+	/**
+	 * For async mode: when to force written lines to disk (fsync).
+	 * Lines always reach the OS within a few millisecs.
+	 */
+	public static enum KFlush {
+		/** After every batch -- so every line gets forced before the writer moves on */
+		EVERY_RECORD,
+		/** Every flush-interval, and straight after a SEVERE line */
+		INTERVAL,
+		/** Only after a SEVERE line (and on close) */
+		ON_ERROR
+	}
+
 	private final File file;
 
 	Time nextRotation;
 
-	int rotationHistory;
+	/**
+	 * How many old files to keep. Used by time and size rotation.
+	 */
+	int rotationHistory = 1;
+
+	/**
+	 * If true (the default), rotated files are gzipped. See {@link LogConfig#fileGzip}
+	 */
+	boolean gzip = true;
 
 	Dt rotationInterval;
 
@@ -54,9 +81,15 @@ public class LogFile implements ILogListener, Closeable {
 	IFilter<Report> filter;
 
 	/**
-	 * See {@link LogConfig#fileMaxSize}
+	 * See {@link LogConfig#fileMaxSize}. When the file gets this big, it is rotated.
 	 */
-	private long fileMaxSize;
+	long fileMaxSize;
+
+	/**
+	 * Sync mode: roughly how big the file is (counting chars, not bytes), so
+	 * we don't ask the file-system on every line. -1 for unknown. Guarded by writeLock.
+	 */
+	private long fileBytes = -1;
 
 	private int lineMaxChars = 2048;
 	
@@ -72,20 +105,68 @@ public class LogFile implements ILogListener, Closeable {
 	 * @param f
 	 */
 	public LogFile(File f) {
+		this(f, Dep.has(LogConfig.class)? Dep.get(LogConfig.class) : new LogConfig());
+	}
+
+	/**
+	 * Create a log-listener and attach it to the Log.
+	 * 
+	 * @param f
+	 * @param lc Settings for rotation, async etc.
+	 */
+	public LogFile(File f, LogConfig lc) {
 		file = f;
 		if (file.getParentFile() != null) {
 			file.getParentFile().mkdirs();
 		}
 		Log.addListener(this);
-		// settings form config?
-		LogConfig lc = Dep.has(LogConfig.class)? Dep.get(LogConfig.class) : new LogConfig();
 		if (lc.fileHistory!=null && lc.fileInterval!=null) {
 			setLogRotation(lc.fileInterval, lc.fileHistory);
 		}
 		if (lc.fileMaxSize!=null) {
 			setFileMaxSize(ConfigBuilder.bytesFromString(lc.fileMaxSize));
+			if (lc.fileHistory!=null) rotationHistory = lc.fileHistory;
 		}
+		gzip = lc.fileGzip;
 		this.timeout = lc.logTimeout;
+		this.asyncBuffer = lc.fileAsyncBuffer;
+		if (lc.fileAsync) {
+			setAsync(lc.fileFlush, lc.fileFlushInterval);
+		}
+	}
+
+	/**
+	 * See {@link LogConfig#fileAsyncBuffer}
+	 */
+	private final int asyncBuffer;
+
+	/**
+	 * null unless async
+	 */
+	private volatile LogFileWriter async;
+
+	/**
+	 * Switch to async writing: lines go into a buffer, and a writer thread
+	 * writes them in batches to a file it keeps open.
+	 * @param flush When to fsync. null for {@link KFlush#INTERVAL}
+	 * @param flushInterval For {@link KFlush#INTERVAL}. null for 1 second.
+	 */
+	public LogFile setAsync(KFlush flush, Dt flushInterval) {
+		LogFileWriter old = async;
+		async = new LogFileWriter(this, asyncBuffer,
+				flush==null? KFlush.INTERVAL : flush,
+				flushInterval==null? 1000 : flushInterval.getMillisecs(),
+				timeout);
+		if (old != null) old.close();
+		return this;
+	}
+
+	/**
+	 * @return stats for async mode, or null
+	 */
+	public ArrayMap<String, Object> getAsyncStats() {
+		LogFileWriter w = async;
+		return w==null? null : w.getStats();
 	}
 
 	private void setFileMaxSize(long maxSize) {
@@ -99,6 +180,7 @@ public class LogFile implements ILogListener, Closeable {
 	 */
 	public void clear() {
 		FileUtils.write(file, "");
+		fileBytes = -1;
 	}
 
 	/**
@@ -107,6 +189,8 @@ public class LogFile implements ILogListener, Closeable {
 	@Override
 	public void close() {
 		Log.removeListener(this);
+		LogFileWriter w = async;
+		if (w != null) w.close();
 	}
 
 	public File getFile() {
@@ -139,6 +223,11 @@ public class LogFile implements ILogListener, Closeable {
 		}
 		// the text to write
 		String line = listen2_lineFromReport(report);
+		LogFileWriter w = async;
+		if (w != null) {
+			w.offer(line, report.level == Level.SEVERE);
+			return;
+		}
 		// handle threading -- but do not block for long
 		boolean gotLock = false;
 		try {
@@ -160,84 +249,53 @@ public class LogFile implements ILogListener, Closeable {
 
 
 	private String listen2_lineFromReport(Report report) {
-//		String lines = report.toString();
-		// Use Java SimpleFormatter to make LogStash happy out of the box
-		LogRecord lr = new LogRecord(report.level, report.tag+" #"+report.getMarker()+" "+report.getMessage()
-									+" "+report.context+" "+serverName);
-//		lr.setThreadID(report.threadId);
-		lr.setMillis(report.getTime().getTime());
-		lr.setThrown(report.ex);
-		// thread as logger name?
-		lr.setLoggerName(String.valueOf(report.thread));
-		String lines = sf.format(lr);
-		// a single line for each report to make it easier to grep
-		String line = lines.replaceAll("[\r\n]", " ") + "\n";
-		// cap length
-		line = StrUtils.ellipsize(line, lineMaxChars);
-		return line;
+		// the same layout as Java's SimpleFormatter, to make LogStash happy out of the box
+		return formatter.format(report);
 	}
 	
 	static final String serverName = WebUtils.hostname();
 	
-	SimpleFormatter sf = new SimpleFormatter();
+	private final LogLineFormatter formatter = new LogLineFormatter(serverName, lineMaxChars);
 
-	private transient boolean criedForHelp;
-	
 	/**
 	 * Low-level faster writing. 
 	 * @param line
 	 * @param time
 	 */
 	private void listen2(String line, Time time) {
-		// too big?!
-		if (fileMaxSize > 0 && file.length() > fileMaxSize) {
-			// one final log message
-			if ( ! criedForHelp) {
-				// ??minor: possibly refactor Log so this can use guaranteed the same Report construction
-				String tooBigLine = "Log file too big: "+file.length()+" > "+fileMaxSize+". Logging skipped!";
-				Report report = new Report("log", tooBigLine, Level.SEVERE, line, null);
-				String cry = listen2_lineFromReport(report);
-				FileUtils.append(cry, file);
-				criedForHelp = true;
-			}
-			// done
-			return;
+		// Rotate the logs? By time or size
+		boolean rotate = nextRotation != null && nextRotation.isBefore(time);
+		if (fileMaxSize > 0) {
+			if (fileBytes < 0) fileBytes = file.length();
+			rotate = rotate || (fileBytes > 0 && fileBytes + line.length() > fileMaxSize);
 		}
-		// Rotate the logs?
-		if (nextRotation != null && nextRotation.isBefore(time)) {
+		if (rotate) {
 			rotateLogFiles();
+			fileBytes = file.length(); // 0 unless the rename failed
 		}
 		// append to file (flushes immediately)
 		FileUtils.append(line, file);
-		criedForHelp = false;
+		fileBytes += line.length();
 	}
 
 	/**
-	 * Move all the log files down one.
+	 * Swap the current log out for a fresh one. This just renames the file --
+	 * the gzip and moving the old logs down one happens on a background thread
+	 * (see {@link LogRotator}).
+	 * <p>
+	 * Called with the write lock held, or by the async writer.
 	 */
-	private synchronized void rotateLogFiles() {
-		// advance the trigger
-		nextRotation = nextRotation.plus(rotationInterval);
-		// just nuke the current log?
-		if (rotationHistory < 1) {
-			FileUtils.delete(file);
-			return;
-		}
-		// rotate the old logs
-		for (int i = rotationHistory - 1; i != 0; i--) {
-			File src = new File(file.getAbsolutePath() + "." + i);
-			File dest = new File(file.getAbsolutePath() + "." + (i + 1));
-			if (src.exists()) {
-				FileUtils.move(src, dest);
-			} else {
-				FileUtils.delete(dest);
+	synchronized void rotateLogFiles() {
+		// advance the trigger (past now -- in case we've been asleep)
+		if (nextRotation != null) {
+			Time now = new Time();
+			while ( ! nextRotation.isAfter(now)) {
+				nextRotation = nextRotation.plus(rotationInterval);
 			}
 		}
-		// move the current log
-		File src = file;
-		File dest = new File(file.getAbsolutePath() + ".1");
-		if (src.exists()) {
-			FileUtils.move(src, dest);
+		File staged = LogRotator.swap(file);
+		if (staged != null) {
+			LogRotator.archive(staged, file, rotationHistory, gzip);
 		}
 	}
 
@@ -248,7 +306,8 @@ public class LogFile implements ILogListener, Closeable {
 	 * @param interval
 	 *            How often to rotate
 	 * @param history
-	 *            How many old log files to keep. 0 means just the current one.
+	 *            How many old log files to keep (gzipped, as file.1.gz, file.2.gz etc).
+	 *            0 means just the current one.
 	 * @testedby  LogFileTest#testRotation()}
 	 */
 	public LogFile setLogRotation(Dt interval, int history) {
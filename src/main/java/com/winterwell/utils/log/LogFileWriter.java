@@ -0,0 +1,318 @@
+package com.winterwell.utils.log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import com.winterwell.utils.containers.ArrayMap;
+import com.winterwell.utils.log.LogFile.KFlush;
+import com.winterwell.utils.threads.RingBuffer;
+import com.winterwell.utils.time.Time;
+
+/**
+ * The async mode of {@link LogFile}: callers put lines into a lock-free
+ * {@link RingBuffer}, and one writer thread keeps the file open as a
+ * {@link FileChannel} and writes them in batches.
+ * <p>
+ * Lines reach the OS within a few millisecs. When they get forced to disk
+ * (fsync) is set by {@link KFlush}.
+ * <p>
+ * If the buffer stays full for longer than the LogFile's timeout, lines are
+ * dropped -- and the writer notes how many in the file.
+ *
+ * @author daniel
+ * @testedby LogFileTest
+ */
+final class LogFileWriter implements Closeable {
+
+	/**
+	 * How long the writer sleeps when there's nothing to do
+	 */
+	private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	private static final int MAX_BATCH = 4096;
+
+	private final LogFile logFile;
+
+	private final RingBuffer<String> ring;
+
+	private final KFlush flush;
+
+	private final long flushIntervalNanos;
+
+	private final long timeoutNanos;
+
+	private final Thread thread;
+
+	private volatile boolean closed;
+
+	/**
+	 * Set when a SEVERE line is offered, cleared by the writer
+	 */
+	private volatile boolean severe;
+
+	// writer-thread state
+	private FileChannel channel;
+	private final ByteBuffer buf = ByteBuffer.allocateDirect(1 << 16);
+	private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	/**
+	 * Written but not forced
+	 */
+	private boolean dirty;
+	/**
+	 * A SEVERE line has been offered: force once the buffer has been written out
+	 */
+	private boolean forceDue;
+	private long lastForce = System.nanoTime();
+	private long droppedNoted;
+	/**
+	 * Bytes in the file -- counted, so we don't ask the file-system
+	 */
+	private long size;
+
+	private final LongAdder dropped = new LongAdder();
+	private volatile long written;
+	private volatile long batches;
+	private volatile long forces;
+
+	/**
+	 * @param flushInterval For {@link KFlush#INTERVAL}, in millisecs
+	 * @param timeout How long offer() can wait for space, in millisecs. Negative for no waiting.
+	 */
+	LogFileWriter(LogFile logFile, int capacity, KFlush flush, long flushInterval, long timeout) {
+		this.logFile = logFile;
+		this.ring = new RingBuffer<>(capacity);
+		this.flush = flush;
+		this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushInterval);
+		this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, timeout));
+		thread = new Thread(this::run, "LogFile.writer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * @param line Should end with a line-break
+	 * @param isSevere If true, an {@link KFlush#ON_ERROR} writer will fsync after writing this
+	 * @return false if dropped
+	 */
+	boolean offer(String line, boolean isSevere) {
+		if (closed || ! offer2(line)) {
+			dropped.increment();
+			return false;
+		}
+		if (isSevere) {
+			severe = true;
+			LockSupport.unpark(thread);
+		}
+		return true;
+	}
+
+	private boolean offer2(String line) {
+		if (ring.offer(line)) return true;
+		// full -- wait a bit for the writer
+		long start = System.nanoTime();
+		while (System.nanoTime() - start < timeoutNanos) {
+			LockSupport.unpark(thread);
+			LockSupport.parkNanos(50_000);
+			if (ring.offer(line)) return true;
+		}
+		return false;
+	}
+
+	private void run() {
+		while (true) {
+			boolean stopping = closed;
+			int n = 0;
+			try {
+				n = writeBatch();
+				maybeForce(n);
+			} catch (Throwable ex) {
+				// Can't Log this -- it would come back here
+				System.err.println("LogFile: "+logFile.getFile()+" "+ex);
+				closeChannel();
+			}
+			if (n > 0) continue; // there may be more
+			if (stopping && ring.isEmpty()) break;
+			LockSupport.parkNanos(IDLE_NANOS);
+		}
+		try {
+			if (dirty && channel != null) channel.force(false);
+		} catch (IOException ex) {
+			System.err.println("LogFile: "+logFile.getFile()+" "+ex);
+		}
+		closeChannel();
+	}
+
+	/**
+	 * @return number of lines taken from the buffer
+	 */
+	private int writeBatch() throws IOException {
+		// read the flag before polling, so the severe line is in this batch (or an earlier one)
+		if (severe) {
+			severe = false;
+			forceDue = true;
+		}
+		String line = ring.poll();
+		long nDropped = dropped.sum();
+		if (line == null && nDropped == droppedNoted) {
+			return 0;
+		}
+		if (logFile.nextRotation != null && logFile.nextRotation.isBefore(new Time())) {
+			rotate();
+		}
+		if (channel == null) {
+			open();
+		}
+		if (nDropped != droppedNoted) {
+			encode(new Time()+" LogFile: "+(nDropped - droppedNoted)+" lines dropped (buffer full)\n");
+			droppedNoted = nDropped;
+		}
+		int n = 0;
+		long maxSize = logFile.fileMaxSize;
+		while (line != null) {
+			// too big? (checked per line, as a batch can be large).
+			// size is in bytes, but the line is counted in chars (it's not encoded yet)
+			// -- approximate for non-ASCII, as in the sync path.
+			if (maxSize > 0 && size + buf.position() > 0 && size + buf.position() + line.length() > maxSize) {
+				drain();
+				rotate();
+				open();
+			}
+			encode(line);
+			n++;
+			if (n == MAX_BATCH) break;
+			line = ring.poll();
+		}
+		drain();
+		written += n;
+		batches++;
+		return n;
+	}
+
+	private void encode(String line) throws IOException {
+		CharBuffer cb = CharBuffer.wrap(line);
+		encoder.reset();
+		while (true) {
+			CoderResult cr = encoder.encode(cb, buf, true);
+			if (cr.isOverflow()) {
+				drain();
+				continue;
+			}
+			cr = encoder.flush(buf);
+			if (cr.isOverflow()) {
+				drain();
+				continue;
+			}
+			return;
+		}
+	}
+
+	private void drain() throws IOException {
+		buf.flip();
+		size += buf.remaining();
+		while (buf.hasRemaining()) {
+			channel.write(buf);
+		}
+		buf.clear();
+		dirty = true;
+	}
+
+	private void open() throws IOException {
+		channel = FileChannel.open(logFile.getFile().toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		size = channel.size();
+	}
+
+	/**
+	 * Close the file (forcing it if need be), and hand it to the rotator. The
+	 * next write opens a fresh file.
+	 */
+	private void rotate() throws IOException {
+		if (dirty && channel != null) {
+			channel.force(false);
+			dirty = false;
+		}
+		closeChannel();
+		logFile.rotateLogFiles();
+	}
+
+	private void maybeForce(int n) throws IOException {
+		if ( ! dirty || channel == null) return;
+		// a severe line is only certain to be written once the buffer has been emptied
+		boolean errorDue = forceDue && n < MAX_BATCH;
+		boolean force;
+		switch (flush) {
+		case EVERY_RECORD:
+			force = n > 0 || errorDue;
+			break;
+		case ON_ERROR:
+			force = errorDue;
+			break;
+		default: // INTERVAL -- and errors straight away
+			force = errorDue || System.nanoTime() - lastForce >= flushIntervalNanos;
+		}
+		if ( ! force) return;
+		if (errorDue) forceDue = false;
+		channel.force(false);
+		dirty = false;
+		lastForce = System.nanoTime();
+		forces++;
+	}
+
+	private void closeChannel() {
+		buf.clear();
+		if (channel == null) return;
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// oh well
+		}
+		channel = null;
+	}
+
+	/**
+	 * Write out what's buffered, then stop the writer thread.
+	 */
+	@Override
+	public void close() {
+		if (closed) return;
+		closed = true;
+		LockSupport.unpark(thread);
+		try {
+			thread.join(TimeUnit.SECONDS.toMillis(10));
+		} catch (InterruptedException e) {
+			// oh well
+		}
+	}
+
+	/**
+	 * @return written, dropped, batches, forces, depth, capacity
+	 */
+	ArrayMap<String, Object> getStats() {
+		return new ArrayMap(
+				"written", written,
+				"dropped", dropped.sum(),
+				"batches", batches,
+				"forces", forces,
+				"depth", ring.size(),
+				"capacity", ring.capacity()
+				);
+	}
+
+	@Override
+	public String toString() {
+		return "LogFileWriter[" + logFile.getFile() + "]";
+	}
+}
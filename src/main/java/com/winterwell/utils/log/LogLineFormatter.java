@@ -0,0 +1,158 @@
+package com.winterwell.utils.log;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+
+/**
+ * Formats a {@link Report} as one line for {@link LogFile}: the same layout as
+ * java.util.logging's SimpleFormatter (which LogStash understands out of the
+ * box), but written straight into a re-used per-thread StringBuilder --
+ * flattening line-breaks and capping the length as it goes.
+ * <p>
+ * Layout: <code>date thread LEVEL: tag #marker message context server [stacktrace] </code>
+ * then a line-break. Over-long lines are cut (at a word boundary where
+ * possible) and marked with "...", and always end with a line-break.
+ *
+ * @author daniel
+ * @testedby LogLineFormatterTest
+ */
+public final class LogLineFormatter {
+
+	/**
+	 * SimpleFormatter's default date layout. Only worked out once per second per thread.
+	 */
+	private static final String DATE_FORMAT = "%1$tb %1$td, %1$tY %1$tl:%1$tM:%1$tS %1$Tp";
+
+	/**
+	 * Don't keep giant buffers around
+	 */
+	private static final int MAX_KEPT_BUFFER = 1 << 16;
+
+	private static final ThreadLocal<State> states = ThreadLocal.withInitial(State::new);
+
+	private final String serverName;
+
+	private final int maxChars;
+
+	/**
+	 * @param serverName Added to each line
+	 * @param maxChars Max line length, including the line-break
+	 */
+	public LogLineFormatter(String serverName, int maxChars) {
+		assert maxChars > 4 : maxChars;
+		this.serverName = serverName;
+		this.maxChars = maxChars;
+	}
+
+	/**
+	 * @return one line, ending with a line-break
+	 */
+	public String format(Report report) {
+		State state = states.get();
+		StringBuilder sb = state.sb;
+		sb.setLength(0);
+		append(sb, report);
+		String line = sb.toString();
+		if (sb.capacity() > MAX_KEPT_BUFFER) {
+			state.sb = new StringBuilder(256);
+		}
+		return line;
+	}
+
+	/**
+	 * Append one line (ending with a line-break) to sb
+	 */
+	public void append(StringBuilder sb, Report report) {
+		State state = states.get();
+		int start = sb.length();
+		// leave room for the line-break
+		int limit = start + maxChars - 1;
+		boolean ok = add(sb, state.date(report.getTime().getTime()), limit)
+				&& add(sb, " ", limit)
+				&& add(sb, report.thread, limit)
+				&& add(sb, " ", limit) // was a line-break
+				&& add(sb, report.level.getLocalizedName(), limit)
+				&& add(sb, ": ", limit)
+				&& add(sb, report.tag, limit)
+				&& add(sb, " #", limit)
+				&& add(sb, report.getMarker(), limit)
+				&& add(sb, " ", limit)
+				&& add(sb, report.getMessage(), limit)
+				&& add(sb, " ", limit)
+				&& add(sb, report.context, limit)
+				&& add(sb, " ", limit)
+				&& add(sb, serverName, limit)
+				&& (report.ex == null || add(sb, state.stackTrace(report.ex), limit))
+				&& add(sb, " ", limit); // was a line-break
+		if ( ! ok) {
+			// cut -- at a word boundary if there's one near the end
+			int cut = limit - 3;
+			int i = cut;
+			while (i >= limit - 10 && i > start && sb.charAt(i) != ' ') i--;
+			if (i - start < 1 || i < limit - 10 || sb.charAt(i) != ' ') {
+				i = cut;
+			}
+			sb.setLength(i);
+			sb.append("...");
+		}
+		sb.append('\n');
+	}
+
+	/**
+	 * Append s (as per String.valueOf), with line-breaks as spaces, upto limit.
+	 * @return false if s did not fit
+	 */
+	private static boolean add(StringBuilder sb, CharSequence s, int limit) {
+		if (s == null) s = "null";
+		int n = s.length();
+		for (int i = 0; i < n; i++) {
+			if (sb.length() >= limit) return false;
+			char c = s.charAt(i);
+			sb.append(c == '\n' || c == '\r' ? ' ' : c);
+		}
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return "LogLineFormatter[maxChars=" + maxChars + "]";
+	}
+
+	private static final class State {
+		StringBuilder sb = new StringBuilder(256);
+
+		private long dateSecond = Long.MIN_VALUE;
+		private String date;
+
+		private final StringWriter stack = new StringWriter();
+		private final PrintWriter stackOut = new PrintWriter(stack);
+
+		String date(long millis) {
+			long sec = Math.floorDiv(millis, 1000);
+			if (sec != dateSecond) {
+				ZonedDateTime zdt = ZonedDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+				date = String.format(DATE_FORMAT, zdt);
+				dateSecond = sec;
+			}
+			return date;
+		}
+
+		/**
+		 * @return a line-break then the stack trace, as SimpleFormatter does. Re-uses a buffer.
+		 */
+		CharSequence stackTrace(Throwable ex) {
+			StringBuffer buf = stack.getBuffer();
+			buf.setLength(0);
+			stackOut.println();
+			ex.printStackTrace(stackOut);
+			stackOut.flush();
+			if (buf.capacity() > MAX_KEPT_BUFFER && buf.length() < MAX_KEPT_BUFFER) {
+				buf.trimToSize();
+			}
+			return buf;
+		}
+	}
+}
@@ -0,0 +1,186 @@
+package com.winterwell.utils.log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import com.winterwell.utils.io.FileUtils;
+
+/**
+ * Log rotation for {@link LogFile}, split in two so logging never waits on it:
+ * <ol>
+ * <li>{@link #swap(File)}, on the logging (or writer) thread: one rename of the
+ * live file to a staging name. The next write starts a fresh file.
+ * <li>A background "LogFile.rotator" thread then moves the history down one
+ * (file.1.gz to file.2.gz, etc), gzips the staged file to file.1.gz, and
+ * deletes anything beyond the history.
+ * </ol>
+ * One thread is shared by all LogFiles -- rotations are rare.
+ *
+ * @author daniel
+ * @testedby LogFileTest
+ */
+final class LogRotator {
+
+	private static final String STAGED = ".rotated.";
+
+	private static final AtomicLong stagedCount = new AtomicLong();
+
+	private static final LinkedBlockingQueue<Job> jobs = new LinkedBlockingQueue<>();
+
+	/**
+	 * Jobs queued or running
+	 */
+	private static final AtomicInteger pending = new AtomicInteger();
+
+	private static Thread thread;
+
+	private LogRotator() {
+		// static
+	}
+
+	/**
+	 * Move the live file aside (one rename -- atomic where the file-system allows).
+	 * @return the staged file, or null if there was nothing to move or the rename failed
+	 */
+	static File swap(File file) {
+		if ( ! file.exists()) return null;
+		File staged = new File(file.getAbsolutePath() + STAGED + System.currentTimeMillis() + "." + stagedCount.incrementAndGet());
+		try {
+			try {
+				Files.move(file.toPath(), staged.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException ex) {
+				Files.move(file.toPath(), staged.toPath());
+			}
+			return staged;
+		} catch (IOException ex) {
+			// Keep logging to the same file -- better a big log than no log. Can't Log this (we may be inside Log).
+			System.err.println("LogFile: rotate failed for "+file+" "+ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Queue the background work for a swapped-out file.
+	 * @param staged From {@link #swap(File)}
+	 * @param file The live file
+	 * @param history How many old files to keep. 0 means just delete the staged file.
+	 * @param gzip true to compress the old files
+	 */
+	static void archive(File staged, File file, int history, boolean gzip) {
+		pending.incrementAndGet();
+		jobs.add(new Job(staged, file, history, gzip));
+		startThread();
+	}
+
+	private static synchronized void startThread() {
+		if (thread != null) return;
+		thread = new Thread(LogRotator::run, "LogFile.rotator");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private static void run() {
+		while (true) {
+			try {
+				Job job = jobs.take();
+				try {
+					job.run();
+				} catch (Throwable ex) {
+					Log.e("log", "LogFile rotate failed for "+job.file+": "+ex);
+				} finally {
+					pending.decrementAndGet();
+				}
+			} catch (InterruptedException e) {
+				// keep going
+			}
+		}
+	}
+
+	/**
+	 * Wait for the background work to finish (e.g. for tests).
+	 * @return true if done, false if it timed out
+	 */
+	static boolean awaitIdle(long timeoutMillis) {
+		long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		while (pending.get() > 0) {
+			if (System.nanoTime() - end > 0) return false;
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static final class Job {
+		final File staged;
+		final File file;
+		final int history;
+		final boolean gzip;
+
+		Job(File staged, File file, int history, boolean gzip) {
+			this.staged = staged;
+			this.file = file;
+			this.history = history;
+			this.gzip = gzip;
+		}
+
+		void run() throws IOException {
+			if (history < 1) {
+				FileUtils.delete(staged);
+				prune(1);
+				return;
+			}
+			String ext = gzip ? ".gz" : "";
+			// move the old ones down
+			FileUtils.delete(old(history, ext));
+			for (int i = history - 1; i != 0; i--) {
+				File src = old(i, ext);
+				if (src.exists()) {
+					FileUtils.move(src, old(i + 1, ext));
+				}
+			}
+			// add the new one
+			File dest = old(1, ext);
+			if (gzip) {
+				File tmp = new File(dest.getAbsolutePath() + ".tmp");
+				try (OutputStream out = new GZIPOutputStream(new FileOutputStream(tmp), 1 << 16)) {
+					Files.copy(staged.toPath(), out);
+				}
+				FileUtils.move(tmp, dest);
+				FileUtils.delete(staged);
+			} else {
+				FileUtils.move(staged, dest);
+			}
+			prune(history + 1);
+		}
+
+		/**
+		 * Delete old files from n up (e.g. if history has been reduced)
+		 */
+		private void prune(int n) {
+			for (int i = n; ; i++) {
+				File plain = old(i, "");
+				File gz = old(i, ".gz");
+				if ( ! plain.exists() && ! gz.exists()) return;
+				FileUtils.delete(plain);
+				FileUtils.delete(gz);
+			}
+		}
+
+		private File old(int i, String ext) {
+			return new File(file.getAbsolutePath() + "." + i + ext);
+		}
+	}
+}
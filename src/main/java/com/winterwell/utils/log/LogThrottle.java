@@ -0,0 +1,217 @@
+package com.winterwell.utils.log;
+
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.winterwell.datalog.Rate;
+import com.winterwell.utils.containers.ArrayMap;
+import com.winterwell.utils.time.Dt;
+
+/**
+ * Per-tag throttling for {@link Log}: a token bucket per tag, sized by
+ * {@link LogConfig#getThrottleAt(String)} over {@link LogConfig#throttleWindow}.
+ * <p>
+ * Lock-free: the buckets live in a ConcurrentHashMap, and each bucket is one
+ * AtomicLong, refilled lazily from System.nanoTime() when it's checked. So a
+ * log storm on one tag doesn't make every other thread queue up here.
+ * <p>
+ * The bucket is held as its "theoretical arrival time" (the GCRA form of a
+ * token bucket): each report pushes it on by window/rate, and a report is
+ * throttled if that would put it more than one window ahead of now.
+ * <p>
+ * The config is read on each check, so runtime edits (e.g.
+ * {@link LogConfig#setThrottleAtForTag(String, Rate)}) take effect straight
+ * away: a bucket whose limit no longer matches is replaced, and a new window
+ * resets all the buckets.
+ * <p>
+ * The first throttled report for a tag (and then at most once a day) logs a
+ * "throttle" notice.
+ *
+ * @author daniel
+ * @testedby LogThrottleTest
+ */
+final class LogThrottle {
+
+	private static final long DAY_NANOS = TimeUnit.DAYS.toNanos(1);
+
+	/**
+	 * When there are more tags than this, idle buckets are dropped (an idle
+	 * bucket is full, so the same as a new one).
+	 */
+	static final int MAX_TAGS = 1000;
+
+	final LogConfig config;
+
+	/**
+	 * The window the buckets were made for
+	 */
+	private volatile Dt window;
+
+	private volatile long windowNanos;
+
+	private final ConcurrentHashMap<String, Bucket> buckets = new ConcurrentHashMap<>();
+
+	private final LongAdder throttled = new LongAdder();
+
+	/**
+	 * @param config Read on each check
+	 */
+	LogThrottle(LogConfig config) {
+		this.config = config;
+		setWindow(config.throttleWindow);
+	}
+
+	/**
+	 * A new window: start afresh
+	 */
+	private synchronized void setWindow(Dt w) {
+		windowNanos = w==null? 0 : TimeUnit.MILLISECONDS.toNanos(w.getMillisecs());
+		window = w;
+		buckets.clear();
+	}
+
+	/**
+	 * @return true to silently swallow this report
+	 */
+	boolean isThrottled(String tag) {
+		Dt w = config.throttleWindow;
+		if (w != window) {
+			setWindow(w);
+		}
+		if (windowNanos <= 0) return false;
+		long now = System.nanoTime();
+		// NB: per-tag limits are a fresh (but equals) Rate each time
+		Rate throttleAt = config.getThrottleAt(tag);
+		Bucket b = buckets.get(tag);
+		if (b == null || ! Objects.equals(b.rate, throttleAt)) {
+			b = newBucket(tag, throttleAt, b, now);
+		}
+		if (b.take(now)) {
+			return false;
+		}
+		throttled.increment();
+		// first time? Or first time today?
+		if (b.notice(now) && ! "throttle".equals(tag)) {
+			Log.i("throttle", "Throttle (skip) log reports for tag #"+tag+" which is running over "+b.rate);
+		}
+		return true;
+	}
+
+	/**
+	 * @param old The bucket for a limit which has since changed, or null
+	 */
+	private Bucket newBucket(String tag, Rate throttleAt, Bucket old, long now) {
+		if (old == null && buckets.size() >= MAX_TAGS) {
+			prune(now);
+		}
+		// remember "no limit" too, so the check is the same for every tag
+		Bucket b = throttleAt == null? Bucket.UNLIMITED
+				: new Bucket(throttleAt, windowNanos, throttleAt.per(window), now);
+		if (old == null) {
+			Bucket other = buckets.putIfAbsent(tag, b);
+			return other == null? b : other;
+		}
+		// the limit changed: start afresh
+		return buckets.replace(tag, old, b)? b : buckets.getOrDefault(tag, b);
+	}
+
+	private void prune(long now) {
+		Iterator<Bucket> it = buckets.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().isIdle(now)) it.remove();
+		}
+		// still too many? Start afresh (which lets a burst through)
+		if (buckets.size() >= MAX_TAGS) {
+			buckets.clear();
+		}
+	}
+
+	/**
+	 * @return tags, throttled
+	 */
+	ArrayMap<String, Object> getStats() {
+		return new ArrayMap(
+				"tags", buckets.size(),
+				"throttled", throttled.sum()
+				);
+	}
+
+	@Override
+	public String toString() {
+		return "LogThrottle[window=" + config.throttleWindow + ", tags=" + buckets.size() + "]";
+	}
+
+	private static final class Bucket {
+
+		static final Bucket UNLIMITED = new Bucket(null, 0, 0, 0);
+
+		final Rate rate;
+
+		/**
+		 * How far each report pushes the arrival time on, i.e. the refill time for one token
+		 */
+		private final long stepNanos;
+
+		/**
+		 * How far ahead of now the arrival time can get, i.e. the bucket size
+		 */
+		private final long burstNanos;
+
+		/**
+		 * The arrival time. At or before now = a full bucket.
+		 */
+		private final AtomicLong tat;
+
+		/**
+		 * When the last "throttle" notice was sent
+		 */
+		private final AtomicLong noticed;
+
+		/**
+		 * @param n Reports allowed per window
+		 */
+		Bucket(Rate rate, long windowNanos, double n, long now) {
+			this.rate = rate;
+			// allow at least one per window
+			this.stepNanos = rate==null? 0 : Math.max(1, (long) (windowNanos / Math.max(1, n)));
+			this.burstNanos = windowNanos;
+			this.tat = new AtomicLong(now);
+			this.noticed = new AtomicLong(now - DAY_NANOS - 1);
+		}
+
+		/**
+		 * @return true if there was a token (ie report this)
+		 */
+		boolean take(long now) {
+			if (rate == null) return true;
+			while (true) {
+				long t = tat.get();
+				// refill: anything in the past counts as now
+				long next = (t - now < 0 ? now : t) + stepNanos;
+				if (next - now > burstNanos) {
+					return false;
+				}
+				if (tat.compareAndSet(t, next)) {
+					return true;
+				}
+			}
+		}
+
+		/**
+		 * @return true if the caller should send a notice (at most once a day, and only one thread wins)
+		 */
+		boolean notice(long now) {
+			long n = noticed.get();
+			if (now - n < DAY_NANOS) return false;
+			return noticed.compareAndSet(n, now);
+		}
+
+		boolean isIdle(long now) {
+			return rate == null || tat.get() - now <= 0;
+		}
+	}
+}
@@ -0,0 +1,402 @@
+package com.winterwell.utils.log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.winterwell.utils.Dep;
+import com.winterwell.utils.IFilter;
+import com.winterwell.utils.containers.ArrayMap;
+
+/**
+ * Pipe log reports out to a file as newline-delimited json -- one object per
+ * report, so LogStash (or jq) can read it without parsing SimpleFormatter text.
+ * <p>
+ * Fields: time (ISO-8601 UTC), level, tag, marker, thread, message, details,
+ * context, server, and stack (if there's an exception without details). Null
+ * fields are left out.
+ * <p>
+ * The json is hand-written straight into a re-used UTF-8 byte buffer, which
+ * goes to a FileChannel kept open -- no Printer / SimpleJson / Strings on the
+ * way. Each report is written (to the OS, not fsync-ed) before listen() returns.
+ * <p>
+ * Size-based rotation: see {@link #setMaxSize(long, int)}. As with LogFile, the
+ * writer just renames the file -- gzip and pruning happen on the background
+ * {@link LogRotator} thread.
+ * <p>
+ * Like {@link LogFile}, this attaches itself to the Log, and stays alive until closed.
+ *
+ * @author daniel
+ * @testedby NDJsonLogFileTest
+ */
+public final class NDJsonLogFile implements ILogListener, Closeable {
+
+	/**
+	 * Don't keep giant buffers around
+	 */
+	private static final int MAX_KEPT_BUFFER = 1 << 20;
+
+	private static final DateTimeFormatter SECONDS = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss").withZone(ZoneOffset.UTC);
+
+	private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+	private final File file;
+
+	private IFilter<Report> filter;
+
+	/**
+	 * Longer strings are cut, and end with "..."
+	 */
+	private int maxFieldChars = 8192;
+
+	private long maxSize;
+
+	private int history;
+
+	/**
+	 * If true (the default), rotated files are gzipped
+	 */
+	private boolean gzip = true;
+
+	private final long timeout;
+
+	private final ReentrantLock writeLock = new ReentrantLock();
+
+	// guarded by writeLock
+	private FileChannel channel;
+	private long size;
+	private byte[] buf = new byte[8192];
+	private ByteBuffer bb = ByteBuffer.wrap(buf);
+	private int n;
+	private long dateSecond = Long.MIN_VALUE;
+	private String date;
+	private final StringWriter stack = new StringWriter();
+	private final PrintWriter stackOut = new PrintWriter(stack);
+
+	private volatile long written;
+	private final LongAdder skipped = new LongAdder();
+	private volatile long rotations;
+
+	/**
+	 * Create a log-listener and attach it to the Log. Will append if the file
+	 * already exists.
+	 */
+	public NDJsonLogFile(File file) {
+		this.file = file;
+		if (file.getParentFile() != null) {
+			file.getParentFile().mkdirs();
+		}
+		LogConfig lc = Dep.has(LogConfig.class)? Dep.get(LogConfig.class) : new LogConfig();
+		this.timeout = lc.logTimeout;
+		Log.addListener(this);
+	}
+
+	public NDJsonLogFile setFilter(IFilter<Report> filter) {
+		this.filter = filter;
+		return this;
+	}
+
+	/**
+	 * @param maxSize When the file would go over this many bytes, move it to file.1.gz (and file.1.gz to file.2.gz, etc).
+	 * 0 for no limit.
+	 * @param history How many old files to keep. 0 means just delete the file.
+	 */
+	public NDJsonLogFile setMaxSize(long maxSize, int history) {
+		this.maxSize = maxSize;
+		this.history = history;
+		return this;
+	}
+
+	/**
+	 * @param gzip true (the default) to compress rotated files, false to keep them as plain file.1, file.2 etc.
+	 */
+	public NDJsonLogFile setGzip(boolean gzip) {
+		this.gzip = gzip;
+		return this;
+	}
+
+	public NDJsonLogFile setMaxFieldChars(int maxFieldChars) {
+		assert maxFieldChars > 3 : maxFieldChars;
+		this.maxFieldChars = maxFieldChars;
+		return this;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	@Override
+	public void listen(Report report) {
+		if (filter != null) {
+			try {
+				if ( ! filter.accept(report)) return;
+			} catch(Throwable ex) {
+				if ( ! report.toString().contains("Filter failed!")) {
+					Log.e("log", "Filter failed! "+ex+" from "+filter+" for "+report);
+				}
+			}
+		}
+		// handle threading -- but do not block for long
+		boolean gotLock = false;
+		try {
+			gotLock = timeout >= 0? writeLock.tryLock(timeout, TimeUnit.MILLISECONDS) : writeLock.tryLock();
+			if (gotLock) {
+				write(report);
+			} else {
+				skipped.increment();
+			}
+		} catch (InterruptedException e) {
+			// swallow!
+		} finally {
+			if (gotLock) {
+				writeLock.unlock();
+			}
+		}
+	}
+
+	private void write(Report report) {
+		try {
+			n = 0;
+			encode(report);
+			if (channel == null) {
+				open();
+			}
+			if (maxSize > 0 && size > 0 && size + n > maxSize) {
+				rotate();
+			}
+			bb.clear();
+			bb.limit(n);
+			while (bb.hasRemaining()) {
+				channel.write(bb);
+			}
+			size += n;
+			written++;
+		} catch (IOException ex) {
+			// Can't Log this -- it would come back here
+			System.err.println("NDJsonLogFile: "+file+" "+ex);
+			closeChannel();
+		} finally {
+			if (buf.length > MAX_KEPT_BUFFER) {
+				buf = new byte[8192];
+				bb = ByteBuffer.wrap(buf);
+			}
+		}
+	}
+
+	private void open() throws IOException {
+		channel = FileChannel.open(file.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		size = channel.size();
+	}
+
+	/**
+	 * Swap the file out for a fresh one. This is just a rename -- moving the old
+	 * files down one, gzip and pruning happen on the {@link LogRotator} thread.
+	 * If the rename fails, we keep appending to the same file.
+	 */
+	private void rotate() throws IOException {
+		closeChannel();
+		File staged = LogRotator.swap(file);
+		if (staged != null) {
+			LogRotator.archive(staged, file, history, gzip);
+			rotations++;
+		}
+		open();
+	}
+
+	private void closeChannel() {
+		if (channel == null) return;
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// oh well
+		}
+		channel = null;
+	}
+
+	/**
+	 * Encode one line (ending with a line-break) into buf[0, n)
+	 */
+	private void encode(Report report) {
+		long millis = report.getTime().getTime();
+		ascii("{\"time\":\"");
+		ascii(date(millis));
+		int ms = (int) Math.floorMod(millis, 1000L);
+		put('.');
+		put('0' + ms / 100);
+		put('0' + ms / 10 % 10);
+		put('0' + ms % 10);
+		ascii("Z\"");
+		field("level", report.level.getName());
+		field("tag", report.tag);
+		field("marker", report.getMarker());
+		field("thread", report.thread);
+		field("message", report.getMessage());
+		field("details", report.getDetails());
+		field("context", report.context);
+		field("server", LogFile.serverName);
+		if (report.ex != null && report.getDetails() == null) {
+			field("stack", stackTrace(report.ex));
+		}
+		ascii("}\n");
+	}
+
+	private String date(long millis) {
+		long sec = Math.floorDiv(millis, 1000);
+		if (sec != dateSecond) {
+			date = SECONDS.format(Instant.ofEpochSecond(sec));
+			dateSecond = sec;
+		}
+		return date;
+	}
+
+	private CharSequence stackTrace(Throwable ex) {
+		StringBuffer sb = stack.getBuffer();
+		sb.setLength(0);
+		ex.printStackTrace(stackOut);
+		stackOut.flush();
+		return sb;
+	}
+
+	/**
+	 * ,"key":"value" -- or nothing if value is null
+	 */
+	private void field(String key, CharSequence value) {
+		if (value == null) return;
+		put(',');
+		put('"');
+		ascii(key);
+		put('"');
+		put(':');
+		string(value);
+	}
+
+	/**
+	 * A json string, escaped and UTF-8 encoded
+	 */
+	private void string(CharSequence s) {
+		put('"');
+		int len = s.length();
+		boolean cut = len > maxFieldChars;
+		if (cut) {
+			len = maxFieldChars - 3;
+			// don't split a surrogate pair
+			if (Character.isHighSurrogate(s.charAt(len - 1))) len--;
+		}
+		ensure(len * 6 + 8);
+		for (int i = 0; i < len; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				if (c >= 0x20 && c != '"' && c != '\\') {
+					buf[n++] = (byte) c;
+					continue;
+				}
+				buf[n++] = '\\';
+				switch (c) {
+				case '"': buf[n++] = '"'; break;
+				case '\\': buf[n++] = '\\'; break;
+				case '\n': buf[n++] = 'n'; break;
+				case '\r': buf[n++] = 'r'; break;
+				case '\t': buf[n++] = 't'; break;
+				case '\b': buf[n++] = 'b'; break;
+				case '\f': buf[n++] = 'f'; break;
+				default:
+					buf[n++] = 'u';
+					buf[n++] = '0';
+					buf[n++] = '0';
+					buf[n++] = HEX[c >> 4];
+					buf[n++] = HEX[c & 0xF];
+				}
+			} else if (c < 0x800) {
+				buf[n++] = (byte) (0xC0 | (c >> 6));
+				buf[n++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isSurrogate(c)) {
+				char d;
+				if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(d = s.charAt(i + 1))) {
+					int cp = Character.toCodePoint(c, d);
+					buf[n++] = (byte) (0xF0 | (cp >> 18));
+					buf[n++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+					buf[n++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+					buf[n++] = (byte) (0x80 | (cp & 0x3F));
+					i++;
+				} else {
+					// a broken pair
+					buf[n++] = '?';
+				}
+			} else {
+				buf[n++] = (byte) (0xE0 | (c >> 12));
+				buf[n++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				buf[n++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		if (cut) {
+			ascii("...");
+		}
+		put('"');
+	}
+
+	/**
+	 * For strings which don't need escaping
+	 */
+	private void ascii(String s) {
+		int len = s.length();
+		ensure(len);
+		for (int i = 0; i < len; i++) {
+			buf[n++] = (byte) s.charAt(i);
+		}
+	}
+
+	private void put(int c) {
+		ensure(1);
+		buf[n++] = (byte) c;
+	}
+
+	private void ensure(int more) {
+		if (n + more <= buf.length) return;
+		byte[] buf2 = new byte[Math.max(buf.length * 2, n + more)];
+		System.arraycopy(buf, 0, buf2, 0, n);
+		buf = buf2;
+		bb = ByteBuffer.wrap(buf);
+	}
+
+	/**
+	 * Stop listening to log events, and close the file.
+	 */
+	@Override
+	public void close() {
+		Log.removeListener(this);
+		writeLock.lock();
+		try {
+			closeChannel();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * @return written, skipped (lock timeouts), rotations
+	 */
+	public ArrayMap<String, Object> getStats() {
+		return new ArrayMap(
+				"written", written,
+				"skipped", skipped.sum(),
+				"rotations", rotations
+				);
+	}
+
+	@Override
+	public String toString() {
+		return "NDJsonLogFile:" + file.getAbsolutePath();
+	}
+}
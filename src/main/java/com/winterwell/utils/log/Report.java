@@ -90,7 +90,17 @@ public final class Report implements Serializable {
 	 * @return
 	 */
 	public String getMarker() {
-		return StrUtils.md5(tag+msg).substring(0,8);
+		String m = marker;
+		if (m == null) {
+			m = StrUtils.md5(tag+msg).substring(0,8);
+			marker = m;
+		}
+		return m;
 	}
 
+	/**
+	 * Cache for getMarker() -- several listeners may ask
+	 */
+	private transient String marker;
+
 }
@@ -0,0 +1,128 @@
+package com.winterwell.utils.threads;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded lock-free queue over a fixed array (Dmitry Vyukov's bounded MPMC design).
+ * Any number of threads can {@link #offer(Object)} and {@link #poll()} -- the
+ * usual use is many producers & one consumer thread, with the occasional
+ * producer-side poll() to drop the oldest entry.
+ * <p>
+ * offer() never blocks and never allocates: when the buffer is full it returns
+ * false, and the caller decides what to do (drop, retry, wait).
+ *
+ * @author daniel
+ * @testedby RingBufferTest
+ * @param <T>
+ */
+public final class RingBuffer<T> {
+
+	private final int mask;
+	private final AtomicReferenceArray<T> items;
+	/**
+	 * Per-slot sequence numbers: slot i is free for the producer at pos when
+	 * seq==pos, and ready for the consumer at pos when seq==pos+1
+	 */
+	private final AtomicLongArray seqs;
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong tail = new AtomicLong();
+
+	/**
+	 * @param capacity Will be rounded up to a power of 2
+	 */
+	public RingBuffer(int capacity) {
+		assert capacity > 0 : capacity;
+		int cap = capacity <= 2? 2 : Integer.highestOneBit(capacity - 1) << 1;
+		mask = cap - 1;
+		items = new AtomicReferenceArray<>(cap);
+		seqs = new AtomicLongArray(cap);
+		for (int i = 0; i < cap; i++) {
+			seqs.set(i, i);
+		}
+	}
+
+	/**
+	 * @param x never null
+	 * @return false if the buffer is full
+	 */
+	public boolean offer(T x) {
+		assert x != null;
+		while (true) {
+			long pos = tail.get();
+			int i = (int) (pos & mask);
+			long seq = seqs.get(i);
+			long dif = seq - pos;
+			if (dif == 0) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					items.lazySet(i, x);
+					seqs.set(i, pos + 1);
+					return true;
+				}
+			} else if (dif < 0) {
+				return false; // full
+			}
+			// else another producer got there first -- retry
+		}
+	}
+
+	/**
+	 * @return the oldest item, or null if empty
+	 */
+	public T poll() {
+		while (true) {
+			long pos = head.get();
+			int i = (int) (pos & mask);
+			long seq = seqs.get(i);
+			long dif = seq - (pos + 1);
+			if (dif == 0) {
+				if (head.compareAndSet(pos, pos + 1)) {
+					T x = items.get(i);
+					items.lazySet(i, null);
+					seqs.set(i, pos + mask + 1);
+					return x;
+				}
+			} else if (dif < 0) {
+				return null; // empty
+			}
+		}
+	}
+
+	/**
+	 * Move upto max items into the collection.
+	 * @return the number moved
+	 */
+	public int drainTo(Collection<? super T> sink, int max) {
+		int n = 0;
+		while (n < max) {
+			T x = poll();
+			if (x == null) break;
+			sink.add(x);
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * @return approximate number of items (exact if quiescent)
+	 */
+	public int size() {
+		long s = tail.get() - head.get();
+		return (int) Math.max(0, Math.min(s, capacity()));
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	public int capacity() {
+		return mask + 1;
+	}
+
+	@Override
+	public String toString() {
+		return "RingBuffer[" + size() + "/" + capacity() + "]";
+	}
+}
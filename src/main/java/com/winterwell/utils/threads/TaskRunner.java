@@ -19,6 +19,7 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import com.winterwell.datalog.DataLog;
+import com.winterwell.datalog.DataLogCounter;
 import com.winterwell.utils.NotUniqueException;
 import com.winterwell.utils.Utils;
 import com.winterwell.utils.io.FileUtils;
@@ -54,6 +55,11 @@ public class TaskRunner {
 
 	boolean stats;
 
+	/**
+	 * TaskRunner_todo/name -- made on demand, as the name can change
+	 */
+	private DataLogCounter todoStat;
+
 	/** default for arbitrary tasks */
 	private static TaskRunner dflt;
 	/**
@@ -135,6 +141,7 @@ public class TaskRunner {
 	public TaskRunner setName(String name) {
 		assert !Utils.isBlank(name) : "[" + name + "]";
 		this.name = name;
+		todoStat = null;
 		return this;
 	}
 
@@ -288,7 +295,12 @@ public class TaskRunner {
 
 		// Stats
 		if (stats) {
-			DataLog.set(todo.size(), "TaskRunner_todo", name);
+			DataLogCounter ts = todoStat;
+			if (ts == null) {
+				ts = DataLog.counter("TaskRunner_todo", name);
+				todoStat = ts;
+			}
+			ts.set(todo.size());
 		}
 
 		return f;
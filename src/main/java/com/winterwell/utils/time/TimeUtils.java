@@ -732,4 +732,51 @@ public class TimeUtils {
 		cal.roll(field, d);
 	}
 
+	/**
+	 * Allocation-free equivalent of {@link Time#toISOString()}: yyyy-MM-ddTHH:mm:ssZ in GMT.
+	 * For hot paths, e.g. writing logs or json.
+	 * @param sb
+	 * @param millis epoch millisecs
+	 */
+	public static void appendISOString(StringBuilder sb, long millis) {
+		long secs = Math.floorDiv(millis, 1000L);
+		long days = Math.floorDiv(secs, 86400L);
+		int sod = (int) Math.floorMod(secs, 86400L);
+		// civil-from-days (H. Hinnant)
+		long z = days + 719468;
+		long era = Math.floorDiv(z, 146097);
+		long doe = z - era * 146097;
+		long yoe = (doe - doe/1460 + doe/36524 - doe/146096) / 365;
+		long doy = doe - (365*yoe + yoe/4 - yoe/100);
+		long mp = (5*doy + 2) / 153;
+		int day = (int) (doy - (153*mp + 2)/5 + 1);
+		int month = (int) (mp < 10? mp + 3 : mp - 9);
+		long year = yoe + era * 400 + (month <= 2? 1 : 0);
+		appendPadded(sb, year, 4);
+		sb.append('-');
+		appendPadded(sb, month, 2);
+		sb.append('-');
+		appendPadded(sb, day, 2);
+		sb.append('T');
+		appendPadded(sb, sod / 3600, 2);
+		sb.append(':');
+		appendPadded(sb, (sod / 60) % 60, 2);
+		sb.append(':');
+		appendPadded(sb, sod % 60, 2);
+		sb.append('Z');
+	}
+
+	private static void appendPadded(StringBuilder sb, long n, int width) {
+		if (n < 0) {
+			sb.append('-');
+			n = -n;
+		}
+		long limit = 10;
+		for(int i=1; i<width; i++) {
+			if (n < limit) sb.append('0');
+			limit *= 10;
+		}
+		sb.append(n);
+	}
+
 }
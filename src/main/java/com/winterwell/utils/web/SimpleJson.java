@@ -187,7 +187,7 @@ public class SimpleJson {
 	 * @param sb
 	 * @param x
 	 */
-	private void escape(StringBuilder sb, CharSequence x) {
+	public static void escape(StringBuilder sb, CharSequence x) {
 		char b;
 		char c = 0;
 		String hhhh;
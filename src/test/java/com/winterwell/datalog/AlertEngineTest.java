@@ -0,0 +1,58 @@
+package com.winterwell.datalog;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.winterwell.utils.Utils;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.TUnit;
+
+public class AlertEngineTest {
+
+	@Test
+	public void testAboveFiresOnce() {
+		InMemoryDataLog dl = InMemoryDataLogTest.newDataLog(TUnit.HOUR.dt);
+		AlertEngine engine = new AlertEngine(dl, new Dt(10, TUnit.MILLISECOND));
+		try {
+			AtomicInteger fired = new AtomicInteger();
+			Alert alert = new Alert(new Rate(5, TUnit.MINUTE.dt, "hot"));
+			alert.setHandler((x, dx, tag) -> fired.incrementAndGet());
+			engine.add(alert);
+			for(int i=0; i<100; i++) dl.count(1, "hot");
+			Utils.sleep(100);
+			// minInterval stops repeats
+			assert fired.get() == 1 : fired;
+			assert alert.getLastAlert() != null;
+			assert alert.getAt() > 5;
+			// removing it stops the listening
+			assert engine.remove(alert);
+			assert dl.getListeners().isEmpty();
+		} finally {
+			engine.close();
+		}
+	}
+
+	@Test
+	public void testBelow() {
+		InMemoryDataLog dl = InMemoryDataLogTest.newDataLog(TUnit.HOUR.dt);
+		AlertEngine engine = new AlertEngine(dl, new Dt(10, TUnit.MILLISECOND));
+		try {
+			AtomicInteger fired = new AtomicInteger();
+			Alert alert = new Alert(new Rate(5, new Dt(100, TUnit.MILLISECOND), "quiet"));
+			alert.setBelow(true);
+			alert.setHandler((x, dx, tag) -> fired.incrementAndGet());
+			engine.add(alert);
+			dl.count(1, "quiet");
+			// the first bucket is ignored
+			Utils.sleep(150);
+			assert fired.get() == 0 : fired;
+			dl.count(1, "quiet");
+			Utils.sleep(200);
+			assert fired.get() == 1 : fired;
+			assert engine.getAlerts().size() == 1;
+		} finally {
+			engine.close();
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package com.winterwell.datalog;
+
+import org.junit.Test;
+
+public class DataLogColumnTest {
+
+	@Test
+	public void testAppendAndInsert() {
+		DataLogColumn col = new DataLogColumn(false, 100000);
+		// evens in order, then odds out of order -- forces chunk splits
+		int n = 3 * DataLogColumn.CHUNK;
+		for (int i = 0; i < n; i += 2) col.add(i, i, 0, 0);
+		for (int i = n - 1; i > 0; i -= 2) col.add(i, i, 0, 0);
+		col.add(10, 5, 0, 0);
+		col.set(12, -1);
+		assert col.size() == n : col;
+		DataLogColumn.Slice slice = new DataLogColumn.Slice(false, 4);
+		col.copyTo(0, n, slice);
+		assert slice.size == n;
+		for (int i = 0; i < n; i++) {
+			assert slice.times[i] == i : i+" "+slice.times[i];
+			double x = i==10? 15 : i==12? -1 : i;
+			assert slice.sums[i] == x : i+" "+slice.sums[i];
+		}
+		DataLogColumn.Slice mid = new DataLogColumn.Slice(false, 4);
+		col.copyTo(1000, 1010, mid);
+		assert mid.size == 10 && mid.times[0] == 1000 && mid.times[9] == 1009;
+	}
+
+	@Test
+	public void testTrim() {
+		DataLogColumn col = new DataLogColumn(true, 100);
+		for (int i = 0; i < 5 * DataLogColumn.CHUNK; i++) col.add(i, 1, 1, 1);
+		// whole chunks are dropped, keeping at least maxSize
+		assert col.size() >= 100 && col.size() <= DataLogColumn.CHUNK + 100 : col;
+		DataLogColumn.Slice slice = new DataLogColumn.Slice(true, 4);
+		col.copyTo(0, Long.MAX_VALUE, slice);
+		assert slice.times[slice.size - 1] == 5 * DataLogColumn.CHUNK - 1;
+		assert slice.ns[0] == 1;
+	}
+
+	@Test
+	public void testRemoveBefore() {
+		DataLogColumn col = new DataLogColumn(false, 100000);
+		for (int i = 0; i < 3 * DataLogColumn.CHUNK; i++) col.add(i, 1, 0, 0);
+		col.removeBefore(DataLogColumn.CHUNK + 10);
+		assert col.size() == 2 * DataLogColumn.CHUNK - 10 : col;
+		DataLogColumn.Slice slice = new DataLogColumn.Slice(false, 4);
+		col.copyTo(0, Long.MAX_VALUE, slice);
+		assert slice.times[0] == DataLogColumn.CHUNK + 10;
+		// appends still work
+		col.add(3 * DataLogColumn.CHUNK, 1, 0, 0);
+		assert col.size() == 2 * DataLogColumn.CHUNK - 9 : col;
+	}
+}
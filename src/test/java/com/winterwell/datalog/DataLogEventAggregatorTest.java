@@ -0,0 +1,142 @@
+package com.winterwell.datalog;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.winterwell.utils.containers.ArrayMap;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.TUnit;
+
+public class DataLogEventAggregatorTest {
+
+	static DataLogEvent event(String groupById, double count, Object... props) {
+		return new DataLogEvent("test", groupById, count, new String[] {"evt"}, new ArrayMap(props));
+	}
+
+	@Test
+	public void testCoalesce() throws Exception {
+		List<DataLogEvent> got = new ArrayList<>();
+		DataLogEventAggregator agg = new DataLogEventAggregator(got::addAll, TUnit.HOUR.dt, 1000);
+		// same props => same id
+		agg.write(Arrays.asList(event(null, 1, "pub", "a.com"), event(null, 2, "pub", "a.com")));
+		agg.write(Arrays.asList(event(null, 1, "pub", "b.com")));
+		// same groupById, different props
+		agg.write(Arrays.asList(event("g1", 1, "x", "1"), event("g1", 1, "y", "2")));
+		assert got.isEmpty();
+		agg.flush();
+		assert got.size() == 3 : got;
+		DataLogEvent a = got.get(0);
+		assert a.count == 3 : a;
+		assert a.getProp("pub").equals("a.com");
+		assert got.get(1).count == 1;
+		DataLogEvent g = got.get(2);
+		assert g.id.equals("g1") : g;
+		assert g.count == 2;
+		assert "1".equals(g.getProp("x")) && "2".equals(g.getProp("y")) : g;
+		assert agg.getStats().get("received").equals(5L) : agg.getStats();
+		assert agg.getStats().get("emitted").equals(3L) : agg.getStats();
+		agg.close();
+	}
+
+	@Test
+	public void testOverwrite() throws Exception {
+		List<DataLogEvent> got = new ArrayList<>();
+		DataLogEventAggregator agg = new DataLogEventAggregator(got::addAll, TUnit.HOUR.dt, 1000);
+		DataLogEvent reset = event("g", 10);
+		reset.overwrite = true;
+		agg.write(Arrays.asList(event("g", 1), event("g", 1), reset, event("g", 2)));
+		agg.close();
+		assert got.size() == 1 : got;
+		assert got.get(0).count == 12 : got;
+		assert got.get(0).overwrite;
+	}
+
+	@Test
+	public void testMaxPendingAndWindow() throws Exception {
+		List<DataLogEvent> got = new ArrayList<>();
+		DataLogEventAggregator agg = new DataLogEventAggregator(got::addAll, TUnit.HOUR.dt, 2);
+		agg.write(Arrays.asList(event("a", 1), event("b", 1)));
+		assert got.isEmpty();
+		agg.write(Arrays.asList(event("c", 1)));
+		assert got.size() == 3 : got;
+		agg.close();
+
+		// the background flush
+		List<DataLogEvent> got2 = new ArrayList<>();
+		DataLogEventAggregator agg2 = new DataLogEventAggregator(
+				batch -> { synchronized(got2) { got2.addAll(batch); } },
+				new Dt(20, TUnit.MILLISECOND), 1000);
+		agg2.write(Arrays.asList(event("a", 1), event("a", 1)));
+		for (int i = 0; i < 100; i++) {
+			synchronized(got2) {
+				if ( ! got2.isEmpty()) break;
+			}
+			Thread.sleep(10);
+		}
+		synchronized(got2) {
+			assert got2.size() == 1 && got2.get(0).count == 2 : got2;
+		}
+		agg2.close();
+	}
+
+	@Test
+	public void testIdKeptForTrkUser() throws Exception {
+		List<DataLogEvent> got = new ArrayList<>();
+		DataLogEventAggregator agg = new DataLogEventAggregator(got::addAll, TUnit.HOUR.dt, 1000);
+		// the constructor moves user to trk after making the id
+		DataLogEvent a = event(null, 1, "user", "123@trk", "pub", "a.com");
+		assert a.getProp("trk").equals("123@trk") && a.getProp("user") == null : a;
+		DataLogEvent single = event(null, 1, "user", "456@trk", "pub", "a.com");
+		agg.write(Arrays.asList(a, event(null, 2, "user", "123@trk", "pub", "a.com"), single));
+		agg.flush();
+		assert got.size() == 2 : got;
+		// merged or not, the id is the input id
+		assert got.get(0).id.equals(a.id) : got.get(0)+" vs "+a;
+		assert got.get(0).count == 3;
+		assert got.get(0).getProp("trk").equals("123@trk");
+		assert got.get(1).id.equals(single.id) : got.get(1);
+		agg.close();
+	}
+
+	@Test
+	public void testNextSinkFails() throws Exception {
+		List<DataLogEvent> got = new ArrayList<>();
+		boolean[] fail = {true};
+		DataLogEventAggregator agg = new DataLogEventAggregator(batch -> {
+			if (fail[0]) throw new IOException("down");
+			got.addAll(batch);
+		}, TUnit.HOUR.dt, 2);
+		agg.write(Arrays.asList(event("a", 1), event("a", 1)));
+		try {
+			agg.flush();
+			assert false;
+		} catch (IOException ex) {
+			// expected
+		}
+		assert agg.getStats().get("emitted").equals(0L) : agg.getStats();
+		assert agg.getStats().get("pending").equals(1) : agg.getStats();
+		// kept -- and still coalescing
+		fail[0] = false;
+		agg.write(Arrays.asList(event("a", 1)));
+		agg.flush();
+		assert got.size() == 1 && got.get(0).count == 3 : got;
+		assert agg.getStats().get("emitted").equals(1L) : agg.getStats();
+
+		// too many to keep
+		fail[0] = true;
+		try {
+			agg.write(Arrays.asList(event("a", 1), event("b", 1), event("c", 1)));
+			assert false;
+		} catch (IOException ex) {
+			// expected
+		}
+		assert agg.getStats().get("dropped").equals(3L) : agg.getStats();
+		assert agg.getStats().get("pending").equals(0) : agg.getStats();
+		fail[0] = false;
+		agg.close();
+	}
+}
@@ -0,0 +1,133 @@
+package com.winterwell.datalog;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.winterwell.datalog.DataLogEventCodec.Decoder;
+import com.winterwell.datalog.DataLogEventCodec.Encoder;
+import com.winterwell.utils.containers.ArrayMap;
+import com.winterwell.utils.time.Time;
+
+public class DataLogEventCodecTest {
+
+	static List<DataLogEvent> events(int n) {
+		List<DataLogEvent> events = new ArrayList<>();
+		long t = new Time(2024, 1, 31).getTime();
+		for (int i = 0; i < n; i++) {
+			ArrayMap props = new ArrayMap("pub", "pub"+(i % 5), "url", "https://example.com/page/"+i,
+					"amount", i + 0.25, "n", i, "big", 1L << 40, "ok", i % 2 == 0, "none", null,
+					"tags", Arrays.asList("a", "b"+i), "nested", new ArrayMap("x", 1.0, "y", "é 中"));
+			DataLogEvent e = new DataLogEvent("codec", i % 3 == 0 ? "g"+i : null, i % 4 == 0 ? 0.5 : i,
+					new String[] {"view", "evt"+(i % 2)}, props, i % 2 == 0 ? new ArrayMap("raw", "stuff"+i) : null);
+			e.time = new Time(t + i * 1234L);
+			e.overwrite = i % 7 == 0;
+			events.add(e);
+		}
+		return events;
+	}
+
+	static void assertSame(DataLogEvent a, DataLogEvent b) {
+		assert a.id.equals(b.id) : a+" vs "+b;
+		assert a.dataspace.equals(b.dataspace);
+		assert Arrays.equals(a.getEventType(), b.getEventType());
+		assert a.count == b.count;
+		assert a.time.equals(b.time);
+		assert a.overwrite == b.overwrite;
+		assert a.props.equals(b.props) : a.props+" vs "+b.props;
+		assert (a.unindexed == null) == (b.unindexed == null);
+		if (a.unindexed != null) assert a.unindexed.equals(b.unindexed) : b.unindexed;
+	}
+
+	@Test
+	public void testRoundTripStream() throws Exception {
+		List<DataLogEvent> events = events(200);
+		byte[] bytes = DataLogEventCodec.toBytes(events);
+		List<DataLogEvent> back = DataLogEventCodec.fromBytes(bytes);
+		assert back.size() == events.size();
+		for (int i = 0; i < events.size(); i++) {
+			assertSame(events.get(i), back.get(i));
+		}
+		// much smaller than java serialisation
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		try (ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+			oos.writeObject(new ArrayList<>(events));
+		}
+		assert bytes.length * 2 < bos.size() : bytes.length+" vs "+bos.size();
+		assert DataLogEventCodec.fromBytes(new byte[0]).isEmpty();
+	}
+
+	@Test
+	public void testUserAndNumbers() {
+		List<DataLogEvent> events = new ArrayList<>();
+		// the constructor moves these users to trk after making the id
+		for (String user : new String[] {"123@trk", "456", "alice@email"}) {
+			events.add(new DataLogEvent("codec", 1, "view", new ArrayMap("user", user, "pub", "a.com",
+					"n", 7, "big", 1L << 40, "x", 2.5, "whole", 3.0)));
+		}
+		assert events.get(0).getProp("trk").equals("123@trk") && events.get(0).getProp("user") == null;
+		List<DataLogEvent> back = DataLogEventCodec.fromBytes(DataLogEventCodec.toBytes(events));
+		for (int i = 0; i < events.size(); i++) {
+			assertSame(events.get(i), back.get(i));
+		}
+		// floats come back as doubles
+		DataLogEvent f = new DataLogEvent("codec", 1, "view", new ArrayMap("f", 1.5f, "s", (short) 2));
+		DataLogEvent fb = DataLogEventCodec.fromBytes(DataLogEventCodec.toBytes(Arrays.asList(f))).get(0);
+		assert fb.id.equals(f.id);
+		assert fb.getProp("f").equals(1.5) : fb;
+		assert fb.getProp("s").equals(2) : fb;
+	}
+
+	@Test
+	public void testRoundTripBuffer() throws Exception {
+		List<DataLogEvent> events = events(50);
+		ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+		Encoder enc = DataLogEventCodec.encoder(buf);
+		for (DataLogEvent e : events) {
+			enc.write(e);
+		}
+		buf.flip();
+		// the same bytes as the stream form
+		byte[] bs = new byte[buf.remaining()];
+		buf.duplicate().get(bs);
+		assert Arrays.equals(bs, DataLogEventCodec.toBytes(events));
+		Decoder dec = DataLogEventCodec.decoder(buf);
+		for (DataLogEvent e : events) {
+			assertSame(e, dec.read());
+		}
+		assert dec.read() == null;
+	}
+
+	@Test
+	public void testBufferOverflow() throws Exception {
+		List<DataLogEvent> events = events(20);
+		ByteBuffer small = ByteBuffer.allocate(300);
+		ByteArrayOutputStream drained = new ByteArrayOutputStream();
+		Encoder enc = DataLogEventCodec.encoder(small);
+		int overflows = 0;
+		for (DataLogEvent e : events) {
+			try {
+				enc.write(e);
+			} catch (BufferOverflowException ex) {
+				overflows++;
+				// drain, and retry
+				drained.write(small.array(), 0, small.position());
+				small.clear();
+				enc.write(e);
+			}
+		}
+		drained.write(small.array(), 0, small.position());
+		assert overflows > 0;
+		List<DataLogEvent> back = DataLogEventCodec.fromBytes(drained.toByteArray());
+		assert back.size() == events.size();
+		for (int i = 0; i < events.size(); i++) {
+			assertSame(events.get(i), back.get(i));
+		}
+	}
+}
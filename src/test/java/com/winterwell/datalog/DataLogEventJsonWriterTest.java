@@ -0,0 +1,69 @@
+package com.winterwell.datalog;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.winterwell.utils.containers.ArrayMap;
+import com.winterwell.utils.time.Time;
+import com.winterwell.utils.time.TimeUtils;
+import com.winterwell.utils.web.SimpleJson;
+
+public class DataLogEventJsonWriterTest {
+
+	static String oldJson(DataLogEvent e) {
+		return new SimpleJson().toJson(e.toJson2());
+	}
+
+	@Test
+	public void testSameAsToJson2() {
+		DataLogEvent e = new DataLogEvent("test", 2.5, "click", new ArrayMap(
+				"url", "http://example.com/\"quoted\"\n",
+				"foo", "bar",
+				"n", 7,
+				"dt", 12.0, // Long prop given as a double
+				"w", 3.5, // bad Integer prop: dropped
+				"mbl", false,
+				"empty", "",
+				"xtra", new ArrayMap("a", 1),
+				"start", new Time(2020, 1, 2)
+				));
+		e.putUnindexed("stuff", Arrays.asList(1, "two"));
+		e.setTime(new Time(2024, 2, 29, 13, 5, 9));
+		assert e.toJSONString().equals(oldJson(e)) : e.toJSONString()+"\n"+oldJson(e);
+		StringBuilder sb = new StringBuilder();
+		e.appendJson(sb);
+		assert sb.toString().equals(oldJson(e));
+	}
+
+	@Test
+	public void testNoProps() {
+		DataLogEvent e = new DataLogEvent("test", null, 1, new String[] {"a", "b"}, null);
+		assert e.toJSONString().equals(oldJson(e)) : e.toJSONString()+"\n"+oldJson(e);
+		DataLogEvent e2 = new DataLogEvent("test", null, 1, new String[] {"a"}, new ArrayMap("foo", null));
+		assert e2.toJSONString().equals(oldJson(e2)) : e2.toJSONString()+"\n"+oldJson(e2);
+	}
+
+	@Test
+	public void testBulk() {
+		DataLogEvent e = new DataLogEvent("test", "grp1", 1, new String[] {"a"}, new ArrayMap("pub", "bbc"));
+		DataLogEvent e2 = new DataLogEvent("test", 1, "b", new ArrayMap("pub", "cnn"));
+		StringBuilder sb = new StringBuilder();
+		DataLogEventJsonWriter.appendBulk(sb, Arrays.asList(e, e2));
+		String[] lines = sb.toString().split("\n");
+		assert lines.length == 4 : sb;
+		assert lines[0].equals("{\"index\":{\"_index\":\"datalog.test\",\"_id\":\"grp1\"}}") : lines[0];
+		assert lines[1].equals(e.toJSONString());
+		assert lines[2].equals("{\"index\":{\"_index\":\"datalog.test\"}}") : lines[2];
+		assert lines[3].equals(e2.toJSONString());
+	}
+
+	@Test
+	public void testISOString() {
+		for (long t : new long[] {0, 951782400000L, 1709211909123L, 4102444799000L, -86400000L * 400}) {
+			StringBuilder sb = new StringBuilder();
+			TimeUtils.appendISOString(sb, t);
+			assert sb.toString().equals(new Time(t).toISOString()) : sb+" vs "+new Time(t).toISOString();
+		}
+	}
+}
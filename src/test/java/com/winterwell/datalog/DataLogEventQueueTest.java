@@ -0,0 +1,65 @@
+package com.winterwell.datalog;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.winterwell.datalog.DataLogEventQueue.KOverflow;
+import com.winterwell.utils.Utils;
+import com.winterwell.utils.containers.ArrayMap;
+import com.winterwell.utils.io.FileUtils;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.TUnit;
+
+public class DataLogEventQueueTest {
+
+	@Test
+	public void testBatching() {
+		List<Integer> batchSizes = new ArrayList<>();
+		IDataLogEventSink sink = batch -> batchSizes.add(batch.size());
+		DataLogEventQueue q = new DataLogEventQueue(sink, 1000, 10, new Dt(50, TUnit.MILLISECOND), KOverflow.DROP);
+		for(int i=0; i<25; i++) {
+			assert q.offer(new DataLogEvent("test", 1));
+		}
+		Utils.sleep(300);
+		q.close();
+		int total = batchSizes.stream().mapToInt(x -> x).sum();
+		assert total == 25 : batchSizes;
+		for (Integer bs : batchSizes) {
+			assert bs <= 10 : batchSizes;
+		}
+	}
+
+	@Test
+	public void testDropWhenFull() {
+		// a sink which stalls
+		IDataLogEventSink sink = batch -> Utils.sleep(200);
+		DataLogEventQueue q = new DataLogEventQueue(sink, 4, 1, new Dt(1, TUnit.MILLISECOND), KOverflow.DROP);
+		int ok = 0;
+		for(int i=0; i<100; i++) {
+			if (q.offer(new DataLogEvent("test", 1))) ok++;
+		}
+		assert ok < 100;
+		assert q.getDropped() == 100 - ok : q.getStats();
+		q.close();
+	}
+
+	@Test
+	public void testNDJsonSegmentSink() throws Exception {
+		File dir = new File("test-output/ndjson");
+		if (dir.exists()) FileUtils.deleteDir(dir);
+		NDJsonSegmentSink sink = new NDJsonSegmentSink(new File(dir, "lg.txt"), TUnit.DAY.dt);
+		DataLogEvent e = new DataLogEvent("testspace", 2, "click", new ArrayMap("url", "http://example.com", "foo", "bar"));
+		List<DataLogEvent> batch = new ArrayList<>();
+		batch.add(e);
+		sink.write(batch);
+		sink.close();
+		String line = FileUtils.read(sink.getSegment()).trim();
+		assert line.startsWith("{\"dataspace\":\"testspace\", \"id\":\""+e.getId()+"\", ") : line;
+		assert line.contains("\"evt\":[\"click\"]") : line;
+		assert line.contains("{\"k\":\"foo\", \"v\":\"bar\"}") : line;
+		assert ! line.contains("\n") : line;
+	}
+}
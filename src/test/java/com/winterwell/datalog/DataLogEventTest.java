@@ -0,0 +1,35 @@
+package com.winterwell.datalog;
+
+import org.junit.Test;
+
+import com.winterwell.utils.StrUtils;
+import com.winterwell.utils.containers.ArrayMap;
+
+public class DataLogEventTest {
+
+	@Test
+	public void testIdHash() {
+		DataLogEvent.KIdHash was = DataLogEvent.idHash;
+		try {
+			DataLogEvent.idHash = DataLogEvent.KIdHash.MD5;
+			DataLogEvent e = new DataLogEvent("test", 1, "click", new ArrayMap("url", "http://x.com", "n", 2, "gone", null));
+			// the old format
+			assert e.getId().equals("test_click_"+StrUtils.md5("n=2&url=http://x.com&")) : e.getId();
+
+			DataLogEvent.idHash = DataLogEvent.KIdHash.MURMUR3;
+			DataLogEvent e2 = new DataLogEvent("test", 1, "click", new ArrayMap("url", "http://x.com", "n", 2));
+			DataLogEvent e3 = new DataLogEvent("test", 5, "click", new ArrayMap("n", 2, "url", "http://x.com"));
+			DataLogEvent e4 = new DataLogEvent("test", 1, "click", new ArrayMap("n", 3, "url", "http://x.com"));
+			assert e2.getId().startsWith("test_click_") : e2.getId();
+			assert e2.getId().length() == "test_click_".length() + 32 : e2.getId();
+			// key order doesn't matter
+			assert e2.getId().equals(e3.getId());
+			assert ! e2.getId().equals(e4.getId());
+			assert ! e2.getId().equals(e.getId());
+			// no props
+			assert new DataLogEvent("test", 1, "click", null).getId().equals("test_click");
+		} finally {
+			DataLogEvent.idHash = was;
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package com.winterwell.datalog;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+import com.winterwell.datalog.DataLogIngest.JsonLineParser;
+import com.winterwell.utils.containers.ArrayMap;
+import com.winterwell.utils.io.FileUtils;
+import com.winterwell.utils.time.TUnit;
+import com.winterwell.utils.time.Time;
+
+public class DataLogIngestTest {
+
+	@Test
+	public void testParser() {
+		Map map = (Map) JsonLineParser.parse("{\"a\": [1, 2.5, -3e2], \"b\":\"x\\\"y\\n\\u00e9\\ud83d\\ude00\", \"c\":{}, \"d\":[true,false,null]}");
+		assert map.get("a").equals(Arrays.asList(1L, 2.5, -300.0)) : map;
+		assert map.get("b").equals("x\"y\né😀") : map.get("b");
+		assert ((Map) map.get("c")).isEmpty();
+		assert map.get("d").equals(Arrays.asList(true, false, null)) : map;
+		// raw UTF-8 too
+		assert JsonLineParser.parse("\"café 中\"").equals("café 中");
+	}
+
+	@Test
+	public void testIngest() throws Exception {
+		File dir = new File("test-output/ingest");
+		if (dir.exists()) FileUtils.deleteDir(dir);
+		dir.mkdirs();
+		File lg = new File(dir, "lg.txt");
+		Time now = new Time();
+		StringBuilder sb = new StringBuilder();
+		double total = 0;
+		for (int i = 0; i < 1000; i++) {
+			DataLogEvent e = new DataLogEvent("ingest", null, i % 3, new String[] {"view", "pick"},
+					new ArrayMap("pub", "pub"+(i % 7), "note", "é\"\n"));
+			e.time = now.minus(i % 20, TUnit.HOUR);
+			NDJsonSegmentSink.appendLine(sb, e);
+			total += i % 3;
+			if (i == 500) sb.append("{not json\n\n");
+		}
+		File seg = new File(dir, "lg.20240101T000000."+NDJsonSegmentSink.FILE_TYPE);
+		FileUtils.write(seg, sb);
+		List<File> files = DataLogIngest.getLogFiles(lg);
+		assert files.size() == 1 && files.get(0).getName().equals(seg.getName()) : files;
+
+		InMemoryDataLog dl = InMemoryDataLogTest.newDataLog(TUnit.HOUR.dt);
+		DataLogIngest ingest = new DataLogIngest(dl).setChunkSize(4096).setPool(new ForkJoinPool(4));
+		ArrayMap<String, Object> stats = ingest.ingest(files);
+		assert stats.get("events").equals(1000L) : stats;
+		assert stats.get("errors").equals(1L) : stats;
+		double[] progress = ingest.getProgress();
+		assert progress[0] == progress[1] && progress[1] == seg.length() : Arrays.toString(progress);
+
+		Time start = now.minus(TUnit.DAY);
+		Time end = now.plus(TUnit.HOUR);
+		assert dl.getTotal(start, end, "ingest", "view").get() == total : dl.getTotal(start, end, "ingest", "view").get();
+		assert dl.getTotal(start, end, "ingest", "pick").get() == total;
+		// one bucket
+		Time t5 = now.minus(5, TUnit.HOUR);
+		double t5total = 0;
+		for (int i = 0; i < 1000; i++) {
+			if (i % 20 == 5) t5total += i % 3;
+		}
+		long b = t5.getTime() - Math.floorMod(t5.getTime(), TUnit.HOUR.millisecs);
+		assert dl.getTotal(new Time(b), new Time(b + TUnit.HOUR.millisecs - 1), "ingest", "view").get() == t5total;
+	}
+}
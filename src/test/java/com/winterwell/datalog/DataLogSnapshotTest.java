@@ -0,0 +1,73 @@
+package com.winterwell.datalog;
+
+import org.junit.Test;
+
+import com.winterwell.maths.stats.distributions.d1.LogHistogram1D;
+import com.winterwell.utils.time.TUnit;
+import com.winterwell.utils.time.Time;
+
+public class DataLogSnapshotTest {
+
+	Time start = new Time().minus(TUnit.DAY);
+	Time end = new Time().plus(TUnit.HOUR);
+
+	@Test
+	public void testMergeNodes() {
+		// sketch the means, to test merging histograms
+		DataLogConfig config = new DataLogConfig();
+		config.interval = TUnit.HOUR.dt;
+		config.meanSketchAccuracy = 0.01;
+		InMemoryDataLog a = new InMemoryDataLog(config);
+		InMemoryDataLog b = new InMemoryDataLog(config);
+		InMemoryDataLog c = new InMemoryDataLog(config);
+		a.count(1, "hits", "x");
+		b.count(2, "hits", "x");
+		b.count(new Time().minus(TUnit.HOUR.dt.multiply(3)), 4, "hits", "y");
+		c.count(0.5, "hits");
+		a.mean(1, "latency");
+		c.mean(3, "latency");
+		DataLogSnapshot sa = a.snapshot("a", start, end);
+		DataLogSnapshot sb = b.snapshot("b", start, end);
+		DataLogSnapshot sc = c.snapshot("c", start, end);
+
+		DataLogSnapshot abc = DataLogSnapshot.merge(sa, sb, sc);
+		assert abc.getNodes().size() == 3;
+		assert abc.getTotal("hits") == 7.5 : abc.getTotal("hits");
+		assert abc.getTotal("hits", "x") == 3;
+		assert abc.getData("hits").size() == 2 : abc.getData("hits");
+		assert abc.getMean("latency").x.getMean() == 2;
+		assert abc.getMean("latency").x instanceof LogHistogram1D;
+		// any order, any grouping
+		assert abc.equals(sc.merge(sa.merge(sb)));
+		assert abc.equals(DataLogSnapshot.merge(sb, sa).merge(sc));
+		// idempotent: no double counting
+		assert abc.merge(sa).merge(abc).getTotal("hits") == 7.5;
+	}
+
+	@Test
+	public void testNewerReplaces() {
+		InMemoryDataLog a = InMemoryDataLogTest.newDataLog(TUnit.HOUR.dt);
+		a.count(1, "hits");
+		DataLogSnapshot v1 = a.snapshot("a", start, end);
+		a.count(1, "hits");
+		DataLogSnapshot v2 = a.snapshot("a", start, end);
+		assert v1.merge(v2).getTotal("hits") == 2;
+		assert v2.merge(v1).getTotal("hits") == 2;
+	}
+
+	@Test
+	public void testBytes() {
+		InMemoryDataLog a = InMemoryDataLogTest.newDataLog(TUnit.HOUR.dt);
+		a.count(3, "hits", "x");
+		a.count(new Time().minus(TUnit.HOUR.dt.multiply(2)), 0.25, "hits", "x");
+		a.mean(5, "latency");
+		a.mean(7, "latency");
+		DataLogSnapshot s = a.snapshot("a", start, end);
+		byte[] bytes = s.toBytes();
+		DataLogSnapshot s2 = DataLogSnapshot.fromBytes(bytes);
+		assert s.equals(s2);
+		assert s2.getTotal("hits", "x") == 3.25;
+		assert s2.getMean("latency").x.getMean() == 6;
+		assert s2.getTags().contains("hits/x") : s2.getTags();
+	}
+}
@@ -0,0 +1,114 @@
+package com.winterwell.datalog;
+
+import java.io.File;
+
+import org.junit.Test;
+
+import com.winterwell.utils.io.FileUtils;
+import com.winterwell.utils.time.TUnit;
+import com.winterwell.utils.time.Time;
+
+public class DataLogWalTest {
+
+	static InMemoryDataLog newDataLog(File dir) {
+		DataLogConfig config = new DataLogConfig();
+		config.interval = TUnit.HOUR.dt;
+		config.walDir = dir;
+		config.walSegmentSize = 1024;
+		config.walCheckpointInterval = TUnit.DAY.dt;
+		InMemoryDataLog dl = new InMemoryDataLog(config);
+		dl.init();
+		return dl;
+	}
+
+	static File newDir(String name) {
+		File dir = new File("test-output/wal/"+name);
+		if (dir.exists()) FileUtils.deleteDir(dir);
+		return dir;
+	}
+
+	@Test
+	public void testReplay() {
+		File dir = newDir("replay");
+		InMemoryDataLog dl = newDataLog(dir);
+		// enough to fill a few segments
+		for (int i = 0; i < 100; i++) {
+			dl.count(1, "a", "b");
+		}
+		dl.count(0.5, "a", "c");
+		dl.set(7, "gauge");
+		dl.mean(2, "m");
+		dl.mean(4, "m");
+		Time old = new Time().minus(TUnit.DAY);
+		dl.count(old, 3, "a", "b");
+		// "crash" -- no close
+		InMemoryDataLog dl2 = newDataLog(dir);
+		assert dl2.get("a", "b").x == 100 : dl2.get("a", "b");
+		assert dl2.get("a").x == 100.5 : dl2.get("a");
+		assert dl2.get("gauge").x == 7;
+		assert dl2.getMean("m").x.getMean() == 3 : dl2.getMean("m");
+		assert dl2.getTotal(old.minus(TUnit.HOUR), old.plus(TUnit.HOUR), "a", "b").get() == 3;
+		dl.close();
+		dl2.close();
+	}
+
+	@Test
+	public void testCheckpoint() throws Exception {
+		File dir = newDir("checkpoint");
+		InMemoryDataLog dl = newDataLog(dir);
+		for (int i = 0; i < 200; i++) {
+			dl.count(2, "x");
+			dl.set(i, "gauge");
+		}
+		dl.close();
+		// compact
+		InMemoryDataLog dl2 = newDataLog(dir);
+		dl2.wal.checkpoint();
+		dl2.close();
+		assert new File(dir, "checkpoint.wal").isFile();
+		// the checkpoint is 2 records (plus a header) -- and the old segments are gone
+		assert new File(dir, "checkpoint.wal").length() == 12 + 2*DataLogWal.CHECKPOINT_RECORD : new File(dir, "checkpoint.wal").length();
+		assert dir.list((d, n) -> n.endsWith(".seg")).length == 1 : dir.list();
+		// more counts after the checkpoint
+		InMemoryDataLog dl3 = newDataLog(dir);
+		assert dl3.get("x").x == 400 : dl3.get("x");
+		assert dl3.get("gauge").x == 199;
+		dl3.count(1, "x");
+		dl3.close();
+		InMemoryDataLog dl4 = newDataLog(dir);
+		assert dl4.get("x").x == 401 : dl4.get("x");
+		dl4.close();
+	}
+
+	@Test
+	public void testCheckpointMeansAndSets() throws Exception {
+		File dir = newDir("checkpoint-means");
+		InMemoryDataLog dl = newDataLog(dir);
+		for (int i = 1; i <= 1000; i++) {
+			dl.mean(i, "m");
+		}
+		// order matters: count, set, count
+		dl.count(5, "g");
+		dl.set(2, "g");
+		dl.count(3, "g");
+		dl.close();
+		InMemoryDataLog dl2 = newDataLog(dir);
+		dl2.wal.checkpoint();
+		dl2.close();
+		// the samples are summed up, not kept
+		long len = new File(dir, "checkpoint.wal").length();
+		assert len < 1000*DataLogWal.RECORD / 10 : len;
+		InMemoryDataLog dl3 = newDataLog(dir);
+		MeanRate m = dl3.getMean("m");
+		assert m.x.getMean() == 500.5 : m;
+		assert dl3.get("g").x == 5 : dl3.get("g");
+		// and again, on top of the checkpoint
+		dl3.mean(2001, "m");
+		dl3.wal.checkpoint();
+		dl3.close();
+		InMemoryDataLog dl4 = newDataLog(dir);
+		assert Math.abs(dl4.getMean("m").x.getMean() - 502501.0/1001) < 0.0001 : dl4.getMean("m");
+		assert dl4.get("g").x == 5;
+		dl4.close();
+	}
+}
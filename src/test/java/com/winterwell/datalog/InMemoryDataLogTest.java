@@ -0,0 +1,227 @@
+package com.winterwell.datalog;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.winterwell.datalog.DataLog.KInterpolate;
+import com.winterwell.maths.stats.distributions.d1.LogHistogram1D;
+import com.winterwell.utils.Utils;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.TUnit;
+import com.winterwell.utils.time.Time;
+
+public class InMemoryDataLogTest {
+
+	static InMemoryDataLog newDataLog(Dt interval) {
+		DataLogConfig config = new DataLogConfig();
+		config.interval = interval;
+		return new InMemoryDataLog(config);
+	}
+
+	@Test
+	public void testCountHierarchy() {
+		InMemoryDataLog dl = newDataLog(TUnit.HOUR.dt);
+		dl.count(2, "a", "b", "c");
+		dl.count(1, "a", "b");
+		assert dl.get("a").x == 3 : dl.get("a");
+		assert dl.get("a", "b").x == 3;
+		assert dl.get("a", "b", "c").x == 2;
+		assert dl.get("nope").x == 0;
+		assert dl.getLive().contains("a/b/c") : dl.getLive();
+	}
+
+	@Test
+	public void testSet() {
+		InMemoryDataLog dl = newDataLog(TUnit.HOUR.dt);
+		dl.set(5, "gauge");
+		dl.set(7, "gauge");
+		assert dl.get("gauge").x == 7;
+	}
+
+	@Test
+	public void testMean() {
+		InMemoryDataLog dl = newDataLog(TUnit.HOUR.dt);
+		dl.mean(1, "m");
+		dl.mean(3, "m");
+		MeanRate mr = dl.getMean("m");
+		assert mr.x.getMean() == 2 : mr;
+		assert mr.x.getStdDev() == 1 : mr;
+		assert ! (mr.x instanceof LogHistogram1D) : "sketching is opt-in";
+		// quantiles
+		DataLogConfig config = new DataLogConfig();
+		config.interval = TUnit.HOUR.dt;
+		config.meanSketchAccuracy = 0.01;
+		dl = new InMemoryDataLog(config);
+		for(int i=1; i<=1000; i++) dl.mean(i, "latency");
+		LogHistogram1D h = (LogHistogram1D) dl.getMean("latency").x;
+		assert Math.abs(h.getQuantile(0.99) - 990) < 11 : h;
+	}
+
+	@Test
+	public void testConcurrentCounts() throws Exception {
+		InMemoryDataLog dl = newDataLog(TUnit.HOUR.dt);
+		ExecutorService exec = Executors.newFixedThreadPool(8);
+		for(int t=0; t<8; t++) {
+			exec.submit(() -> {
+				for(int i=0; i<10000; i++) dl.count(1, "hot");
+			});
+		}
+		exec.shutdown();
+		exec.awaitTermination(1, TimeUnit.MINUTES);
+		assert dl.get("hot").x == 80000 : dl.get("hot");
+	}
+
+	@Test
+	public void testGetDataAcrossBuckets() {
+		InMemoryDataLog dl = newDataLog(new Dt(50, TUnit.MILLISECOND));
+		Time start = new Time();
+		dl.count(1, "x");
+		Utils.sleep(120);
+		dl.count(2, "x");
+		Time end = new Time().plus(TUnit.SECOND);
+		List<DataPoint> data = (List) dl.getData(start.minus(TUnit.SECOND), end, null, null, "x").get();
+		assert data.size() == 2 : data;
+		assert data.get(0).x == 1 && data.get(1).x == 2 : data;
+		double total = dl.getTotal(null, null, "x").get();
+		assert total == 3 : total;
+		// re-bucket into one big bucket
+		List<DataPoint> data2 = (List) dl.getData(start.minus(TUnit.SECOND), end, null, TUnit.DAY.dt, "x").get();
+		assert data2.size() == 1 && data2.get(0).x == 3 : data2;
+	}
+
+	@Test
+	public void testInterpolateAndSkipZeros() {
+		InMemoryDataLog dl = newDataLog(TUnit.MINUTE.dt);
+		Time now = new Time();
+		Time t0 = now.minus(TUnit.HOUR);
+		dl.count(t0.minus(new Dt(10, TUnit.MINUTE)), 10, "y");
+		dl.count(t0.plus(new Dt(10, TUnit.MINUTE)), 20, "y");
+		dl.set(t0.plus(new Dt(20, TUnit.MINUTE)), 0, "y");
+		Time end = t0.plus(new Dt(30, TUnit.MINUTE));
+		List<DataPoint> raw = (List) dl.getData(t0, end, null, null, "y").get();
+		assert raw.size() == 2 : raw;
+		List<DataPoint> skip = (List) dl.getData(t0, end, KInterpolate.SKIP_ZEROS, null, "y").get();
+		assert skip.size() == 1 && skip.get(0).x == 20 : skip;
+		List<DataPoint> lin = (List) dl.getData(t0, end, KInterpolate.LINEAR_1DAY, null, "y").get();
+		// ersatz start (half way from 10 to 20) + 2 real + ersatz end
+		assert lin.size() == 4 : lin;
+		assert lin.get(0).time == t0.getTime() : lin;
+		assert Math.abs(lin.get(0).x - 15) < 0.5 : lin;
+		assert lin.get(3).time == end.getTime() && lin.get(3).x == 0 : lin;
+		assert lin instanceof TimeSeries;
+	}
+
+	@Test
+	public void testMaxDataPoints() {
+		DataLogConfig config = new DataLogConfig();
+		config.interval = TUnit.MINUTE.dt;
+		config.maxDataPoints = 5;
+		InMemoryDataLog dl = new InMemoryDataLog(config);
+		Time now = new Time();
+		for(int i=10; i<30; i++) {
+			dl.count(now.minus(new Dt(i, TUnit.MINUTE)), i, "z");
+		}
+		List<DataPoint> data = (List) dl.getData(now.minus(TUnit.DAY), now.minus(new Dt(5, TUnit.MINUTE)), null, null, "z").get();
+		assert data.size() == 5 : data;
+		// the latest are kept
+		assert data.get(4).x == 10 : data;
+	}
+
+	@Test
+	public void testHistoricalCount() {
+		InMemoryDataLog dl = newDataLog(TUnit.MINUTE.dt);
+		Time then = new Time().minus(TUnit.HOUR);
+		dl.count(then, 4, "old");
+		double total = dl.getTotal(then.minus(TUnit.MINUTE), new Time(), "old").get();
+		assert total == 4 : total;
+	}
+
+	@Test
+	public void testFutureCount() {
+		InMemoryDataLog dl = newDataLog(TUnit.MINUTE.dt);
+		// e.g. a machine whose clock is ahead: lands in the live bucket
+		dl.count(new Time().plus(TUnit.HOUR), 2, "skew");
+		assert dl.get("skew").x == 2 : dl.get("skew");
+	}
+
+	@Test
+	public void testHistoricalCountListener() {
+		InMemoryDataLog dl = newDataLog(TUnit.MINUTE.dt);
+		double[] heard = new double[2];
+		dl.setListener((x, dx, tag) -> { heard[0] = x; heard[1] += dx; }, "old");
+		Time then = new Time().minus(TUnit.HOUR);
+		dl.count(then, 4, "old");
+		dl.count(then, 1, "old");
+		assert heard[0] == 5 : heard[0];
+		assert heard[1] == 5 : heard[1];
+	}
+
+	@Test
+	public void testTiers() {
+		InMemoryDataLog dl = newDataLog(new Dt(5, TUnit.MINUTE));
+		long step = TUnit.MINUTE.millisecs * 5;
+		long now = System.currentTimeMillis();
+		long base = now - Math.floorMod(now, step) - 20*TUnit.DAY.millisecs;
+		int n = (int) (20*TUnit.DAY.millisecs / step);
+		// with a spike 15 days ago
+		int spikeAt = (int) (5*TUnit.DAY.millisecs / step);
+		Time spike = new Time(base + spikeAt*step);
+		for (int i = 0; i < n; i++) {
+			dl.count(new Time(base + i*step), i==spikeAt? 10 : 1, "tiered");
+		}
+		Time start = new Time(base - TUnit.DAY.millisecs);
+		Time end = new Time(now + TUnit.DAY.millisecs);
+		assert dl.getTotal(start, end, "tiered").get() == n + 9;
+
+		dl.compact(now);
+		// fine data is only kept for a week (to the hour)
+		DataLogCell c = dl.tags.getValue("tiered");
+		assert c.column.size() <= 7*24*12 + 12 : c.column.size();
+		// ...but nothing is lost
+		assert dl.getTotal(start, end, "tiered").get() == n + 9;
+		TimeSeries daily = dl.getData2(c, start, end, null, TUnit.DAY.dt, false);
+		assert daily.size() == 21 : daily;
+		assert daily.total() == n + 9 : daily.total();
+		// min & max from the hourly tier
+		double[] range = dl.getRange(spike.minus(TUnit.DAY), spike.plus(TUnit.DAY), "tiered");
+		assert range[0] == 1 && range[1] == 10 : range[0]+" "+range[1];
+		// recent data is still fine-grained
+		TimeSeries fine = dl.getData2(c, new Time(now - TUnit.HOUR.millisecs), new Time(now), null, null, false);
+		assert fine.size() == 12 : fine;
+	}
+
+	@Test
+	public void testCounterHandle() {
+		IDataLog old = DataLog.dflt;
+		try {
+			InMemoryDataLog dl = newDataLog(TUnit.HOUR.dt);
+			DataLog.dflt = dl;
+			DataLogCounter hits = DataLog.counter("Cache_hit", "test");
+			hits.count(1);
+			hits.count(2);
+			assert dl.get("Cache_hit", "test").x == 3;
+			assert dl.get("Cache_hit").x == 3;
+			// re-init: the handle should follow
+			InMemoryDataLog dl2 = newDataLog(TUnit.HOUR.dt);
+			DataLog.dflt = dl2;
+			hits.count(1);
+			assert dl2.get("Cache_hit", "test").x == 1;
+			assert dl.get("Cache_hit", "test").x == 3;
+			hits.mean(4);
+			assert dl2.getMean("Cache_hit", "test").x.getMean() == 4;
+			// and to a non-memory DataLog (as during DataLog.init), and back
+			DataLog.dflt = new DummyDataLog(null);
+			hits.count(1);
+			hits.mean(1);
+			DataLog.dflt = dl2;
+			hits.count(1);
+			assert dl2.get("Cache_hit", "test").x == 2;
+		} finally {
+			DataLog.dflt = old;
+		}
+	}
+}
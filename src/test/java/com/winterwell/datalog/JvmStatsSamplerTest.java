@@ -0,0 +1,49 @@
+package com.winterwell.datalog;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.winterwell.utils.containers.ArrayMap;
+import com.winterwell.utils.time.TUnit;
+
+public class JvmStatsSamplerTest {
+
+	@Test
+	public void testSample() {
+		InMemoryDataLog dl = InMemoryDataLogTest.newDataLog(TUnit.HOUR.dt);
+		JvmStatsSampler sampler = new JvmStatsSampler(dl, TUnit.MINUTE.dt);
+		sampler.sample();
+		// make some garbage
+		List<byte[]> junk = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			junk.add(new byte[10000]);
+		}
+		System.gc();
+		sampler.sample();
+		assert dl.get(IDataLog.STAT_MEM_USED).x > 0;
+		assert dl.get(JvmStatsSampler.STAT_MEM_MAX).x >= dl.get(IDataLog.STAT_MEM_USED).x;
+		assert dl.get(JvmStatsSampler.STAT_THREADS).x > 0;
+		assert dl.get(JvmStatsSampler.STAT_GC_COUNT).x > 0 : dl.get(JvmStatsSampler.STAT_GC_COUNT);
+		ArrayMap<String, Object> stats = sampler.getStats();
+		if ((Boolean) stats.get("allocationStats")) {
+			assert dl.getMean(JvmStatsSampler.STAT_ALLOC_RATE).x.getMean() > 0 : junk.size();
+		}
+		assert stats.get("samples").equals(2L);
+		assert (Double) stats.get("overhead") < 0.001 : stats;
+		dl.close();
+	}
+
+	@Test
+	public void testBackground() throws Exception {
+		InMemoryDataLog dl = InMemoryDataLogTest.newDataLog(TUnit.HOUR.dt);
+		JvmStatsSampler sampler = new JvmStatsSampler(dl, TUnit.MINUTE.dt).start();
+		for (int i = 0; i < 100 && (Long) sampler.getStats().get("samples") == 0; i++) {
+			Thread.sleep(10);
+		}
+		sampler.close();
+		assert dl.get(IDataLog.STAT_MEM_USED).x > 0;
+		dl.close();
+	}
+}
@@ -0,0 +1,118 @@
+package com.winterwell.datalog;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.winterwell.datalog.TagCardinalityGuard.Estimate;
+
+public class TagCardinalityGuardTest {
+
+	@Test
+	public void testFolding() {
+		TagCardinalityGuard guard = new TagCardinalityGuard(3, 2);
+		for (int i = 0; i < 3; i++) {
+			String[] bits = {"ns", "t" + i};
+			assert guard.guard(bits) == bits;
+		}
+		// already admitted
+		assert Arrays.equals(guard.guard(new String[] {"ns", "t1"}), new String[] {"ns", "t1"});
+		// full
+		String[] folded = guard.guard(new String[] {"ns", "t3"});
+		assert Arrays.equals(folded, new String[] {"ns", TagCardinalityGuard.OTHER}) : Arrays.toString(folded);
+		// other namespaces are separate
+		assert Arrays.equals(guard.guard(new String[] {"ns2", "t3"}), new String[] {"ns2", "t3"});
+		// as are the top-level tags
+		guard.guard(new String[] {"ns3"});
+		assert Arrays.equals(guard.guard(new String[] {"ns4", "x"}), new String[] {TagCardinalityGuard.OTHER});
+		assert guard.getFolded("ns") == 1;
+		assert guard.getFolded("") == 1;
+		assert guard.getEstimate("ns/t1") == null;
+	}
+
+	@Test
+	public void testHeavyHitters() {
+		TagCardinalityGuard guard = new TagCardinalityGuard(1, 10);
+		guard.guard(new String[] {"ns", "first"});
+		for (int i = 0; i < 1000; i++) {
+			// busier than any folded tag, so it stays exact
+			for (int j = 0; j < 3; j++) guard.guard(new String[] {"ns", "first"});
+			guard.guard(new String[] {"ns", "big"});
+			if (i % 2 == 0) guard.guard(new String[] {"ns", "medium"});
+			// a long tail of one-offs
+			guard.guard(new String[] {"ns", "tail" + i});
+		}
+		assert guard.getFolded("ns") == 2500;
+		List<Estimate> top = guard.getHeavyHitters("ns");
+		assert top.size() == 10 : top;
+		// Space-Saving keeps anything with more than total/k
+		assert top.get(0).tag.equals("ns/big") : top;
+		assert top.get(1).tag.equals("ns/medium") : top;
+		for (Estimate e : top) {
+			assert e.count >= e.error : e;
+		}
+		Estimate big = guard.getEstimate("ns/big");
+		assert big.count >= 1000 && big.count - big.error <= 1000 : big;
+		// not monitored: from the count-min sketch
+		Estimate t = guard.getEstimate("ns/tail7");
+		assert t.count >= 1 && t.count - t.error <= 1 : t;
+	}
+
+	@Test
+	public void testPromotion() {
+		TagCardinalityGuard guard = new TagCardinalityGuard(2, 4);
+		// fill up with tags which then go quiet
+		guard.guard(new String[] {"ns", "early1"});
+		guard.guard(new String[] {"ns", "early2"});
+		// a hot tag turns up later
+		String[] hot = {"ns", "hot"};
+		int exact = 0;
+		for (int i = 0; i < 200; i++) {
+			if (guard.guard(hot) == hot) exact++;
+			guard.guard(new String[] {"ns", "tail" + i});
+		}
+		assert guard.getPromotions("ns") == 1 : guard.getPromotions("ns");
+		assert exact > 150 : exact;
+		assert guard.getEstimate("ns/hot") == null;
+		// one of the quiet ones was demoted
+		String[] e1 = {"ns", "early1"};
+		String[] e2 = {"ns", "early2"};
+		assert (guard.guard(e1) == e1) != (guard.guard(e2) == e2);
+		// one-offs are never promoted
+		for (int i = 0; i < 2000; i++) {
+			guard.guard(new String[] {"ns", "oneoff" + i});
+		}
+		assert guard.getPromotions("ns") == 1 : guard.getPromotions("ns");
+	}
+
+	@Test
+	public void testOffByDefault() {
+		assert new DataLogConfig().maxTagsPerNamespace == 0;
+	}
+
+	@Test
+	public void testDataLog() {
+		DataLogConfig config = new DataLogConfig();
+		config.maxTagsPerNamespace = 2;
+		DataLog.init(config);
+		try {
+			DataLog.count(1, "guardtest", "a");
+			DataLog.count(1, "guardtest", "b");
+			DataLog.count(1, "guardtest", "c");
+			DataLog.count(1, "guardtest", "d");
+			assert DataLog.get("guardtest", "a").x == 1;
+			assert DataLog.get("guardtest", "c").x == 0;
+			assert DataLog.get("guardtest", TagCardinalityGuard.OTHER).x == 2;
+			assert DataLog.get("guardtest").x == 4;
+			assert DataLog.getTagGuard().getEstimate("guardtest/d").count == 1;
+			// set and mean are not folded
+			DataLog.set(5, "guardtest", "e");
+			DataLog.mean(7, "guardtest", "f");
+			assert DataLog.getTagGuard().getFolded("guardtest") == 2;
+			assert DataLog.getMean("guardtest", "f").x.getMean() == 7 : DataLog.getMean("guardtest", "f");
+		} finally {
+			DataLog.init(new DataLogConfig());
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package com.winterwell.datalog;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+public class TagIndexTest {
+
+	static List<String> tags(List<TagIndex.Node<String>> nodes) {
+		List<String> tags = new ArrayList<>();
+		for (TagIndex.Node<String> n : nodes) tags.add(n.tag);
+		Collections.sort(tags);
+		return tags;
+	}
+
+	static TagIndex<String> newIndex() {
+		// value = the parent chain, to check the factory gets the parent's value
+		TagIndex<String> ti = new TagIndex<>((tag, parent) -> parent==null? tag : parent+">"+tag);
+		for (String t : new String[] {"a/b/c", "a/b/d", "a/x", "ab/c", "b/b/c"}) {
+			ti.getOrCreate(t);
+		}
+		return ti;
+	}
+
+	@Test
+	public void testParents() {
+		TagIndex<String> ti = newIndex();
+		assert ti.size() == 10 : ti.nodes();
+		assert ti.getValue("a/b/c").equals("a>a/b>a/b/c") : ti.getValue("a/b/c");
+		assert ti.get("a/b/c").parent == ti.get("a/b");
+		assert ti.get("a").parent.tag.isEmpty();
+		assert ti.get("nope") == null;
+	}
+
+	@Test
+	public void testPrefixAndMatch() {
+		TagIndex<String> ti = newIndex();
+		assert tags(ti.prefix("a/b")).toString().equals("[a/b, a/b/c, a/b/d]") : tags(ti.prefix("a/b"));
+		assert tags(ti.match("a/*/c")).toString().equals("[a/b/c]");
+		assert tags(ti.match("*/b/c")).toString().equals("[a/b/c, b/b/c]");
+		assert tags(ti.match("**/c")).toString().equals("[a/b/c, ab/c, b/b/c]") : tags(ti.match("**/c"));
+		assert tags(ti.match("a/**")).toString().equals("[a, a/b, a/b/c, a/b/d, a/x]") : tags(ti.match("a/**"));
+		assert ti.match("q/*").isEmpty();
+	}
+
+	@Test
+	public void testFind() {
+		TagIndex<String> ti = newIndex();
+		assert tags(ti.find(Pattern.compile("a/b/.*"))).toString().equals("[a/b/c, a/b/d]");
+		assert tags(ti.find(Pattern.compile("a.*/c"))).toString().equals("[a/b/c, ab/c]");
+		assert tags(ti.find(Pattern.compile("a/x|b/b/c"))).toString().equals("[a/x, b/b/c]");
+		assert tags(ti.find(Pattern.compile("A/X", Pattern.CASE_INSENSITIVE))).toString().equals("[a/x]");
+		assert TagIndex.literalPrefix("foo/ba?r.*").equals("foo/b");
+		assert TagIndex.literalPrefix("^foo/bar").equals("foo/bar");
+		assert TagIndex.literalPrefix(".*").isEmpty();
+	}
+}
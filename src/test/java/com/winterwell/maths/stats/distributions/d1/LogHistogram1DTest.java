@@ -0,0 +1,81 @@
+package com.winterwell.maths.stats.distributions.d1;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LogHistogram1DTest {
+
+	@Test
+	public void testQuantiles() {
+		LogHistogram1D h = new LogHistogram1D();
+		for (int i = 1; i <= 10000; i++) {
+			h.count(i);
+		}
+		assert h.getCount() == 10000;
+		assert h.getMean() == 5000.5 : h;
+		double p50 = h.getQuantile(0.5);
+		double p99 = h.getQuantile(0.99);
+		assert Math.abs(p50 - 5000) < 5000 * 0.011 : p50;
+		assert Math.abs(p99 - 9900) < 9900 * 0.011 : p99;
+		assert h.getConfidence(0) == 1;
+		assert h.getConfidence(1) == 10000;
+		double p = h.prob(0, 1000.5);
+		assert Math.abs(p - 0.1) < 0.002 : p;
+	}
+
+	@Test
+	public void testNegativesAndZeros() {
+		LogHistogram1D h = new LogHistogram1D();
+		h.count(-10);
+		h.count(0, 2);
+		h.count(10);
+		assert h.getQuantile(0.1) < -9.8 : h.getQuantile(0.1);
+		assert h.getQuantile(0.5) == 0;
+		assert h.getMean() == 0;
+		assert h.density(0) == Double.POSITIVE_INFINITY;
+		assert h.prob(-1, 1) == 0.5;
+	}
+
+	@Test
+	public void testMergeAndBytes() {
+		Random r = new Random(42);
+		LogHistogram1D a = new LogHistogram1D();
+		LogHistogram1D b = new LogHistogram1D();
+		LogHistogram1D all = new LogHistogram1D();
+		for (int i = 0; i < 5000; i++) {
+			double x = Math.exp(r.nextGaussian() * 2);
+			(i % 2 == 0? a : b).count(x);
+			all.count(x);
+		}
+		a.merge(b);
+		assert a.getCount() == all.getCount();
+		for (double q : new double[] {0.01, 0.5, 0.9, 0.999}) {
+			assert a.getQuantile(q) == all.getQuantile(q) : q;
+		}
+		byte[] bytes = a.toBytes();
+		// compact: well under 8 bytes per observation
+		assert bytes.length < 5000 : bytes.length;
+		LogHistogram1D a2 = LogHistogram1D.fromBytes(bytes);
+		assert a2.getCount() == a.getCount();
+		assert a2.getMean() == a.getMean();
+		assert a2.getQuantile(0.99) == a.getQuantile(0.99);
+		assert LogHistogram1D.fromBytes(new LogHistogram1D().toBytes()).getCount() == 0;
+	}
+
+	@Test
+	public void testBounded() {
+		LogHistogram1D h = new LogHistogram1D(0.01, 100);
+		for (int i = -20; i <= 20; i++) {
+			h.count(Math.pow(10, i));
+		}
+		h.count(5e19, 1000);
+		// the big values keep their accuracy
+		double mid = h.getQuantile(0.5);
+		assert Math.abs(mid - 5e19) < 5e19 * 0.011 : mid;
+		// tiny values count as zero, and the small ones get folded together
+		assert h.getQuantile(0.005) < 1e-19 : h.getQuantile(0.005);
+		assert h.getQuantile(0.02) > 1e18 : h.getQuantile(0.02);
+		assert h.toBytes().length < 100 * 20;
+	}
+}
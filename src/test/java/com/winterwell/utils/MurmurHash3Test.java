@@ -0,0 +1,37 @@
+package com.winterwell.utils;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class MurmurHash3Test {
+
+	@Test
+	public void testKnownValues() {
+		// reference values from Guava's Hashing.murmur3_128()
+		assert new MurmurHash3().toHex().equals("00000000000000000000000000000000");
+		byte[] fox = "The quick brown fox jumps over the lazy dog".getBytes(StandardCharsets.UTF_8);
+		String h = new MurmurHash3().update(fox, 0, fox.length).toHex();
+		assert h.equals("6c1b07bc7bbc4be347939ac4a93c437a") : h;
+	}
+
+	@Test
+	public void testStreamingAndReset() {
+		MurmurHash3 mh = new MurmurHash3();
+		String a = mh.update("foo=bar&").update("x=1&").toHex();
+		// toHex does not disturb the stream
+		assert mh.toHex().equals(a);
+		String b = mh.reset().update("foo=bar&x=1&").toHex();
+		assert a.equals(b) : a+" v "+b;
+		String c = mh.reset().update("foo=bar&x=2&").toHex();
+		assert ! a.equals(c);
+		// a String is fed as UTF-16LE
+		byte[] bytes = "foo=bar&x=1&".getBytes(StandardCharsets.UTF_16LE);
+		assert mh.reset().update(bytes, 0, bytes.length).toHex().equals(a);
+	}
+
+	@Test
+	public void testSeed() {
+		assert ! new MurmurHash3(1).update("hello").toHex().equals(new MurmurHash3().update("hello").toHex());
+	}
+}
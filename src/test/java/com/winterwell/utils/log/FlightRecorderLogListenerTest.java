@@ -0,0 +1,115 @@
+package com.winterwell.utils.log;
+
+import java.io.File;
+import java.util.List;
+import java.util.logging.Level;
+
+import org.junit.Test;
+
+import com.winterwell.utils.io.FileUtils;
+import com.winterwell.utils.log.FlightRecorderLogListener.Record;
+import com.winterwell.utils.time.TUnit;
+import com.winterwell.utils.time.Time;
+
+public class FlightRecorderLogListenerTest {
+
+	@Test
+	public void testRingKeepsLastN() {
+		FlightRecorderLogListener fr = new FlightRecorderLogListener(8);
+		for(int i=0; i<20; i++) {
+			fr.listen(new Report("foo", "msg "+i, Log.DEBUG, null, null));
+		}
+		List<Record> rs = fr.getRecords();
+		assert rs.size() == 8 : rs;
+		assert rs.get(0).message.equals("msg 12") : rs;
+		assert rs.get(7).message.equals("msg 19") : rs;
+		assert fr.getCount() == 20;
+	}
+
+	@Test
+	public void testQuery() {
+		FlightRecorderLogListener fr = new FlightRecorderLogListener(100, 10);
+		Time start = new Time();
+		fr.listen(new Report("foo", "a debug", Log.DEBUG, null, null));
+		fr.listen(new Report("bar", "a warning", Level.WARNING, null, null));
+		fr.listen(new Report("foo", "an error which goes on and on", Level.SEVERE, null, new Exception("boo")));
+
+		assert fr.query("foo", null, null, null, null).size() == 2;
+		assert fr.query("nosuchtag", null, null, null, null).isEmpty();
+		List<Record> bad = fr.query(null, Level.WARNING, null, null, null);
+		assert bad.size() == 2 : bad;
+		Record e = bad.get(1);
+		assert e.tag.equals("foo");
+		assert e.message.equals("an error w") : e; // cut to 10
+		assert e.ex.getMessage().equals("boo");
+		// time
+		assert fr.query(null, null, start.minus(TUnit.SECOND), null, null).size() == 3;
+		assert fr.query(null, null, null, start.minus(TUnit.SECOND), null).isEmpty();
+		// thread
+		String tname = Thread.currentThread().getName();
+		assert fr.query(null, null, null, null, tname).size() == 3;
+		assert fr.query(null, null, null, null, "nosuchthread").isEmpty();
+	}
+
+	@Test
+	public void testManyThreads() throws InterruptedException {
+		FlightRecorderLogListener fr = new FlightRecorderLogListener(8);
+		// each thread string is different (e.g. the #id on JDK 21+)
+		for(int i=0; i<20; i++) {
+			Thread t = new Thread(() -> fr.listen(new Report("foo", "hello", Log.DEBUG, null, null)), "worker-"+i);
+			t.start();
+			t.join();
+		}
+		List<Record> rs = fr.query(null, null, null, null, "worker-19");
+		assert rs.size() == 1 : rs;
+		assert rs.get(0).thread.contains("worker-19") : rs;
+		assert fr.query(null, null, null, null, "worker-3").isEmpty(); // gone from the ring
+	}
+
+	@Test
+	public void testConcurrent() throws InterruptedException {
+		FlightRecorderLogListener fr = new FlightRecorderLogListener(1024);
+		Thread[] threads = new Thread[4];
+		for(int t=0; t<threads.length; t++) {
+			final int tt = t;
+			threads[t] = new Thread(() -> {
+				for(int i=0; i<5000; i++) {
+					fr.listen(new Report("t"+tt, "msg "+i, Log.DEBUG, null, null));
+				}
+			});
+			threads[t].start();
+		}
+		// query while writing
+		for(int i=0; i<20; i++) {
+			for (Record r : fr.getRecords()) {
+				assert r.message.startsWith("msg ") : r;
+				assert r.tag.startsWith("t") : r;
+			}
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assert fr.getCount() == 20000;
+		assert fr.getRecords().size() == 1024;
+	}
+
+	@Test
+	public void testDumpOnEscalate() {
+		File dir = new File("test-output/flight");
+		if (dir.isDirectory()) FileUtils.deleteDir(dir);
+		FlightRecorderLogListener fr = new FlightRecorderLogListener(64).setDumpOnEscalate(dir);
+		fr.listen(new Report("foo", "before the crash", Log.DEBUG, null, null));
+		File f = fr.escalated(new Exception("crash"));
+		assert f != null && f.isFile();
+		String s = FileUtils.read(f);
+		assert s.contains("#foo before the crash") : s;
+		// rate limited
+		assert fr.escalated(new Exception("crash again")) == null;
+	}
+
+	@Test
+	public void testWithMaxMemory() {
+		FlightRecorderLogListener fr = FlightRecorderLogListener.withMaxMemory(10L*1024*1024);
+		assert fr.getCapacity() > 1000 && fr.getCapacity() <= 10L*1024*1024 / 2000 : fr;
+	}
+}
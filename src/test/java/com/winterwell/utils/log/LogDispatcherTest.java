@@ -0,0 +1,133 @@
+package com.winterwell.utils.log;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Level;
+
+import org.junit.Test;
+
+import com.winterwell.utils.log.LogDispatcher.KOverflow;
+
+public class LogDispatcherTest {
+
+	/**
+	 * Records reports with a tag starting "ldt", optionally stalling
+	 */
+	static class SlowListener implements ILogListener {
+		final List<Report> reports = new CopyOnWriteArrayList<>();
+		final List<String> threads = new CopyOnWriteArrayList<>();
+		final CountDownLatch gate;
+
+		SlowListener(CountDownLatch gate) {
+			this.gate = gate;
+		}
+
+		@Override
+		public void listen(Report report) {
+			if ( ! report.tag.startsWith("ldt") && ! report.getMessage().contains("dropped")) return;
+			try {
+				gate.await();
+			} catch (InterruptedException e) {
+				// oh well
+			}
+			reports.add(report);
+			threads.add(Thread.currentThread().getName());
+		}
+	}
+
+	@Test
+	public void testOffThread() throws Exception {
+		CountDownLatch gate = new CountDownLatch(1);
+		SlowListener sl = new SlowListener(gate);
+		Log.addListener(sl);
+		Log.setDispatcher(new LogDispatcher(64, KOverflow.DROP_OLDEST, null, 0));
+		try {
+			// the listener is stalled -- but logging isn't
+			for (int i = 0; i < 10; i++) {
+				Log.i("ldt.offthread", "hello "+i);
+			}
+			assert sl.reports.isEmpty();
+			gate.countDown();
+		} finally {
+			Log.setDispatcher(null);
+			Log.removeListener(sl);
+		}
+		assert sl.reports.size() == 10 : sl.reports;
+		assert sl.reports.get(9).getMessage().equals("hello 9");
+		assert sl.threads.stream().allMatch("Log.dispatcher"::equals) : sl.threads;
+	}
+
+	@Test
+	public void testDropBelowLevel() throws Exception {
+		CountDownLatch gate = new CountDownLatch(1);
+		SlowListener sl = new SlowListener(gate);
+		Log.addListener(sl);
+		LogDispatcher d = new LogDispatcher(4, KOverflow.DROP_BELOW_LEVEL, Level.WARNING, 0);
+		Log.setDispatcher(d);
+		try {
+			for (int i = 0; i < 20; i++) {
+				Log.i("ldt.drop", "info "+i);
+			}
+			Log.e("ldt.drop", "important");
+			gate.countDown();
+		} finally {
+			Log.setDispatcher(null);
+			Log.removeListener(sl);
+		}
+		assert d.getDropped() > 0 : d.getStats();
+		assert sl.reports.stream().anyMatch(r -> r.getMessage().equals("important")) : sl.reports;
+		assert sl.reports.stream().anyMatch(r -> r.getMessage().contains("dropped")) : sl.reports;
+		// offered = delivered + dropped (+ the stalled one in the listener, which was delivered)
+		long offered = (Long) d.getStats().get("offered");
+		assert offered == 21 : d.getStats();
+	}
+
+	@Test
+	public void testBlock() throws Exception {
+		CountDownLatch gate = new CountDownLatch(1);
+		SlowListener sl = new SlowListener(gate);
+		Log.addListener(sl);
+		LogDispatcher d = new LogDispatcher(2, KOverflow.BLOCK, null, 20);
+		Log.setDispatcher(d);
+		try {
+			long start = System.currentTimeMillis();
+			for (int i = 0; i < 6; i++) {
+				Log.w("ldt.block", "warn "+i);
+			}
+			long took = System.currentTimeMillis() - start;
+			assert took >= 20 : took;
+			gate.countDown();
+		} finally {
+			Log.setDispatcher(null);
+			Log.removeListener(sl);
+		}
+		assert d.getDropped() > 0 && d.getDropped() < 6 : d.getStats();
+	}
+
+	@Test
+	public void testShutdownHookDrains() throws Exception {
+		CountDownLatch gate = new CountDownLatch(1);
+		SlowListener sl = new SlowListener(gate);
+		Log.addListener(sl);
+		LogDispatcher d = new LogDispatcher(64, KOverflow.DROP_OLDEST, null, 0);
+		Log.setDispatcher(d);
+		try {
+			for (int i = 0; i < 10; i++) {
+				Log.e("ldt.shutdown", "error "+i);
+			}
+			assert sl.reports.isEmpty();
+			gate.countDown();
+			// as if the JVM were exiting
+			d.shutdownHook.run();
+			assert sl.reports.size() == 10 : sl.reports;
+			// later reports (e.g. from other shutdown hooks) are delivered in-line
+			Log.e("ldt.shutdown", "after");
+			assert sl.reports.size() == 11 : sl.reports;
+			assert sl.threads.get(10).equals(Thread.currentThread().getName()) : sl.threads;
+		} finally {
+			Log.setDispatcher(null);
+			Log.removeListener(sl);
+		}
+	}
+}
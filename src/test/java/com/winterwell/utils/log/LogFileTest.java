@@ -1,6 +1,9 @@
 package com.winterwell.utils.log;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
 
 import org.junit.Ignore;
 import org.junit.Test;
@@ -36,6 +39,92 @@ public class LogFileTest {
 
 
 
+	@Test
+	public void testAsync() throws Exception {
+		File f = new File("test-output/test-async.txt");
+		FileUtils.delete(f);
+		LogFile lf = new LogFile(f).setAsync(LogFile.KFlush.ON_ERROR, null);
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			final int tn = t;
+			threads[t] = new Thread(() -> {
+				for (int i = 0; i < 100; i++) {
+					Log.i("async"+tn, "line "+tn+"."+i+" é");
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		Log.e("async", "an error");
+		lf.close();
+		String log = FileUtils.read(f);
+		for (int t = 0; t < threads.length; t++) {
+			for (int i = 0; i < 100; i++) {
+				assert log.contains(" line "+t+"."+i+" é") : t+"."+i;
+			}
+		}
+		assert log.contains("an error");
+		assert log.split("\n").length == 401 : log.split("\n").length;
+		assert lf.getAsyncStats().get("written").equals(401L) : lf.getAsyncStats();
+		assert ((Long) lf.getAsyncStats().get("forces")) > 0 : lf.getAsyncStats();
+		// closed -- no more writing
+		Log.i("async", "after close");
+		assert ! FileUtils.read(f).contains("after close");
+	}
+
+	@Test
+	public void testAsyncViaConfig() {
+		File f = new File("test-output/test-async-config.txt");
+		FileUtils.delete(f);
+		LogConfig lc = new LogConfig();
+		lc.fileAsync = true;
+		lc.fileAsyncBuffer = 64;
+		LogFile lf = new LogFile(f, lc);
+		try {
+			// the buffer comes from lc, not Dep
+			assert lf.getAsyncStats().get("capacity").equals(64) : lf.getAsyncStats();
+		} finally {
+			lf.close();
+		}
+	}
+
+	@Test
+	public void testSizeRotation() throws Exception {
+		testSizeRotation2(false);
+		testSizeRotation2(true);
+	}
+
+	private void testSizeRotation2(boolean async) throws Exception {
+		File dir = new File("test-output/rotate-size-"+async);
+		if (dir.isDirectory()) FileUtils.deleteDir(dir);
+		File f = new File(dir, "log.txt");
+		LogFile lf = new LogFile(f);
+		lf.fileMaxSize = 2000;
+		lf.rotationHistory = 2;
+		if (async) lf.setAsync(LogFile.KFlush.INTERVAL, null);
+		String tag = "rotate"+async;
+		for (int i = 0; i < 100; i++) {
+			Log.i(tag, "line "+i);
+		}
+		lf.close();
+		assert LogRotator.awaitIdle(10000);
+		// never stopped logging
+		String log = FileUtils.read(f);
+		assert log.contains(" line 99 ") : log;
+		assert f.length() <= 2000 : f.length();
+		// the history, gzipped
+		File old1 = new File(f.getPath()+".1.gz");
+		assert old1.isFile();
+		assert new File(f.getPath()+".2.gz").isFile();
+		assert ! new File(f.getPath()+".3.gz").exists();
+		String log1 = FileUtils.read(new GZIPInputStream(new FileInputStream(old1)));
+		assert log1.contains(" line ") && ! log1.contains(" line 99 ") : log1;
+		// no left-over staged files
+		assert dir.list().length == 3 : Arrays.toString(dir.list());
+	}
+
 	@Ignore("Slow test")
 	@Test
 	public void testContention() {
@@ -87,8 +176,10 @@ public class LogFileTest {
 		String log = FileUtils.read(f);
 		Printer.out(log);		
 		lf.close();
-		assert log.contains("Hello 1");
-		assert log.contains("file too big");
+		assert log.contains("Hello 99");
+		// rotated, not skipped
+		LogRotator.awaitIdle(10000);
+		assert new File(f.getPath()+".1.gz").exists();
 	}
 
 	@Ignore("Broken test")
@@ -0,0 +1,59 @@
+package com.winterwell.utils.log;
+
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.SimpleFormatter;
+
+import org.junit.Test;
+
+import com.winterwell.utils.StrUtils;
+
+public class LogLineFormatterTest {
+
+	/**
+	 * The old LogFile formatting
+	 */
+	static String simpleFormatter(Report report, String serverName) {
+		LogRecord lr = new LogRecord(report.level, report.tag+" #"+report.getMarker()+" "+report.getMessage()
+									+" "+report.context+" "+serverName);
+		lr.setMillis(report.getTime().getTime());
+		lr.setThrown(report.ex);
+		lr.setLoggerName(String.valueOf(report.thread));
+		String lines = new SimpleFormatter().format(lr);
+		return lines.replaceAll("[\r\n]", " ") + "\n";
+	}
+
+	@Test
+	public void testSameAsSimpleFormatter() {
+		LogLineFormatter f = new LogLineFormatter("myserver", 100000);
+		Report r = new Report("tag", "Hello\nworld\r\n", Level.INFO, null, null);
+		assert f.format(r).equals(simpleFormatter(r, "myserver")) : f.format(r)+" vs "+simpleFormatter(r, "myserver");
+		Report r2 = new Report("test", new RuntimeException("oops", new Exception("base")));
+		assert f.format(r2).equals(simpleFormatter(r2, "myserver")) : f.format(r2);
+		Report r3 = new Report("warn", "{0} x", Level.WARNING, null, null);
+		assert f.format(r3).equals(simpleFormatter(r3, "myserver")) : f.format(r3);
+		// repeat -- the buffers get re-used
+		assert f.format(r).equals(simpleFormatter(r, "myserver"));
+	}
+
+	@Test
+	public void testCap() {
+		LogLineFormatter f = new LogLineFormatter("myserver", 120);
+		String msg = StrUtils.repeat("word ", 100);
+		Report r = new Report("tag", msg, Level.INFO, null, null);
+		String line = f.format(r);
+		assert line.length() <= 120 : line.length();
+		assert line.endsWith("...\n") : line;
+		assert line.indexOf('\n') == line.length() - 1;
+		// cut at a word boundary
+		assert line.endsWith(" word...\n") || line.endsWith("word...\n") : line;
+		// a stack trace gets cut too
+		Report r2 = new Report("test", new RuntimeException("oops"));
+		String line2 = f.format(r2);
+		assert line2.length() <= 120 && line2.endsWith("...\n") : line2;
+		// short is untouched
+		LogLineFormatter f2 = new LogLineFormatter("s", 2048);
+		Report r3 = new Report("tag", "short", Level.INFO, null, null);
+		assert f2.format(r3).equals(simpleFormatter(r3, "s"));
+	}
+}
@@ -1,6 +1,8 @@
 package com.winterwell.utils.log;
 
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 
 import org.junit.Test;
 
@@ -39,4 +41,43 @@ public class LogTest {
 		assert reports.size() < 4;
 	}
 
+	@Test
+	public void testSupplierAndTagLevels() {
+		final String ttag = "test"+Utils.getRandomString(4);
+		ArrayList<Report> reports = new ArrayList();
+		ILogListener listener = report -> {
+			if (ttag.equals(report.tag)) reports.add(report);
+		};
+		Log.addListener(listener);
+		Level was = Log.getMinLevel(null);
+		AtomicInteger made = new AtomicInteger();
+		try {
+			Log.setMinLevel(ttag, Level.WARNING);
+			assert ! Log.isLoggable(ttag, Log.DEBUG);
+			assert Log.isLoggable(ttag, Level.SEVERE);
+			assert Log.isLoggable(null, Log.DEBUG) == (was.intValue() <= Log.DEBUG.intValue());
+
+			Log.d(ttag, () -> "debug "+made.incrementAndGet());
+			Log.i(ttag, () -> "info "+made.incrementAndGet());
+			assert made.get() == 0 : made;
+			assert reports.isEmpty();
+
+			Log.w(ttag, () -> "warn "+made.incrementAndGet());
+			assert made.get() == 1 : made;
+			assert reports.size() == 1;
+			assert reports.get(0).getMessage().equals("warn 1") : reports;
+
+			// back to the default
+			Log.setMinLevel(ttag, null);
+			assert Log.getMinLevel(ttag) == was;
+			Log.setMinLevel(Level.OFF);
+			Log.e(ttag, () -> "off "+made.incrementAndGet());
+			assert made.get() == 1 : made;
+		} finally {
+			Log.setMinLevel(was);
+			Log.setMinLevel(ttag, null);
+			Log.removeListener(listener);
+		}
+	}
+
 }
@@ -0,0 +1,129 @@
+package com.winterwell.utils.log;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.winterwell.datalog.Rate;
+import com.winterwell.utils.time.Dt;
+import com.winterwell.utils.time.TUnit;
+
+public class LogThrottleTest {
+
+	@Test
+	public void testBurstThenThrottle() {
+		LogConfig config = new LogConfig();
+		config.throttleAt = new Rate(5, TUnit.MINUTE);
+		LogThrottle t = new LogThrottle(config);
+		int ok = 0;
+		for(int i=0; i<20; i++) {
+			if ( ! t.isThrottled("foo")) ok++;
+		}
+		assert ok == 5 : ok;
+		// other tags have their own bucket
+		assert ! t.isThrottled("bar");
+		assert t.getStats().get("throttled").equals(15L) : t.getStats();
+	}
+
+	@Test
+	public void testRefill() throws InterruptedException {
+		LogConfig config = new LogConfig();
+		config.throttleWindow = new Dt(200, TUnit.MILLISECOND);
+		config.throttleAt = new Rate(2, config.throttleWindow);
+		LogThrottle t = new LogThrottle(config);
+		assert ! t.isThrottled("foo");
+		assert ! t.isThrottled("foo");
+		assert t.isThrottled("foo");
+		Thread.sleep(250);
+		assert ! t.isThrottled("foo");
+		assert ! t.isThrottled("foo");
+		assert t.isThrottled("foo");
+	}
+
+	@Test
+	public void testPerTagAndUnlimited() {
+		LogConfig config = new LogConfig();
+		config.throttleAt = null;
+		config.setThrottleAtForTag("noisy", new Rate(1, TUnit.MINUTE));
+		LogThrottle t = new LogThrottle(config);
+		for(int i=0; i<2000; i++) {
+			assert ! t.isThrottled("quiet");
+		}
+		assert ! t.isThrottled("noisy");
+		assert t.isThrottled("noisy");
+		// no window = no throttle
+		config = new LogConfig();
+		config.throttleWindow = null;
+		t = new LogThrottle(config);
+		for(int i=0; i<2000; i++) {
+			assert ! t.isThrottled("quiet");
+		}
+	}
+
+	@Test
+	public void testConfigChanges() {
+		LogConfig config = new LogConfig();
+		config.throttleAt = new Rate(2, TUnit.MINUTE);
+		LogThrottle t = new LogThrottle(config);
+		assert ! t.isThrottled("foo");
+		assert ! t.isThrottled("foo");
+		assert t.isThrottled("foo");
+		// raise the default limit
+		config.throttleAt = new Rate(5, TUnit.MINUTE);
+		for(int i=0; i<5; i++) {
+			assert ! t.isThrottled("foo") : i;
+		}
+		assert t.isThrottled("foo");
+		// a per-tag limit
+		config.setThrottleAtForTag("foo", new Rate(1, TUnit.MINUTE));
+		assert ! t.isThrottled("foo");
+		assert t.isThrottled("foo");
+		// unlimited, then limited again
+		config.throttleAt = null;
+		for(int i=0; i<100; i++) {
+			assert ! t.isThrottled("bar");
+		}
+		config.throttleAt = new Rate(1, TUnit.MINUTE);
+		assert ! t.isThrottled("bar");
+		assert t.isThrottled("bar");
+		// switch off
+		config.throttleWindow = null;
+		assert ! t.isThrottled("bar");
+		config.throttleWindow = TUnit.MINUTE.dt;
+		assert (Integer) t.getStats().get("tags") == 0 : t.getStats();
+		assert ! t.isThrottled("bar");
+		assert t.isThrottled("bar");
+	}
+
+	@Test
+	public void testConcurrent() throws InterruptedException {
+		LogConfig config = new LogConfig();
+		config.throttleAt = new Rate(1000, TUnit.MINUTE);
+		LogThrottle t = new LogThrottle(config);
+		AtomicInteger ok = new AtomicInteger();
+		Thread[] threads = new Thread[8];
+		for(int i=0; i<threads.length; i++) {
+			threads[i] = new Thread(() -> {
+				for(int j=0; j<1000; j++) {
+					if ( ! t.isThrottled("storm")) ok.incrementAndGet();
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		// exactly the bucket (give or take a token's refill)
+		assert ok.get() >= 1000 && ok.get() <= 1001 : ok;
+	}
+
+	@Test
+	public void testManyTags() {
+		LogConfig config = new LogConfig();
+		LogThrottle t = new LogThrottle(config);
+		for(int i=0; i<5000; i++) {
+			t.isThrottled("tag"+i);
+		}
+		assert (Integer) t.getStats().get("tags") <= LogThrottle.MAX_TAGS : t.getStats();
+	}
+}
@@ -0,0 +1,84 @@
+package com.winterwell.utils.log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.logging.Level;
+
+import org.junit.Test;
+
+import com.winterwell.utils.io.FileUtils;
+import com.winterwell.utils.web.SimpleJson;
+
+public class NDJsonLogFileTest {
+
+	@Test
+	public void testOneObjectPerReport() throws IOException {
+		File f = new File("test-output/ndjson/test.log");
+		FileUtils.delete(f);
+		NDJsonLogFile lf = new NDJsonLogFile(f);
+		try {
+			String msg = "Hello \"world\"\n\ttab \\ back \u00E9 \u4E2D \uD83D\uDE00 \u0001";
+			lf.listen(new Report("foo", msg, Level.WARNING, null, null));
+			lf.listen(new Report("bar", "oops", Level.SEVERE, null, new Exception("boo")));
+			String[] lines = new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8).split("\n");
+			assert lines.length == 2 : lines.length;
+			// escaped, and UTF-8
+			String json = "\"message\":\"Hello \\\"world\\\"\\n\\ttab \\\\ back \u00E9 \u4E2D \uD83D\uDE00 \\u0001\"";
+			assert lines[0].contains(json) : lines[0];
+
+			Map a = (Map) new SimpleJson().fromJson(lines[0]);
+			assert a.get("tag").equals("foo");
+			assert a.get("level").equals("WARNING");
+			assert a.get("marker").equals(new Report("foo", msg, Level.WARNING, null, null).getMarker());
+			assert ((String) a.get("time")).matches("\\d{4}-\\d\\d-\\d\\dT\\d\\d:\\d\\d:\\d\\d\\.\\d{3}Z") : a;
+			assert a.get("thread") != null;
+			assert ! a.containsKey("details");
+
+			Map b = (Map) new SimpleJson().fromJson(lines[1]);
+			assert ((String) b.get("stack")).contains("java.lang.Exception: boo") : b;
+		} finally {
+			lf.close();
+		}
+	}
+
+	@Test
+	public void testCutLongFields() {
+		File f = new File("test-output/ndjson/cut.log");
+		FileUtils.delete(f);
+		NDJsonLogFile lf = new NDJsonLogFile(f).setMaxFieldChars(20);
+		try {
+			lf.listen(new Report("foo", "abcdefghijklmnopqrstuvwxyz", Level.INFO, null, null));
+			Map a = (Map) new SimpleJson().fromJson(FileUtils.read(f).trim());
+			assert a.get("message").equals("abcdefghijklmnopq...") : a;
+		} finally {
+			lf.close();
+		}
+	}
+
+	@Test
+	public void testRotation() {
+		File f = new File("test-output/ndjson/rot.log");
+		for(int i=0; i<4; i++) {
+			FileUtils.delete(new File(f.getPath()+(i==0? "" : "."+i+".gz")));
+		}
+		NDJsonLogFile lf = new NDJsonLogFile(f).setMaxSize(2000, 2);
+		try {
+			for(int i=0; i<100; i++) {
+				lf.listen(new Report("foo", "message number "+i, Level.INFO, null, null));
+			}
+			assert f.length() <= 2000 : f.length();
+			assert LogRotator.awaitIdle(10000);
+			assert new File(f.getPath()+".1.gz").isFile();
+			assert new File(f.getPath()+".2.gz").isFile();
+			assert ! new File(f.getPath()+".3.gz").exists();
+			assert (Long) lf.getStats().get("rotations") > 2 : lf.getStats();
+			String last = FileUtils.read(f);
+			assert last.contains("message number 99") : last;
+		} finally {
+			lf.close();
+		}
+	}
+}
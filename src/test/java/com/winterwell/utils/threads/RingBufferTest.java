@@ -0,0 +1,54 @@
+package com.winterwell.utils.threads;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class RingBufferTest {
+
+	@Test
+	public void testOfferPoll() {
+		RingBuffer<Integer> rb = new RingBuffer<>(3);
+		assert rb.capacity() == 4 : rb;
+		for(int i=0; i<4; i++) {
+			assert rb.offer(i);
+		}
+		assert ! rb.offer(99) : "should be full";
+		assert rb.poll() == 0;
+		assert rb.offer(4);
+		List<Integer> out = new ArrayList<>();
+		rb.drainTo(out, 10);
+		assert out.toString().equals("[1, 2, 3, 4]") : out;
+		assert rb.poll() == null;
+		assert rb.isEmpty();
+	}
+
+	@Test
+	public void testManyProducers() throws Exception {
+		RingBuffer<Integer> rb = new RingBuffer<>(1024);
+		ExecutorService exec = Executors.newFixedThreadPool(4);
+		int n = 20000;
+		for(int t=0; t<4; t++) {
+			exec.submit(() -> {
+				for(int i=0; i<n; i++) {
+					while ( ! rb.offer(i)) Thread.onSpinWait();
+				}
+			});
+		}
+		long sum = 0;
+		int got = 0;
+		while (got < 4*n) {
+			Integer x = rb.poll();
+			if (x == null) continue;
+			sum += x;
+			got++;
+		}
+		exec.shutdown();
+		exec.awaitTermination(1, TimeUnit.MINUTES);
+		assert sum == 4L * n * (n - 1) / 2 : sum;
+	}
+}